@@ -22,14 +22,18 @@ import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.*;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.datasource.rocksdb.ColumnFamilyBatchWriter;
 import org.ethereum.datasource.rocksdb.RocksDbDataSource;
 import org.ethereum.db.*;
 import org.ethereum.listener.CompositeEthereumListener;
 import org.ethereum.listener.EthereumListener;
 import org.ethereum.net.eth.handler.Eth63;
 import org.ethereum.sync.FastSyncManager;
+import org.ethereum.util.ByteUtil;
 import org.ethereum.validator.*;
+import org.ethereum.vm.CompilingVMFactory;
 import org.ethereum.vm.DataWord;
+import org.ethereum.vm.VMFactory;
 import org.ethereum.vm.program.ProgramPrecompile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +44,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import static java.util.Arrays.asList;
 
@@ -50,16 +55,26 @@ import static java.util.Arrays.asList;
 public class CommonConfig {
     private static final Logger logger = LoggerFactory.getLogger("general");
     private Set<DbSource> dbSources = new HashSet<>();
+    private ColumnFamilyBatchWriter blockchainFamiliesWriter;
 
     private static CommonConfig defaultInstance;
 
     public static CommonConfig getDefault() {
         if (defaultInstance == null && !SystemProperties.isUseOnlySpringConfig()) {
             defaultInstance = new CommonConfig() {
+                // the compiled code is shared by the executions like the Spring singleton is
+                private VMFactory vmFactory;
+
                 @Override
                 public Source<byte[], ProgramPrecompile> precompileSource() {
                     return null;
                 }
+
+                @Override
+                public synchronized VMFactory vmFactory() {
+                    if (vmFactory == null) vmFactory = super.vmFactory();
+                    return vmFactory;
+                }
             };
         }
         return defaultInstance;
@@ -83,12 +98,21 @@ public class CommonConfig {
 
     @Bean
     public Repository defaultRepository() {
-        return new RepositoryRoot(stateSource(), null);
+        return new RepositoryRoot(stateSource(), null, flatState(), storageTrieCache());
     }
 
     @Bean @Scope("prototype")
     public Repository repository(byte[] stateRoot) {
-        return new RepositoryRoot(stateSource(), stateRoot);
+        return new RepositoryRoot(stateSource(), stateRoot, flatState(), storageTrieCache());
+    }
+
+    /**
+     * The contract storage tries kept loaded between the blocks,
+     * shared by all the repositories and their snapshots
+     */
+    @Bean
+    public StorageTrieCache storageTrieCache() {
+        return new StorageTrieCache(systemProperties().storageTrieCacheSize() * 1024L * 1024);
     }
 
     /**
@@ -108,6 +132,9 @@ public class CommonConfig {
     @Bean
     public Source<byte[], byte[]> trieNodeSource() {
         DbSource<byte[]> db = blockchainDB();
+        if (db instanceof RocksDbDataSource && ((RocksDbDataSource) db).getColumnFamily("state") != null) {
+            return new PrefixLookupSource<>(((RocksDbDataSource) db).getColumnFamily("state"), NodeKeyCompositor.PREFIX_BYTES);
+        }
         Source<byte[], byte[]> src = new PrefixLookupSource<>(db, NodeKeyCompositor.PREFIX_BYTES);
         return new XorDataSource<>(src, HashUtil.sha3("state".getBytes()));
     }
@@ -115,18 +142,49 @@ public class CommonConfig {
     @Bean
     public StateSource stateSource() {
         fastSyncCleanUp();
-        StateSource stateSource = new StateSource(blockchainSource("state"),
-                systemProperties().databasePruneDepth() >= 0);
+        StateSource stateSource = new StateSource(bloomedSource("state"),
+                systemProperties().databasePruneDepth() >= 0, systemProperties().isConcurrentWriteCache());
 
         dbFlushManager().addCache(stateSource.getWriteCache());
 
         return stateSource;
     }
 
+    /**
+     * The flat copy of the best block state kept in the separate DB
+     * @see FlatState
+     */
+    @Bean
+    public FlatState flatState() {
+        int maxDepth = systemProperties().databaseFlatStateDepth();
+        if (maxDepth < 0) return new FlatState();
+
+        DbSource<byte[]> db = keyValueDataSource("flatstate");
+        AbstractCachedSource<byte[], byte[]> writeCache = new AsyncWriteCache<byte[], byte[]>(new BatchSourceWriter<>(db)) {
+            @Override
+            protected WriteCache<byte[], byte[]> createCache(Source<byte[], byte[]> source) {
+                WriteCache.BytesKey<byte[]> ret = new WriteCache.BytesKey<>(source, WriteCache.CacheType.SIMPLE);
+                ret.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
+                ret.setFlushSource(true);
+                return ret;
+            }
+        }.withName("flatstate");
+        dbFlushManager().addCache(writeCache, db);
+        return new FlatState(writeCache, db, stateSource(), maxDepth);
+    }
+
+    @Bean
+    public StatePrefetcher statePrefetcher() {
+        StatePrefetcher prefetcher = new StatePrefetcher(stateSource(), systemProperties().statePrefetchThreads());
+        dbFlushManager().addCloseHook(prefetcher::shutdown);
+        return prefetcher;
+    }
+
     @Bean
     @Scope("prototype")
     public Source<byte[], byte[]> cachedDbSource(String name) {
-        AbstractCachedSource<byte[], byte[]>  writeCache = new AsyncWriteCache<byte[], byte[]>(blockchainSource(name)) {
+        Source<byte[], byte[]> src = "transactions".equals(name) ? bloomedSource(name) : blockchainSource(name);
+        AbstractCachedSource<byte[], byte[]>  writeCache = new AsyncWriteCache<byte[], byte[]>(src) {
             @Override
             protected WriteCache<byte[], byte[]> createCache(Source<byte[], byte[]> source) {
                 WriteCache.BytesKey<byte[]> ret = new WriteCache.BytesKey<>(source, WriteCache.CacheType.SIMPLE);
@@ -142,13 +200,55 @@ public class CommonConfig {
     @Bean
     @Scope("prototype")
     public Source<byte[], byte[]> blockchainSource(String name) {
-        return new XorDataSource<>(blockchainDbCache(), HashUtil.sha3(name.getBytes()));
+        AbstractCachedSource<byte[], byte[]> cache = blockchainDbCache();
+        if (blockchainFamiliesWriter != null) {
+            if (blockchainFamiliesWriter.hasFamily(name)) {
+                return blockchainFamiliesWriter.familySource(cache, name);
+            }
+            // sources without own column family share the default one
+            return new XorDataSource<>(blockchainFamiliesWriter.familySource(cache, null), HashUtil.sha3(name.getBytes()));
+        }
+        return new XorDataSource<>(cache, HashUtil.sha3(name.getBytes()));
+    }
+
+    /**
+     * Puts {@link BloomedSource} on top of the blockchain source if enabled
+     * Intended for the sources with many lookups of the missing keys
+     */
+    private Source<byte[], byte[]> bloomedSource(String name) {
+        Source<byte[], byte[]> src = blockchainSource(name);
+        if (!systemProperties().databaseBloomFilter()) return src;
+
+        DbSource<byte[]> db = blockchainDB();
+        Supplier<DbIterator<byte[]>> keys;
+        if (blockchainFamiliesWriter != null && blockchainFamiliesWriter.hasFamily(name)) {
+            DbSource<byte[]> family = ((RocksDbDataSource) db).getColumnFamily(name);
+            keys = () -> family.iterator(null, null);
+        } else {
+            byte[] secret = HashUtil.sha3(name.getBytes());
+            keys = () -> db.iterator(null, null).mapKeys(key -> ByteUtil.xorAlignRight(key, secret));
+        }
+        BloomedSource ret = new BloomedSource(src, name,
+                systemProperties().getConfig().getLong("database.bloomFilter.expectedKeys"),
+                systemProperties().getConfig().getDouble("database.bloomFilter.falsePositiveRate"), keys);
+        dbFlushManager().addFlushListener(ret::onDbFlushed);
+        dbFlushManager().addCloseHook(ret::save);
+        return ret;
     }
 
     @Bean
     public AbstractCachedSource<byte[], byte[]> blockchainDbCache() {
-        WriteCache.BytesKey<byte[]> ret = new WriteCache.BytesKey<>(
-                new BatchSourceWriter<>(blockchainDB()), WriteCache.CacheType.SIMPLE);
+        DbSource<byte[]> db = blockchainDB();
+        Source<byte[], byte[]> dbWriter;
+        if (db instanceof RocksDbDataSource && ((RocksDbDataSource) db).hasColumnFamilies()) {
+            RocksDbDataSource rocksDb = (RocksDbDataSource) db;
+            dbWriter = blockchainFamiliesWriter = new ColumnFamilyBatchWriter(rocksDb, rocksDb.getColumnFamilyNames());
+        } else {
+            dbWriter = new BatchSourceWriter<>(db);
+        }
+        WriteCache<byte[], byte[]> ret = systemProperties().isConcurrentWriteCache() ?
+                new ConcurrentWriteCache.BytesKey<>(dbWriter, WriteCache.CacheType.SIMPLE) :
+                new WriteCache.BytesKey<>(dbWriter, WriteCache.CacheType.SIMPLE);
         ret.setFlushSource(true);
         return ret;
     }
@@ -240,7 +340,7 @@ public class CommonConfig {
         WriteCache.BytesKey<byte[]> cache = new WriteCache.BytesKey<>(
                 new BatchSourceWriter<>(dataSource), WriteCache.CacheType.SIMPLE);
         cache.setFlushSource(true);
-        dbFlushManager().addCache(cache);
+        dbFlushManager().addCache(cache, dataSource);
 
         HeaderStore headerStore = new HeaderStore();
         Source<byte[], byte[]> headers = new XorDataSource<>(cache, HashUtil.sha3("header".getBytes()));
@@ -274,12 +374,30 @@ public class CommonConfig {
         });
     }
 
+    @Bean
+    public VMFactory vmFactory() {
+        if ("compiled".equals(systemProperties().vmEngine())) {
+            return new CompilingVMFactory(systemProperties().vmCompileThreshold(),
+                    systemProperties().vmCompiledMaxContracts());
+        }
+        return VMFactory.INTERPRETER;
+    }
+
     @Bean
     public DbSource<byte[]> blockchainDB() {
         DbSettings settings = DbSettings.newInstance()
                 .withMaxOpenFiles(systemProperties().getConfig().getInt("database.maxOpenFiles"))
                 .withMaxThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
 
+        if (systemProperties().databaseColumnFamilies()) {
+            settings.withColumnFamily("state", DbSettings.ColumnFamily.Profile.POINT_LOOKUP,
+                            systemProperties().getConfig().getLong("database.stateBlockCacheSize") * 1024 * 1024)
+                    .withColumnFamily("block", DbSettings.ColumnFamily.Profile.COLD, 8 * 1024 * 1024)
+                    .withColumnFamily("transactions", DbSettings.ColumnFamily.Profile.COLD, 8 * 1024 * 1024)
+                    .withColumnFamily("index", DbSettings.ColumnFamily.Profile.DEFAULT, 0)
+                    .withColumnFamily("journal", DbSettings.ColumnFamily.Profile.DEFAULT, 0);
+        }
+
         return keyValueDataSource("blockchain", settings);
     }
 
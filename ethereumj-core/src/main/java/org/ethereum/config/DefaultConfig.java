@@ -20,6 +20,8 @@ package org.ethereum.config;
 import org.ethereum.datasource.Source;
 import org.ethereum.db.BlockStore;
 import org.ethereum.db.IndexedBlockStore;
+import org.ethereum.db.MappedBlockFile;
+import org.ethereum.db.MappedBlockStore;
 import org.ethereum.db.PruneManager;
 import org.ethereum.db.TransactionStore;
 import org.slf4j.Logger;
@@ -31,6 +33,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import java.io.File;
 import java.util.List;
 
 import static java.util.Arrays.asList;
@@ -69,9 +72,19 @@ public class DefaultConfig {
     @Bean
     public BlockStore blockStore(){
         commonConfig.fastSyncCleanUp();
-        IndexedBlockStore indexedBlockStore = new IndexedBlockStore();
         Source<byte[], byte[]> block = commonConfig.cachedDbSource("block");
         Source<byte[], byte[]> index = commonConfig.cachedDbSource("index");
+
+        // once blocks were moved to the block file they are kept there regardless of the option
+        File blocksDir = new File(config.databaseDir(), "blocks");
+        if (config.isMappedBlockStore() || new File(blocksDir, "index").exists()) {
+            MappedBlockStore mappedBlockStore = new MappedBlockStore(new MappedBlockFile(blocksDir),
+                    config.getConfig().getLong("database.mappedBlocks.freezeDepth"));
+            mappedBlockStore.init(index, block, commonConfig.cachedDbSource("frozenBlockNumbers"));
+            return mappedBlockStore;
+        }
+
+        IndexedBlockStore indexedBlockStore = new IndexedBlockStore();
         indexedBlockStore.init(index, block);
 
         return indexedBlockStore;
@@ -478,6 +478,29 @@ public class SystemProperties {
         return config.getBoolean("database.fromBackup");
     }
 
+    @ValidateMe
+    public boolean isMappedBlockStore() {
+        return config.getBoolean("database.mappedBlocks.enabled");
+    }
+
+    @ValidateMe
+    public boolean databaseBloomFilter() {
+        return config.getBoolean("database.bloomFilter.enabled");
+    }
+
+    /**
+     * @return number of the state updates the flat state may be moved back, -1 if the flat state is disabled
+     */
+    @ValidateMe
+    public int databaseFlatStateDepth() {
+        return config.getBoolean("database.flatState.enabled") ? config.getInt("database.flatState.maxDepth") : -1;
+    }
+
+    @ValidateMe
+    public boolean databaseColumnFamilies() {
+        return config.getBoolean("database.columnFamilies");
+    }
+
     @ValidateMe
     public int databasePruneDepth() {
         return config.getBoolean("database.prune.enabled") ? config.getInt("database.prune.maxDepth") : -1;
@@ -666,6 +689,24 @@ public class SystemProperties {
         return vmTrace == null ? (vmTrace = config.getBoolean("vm.structured.trace")) : vmTrace;
     }
 
+    /**
+     * @return the EVM engine: interpreter or compiled
+     */
+    @ValidateMe
+    public String vmEngine() {
+        return config.getString("vm.engine");
+    }
+
+    @ValidateMe
+    public int vmCompileThreshold() {
+        return config.getInt("vm.compiled.threshold");
+    }
+
+    @ValidateMe
+    public int vmCompiledMaxContracts() {
+        return config.getInt("vm.compiled.maxContracts");
+    }
+
     @ValidateMe
     public boolean vmTraceCompressed() {
         return config.getBoolean("vm.structured.compressed");
@@ -681,6 +722,30 @@ public class SystemProperties {
         return config.getInt("cache.flush.blocks");
     }
 
+    @ValidateMe
+    public boolean isConcurrentWriteCache() {
+        return config.getBoolean("cache.concurrentWriteCache");
+    }
+
+    @ValidateMe
+    public int trieHashingThreads() {
+        int threads = config.getInt("cache.trieHashingThreads");
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    @ValidateMe
+    public int statePrefetchThreads() {
+        return config.getInt("cache.statePrefetchThreads");
+    }
+
+    /**
+     * @return max size in Mbytes of the contract storage trie nodes kept loaded between the blocks
+     */
+    @ValidateMe
+    public int storageTrieCacheSize() {
+        return config.getInt("cache.storageTrieCacheSize");
+    }
+
     @ValidateMe
     public String vmTraceDir() {
         return config.getString("vm.structured.dir");
@@ -156,6 +156,12 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
     @Autowired
     StateSource stateDataSource;
 
+    @Autowired
+    StatePrefetcher statePrefetcher;
+
+    @Autowired
+    FlatState flatState;
+
     @Autowired
     DbFlushManager dbFlushManager;
 
@@ -363,7 +369,7 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
 
     private void popState() {
         State state = stateStack.pop();
-        this.repository = repository.getSnapshotTo(state.root);
+        this.repository = chainSnapshotTo(state.root);
         this.bestBlock = state.savedBest;
         this.totalDifficulty = state.savedTD;
     }
@@ -405,6 +411,7 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
 
             // The main repository rebranch
             this.repository = repo;
+            if (flatState != null) flatState.moveTo(block.getStateRoot());
 //            this.repository.syncToRoot(block.getStateRoot());
 
             dropState();
@@ -589,7 +596,11 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
             AdvancedDeviceUtils.adjustDetailedTracing(config, block.getNumber());
         }
 
+        // the cold state reads are done ahead while the block is executed
+        StatePrefetcher.Prefetch prefetch = statePrefetcher == null || config.blockChainOnly() ? null :
+                statePrefetcher.prefetch(origRoot, block);
         BlockSummary summary = processBlock(repo, block);
+        if (prefetch != null) prefetch.cancel();
         final List<TransactionReceipt> receipts = summary.getReceipts();
 
         // Sanity checks
@@ -614,7 +625,7 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
 
 //            track.rollback();
 //            repository.rollback();
-            repository = repository.getSnapshotTo(origRoot);
+            repository = chainSnapshotTo(origRoot);
 
             // block is bad so 'rollback' the state root to the original state
 //            ((RepositoryImpl) repository).setRoot(origRoot);
@@ -1008,6 +1019,7 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
                 block.getNumber(), block.getShortHash(), totalDifficulty);
 
         setBestBlock(block);
+        if (flatState != null && !fork) flatState.moveTo(block.getStateRoot());
 
         if (logger.isDebugEnabled())
             logger.debug("block added to the blockChain: index: [{}]", block.getNumber());
@@ -1038,7 +1050,13 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
     @Override
     public void setBestBlock(Block block) {
         bestBlock = block;
-        repository = repository.getSnapshotTo(block.getStateRoot());
+        repository = chainSnapshotTo(block.getStateRoot());
+    }
+
+    // unlike the other snapshots the main chain one takes over the storage tries kept by the previous blocks
+    private Repository chainSnapshotTo(byte[] root) {
+        return repository instanceof RepositoryRoot ?
+                ((RepositoryRoot) repository).getChainSnapshotTo(root) : repository.getSnapshotTo(root);
     }
 
     @Override
@@ -1137,7 +1155,7 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
                         blockStore.reBranch(bestStoredBlock);
                         bestBlock = bestStoredBlock;
                         totalDifficulty = maxTD;
-                        repository = repository.getSnapshotTo(bestBlock.getStateRoot());
+                        repository = chainSnapshotTo(bestBlock.getStateRoot());
 
                         logger.info("totDifficulties update: re-branch to block {}, totalDifficulty {}",
                                 bestBlock.getHeader().getShortDescr(), totalDifficulty);
@@ -1350,9 +1368,9 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
         List<byte[]> bodies = new ArrayList<>(hashes.size());
 
         for (byte[] hash : hashes) {
-            Block block = blockStore.getBlockByHash(hash);
-            if (block == null) break;
-            bodies.add(block.getEncodedBody());
+            byte[] body = blockStore.getBlockBodyByHash(hash);
+            if (body == null) break;
+            bodies.add(body);
         }
 
         return bodies;
@@ -1374,7 +1392,7 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
 
         @Override
         public boolean hasNext() {
-            return position < hashes.size() && blockStore.getBlockByHash(hashes.get(position)) != null;
+            return position < hashes.size() && blockStore.isBlockExist(hashes.get(position));
         }
 
         @Override
@@ -1383,13 +1401,13 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
                 throw new NoSuchElementException("Nothing left");
             }
 
-            Block block = blockStore.getBlockByHash(hashes.get(position));
-            if (block == null) {
+            byte[] body = blockStore.getBlockBodyByHash(hashes.get(position));
+            if (body == null) {
                 throw new NoSuchElementException("Nothing left");
             }
             ++position;
 
-            return block.getEncodedBody();
+            return body;
         }
     }
 
@@ -256,7 +256,7 @@ public class TransactionExecutor {
                 ProgramInvoke programInvoke =
                         programInvokeFactory.createProgramInvoke(tx, currentBlock, cacheTrack, track, blockStore);
 
-                this.vm = new VM(config, vmHook);
+                this.vm = commonConfig.vmFactory().create(config, vmHook);
                 this.program = new Program(track.getCodeHash(targetAddress), code, programInvoke, tx, config, vmHook).withCommonConfig(commonConfig);
             }
         }
@@ -300,7 +300,7 @@ public class TransactionExecutor {
             ProgramInvoke programInvoke = programInvokeFactory.createProgramInvoke(tx, currentBlock,
                     cacheTrack, originalRepo, blockStore);
 
-            this.vm = new VM(config, vmHook);
+            this.vm = commonConfig.vmFactory().create(config, vmHook);
             this.program = new Program(tx.getData(), programInvoke, tx, config, vmHook).withCommonConfig(commonConfig);
 
             // reset storage if the contract with the same address already exists
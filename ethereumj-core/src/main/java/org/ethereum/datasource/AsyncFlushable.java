@@ -30,7 +30,7 @@ public interface AsyncFlushable {
 
     /**
      * Flip the backing storage so the current state will be flushed
-     * when call {@link #flushAsync()} and all the newer changes will
+     * when call {@link Generation#flushAsync()} and all the newer changes will
      * be collected to a new backing store and will be flushed only on
      * subsequent flush call
      *
@@ -41,15 +41,35 @@ public interface AsyncFlushable {
      *
      * This call may block until a previous flush is completed (if still in progress)
      *
+     * @return the flipped state which is to be flushed
      * @throws InterruptedException
      */
-    void flipStorage() throws InterruptedException;
+    Generation flipStorage() throws InterruptedException;
 
     /**
-     * Does async flush, i.e. returns immediately while starts doing flush in a separate thread
-     * This call may still block if the previous flush is not complete yet
+     * Does async flush of all the flipped states, i.e. returns immediately while starts
+     * doing flush in a separate thread
      *
      * @return Future when the actual flush is complete
      */
     ListenableFuture<Boolean> flushAsync() throws InterruptedException;
+
+    /**
+     * @return estimated size of the changes which are to be flushed after the next flip
+     */
+    long estimateFlipSize();
+
+    /**
+     * The changes collected between two subsequent flips
+     */
+    interface Generation {
+
+        /**
+         * Does async flush of this generation only (and of the older ones if they
+         * were not submitted for flush yet), the newer generations are left intact
+         *
+         * @return Future when this generation is flushed
+         */
+        ListenableFuture<Boolean> flushAsync();
+    }
 }
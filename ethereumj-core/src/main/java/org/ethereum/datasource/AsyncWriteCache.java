@@ -29,16 +29,30 @@ import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * Write cache which flushes in background: on {@link #flipStorage()} the current cache
+ * becomes a pending generation and new changes are collected to a fresh cache on top of it.
+ * Pending generations are flushed strictly in order (the oldest first), so the reads
+ * always see the latest values: current cache -> newest pending -> ... -> oldest pending -> source
+ *
+ * Up to {@link #withMaxPendingFlushes(int)} generations may be pending, the flip blocks
+ * when the limit is reached until the oldest generation is flushed. The flip doesn't submit
+ * anything for flush by itself, this is done by {@link Generation#flushAsync()} or {@link #flushAsync()}
+ *
  * Created by Anton Nashatyrev on 18.01.2017.
  */
 public abstract class AsyncWriteCache<Key, Value> extends AbstractCachedSource<Key, Value> implements AsyncFlushable {
     private static final Logger logger = LoggerFactory.getLogger("db");
 
     private static ListeningExecutorService flushExecutor = MoreExecutors.listeningDecorator(
-            Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setNameFormat("AsyncWriteCacheThread-%d").build()));
+            Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+                    new ThreadFactoryBuilder().setNameFormat("AsyncWriteCacheThread-%d").build()));
 
     protected volatile WriteCache<Key, Value> curCache;
-    protected WriteCache<Key, Value> flushingCache;
+
+    // flipped generations, the oldest first
+    private final LinkedList<FlippedCache> pending = new LinkedList<>();
+    private int maxPendingFlushes = 2;
+    private volatile Throwable flushError;
 
     private ListenableFuture<Boolean> lastFlush = Futures.immediateFuture(false);
 
@@ -50,9 +64,7 @@ public abstract class AsyncWriteCache<Key, Value> extends AbstractCachedSource<K
 
     public AsyncWriteCache(Source<Key, Value> source) {
         super(source);
-        flushingCache = createCache(source);
-        flushingCache.setFlushSource(true);
-        curCache = createCache(flushingCache);
+        curCache = createCache(source);
     }
 
     protected abstract WriteCache<Key, Value> createCache(Source<Key, Value> source);
@@ -95,9 +107,9 @@ public abstract class AsyncWriteCache<Key, Value> extends AbstractCachedSource<K
     @Override
     public synchronized boolean flush() {
         try {
-            flipStorage();
-            flushAsync();
-            return flushingCache.hasModified();
+            boolean ret = hasModified();
+            flipStorage().flushAsync();
+            return ret;
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
@@ -109,31 +121,114 @@ public abstract class AsyncWriteCache<Key, Value> extends AbstractCachedSource<K
     }
 
     @Override
-    public synchronized void flipStorage() throws InterruptedException {
-        // if previous flush still running
-        try {
-            if (!lastFlush.isDone()) logger.debug("AsyncWriteCache (" + name + "): waiting for previous flush to complete");
-            lastFlush.get();
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e);
+    public synchronized Generation flipStorage() throws InterruptedException {
+        synchronized (pending) {
+            if (pending.size() >= maxPendingFlushes) {
+                logger.debug("AsyncWriteCache (" + name + "): waiting for previous flush to complete");
+            }
+            while (pending.size() >= maxPendingFlushes) {
+                checkFlushError();
+                pending.wait();
+            }
+            checkFlushError();
+
+            try (ALock l = wLock.lock()) {
+                WriteCache<Key, Value> flipped = curCache;
+                flipped.setFlushSource(true);
+                FlippedCache gen = new FlippedCache(flipped);
+                pending.addLast(gen);
+                curCache = createCache(flipped);
+                return gen;
+            }
         }
+    }
 
-        try (ALock l = wLock.lock()) {
-            flushingCache.cache = curCache.cache;
-            curCache = createCache(flushingCache);
+    private void checkFlushError() {
+        if (flushError != null) {
+            throw new RuntimeException("AsyncWriteCache (" + name + "): flush failed", flushError);
         }
     }
 
-    public synchronized ListenableFuture<Boolean> flushAsync() throws InterruptedException {
-        logger.debug("AsyncWriteCache (" + name + "): flush submitted");
-        lastFlush = flushExecutor.submit(() -> {
-            logger.debug("AsyncWriteCache (" + name + "): flush started");
-            long s = System.currentTimeMillis();
-            boolean ret = flushingCache.flush();
-            logger.debug("AsyncWriteCache (" + name + "): flush completed in " + (System.currentTimeMillis() - s) + " ms");
-            return ret;
-        });
-        return lastFlush;
+    /**
+     * Submits all the flipped generations for flush
+     * @return Future which is complete when all the submitted generations are flushed
+     */
+    @Override
+    public ListenableFuture<Boolean> flushAsync() throws InterruptedException {
+        List<ListenableFuture<Boolean>> flushes = new ArrayList<>();
+        synchronized (pending) {
+            for (FlippedCache gen : pending) {
+                if (gen.flush == null) flushes.add(submit(gen));
+            }
+        }
+        if (flushes.isEmpty()) return Futures.immediateFuture(false);
+
+        return Futures.transform(Futures.allAsList(flushes), list -> list.contains(true), MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Submits the generation for flush after the older ones,
+     * the older generations which were not submitted yet are submitted first
+     */
+    private ListenableFuture<Boolean> submit(FlippedCache upTo) {
+        synchronized (pending) {
+            if (upTo.flush != null) return upTo.flush;
+
+            for (FlippedCache gen : pending) {
+                if (gen.flush == null) {
+                    logger.debug("AsyncWriteCache (" + name + "): flush submitted");
+                    ListenableFuture<Boolean> prev = lastFlush;
+                    gen.flush = lastFlush = Futures.whenAllComplete(prev).call(() -> {
+                        // don't flush over the failed older generation
+                        prev.get();
+                        return flushGeneration(gen.cache);
+                    }, flushExecutor);
+                }
+                if (gen == upTo) break;
+            }
+            return upTo.flush;
+        }
+    }
+
+    private boolean flushGeneration(WriteCache<Key, Value> gen) {
+        logger.debug("AsyncWriteCache (" + name + "): flush started");
+        long s = System.currentTimeMillis();
+        boolean ret;
+        try {
+            ret = gen.flush();
+        } catch (Throwable t) {
+            flushError = t;
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+            throw t;
+        }
+        synchronized (pending) {
+            try (ALock l = wLock.lock()) {
+                pending.removeFirst();
+                // the flushed generation is empty now, unlink it from the reads path
+                WriteCache<Key, Value> newer = pending.isEmpty() ? curCache : pending.getFirst().cache;
+                newer.setSource(getSource());
+            }
+            pending.notifyAll();
+        }
+        logger.debug("AsyncWriteCache (" + name + "): flush completed in " + (System.currentTimeMillis() - s) + " ms");
+        return ret;
+    }
+
+    /**
+     * Sets the max number of flipped generations which may wait for flush
+     * before {@link #flipStorage()} blocks
+     */
+    public AsyncWriteCache<Key, Value> withMaxPendingFlushes(int maxPendingFlushes) {
+        if (maxPendingFlushes < 1) throw new IllegalArgumentException("At least one pending flush required");
+        this.maxPendingFlushes = maxPendingFlushes;
+        return this;
+    }
+
+    @Override
+    public long estimateFlipSize() {
+        return curCache.estimateCacheSize();
     }
 
     @Override
@@ -152,4 +247,19 @@ public abstract class AsyncWriteCache<Key, Value> extends AbstractCachedSource<K
         this.name = name;
         return this;
     }
+
+    private final class FlippedCache implements Generation {
+        final WriteCache<Key, Value> cache;
+        // not null once submitted for flush
+        ListenableFuture<Boolean> flush;
+
+        FlippedCache(WriteCache<Key, Value> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public ListenableFuture<Boolean> flushAsync() {
+            return submit(this);
+        }
+    }
 }
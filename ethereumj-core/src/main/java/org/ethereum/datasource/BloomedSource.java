@@ -17,117 +17,227 @@
  */
 package org.ethereum.datasource;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.ethereum.crypto.HashUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
 /**
  * Special optimization when the majority of get requests to the slower underlying source
- * are targeted to missing entries. The BloomFilter handles most of these requests.
+ * are targeted to missing entries. The {@link ConcurrentBloomFilter} handles most of these requests.
+ *
+ * The filter is saved to the underlying source on shutdown (see {@link #save()}) and is dropped
+ * from there once loaded, so after an unclean shutdown the filter is not trusted.
+ * When there is no saved filter or the filter is saturated (due to the keys deleted from the source
+ * or underestimated source size) it is rebuilt in background by scanning all the source keys while
+ * the old filter (if any) keeps serving. Since the keys which were put shortly before the rebuild
+ * may still reside in the write caches below this source the scan is started only after two
+ * complete DB flushes (see {@link #onDbFlushed()})
  *
  * Created by Anton Nashatyrev on 16.01.2017.
  */
 public class BloomedSource extends AbstractChainedSource<byte[], byte[], byte[], byte[]> {
     private final static Logger logger = LoggerFactory.getLogger("db");
 
-    private byte[] filterKey = HashUtil.sha3("filterKey".getBytes());
+    private static final byte[] FILTER_KEY = HashUtil.sha3("filterKey".getBytes());
+
+    private final String name;
+    private final long expectedKeys;
+    private final double falsePositiveRate;
+    private final Supplier<? extends Iterator<byte[]>> keysSupplier;
+
+    private volatile ConcurrentBloomFilter filter;
+    private volatile ConcurrentBloomFilter rebuilding;
+    private volatile boolean saved = false;
+    // number of keys found by the last rebuild
+    private volatile long keysCount = 0;
+
+    private final AtomicLong dbFlushes = new AtomicLong();
+    private final ExecutorService rebuildExecutor;
 
-    QuotientFilter filter;
-    int hits = 0;
-    int misses = 0;
-    int falseMisses = 0;
-    boolean dirty = false;
-    int maxBloomSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong falseMisses = new AtomicLong();
 
-    public BloomedSource(Source<byte[], byte[]> source, int maxBloomSize) {
+    /**
+     * @param keysSupplier supplies all the keys of the underlying source (as they are seen by
+     *                     this source), the extra keys only increase the false positive rate.
+     *                     {@link Closeable} iterator (e.g. {@link DbIterator}) is closed after the scan
+     */
+    public BloomedSource(Source<byte[], byte[]> source, String name, long expectedKeys, double falsePositiveRate,
+                         Supplier<? extends Iterator<byte[]>> keysSupplier) {
         super(source);
-        this.maxBloomSize = maxBloomSize;
-        byte[] filterBytes = source.get(filterKey);
-        if (filterBytes != null) {
-            if (filterBytes.length > 0) {
-                filter = QuotientFilter.deserialize(filterBytes);
-            } else {
-                // filter size exceeded limit and is disabled forever
-                filter = null;
-            }
+        this.name = name;
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+        this.keysSupplier = keysSupplier;
+        this.rebuildExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("BloomedSource-" + name + "-%d").setDaemon(true).build());
+
+        byte[] filterBytes = source.get(FILTER_KEY);
+        // empty value is left by the older versions
+        if (filterBytes != null && filterBytes.length > 0) {
+            filter = ConcurrentBloomFilter.deserialize(filterBytes);
+            // the filter becomes stale with the first update flushed
+            source.delete(FILTER_KEY);
+            keysCount = filter.getInsertions();
+            logger.info("BloomedSource '{}': filter loaded, keys: {}, size: {} Mb", name,
+                    filter.getInsertions(), filter.getAllocatedBytes() >> 20);
         } else {
-            if (maxBloomSize > 0) {
-                filter = QuotientFilter.create(50_000_000, 100_000);
-            } else {
-                // we can't re-enable filter later
-                getSource().put(filterKey, new byte[0]);
-            }
+            logger.info("BloomedSource '{}': no valid filter saved, rebuilding", name);
+        }
+        if (filter == null || filter.isSaturated()) {
+            startRebuild();
         }
-//
-//        new Thread() {
-//            @Override
-//            public void run() {
-//                while(true) {
-//                    synchronized (BloomedSource.this) {
-//                        logger.debug("BloomedSource: hits: " + hits + ", misses: " + misses + ", false: " + falseMisses);
-//                        hits = misses = falseMisses = 0;
-//                    }
-//
-//                    try {
-//                        Thread.sleep(5000);
-//                    } catch (InterruptedException e) {}
-//                }
-//            }
-//        }.start();
-    }
-
-    public void startBlooming(QuotientFilter filter) {
-        this.filter = filter;
-    }
-
-    public void stopBlooming() {
-        filter = null;
     }
 
     @Override
     public void put(byte[] key, byte[] val) {
-        if (filter != null) {
-            filter.insert(key);
-            dirty = true;
-            if (filter.getAllocatedBytes() > maxBloomSize) {
-                logger.info("Bloom filter became too large (" + filter.getAllocatedBytes() + " exceeds max threshold " + maxBloomSize + ") and is now disabled forever.");
-                getSource().put(filterKey, new byte[0]);
-                filter = null;
-                dirty = false;
-            }
+        // read in the reverse order of updating in rebuild()
+        ConcurrentBloomFilter newFilter = rebuilding;
+        ConcurrentBloomFilter curFilter = filter;
+        if (curFilter != null) curFilter.insert(key);
+        if (newFilter != null && newFilter != curFilter) newFilter.insert(key);
+        if (saved) {
+            saved = false;
+            getSource().delete(FILTER_KEY);
         }
         getSource().put(key, val);
     }
 
     @Override
     public byte[] get(byte[] key) {
-        if (filter == null) return getSource().get(key);
+        ConcurrentBloomFilter curFilter = filter;
+        if (curFilter == null) return getSource().get(key);
 
-        if (!filter.maybeContains(key)) {
-            hits++;
+        if (!curFilter.maybeContains(key)) {
+            hits.incrementAndGet();
             return null;
         } else {
             byte[] ret = getSource().get(key);
-            if (ret == null) falseMisses++;
-            else misses++;
+            if (ret == null) falseMisses.incrementAndGet();
+            else misses.incrementAndGet();
             return ret;
         }
     }
 
     @Override
     public void delete(byte[] key) {
-        if (filter != null) filter.remove(key);
+        // can't be removed from the filter, just increases the false positive rate
         getSource().delete(key);
     }
 
     @Override
     protected boolean flushImpl() {
-        if (filter != null && dirty) {
-            getSource().put(filterKey, filter.serialize());
-            dirty = false;
-            return true;
-        } else {
-            return false;
+        ConcurrentBloomFilter curFilter = filter;
+        if (curFilter != null && curFilter.isSaturated()) {
+            startRebuild();
         }
+        if (logger.isDebugEnabled()) logger.debug("BloomedSource '{}': hits: {}, misses: {}, false: {}",
+                name, hits.get(), misses.get(), falseMisses.get());
+        return false;
+    }
+
+    /**
+     * Must be called each time after all the updates passed to this source
+     * are written to the DB
+     */
+    public void onDbFlushed() {
+        synchronized (dbFlushes) {
+            dbFlushes.incrementAndGet();
+            dbFlushes.notifyAll();
+        }
+    }
+
+    private synchronized void startRebuild() {
+        if (rebuilding != null || rebuildExecutor.isShutdown()) return;
+
+        // the deleted keys are not counted, if the source is larger than the filter
+        // the new filter will be saturated right away and rebuilt once again
+        long size = Math.max(expectedKeys, keysCount * 2);
+        ConcurrentBloomFilter newFilter = ConcurrentBloomFilter.create(size, falsePositiveRate);
+        rebuilding = newFilter;
+        long startFlushes = dbFlushes.get();
+        rebuildExecutor.submit(() -> rebuild(newFilter, startFlushes));
+    }
+
+    private void rebuild(ConcurrentBloomFilter newFilter, long startFlushes) {
+        try {
+            synchronized (dbFlushes) {
+                while (dbFlushes.get() < startFlushes + 2) {
+                    dbFlushes.wait();
+                }
+            }
+            long s = System.currentTimeMillis();
+            long cnt = 0;
+            Iterator<byte[]> keys = keysSupplier.get();
+            try {
+                while (keys.hasNext()) {
+                    // the scan holds the DB from closing
+                    if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+                    newFilter.insert(keys.next());
+                    cnt++;
+                }
+            } finally {
+                if (keys instanceof Closeable) ((Closeable) keys).close();
+            }
+            keysCount = cnt;
+            filter = newFilter;
+            logger.info("BloomedSource '{}': filter rebuilt in {} ms, keys: {}, size: {} Mb", name,
+                    System.currentTimeMillis() - s, cnt, newFilter.getAllocatedBytes() >> 20);
+        } catch (InterruptedException e) {
+            logger.info("BloomedSource '{}': filter rebuild interrupted", name);
+        } catch (Exception e) {
+            logger.error("BloomedSource '{}': filter rebuild failed", name, e);
+        } finally {
+            rebuilding = null;
+        }
+    }
+
+    /**
+     * Stops rebuilding and puts the filter to the underlying source. Should be called on shutdown
+     * after the last update passed through this source and followed by the DB flush
+     */
+    public synchronized void save() {
+        rebuildExecutor.shutdownNow();
+        ConcurrentBloomFilter curFilter = filter;
+        if (curFilter == null) return;
+
+        getSource().put(FILTER_KEY, curFilter.serialize());
+        saved = true;
+        logger.info("BloomedSource '{}': filter saved, keys: {}", name, curFilter.getInsertions());
+    }
+
+    /**
+     * @return true when the filter is built and filters the lookups
+     */
+    public boolean isFiltering() {
+        return filter != null;
+    }
+
+    public ConcurrentBloomFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return number of lookups answered by the filter only
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getFalseMisses() {
+        return falseMisses.get();
     }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.datasource;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter for byte[] keys which may be queried and updated concurrently
+ * without locking: the bits are set with CAS, so neither inserts nor lookups block
+ *
+ * Unlike {@link CountingQuotientFilter} entries can't be removed, the removed keys
+ * just increase the false positive rate until the filter is rebuilt
+ * (see {@link BloomedSource})
+ */
+public class ConcurrentBloomFilter {
+
+    private static final int MAX_WORDS = Integer.MAX_VALUE / 8 - 32;
+
+    private final AtomicLongArray bits;
+    private final long bitsCount;
+    private final int hashFunctions;
+    private final long expectedInsertions;
+    private final AtomicLong insertions;
+
+    private ConcurrentBloomFilter(AtomicLongArray bits, int hashFunctions, long expectedInsertions, long insertions) {
+        this.bits = bits;
+        this.bitsCount = (long) bits.length() * 64;
+        this.hashFunctions = hashFunctions;
+        this.expectedInsertions = expectedInsertions;
+        this.insertions = new AtomicLong(insertions);
+    }
+
+    /**
+     * Creates filter sized to have the specified false positive probability
+     * when the expected number of keys is inserted
+     */
+    public static ConcurrentBloomFilter create(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0) throw new IllegalArgumentException("Wrong expected insertions: " + expectedInsertions);
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("Wrong false positive rate: " + falsePositiveRate);
+
+        double ln2 = Math.log(2);
+        long bitsCount = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long words = Math.min(MAX_WORDS, Math.max(1, (bitsCount + 63) / 64));
+        int hashFunctions = (int) Math.max(1, Math.min(30, Math.round((double) words * 64 / expectedInsertions * ln2)));
+        return new ConcurrentBloomFilter(new AtomicLongArray((int) words), hashFunctions, expectedInsertions, 0);
+    }
+
+    /**
+     * @return true if the key was (probably) not in the filter before
+     */
+    public boolean insert(byte[] key) {
+        long hash = hash(key);
+        long h1 = fmix(hash);
+        long h2 = fmix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        boolean changed = false;
+        for (int i = 0; i < hashFunctions; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitsCount;
+            int idx = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word = bits.get(idx);
+            while ((word & mask) == 0) {
+                if (bits.compareAndSet(idx, word, word | mask)) {
+                    changed = true;
+                    break;
+                }
+                word = bits.get(idx);
+            }
+        }
+        if (changed) insertions.incrementAndGet();
+        return changed;
+    }
+
+    /**
+     * @return false if the key was definitely never inserted
+     */
+    public boolean maybeContains(byte[] key) {
+        long hash = hash(key);
+        long h1 = fmix(hash);
+        long h2 = fmix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashFunctions; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitsCount;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Keys are mostly hashes (possibly XORed with the source secret),
+     * but the short keys should be spread well too
+     */
+    private static long hash(byte[] key) {
+        long h = key.length;
+        int i = 0;
+        for (; i + 8 <= key.length; i += 8) {
+            long w = ((long) key[i] << 56) | ((long) (key[i + 1] & 0xFF) << 48) | ((long) (key[i + 2] & 0xFF) << 40) |
+                    ((long) (key[i + 3] & 0xFF) << 32) | ((long) (key[i + 4] & 0xFF) << 24) |
+                    ((key[i + 5] & 0xFF) << 16) | ((key[i + 6] & 0xFF) << 8) | (key[i + 7] & 0xFF);
+            h = Long.rotateLeft(h ^ fmix(w), 27) * 0x87C37B91114253D5L;
+        }
+        long w = 0;
+        for (; i < key.length; i++) {
+            w = (w << 8) | (key[i] & 0xFF);
+        }
+        return h ^ fmix(w + 1);
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * @return approximate number of distinct keys inserted
+     */
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    /**
+     * @return true when more keys were inserted than the filter was sized for,
+     * i.e. the false positive rate is higher than requested
+     */
+    public boolean isSaturated() {
+        return getInsertions() > expectedInsertions;
+    }
+
+    public long getAllocatedBytes() {
+        return (long) bits.length() * 8;
+    }
+
+    /**
+     * Serializes the filter. Concurrent inserts are allowed though those
+     * may be missing in the result
+     */
+    public byte[] serialize() {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 8 + bits.length() * 8);
+        buf.put((byte) hashFunctions);
+        buf.putLong(expectedInsertions);
+        buf.putLong(insertions.get());
+        for (int i = 0; i < bits.length(); i++) {
+            buf.putLong(bits.get(i));
+        }
+        return buf.array();
+    }
+
+    public static ConcurrentBloomFilter deserialize(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int hashFunctions = buf.get();
+        long expectedInsertions = buf.getLong();
+        long insertions = buf.getLong();
+        AtomicLongArray bits = new AtomicLongArray(buf.remaining() / 8);
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, buf.getLong());
+        }
+        return new ConcurrentBloomFilter(bits, hashFunctions, expectedInsertions, insertions);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.datasource;
+
+import org.ethereum.db.ByteArrayWrapper;
+import org.ethereum.util.ALock;
+import org.ethereum.util.ByteArrayMap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link WriteCache} flavour for caches which are accessed by many threads simultaneously
+ * (e.g. block import and JSON-RPC requests reading the state)
+ *
+ * Instead of a single read/write lock guarding the whole cache the keys are spread
+ * across a number of lock stripes, thus operations on different keys don't block each other.
+ * The backing Map is a concurrent one
+ *
+ * On flush() the collected entries are detached as a snapshot and the fresh Map
+ * takes their place, so writers are not blocked while the snapshot is propagated
+ * to the backing Source. Readers consult the snapshot until it is completely flushed.
+ *
+ * {@link CacheType#SIMPLE} and {@link CacheType#COUNTING} semantics are the same as for {@link WriteCache}
+ */
+public class ConcurrentWriteCache<Key, Value> extends WriteCache<Key, Value> {
+
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final ALock[] readStripes;
+    private final ALock[] writeStripes;
+
+    // entries currently being written to the backing Source by flush()
+    private volatile Map<Key, CacheEntry<Value>> flushing;
+
+    public ConcurrentWriteCache(Source<Key, Value> src, CacheType cacheType) {
+        this(src, cacheType, DEFAULT_STRIPES);
+    }
+
+    public ConcurrentWriteCache(Source<Key, Value> src, CacheType cacheType, int stripes) {
+        super(src, cacheType);
+        int size = 1;
+        while (size < stripes) size <<= 1;
+        readStripes = new ALock[size];
+        writeStripes = new ALock[size];
+        for (int i = 0; i < size; i++) {
+            ReadWriteLock rwLock = new ReentrantReadWriteLock();
+            readStripes[i] = new ALock(rwLock.readLock());
+            writeStripes[i] = new ALock(rwLock.writeLock());
+        }
+        withCache(createCacheMap());
+    }
+
+    /**
+     * Creates an empty concurrent Map for the cache entries.
+     * Called on creation and on each flush()
+     */
+    protected Map<Key, CacheEntry<Value>> createCacheMap() {
+        return new ConcurrentHashMap<>();
+    }
+
+    private int stripe(Key key) {
+        int h = key instanceof byte[] ? Arrays.hashCode((byte[]) key) : key.hashCode();
+        return (h ^ (h >>> 16)) & (readStripes.length - 1);
+    }
+
+    @Override
+    public Collection<Key> getModified() {
+        return cache.keySet();
+    }
+
+    @Override
+    public boolean hasModified() {
+        return !cache.isEmpty();
+    }
+
+    @Override
+    public void put(Key key, Value val) {
+        checkByteArrKey(key);
+        if (val == null)  {
+            delete(key);
+            return;
+        }
+
+        try (ALock l = writeStripes[stripe(key)].lock()) {
+            CacheEntry<Value> curVal = cache.get(key);
+            if (curVal == null) {
+                curVal = createCacheEntry(val);
+                cache.put(key, curVal);
+                cacheAdded(key, curVal.value);
+            }
+            // assigning for non-counting cache only
+            // for counting cache the value should be immutable (see HashedKeySource)
+            curVal.value = val;
+            curVal.added();
+        }
+    }
+
+    @Override
+    public Value get(Key key) {
+        checkByteArrKey(key);
+        Map<Key, CacheEntry<Value>> snapshot;
+        try (ALock l = readStripes[stripe(key)].lock()) {
+            CacheEntry<Value> curVal = cache.get(key);
+            if (curVal != null) {
+                Value value = curVal.getValue();
+                if (value != unknownValue()) {
+                    return value;
+                }
+            }
+            snapshot = flushing;
+        }
+
+        if (snapshot != null) {
+            CacheEntry<Value> flushingVal = snapshot.get(key);
+            if (flushingVal != null) {
+                Value value = flushingVal.getValue();
+                if (value != unknownValue()) {
+                    return value;
+                }
+            }
+        }
+        return getSource() == null ? null : getSource().get(key);
+    }
+
+    @Override
+    public void delete(Key key) {
+        checkByteArrKey(key);
+        try (ALock l = writeStripes[stripe(key)].lock()) {
+            CacheEntry<Value> curVal = cache.get(key);
+            if (curVal == null) {
+                curVal = createCacheEntry(getSource() == null ? null : unknownValue());
+                cache.put(key, curVal);
+                cacheAdded(key, curVal.value == unknownValue() ? null : curVal.value);
+            }
+            curVal.deleted();
+        }
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        Map<Key, CacheEntry<Value>> snapshot = detachSnapshot();
+
+        boolean ret = false;
+        try {
+            for (Map.Entry<Key, CacheEntry<Value>> entry : snapshot.entrySet()) {
+                if (entry.getValue().counter > 0) {
+                    for (int i = 0; i < entry.getValue().counter; i++) {
+                        getSource().put(entry.getKey(), entry.getValue().value);
+                    }
+                    ret = true;
+                } else if (entry.getValue().counter < 0) {
+                    for (int i = 0; i > entry.getValue().counter; i--) {
+                        getSource().delete(entry.getKey());
+                    }
+                    ret = true;
+                }
+            }
+            if (flushSource) {
+                getSource().flush();
+            }
+        } finally {
+            flushing = null;
+        }
+        return ret;
+    }
+
+    /**
+     * Replaces the current cache Map with an empty one and returns the former.
+     * All the stripes are held only for the duration of reference swap
+     */
+    private Map<Key, CacheEntry<Value>> detachSnapshot() {
+        for (ALock stripe : writeStripes) {
+            stripe.lock();
+        }
+        try {
+            Map<Key, CacheEntry<Value>> snapshot = cache;
+            flushing = snapshot;
+            cache = createCacheMap();
+            cacheCleared();
+            return snapshot;
+        } finally {
+            for (int i = writeStripes.length - 1; i >= 0; i--) {
+                writeStripes[i].close();
+            }
+        }
+    }
+
+    @Override
+    public Entry<Value> getCached(Key key) {
+        Map<Key, CacheEntry<Value>> snapshot;
+        try (ALock l = readStripes[stripe(key)].lock()) {
+            CacheEntry<Value> entry = cache.get(key);
+            if (entry != null) {
+                // the current entry overrides the flushing one even if its value is unknown
+                // (e.g. a key deleted after the flush started)
+                return entry.value == unknownValue() ? null : entry;
+            }
+            snapshot = flushing;
+        }
+
+        if (snapshot != null) {
+            CacheEntry<Value> entry = snapshot.get(key);
+            if (entry != null && entry.value != unknownValue()) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Shortcut for ConcurrentWriteCache with byte[] keys. Also prevents accidental
+     * usage of regular Map implementation (non byte[])
+     */
+    public static class BytesKey<V> extends ConcurrentWriteCache<byte[], V> implements CachedSource.BytesKey<V> {
+
+        public BytesKey(Source<byte[], V> src, CacheType cacheType) {
+            super(src, cacheType);
+        }
+
+        @Override
+        protected Map<byte[], CacheEntry<V>> createCacheMap() {
+            return new ByteArrayMap<>(new ConcurrentHashMap<ByteArrayWrapper, CacheEntry<V>>());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.datasource;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.function.UnaryOperator;
+
+/**
+ * Lazy iterator over the {@link DbSource} keys in the ascending (unsigned lexicographical) order,
+ * see {@link DbSource#iterator(byte[], byte[])}.
+ * The value of the current key is read only when requested with {@link #value()}
+ *
+ * The iterator holds the DB resources (and prevents the DB from closing and resetting)
+ * until it's exhausted, i.e. {@link #hasNext()} returns false, or closed.
+ * So the iterator which is not iterated to the end must be closed by the thread which has created it
+ */
+public interface DbIterator<V> extends Iterator<byte[]>, Closeable {
+
+    /**
+     * @return the value of the key returned by the last {@link #next()} call,
+     * should be requested before the following {@link #hasNext()} call
+     * @throws IllegalStateException if {@link #next()} wasn't called yet
+     */
+    V value();
+
+    @Override
+    void close();
+
+    /**
+     * @return the view of this iterator with the keys converted by the function,
+     * closing the view closes this iterator
+     */
+    default DbIterator<V> mapKeys(UnaryOperator<byte[]> function) {
+        DbIterator<V> self = this;
+        return new DbIterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return self.hasNext();
+            }
+
+            @Override
+            public byte[] next() {
+                return function.apply(self.next());
+            }
+
+            @Override
+            public V value() {
+                return self.value();
+            }
+
+            @Override
+            public void close() {
+                self.close();
+            }
+        };
+    }
+
+    /**
+     * @return the least key which is greater than all the keys starting with the prefix
+     * or null if there is no such key (the prefix is empty or consists of 0xFF bytes)
+     */
+    static byte[] prefixEnd(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] ret = new byte[i + 1];
+                System.arraycopy(prefix, 0, ret, 0, i + 1);
+                ret[i]++;
+                return ret;
+            }
+        }
+        return null;
+    }
+}
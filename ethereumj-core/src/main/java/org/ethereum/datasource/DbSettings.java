@@ -17,6 +17,10 @@
  */
 package org.ethereum.datasource;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Defines configurable database settings
  *
@@ -31,6 +35,7 @@ public class DbSettings {
 
     int maxOpenFiles;
     int maxThreads;
+    List<ColumnFamily> columnFamilies = Collections.emptyList();
 
     private DbSettings() {
     }
@@ -59,4 +64,65 @@ public class DbSettings {
         this.maxThreads = maxThreads;
         return this;
     }
+
+    public List<ColumnFamily> getColumnFamilies() {
+        return columnFamilies;
+    }
+
+    /**
+     * Requests a separate column family for the logical part of the DB.
+     * Supported by RocksDB only, other implementations ignore this setting
+     *
+     * @param blockCacheSize size in bytes of the block cache dedicated to the family,
+     *                       0 to use the default one
+     */
+    public DbSettings withColumnFamily(String name, ColumnFamily.Profile profile, long blockCacheSize) {
+        List<ColumnFamily> families = new ArrayList<>(columnFamilies);
+        families.add(new ColumnFamily(name, profile, blockCacheSize));
+        this.columnFamilies = families;
+        return this;
+    }
+
+    /**
+     * Column family name and tuning
+     */
+    public static class ColumnFamily {
+
+        public enum Profile {
+            /**
+             * The same options as for the whole DB
+             */
+            DEFAULT,
+            /**
+             * Small blocks and bloom filters for random point lookups (like state trie nodes)
+             */
+            POINT_LOOKUP,
+            /**
+             * Large blocks and strong compression for the data which is rarely read (like blocks)
+             */
+            COLD
+        }
+
+        private final String name;
+        private final Profile profile;
+        private final long blockCacheSize;
+
+        public ColumnFamily(String name, Profile profile, long blockCacheSize) {
+            this.name = name;
+            this.profile = profile;
+            this.blockCacheSize = blockCacheSize;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Profile getProfile() {
+            return profile;
+        }
+
+        public long getBlockCacheSize() {
+            return blockCacheSize;
+        }
+    }
 }
@@ -78,4 +78,23 @@ public interface DbSource<V> extends BatchSource<byte[], V> {
      * @throws RuntimeException if operation is not supported
      */
     V prefixLookup(byte[] key, int prefixBytes);
+
+    /**
+     * Iterates the DB keys within the range lazily in the ascending order,
+     * so the full DB scan doesn't load all the keys to the heap unlike {@link #keys()}
+     *
+     * @param from the first key of the range (inclusive), null to start from the first DB key
+     * @param to the end of the range (exclusive), null to iterate up to the last DB key
+     * @return the iterator which must be closed after use
+     * @throws RuntimeException if operation is not supported
+     */
+    DbIterator<V> iterator(byte[] from, byte[] to);
+
+    /**
+     * Iterates the DB keys starting with the prefix
+     * @see #iterator(byte[], byte[])
+     */
+    default DbIterator<V> prefixIterator(byte[] prefix) {
+        return iterator(prefix, DbIterator.prefixEnd(prefix));
+    }
 }
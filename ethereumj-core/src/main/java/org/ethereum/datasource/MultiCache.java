@@ -17,6 +17,8 @@
  */
 package org.ethereum.datasource;
 
+import java.util.ArrayList;
+
 /**
  * Cache of Caches (child caches)
  * When a child cache is not found in the local cache it is looked up in the backing Source
@@ -78,6 +80,22 @@ public abstract class MultiCache<V extends CachedSource> extends ReadWriteCache.
         return ret;
     }
 
+    /**
+     * Drops the child caches, these are created again on the next access,
+     * so the long living cache doesn't keep each child ever accessed.
+     * Should be called right after the flush, the child having the changes not flushed yet is kept
+     * though the deleted child is dropped
+     */
+    public synchronized void evictFlushed() {
+        for (byte[] key : new ArrayList<>(writeCache.getModified())) {
+            AbstractCachedSource.Entry<V> entry = getCached(key);
+            V child = entry == null ? null : entry.value();
+            if (child != null && child.hasModified()) continue;
+            readCache.evict(key);
+            writeCache.evict(key);
+        }
+    }
+
     /**
      * Is invoked to flush child cache if it has backing Source
      * Some additional tasks may be performed by subclasses here
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.datasource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Read cache for byte[] keys and values which keeps the entries outside
+ * of Java heap in direct ByteBuffers. Intended for large state caches
+ * (multi-GB of trie nodes) which would otherwise put a heavy load on GC
+ *
+ * Behaves like {@link ReadCache}: values are cached on get/put (null values
+ * are cached as well), removed on delete and all the updates are passed through
+ * to the backing Source
+ *
+ * Entries are stored in fixed size slots of several size classes. Each size class
+ * gets memory in pages from the common pool. When the pool is exhausted the pages
+ * themselves are swept with CLOCK (second chance) algorithm: a page which wasn't
+ * accessed since the last sweep is taken from its size class and handed over to
+ * the class in need, so the capacity limit applies to all the classes together
+ * and no class can hold the memory which is not used. When the sweep stops on
+ * a page of the requesting class it evicts its own entries with CLOCK instead.
+ * Keys are located via open addressing hash index which is also off-heap
+ *
+ * The cache is disabled (passes everything through) until the capacity is set
+ * with {@link #withCapacity(long)}
+ */
+public class OffHeapReadCache extends AbstractCachedSource<byte[], byte[]> implements CachedSource.BytesKey<byte[]> {
+
+    static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+    static final int MAX_ENTRY_SIZE = 64 * 1024;
+
+    // approx entry size to estimate number of index slots
+    private static final int AVG_ENTRY_SIZE = 128;
+
+    private final Object lock = new Object();
+    private Storage storage;
+
+    public OffHeapReadCache(Source<byte[], byte[]> src) {
+        super(src);
+    }
+
+    /**
+     * Sets the max size in bytes of off-heap memory used by the cache.
+     * All the cached entries are dropped. Zero capacity disables the cache
+     */
+    public OffHeapReadCache withCapacity(long capacity) {
+        return withCapacity(capacity, DEFAULT_PAGE_SIZE);
+    }
+
+    OffHeapReadCache withCapacity(long capacity, int pageSize) {
+        synchronized (lock) {
+            storage = capacity >= pageSize ? new Storage(capacity, pageSize) : null;
+        }
+        return this;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] val) {
+        if (val == null) {
+            delete(key);
+        } else {
+            synchronized (lock) {
+                if (storage != null) storage.put(key, val);
+            }
+            getSource().put(key, val);
+        }
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        Entry<byte[]> cached = getCached(key);
+        if (cached != null) {
+            return cached.value();
+        }
+        byte[] ret = getSource().get(key);
+        synchronized (lock) {
+            if (storage != null) storage.put(key, ret);
+        }
+        return ret;
+    }
+
+    @Override
+    public void delete(byte[] key) {
+        synchronized (lock) {
+            if (storage != null) storage.remove(key);
+        }
+        getSource().delete(key);
+    }
+
+    @Override
+    public Entry<byte[]> getCached(byte[] key) {
+        synchronized (lock) {
+            return storage == null ? null : storage.get(key);
+        }
+    }
+
+    @Override
+    protected boolean flushImpl() {
+        return false;
+    }
+
+    @Override
+    public Collection<byte[]> getModified() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean hasModified() {
+        return false;
+    }
+
+    /**
+     * @return off-heap memory allocated for cached entries in bytes
+     */
+    public long getAllocatedSize() {
+        synchronized (lock) {
+            return storage == null ? 0 : (long) storage.allocatedPages * storage.pageSize;
+        }
+    }
+
+    /**
+     * @return number of the cached entries
+     */
+    public int getEntriesCount() {
+        synchronized (lock) {
+            return storage == null ? 0 : storage.entries;
+        }
+    }
+
+    /**
+     * The off-heap entries store
+     *
+     * Slot layout: [int hash][int keyLen][int valueLen][int referenced][key][value]
+     * keyLen == -1 marks empty slot, valueLen == -1 marks cached null value
+     *
+     * Index entry: [int hash][int (slot address >> 4) + 1], zero for empty index entry
+     */
+    private static final class Storage {
+        private static final int HEADER_SIZE = 16;
+        private static final int MIN_SLOT_SIZE = 64;
+        private static final int EMPTY = -1;
+        private static final int NULL_VALUE = -1;
+
+        final int pageSize;
+        final int pageShift;
+        final ByteBuffer[] pages;
+        final byte[] pageOwner;
+        final boolean[] pageReferenced;
+        int allocatedPages = 0;
+        int pageHand = 0;
+
+        final int[] slotSizes;
+        final SlotClass[] classes;
+
+        final LongBuffer index;
+        final int indexMask;
+        final int maxEntries;
+        int entries = 0;
+
+        Storage(long capacity, int pageSize) {
+            if (Integer.bitCount(pageSize) != 1 || pageSize < MIN_SLOT_SIZE) {
+                throw new IllegalArgumentException("Page size should be power of 2: " + pageSize);
+            }
+            if ((capacity >>> 4) >= 0xFFFFFFFFL) {
+                throw new IllegalArgumentException("Off-heap cache capacity is too large: " + capacity);
+            }
+            this.pageSize = pageSize;
+            this.pageShift = Integer.numberOfTrailingZeros(pageSize);
+            this.pages = new ByteBuffer[(int) (capacity / pageSize)];
+            this.pageOwner = new byte[pages.length];
+            this.pageReferenced = new boolean[pages.length];
+
+            int maxSlot = Math.min(pageSize, MAX_ENTRY_SIZE);
+            int[] sizes = new int[64];
+            int cnt = 0;
+            for (int size = MIN_SLOT_SIZE; size < maxSlot; size = align16(size + size / 4)) {
+                sizes[cnt++] = size;
+            }
+            sizes[cnt++] = maxSlot;
+            slotSizes = Arrays.copyOf(sizes, cnt);
+            classes = new SlotClass[cnt];
+            for (int i = 0; i < cnt; i++) {
+                classes[i] = new SlotClass(i, slotSizes[i]);
+            }
+
+            long estEntries = Math.max(capacity / AVG_ENTRY_SIZE, 1024);
+            int indexSize = Integer.highestOneBit((int) Math.min(estEntries * 4 / 3, 1 << 26)) << 1;
+            index = ByteBuffer.allocateDirect(indexSize * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+            indexMask = indexSize - 1;
+            maxEntries = indexSize / 4 * 3;
+        }
+
+        Entry<byte[]> get(byte[] key) {
+            int hash = hash(key);
+            int idx = find(key, hash);
+            if (idx < 0) return null;
+
+            long addr = slotAddress(index.get(idx));
+            ByteBuffer page = page(addr);
+            int pos = offset(addr);
+            page.putInt(pos + 12, 1);
+            pageReferenced[pageId(addr)] = true;
+            int valueLen = page.getInt(pos + 8);
+            if (valueLen == NULL_VALUE) return new SimpleEntry<>(null);
+
+            byte[] value = new byte[valueLen];
+            page.position(pos + HEADER_SIZE + key.length);
+            page.get(value);
+            return new SimpleEntry<>(value);
+        }
+
+        void put(byte[] key, byte[] value) {
+            remove(key);
+
+            int size = HEADER_SIZE + key.length + (value == null ? 0 : value.length);
+            int cls = Arrays.binarySearch(slotSizes, size);
+            if (cls < 0) cls = -cls - 1;
+            if (cls >= classes.length) return; // too large entry, not caching
+
+            long addr = classes[cls].allocate();
+            if (addr < 0) return;
+
+            int hash = hash(key);
+            ByteBuffer page = page(addr);
+            int pos = offset(addr);
+            page.putInt(pos, hash);
+            page.putInt(pos + 4, key.length);
+            page.putInt(pos + 8, value == null ? NULL_VALUE : value.length);
+            page.putInt(pos + 12, 0);
+            page.position(pos + HEADER_SIZE);
+            page.put(key);
+            if (value != null) page.put(value);
+            pageReferenced[pageId(addr)] = true;
+
+            int idx = hash & indexMask;
+            while (index.get(idx) != 0) idx = (idx + 1) & indexMask;
+            index.put(idx, ((long) hash << 32) | ((addr >>> 4) + 1));
+            entries++;
+        }
+
+        void remove(byte[] key) {
+            int idx = find(key, hash(key));
+            if (idx < 0) return;
+
+            long addr = slotAddress(index.get(idx));
+            page(addr).putInt(offset(addr) + 4, EMPTY);
+            removeIndex(idx);
+            classes[pageOwner[pageId(addr)]].free(addr);
+        }
+
+        // CLOCK over the pages of all the size classes, returns -1 if stopped on the own page
+        private int victimPage(SlotClass requester) {
+            if (allocatedPages == 0) return -1;
+            for (int i = 0; i <= 2 * allocatedPages; i++) {
+                int pageId = pageHand;
+                pageHand = (pageHand + 1) % allocatedPages;
+                if (pageReferenced[pageId]) {
+                    pageReferenced[pageId] = false;
+                    continue;
+                }
+                SlotClass owner = classes[pageOwner[pageId]];
+                if (owner == requester) return -1;
+                owner.release(pageId);
+                return pageId;
+            }
+            return -1;
+        }
+
+        private int find(byte[] key, int hash) {
+            for (int idx = hash & indexMask; ; idx = (idx + 1) & indexMask) {
+                long e = index.get(idx);
+                if (e == 0) return -1;
+                if ((int) (e >>> 32) == hash && keyEquals(slotAddress(e), key)) return idx;
+            }
+        }
+
+        private int findByAddress(int hash, long addr) {
+            for (int idx = hash & indexMask; ; idx = (idx + 1) & indexMask) {
+                long e = index.get(idx);
+                if (e == 0) throw new IllegalStateException("Off-heap cache index is inconsistent");
+                if (slotAddress(e) == addr) return idx;
+            }
+        }
+
+        // linear probing deletion with backward shift, no tombstones
+        private void removeIndex(int idx) {
+            int i = idx;
+            int j = idx;
+            while (true) {
+                j = (j + 1) & indexMask;
+                long e = index.get(j);
+                if (e == 0) break;
+                int home = (int) (e >>> 32) & indexMask;
+                if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                    index.put(i, e);
+                    i = j;
+                }
+            }
+            index.put(i, 0);
+            entries--;
+        }
+
+        private boolean keyEquals(long addr, byte[] key) {
+            ByteBuffer page = page(addr);
+            int pos = offset(addr);
+            if (page.getInt(pos + 4) != key.length) return false;
+            pos += HEADER_SIZE;
+            for (int i = 0; i < key.length; i++) {
+                if (page.get(pos + i) != key[i]) return false;
+            }
+            return true;
+        }
+
+        private ByteBuffer page(long addr) {
+            return pages[pageId(addr)];
+        }
+
+        private int pageId(long addr) {
+            return (int) (addr >>> pageShift);
+        }
+
+        private int offset(long addr) {
+            return (int) (addr & (pageSize - 1));
+        }
+
+        private static long slotAddress(long indexEntry) {
+            return ((indexEntry & 0xFFFFFFFFL) - 1) << 4;
+        }
+
+        private static int hash(byte[] key) {
+            int h = Arrays.hashCode(key) * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private static int align16(int size) {
+            return (size + 15) & ~15;
+        }
+
+        /**
+         * Slots of the same size taking pages from the common pool.
+         * Every slot of the class pages is either occupied by an indexed entry
+         * or is on the free list
+         */
+        private final class SlotClass {
+            final int id;
+            final int slotSize;
+            final int slotsPerPage;
+            int[] pageIds = new int[4];
+            int pageCount = 0;
+            // free slot addresses >> 4
+            int[] freeSlots = new int[16];
+            int freeCount = 0;
+            int hand = 0;
+
+            SlotClass(int id, int slotSize) {
+                this.id = id;
+                this.slotSize = slotSize;
+                this.slotsPerPage = pageSize / slotSize;
+            }
+
+            long allocate() {
+                if (freeCount == 0) {
+                    // either the pool or the index may be exhausted
+                    int pageId = allocatedPages < pages.length && entries < maxEntries ? newPage() : victimPage(this);
+                    if (pageId >= 0) adopt(pageId);
+                }
+                if (freeCount > 0 && entries < maxEntries) {
+                    return (freeSlots[--freeCount] & 0xFFFFFFFFL) << 4;
+                }
+                return evict();
+            }
+
+            void free(long addr) {
+                if (freeCount == freeSlots.length) {
+                    freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+                }
+                freeSlots[freeCount++] = (int) (addr >>> 4);
+            }
+
+            // CLOCK: referenced slots get the second chance
+            private long evict() {
+                int total = pageCount * slotsPerPage;
+                if (total == 0) return -1;
+                for (int i = 0; i <= 2 * total; i++) {
+                    long addr = slot(hand);
+                    hand = (hand + 1) % total;
+
+                    ByteBuffer page = page(addr);
+                    int pos = offset(addr);
+                    if (page.getInt(pos + 4) == EMPTY) {
+                        // on the free list already
+                        continue;
+                    }
+                    if (page.getInt(pos + 12) != 0) {
+                        page.putInt(pos + 12, 0);
+                        continue;
+                    }
+                    removeIndex(findByAddress(page.getInt(pos), addr));
+                    page.putInt(pos + 4, EMPTY);
+                    return addr;
+                }
+                return -1;
+            }
+
+            private int newPage() {
+                int pageId = allocatedPages++;
+                pages[pageId] = ByteBuffer.allocateDirect(pageSize);
+                return pageId;
+            }
+
+            private void adopt(int pageId) {
+                pageOwner[pageId] = (byte) id;
+                pageReferenced[pageId] = false;
+                if (pageCount == pageIds.length) {
+                    pageIds = Arrays.copyOf(pageIds, pageCount * 2);
+                }
+                pageIds[pageCount++] = pageId;
+
+                ByteBuffer page = pages[pageId];
+                long base = (long) pageId << pageShift;
+                // pushing in reverse order to fill the page sequentially
+                for (int i = slotsPerPage - 1; i >= 0; i--) {
+                    page.putInt(i * slotSize + 4, EMPTY);
+                    free(base + (long) i * slotSize);
+                }
+            }
+
+            /**
+             * Evicts all the entries of the page and gives the page up
+             */
+            void release(int pageId) {
+                ByteBuffer page = pages[pageId];
+                long base = (long) pageId << pageShift;
+                for (int i = 0; i < slotsPerPage; i++) {
+                    int pos = i * slotSize;
+                    if (page.getInt(pos + 4) != EMPTY) {
+                        removeIndex(findByAddress(page.getInt(pos), base + pos));
+                        page.putInt(pos + 4, EMPTY);
+                    }
+                }
+
+                int cnt = 0;
+                for (int i = 0; i < freeCount; i++) {
+                    if (pageId(((long) freeSlots[i] & 0xFFFFFFFFL) << 4) != pageId) {
+                        freeSlots[cnt++] = freeSlots[i];
+                    }
+                }
+                freeCount = cnt;
+
+                for (int i = 0; i < pageCount; i++) {
+                    if (pageIds[i] == pageId) {
+                        pageIds[i] = pageIds[--pageCount];
+                        break;
+                    }
+                }
+                if (hand >= pageCount * slotsPerPage) hand = 0;
+            }
+
+            private long slot(int slotIdx) {
+                return ((long) pageIds[slotIdx / slotsPerPage] << pageShift) + (long) (slotIdx % slotsPerPage) * slotSize;
+            }
+        }
+    }
+}
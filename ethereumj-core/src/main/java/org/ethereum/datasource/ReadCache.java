@@ -20,19 +20,20 @@ package org.ethereum.datasource;
 import org.apache.commons.collections4.map.LRUMap;
 import org.ethereum.db.ByteArrayWrapper;
 import org.ethereum.util.ByteArrayMap;
+import org.ethereum.util.SegmentedLRUMap;
 
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Caches entries get/updated and use LRU algo to purge them if the number
  * of entries exceeds threshold.
  *
- * This implementation could extended to estimate cached data size for
- * more accurate size restriction, but if entries are more or less
- * of the same size the entries count would be good enough
+ * Alternatively the cache can be restricted by the estimated size of cached data
+ * (see {@link #withMaxSize(long)}) which is more accurate when entries differ in size
  *
  * Another implementation idea is heap sensitive read cache based on
  * SoftReferences, when the cache occupies all the available heap
@@ -44,8 +45,16 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
 
     private final Value NULL = (Value) new Object();
 
+    // approx memory taken by the map entry itself (map node, key wrapper)
+    static final int ENTRY_OVERHEAD = 64;
+
     private Map<Key, Value> cache;
     private boolean byteKeyMap;
+    SegmentedLRUMap<?, ?> sizedCache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
 
     public ReadCache(Source<Key, Value> src) {
         super(src);
@@ -57,6 +66,7 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
      */
     public ReadCache<Key, Value> withCache(Map<Key, Value> cache) {
         byteKeyMap = cache instanceof ByteArrayMap;
+        sizedCache = null;
         this.cache = Collections.synchronizedMap(cache);
         return this;
     }
@@ -68,12 +78,54 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         return withCache(new LRUMap<Key, Value>(maxCapacity) {
             @Override
             protected boolean removeLRU(LinkEntry<Key, Value> entry) {
-                cacheRemoved(entry.getKey(), entry.getValue());
+                evicted(entry.getKey(), entry.getValue());
                 return super.removeLRU(entry);
             }
         });
     }
 
+    /**
+     * Sets the max estimated size in bytes of cached entries.
+     * Entries are purged with Segmented LRU algo: the entries which were hit at least once
+     * are preferred over the entries read only once, so a single pass over a large number
+     * of entries (like a trie traversal) doesn't purge the whole cache
+     *
+     * The size is estimated with the estimators supplied via {@link #withSizeEstimators}
+     * which should be set before the cache is populated
+     */
+    public ReadCache<Key, Value> withMaxSize(long maxSize) {
+        SegmentedLRUMap<Key, Value> map = new SegmentedLRUMap<Key, Value>(maxSize, this::entrySize) {
+            @Override
+            protected void onEvict(Key key, Value value) {
+                evicted(key, value);
+            }
+        };
+        withCache(map);
+        sizedCache = map;
+        return this;
+    }
+
+    long entrySize(Key key, Value value) {
+        long ret = ENTRY_OVERHEAD;
+        if (keySizeEstimator != null) {
+            ret += keySizeEstimator.estimateSize(key);
+        }
+        if (valueSizeEstimator != null && value != NULL) {
+            ret += valueSizeEstimator.estimateSize(value);
+        }
+        return ret;
+    }
+
+    void evicted(Key key, Value value) {
+        evictionCount.incrementAndGet();
+        cacheRemoved(key, value);
+    }
+
+    @Override
+    protected void cacheRemoved(Key key, Value value) {
+        super.cacheRemoved(key, value == NULL ? null : value);
+    }
+
     // the guard against incorrect Map implementation for byte[] keys
     private boolean checked = false;
     private void checkByteArrKey(Key key) {
@@ -104,12 +156,16 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         checkByteArrKey(key);
         Value ret = cache.get(key);
         if (ret == NULL) {
+            hitCount.incrementAndGet();
             return null;
         }
         if (ret == null) {
+            missCount.incrementAndGet();
             ret = getSource().get(key);
             cache.put(key, ret == null ? NULL : ret);
             cacheAdded(key, ret);
+        } else {
+            hitCount.incrementAndGet();
         }
         return ret;
     }
@@ -122,6 +178,12 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         getSource().delete(key);
     }
 
+    // drops the cached entry, the source is not touched
+    void evict(Key key) {
+        Value value = cache.remove(key);
+        if (value != null) cacheRemoved(key, value);
+    }
+
     @Override
     protected boolean flushImpl() {
         return false;
@@ -142,6 +204,37 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         return value == null ? null : new SimpleEntry<>(value == NULL ? null : value);
     }
 
+    @Override
+    public long estimateCacheSize() {
+        if (sizedCache != null) {
+            synchronized (cache) {
+                return sizedCache.getWeight();
+            }
+        }
+        return super.estimateCacheSize();
+    }
+
+    /**
+     * @return number of {@link #get} calls served from the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of {@link #get} calls passed to the underlying source
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of entries purged due to the cache size limit
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
     /**
      * Shortcut for ReadCache with byte[] keys. Also prevents accidental
      * usage of regular Map implementation (non byte[])
@@ -157,11 +250,24 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
             withCache(new ByteArrayMap<V>(new LRUMap<ByteArrayWrapper, V>(maxCapacity) {
                 @Override
                 protected boolean removeLRU(LinkEntry<ByteArrayWrapper, V> entry) {
-                    cacheRemoved(entry.getKey().getData(), entry.getValue());
+                    evicted(entry.getKey().getData(), entry.getValue());
                     return super.removeLRU(entry);
                 }
             }));
             return this;
         }
+
+        public ReadCache.BytesKey<V> withMaxSize(long maxSize) {
+            SegmentedLRUMap<ByteArrayWrapper, V> map = new SegmentedLRUMap<ByteArrayWrapper, V>(maxSize,
+                    (key, value) -> entrySize(key.getData(), value)) {
+                @Override
+                protected void onEvict(ByteArrayWrapper key, V value) {
+                    evicted(key.getData(), value);
+                }
+            };
+            withCache(new ByteArrayMap<V>(map));
+            sizedCache = map;
+            return this;
+        }
     }
 }
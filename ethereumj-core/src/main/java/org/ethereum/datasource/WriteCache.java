@@ -21,6 +21,7 @@ import com.googlecode.concurentlocks.ReadWriteUpdateLock;
 import com.googlecode.concurentlocks.ReentrantReadWriteUpdateLock;
 import org.ethereum.util.ALock;
 import org.ethereum.util.ByteArrayMap;
+import org.ethereum.util.FixedKeyByteArrayMap;
 
 import java.util.Collection;
 import java.util.HashMap;
@@ -63,7 +64,7 @@ public class WriteCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         COUNTING
     }
 
-    private static abstract class CacheEntry<V> implements Entry<V>{
+    protected static abstract class CacheEntry<V> implements Entry<V>{
         // dedicated value instance which indicates that the entry was deleted
         // (ref counter decremented) but we don't know actual value behind it
         static final Object UNKNOWN_VALUE = new Object();
@@ -162,7 +163,7 @@ public class WriteCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         return !cache.isEmpty();
     }
 
-    private CacheEntry<Value> createCacheEntry(Value val) {
+    protected CacheEntry<Value> createCacheEntry(Value val) {
         if (isCounting) {
             return new CountCacheEntry<>(val);
         } else {
@@ -259,12 +260,20 @@ public class WriteCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         }
     }
 
+    // drops the cached entry along with its pending change, the source is not touched
+    void evict(Key key) {
+        try (ALock l = writeLock.lock()){
+            CacheEntry<Value> entry = cache.remove(key);
+            if (entry != null) cacheRemoved(key, entry.value == unknownValue() ? null : entry.value);
+        }
+    }
+
     @Override
     protected boolean flushImpl() {
         return false;
     }
 
-    private Value unknownValue() {
+    protected Value unknownValue() {
         return (Value) CacheEntry.UNKNOWN_VALUE;
     }
 
@@ -282,11 +291,11 @@ public class WriteCache<Key, Value> extends AbstractCachedSource<Key, Value> {
     // Guard against wrong cache Map
     // if a regular Map is accidentally used for byte[] type keys
     // the situation might be tricky to debug
-    private void checkByteArrKey(Key key) {
+    protected void checkByteArrKey(Key key) {
         if (checked) return;
 
         if (key instanceof byte[]) {
-            if (!(cache instanceof ByteArrayMap)) {
+            if (!(cache instanceof ByteArrayMap) && !(cache instanceof FixedKeyByteArrayMap)) {
                 throw new RuntimeException("Wrong map/set for byte[] key");
             }
         }
@@ -312,5 +321,14 @@ public class WriteCache<Key, Value> extends AbstractCachedSource<Key, Value> {
             super(src, cacheType);
             withCache(new ByteArrayMap<CacheEntry<V>>());
         }
+
+        /**
+         * Creates the cache for keys of the same length (e.g. hashes)
+         * which avoids wrapping the keys (see {@link FixedKeyByteArrayMap})
+         */
+        public BytesKey(Source<byte[], V> src, CacheType cacheType, int keyLength) {
+            super(src, cacheType);
+            withCache(new FixedKeyByteArrayMap<CacheEntry<V>>(keyLength));
+        }
     }
 }
@@ -17,13 +17,18 @@
  */
 package org.ethereum.datasource.inmem;
 
+import org.ethereum.datasource.DbIterator;
 import org.ethereum.datasource.DbSettings;
 import org.ethereum.datasource.DbSource;
 import org.ethereum.util.ALock;
 import org.ethereum.util.ByteArrayMap;
 import org.ethereum.util.FastByteComparisons;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -125,6 +130,55 @@ public class HashMapDB<V> implements DbSource<V> {
         }
     }
 
+    @Override
+    public DbIterator<V> iterator(byte[] from, byte[] to) {
+        try (ALock l = readLock.lock()) {
+            return iterator(storage, from, to);
+        }
+    }
+
+    /**
+     * Iterator over the snapshot of the map entries within the range,
+     * the entries are copied and sorted as there is no key order in the map
+     */
+    static <V> DbIterator<V> iterator(Map<byte[], V> storage, byte[] from, byte[] to) {
+        List<Map.Entry<byte[], V>> entries = new ArrayList<>();
+        for (Map.Entry<byte[], V> e : storage.entrySet()) {
+            if ((from == null || FastByteComparisons.compareTo(e.getKey(), 0, e.getKey().length, from, 0, from.length) >= 0) &&
+                    (to == null || FastByteComparisons.compareTo(e.getKey(), 0, e.getKey().length, to, 0, to.length) < 0)) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+            }
+        }
+        entries.sort((e1, e2) -> FastByteComparisons.compareTo(e1.getKey(), 0, e1.getKey().length,
+                e2.getKey(), 0, e2.getKey().length));
+
+        return new DbIterator<V>() {
+            int idx = 0;
+            Map.Entry<byte[], V> cur;
+
+            @Override
+            public boolean hasNext() {
+                return idx < entries.size();
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                cur = entries.get(idx++);
+                return cur.getKey();
+            }
+
+            @Override
+            public V value() {
+                if (cur == null) throw new IllegalStateException("next() wasn't called");
+                return cur.getValue();
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
     @Override
     public void updateBatch(Map<byte[], V> rows) {
         try (ALock l = writeLock.lock()) {
@@ -17,6 +17,7 @@
  */
 package org.ethereum.datasource.inmem;
 
+import org.ethereum.datasource.DbIterator;
 import org.ethereum.datasource.DbSettings;
 import org.ethereum.datasource.DbSource;
 import org.ethereum.util.ByteArrayMap;
@@ -107,6 +108,11 @@ public class HashMapDBSimple<V> implements DbSource<V> {
         return null;
     }
 
+    @Override
+    public DbIterator<V> iterator(byte[] from, byte[] to) {
+        return HashMapDB.iterator(storage, from, to);
+    }
+
     @Override
     public void updateBatch(Map<byte[], V> rows) {
         for (Map.Entry<byte[], V> entry : rows.entrySet()) {
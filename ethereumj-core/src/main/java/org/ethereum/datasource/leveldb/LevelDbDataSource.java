@@ -18,8 +18,10 @@
 package org.ethereum.datasource.leveldb;
 
 import org.ethereum.config.SystemProperties;
+import org.ethereum.datasource.DbIterator;
 import org.ethereum.datasource.DbSettings;
 import org.ethereum.datasource.DbSource;
+import org.ethereum.util.FastByteComparisons;
 import org.ethereum.util.FileUtil;
 import org.iq80.leveldb.*;
 import org.slf4j.Logger;
@@ -33,6 +35,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -247,6 +250,88 @@ public class LevelDbDataSource implements DbSource<byte[]> {
         }
     }
 
+    @Override
+    public DbIterator<byte[]> iterator(byte[] from, byte[] to) {
+        resetDbLock.readLock().lock();
+        try {
+            if (logger.isTraceEnabled()) logger.trace("~> LevelDbDataSource.iterator(): " + name);
+            // don't pollute the block cache with the scanned entries
+            DBIterator iterator = db.iterator(new ReadOptions().fillCache(false));
+            if (from != null) {
+                iterator.seek(from);
+            } else {
+                iterator.seekToFirst();
+            }
+            return new LevelDbIterator(iterator, to);
+        } catch (RuntimeException e) {
+            resetDbLock.readLock().unlock();
+            logger.error("Error iterating db '{}'", name, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Holds the DB read lock until exhausted or closed
+     */
+    private class LevelDbIterator implements DbIterator<byte[]> {
+        private final DBIterator iterator;
+        private final byte[] to;
+        private Map.Entry<byte[], byte[]> next;
+        private Map.Entry<byte[], byte[]> cur;
+        private boolean finished;
+        private boolean closed;
+
+        LevelDbIterator(DBIterator iterator, byte[] to) {
+            this.iterator = iterator;
+            this.to = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !finished) {
+                if (iterator.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = iterator.next();
+                    if (to == null || FastByteComparisons.compareTo(entry.getKey(), 0, entry.getKey().length,
+                            to, 0, to.length) < 0) {
+                        next = entry;
+                    }
+                }
+                finished = next == null;
+                // release the DB as soon as possible, the caller may not close the iterator in time
+                if (finished) close();
+            }
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            cur = next;
+            next = null;
+            return cur.getKey();
+        }
+
+        @Override
+        public byte[] value() {
+            if (cur == null) throw new IllegalStateException("next() wasn't called");
+            return cur.getValue();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = finished = true;
+            next = null;
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                logger.warn("Error closing iterator of db '{}'", name, e);
+            } finally {
+                resetDbLock.readLock().unlock();
+            }
+        }
+    }
+
     private void updateBatchInternal(Map<byte[], byte[]> rows) throws IOException {
         try (WriteBatch batch = db.createWriteBatch()) {
             for (Map.Entry<byte[], byte[]> entry : rows.entrySet()) {
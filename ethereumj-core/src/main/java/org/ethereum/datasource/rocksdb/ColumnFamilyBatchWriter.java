@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.datasource.rocksdb;
+
+import org.ethereum.datasource.AbstractChainedSource;
+import org.ethereum.datasource.BatchSourceWriter;
+import org.ethereum.datasource.DbSource;
+import org.ethereum.datasource.Serializer;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.SourceCodec;
+
+import java.util.*;
+
+/**
+ * The analogue of {@link BatchSourceWriter} for the DB with column families:
+ * allows a single write cache on top of several column families and
+ * flushes all the families updates within a single atomic batch
+ *
+ * Keys coming from the cache are prefixed with the family index
+ * (see {@link #familySource(Source, String)}), index 0 stands for the default family
+ */
+public class ColumnFamilyBatchWriter extends AbstractChainedSource<byte[], byte[], byte[], byte[]> {
+
+    private final RocksDbDataSource db;
+    private final List<String> families = new ArrayList<>();
+    private final List<Source<byte[], byte[]>> sources = new ArrayList<>();
+
+    Map<byte[], byte[]> buf = new HashMap<>();
+
+    public ColumnFamilyBatchWriter(RocksDbDataSource db, Collection<String> families) {
+        super(db);
+        this.db = db;
+        if (families.size() > 255) {
+            throw new IllegalArgumentException("Too many column families: " + families.size());
+        }
+        this.families.add(null);
+        this.sources.add(db);
+        for (String family : families) {
+            DbSource<byte[]> source = db.getColumnFamily(family);
+            if (source == null) throw new IllegalArgumentException("No column family '" + family + "' in db " + db.getName());
+            this.families.add(family);
+            this.sources.add(source);
+        }
+    }
+
+    public boolean hasFamily(String family) {
+        return families.contains(family);
+    }
+
+    /**
+     * Creates Source which puts the keys to the specified column family
+     * when passed through the cache on top of this writer
+     *
+     * @param cache the cache which is backed by this writer
+     * @param family the column family name, null for the default family
+     */
+    public Source<byte[], byte[]> familySource(Source<byte[], byte[]> cache, String family) {
+        final int idx = families.indexOf(family);
+        if (idx < 0) throw new IllegalArgumentException("Unknown column family: " + family);
+
+        return new SourceCodec.KeyOnly<>(cache, new Serializer<byte[], byte[]>() {
+            public byte[] serialize(byte[] key) {
+                byte[] ret = new byte[key.length + 1];
+                ret[0] = (byte) idx;
+                System.arraycopy(key, 0, ret, 1, key.length);
+                return ret;
+            }
+            public byte[] deserialize(byte[] stream) {
+                throw new RuntimeException("Shouldn't be called");
+            }
+        });
+    }
+
+    private String family(byte[] key) {
+        return families.get(key[0] & 0xFF);
+    }
+
+    private Source<byte[], byte[]> source(byte[] key) {
+        return sources.get(key[0] & 0xFF);
+    }
+
+    private static byte[] stripFamily(byte[] key) {
+        return Arrays.copyOfRange(key, 1, key.length);
+    }
+
+    @Override
+    public synchronized void delete(byte[] key) {
+        buf.put(key, null);
+    }
+
+    @Override
+    public synchronized void put(byte[] key, byte[] val) {
+        buf.put(key, val);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return source(key).get(stripFamily(key));
+    }
+
+    @Override
+    public synchronized boolean flushImpl() {
+        if (!buf.isEmpty()) {
+            Map<String, Map<byte[], byte[]>> rows = new HashMap<>();
+            for (Map.Entry<byte[], byte[]> entry : buf.entrySet()) {
+                rows.computeIfAbsent(family(entry.getKey()), f -> new HashMap<>())
+                        .put(stripFamily(entry.getKey()), entry.getValue());
+            }
+            db.updateColumnFamilies(rows);
+            buf.clear();
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.ethereum.datasource.rocksdb;
 
 import org.ethereum.config.SystemProperties;
+import org.ethereum.datasource.DbIterator;
 import org.ethereum.datasource.DbSettings;
 import org.ethereum.datasource.DbSource;
 import org.ethereum.datasource.NodeKeyCompositor;
@@ -31,6 +32,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -59,6 +61,12 @@ public class RocksDbDataSource implements DbSource<byte[]> {
 
     DbSettings settings = DbSettings.DEFAULT;
 
+    // column families by name, empty when the DB keeps all the data in the default family
+    Map<String, ColumnFamilyHandle> families = new HashMap<>();
+    List<ColumnFamilyHandle> familyHandles = new ArrayList<>();
+    // the options must outlive the families opened with them, thus are closed together with the DB
+    Map<String, ColumnFamilyOptions> familyOpts = new HashMap<>();
+
     // The native RocksDB insert/update/delete are normally thread-safe
     // However close operation is not thread-safe.
     // This ReadWriteLock still permits concurrent execution of insert/delete/update operations
@@ -155,7 +163,19 @@ public class RocksDbDataSource implements DbSource<byte[]> {
 
                     logger.debug("Initializing new or existing database: '{}'", name);
                     try {
-                        db = RocksDB.open(options, dbPath.toString());
+                        List<byte[]> existingFamilies = Files.exists(dbPath.resolve("CURRENT")) ?
+                                RocksDB.listColumnFamilies(options, dbPath.toString()) : Collections.emptyList();
+
+                        if (existingFamilies.size() > 1 ||
+                                (existingFamilies.isEmpty() && !settings.getColumnFamilies().isEmpty())) {
+                            openWithColumnFamilies(dbPath, existingFamilies);
+                        } else {
+                            if (!settings.getColumnFamilies().isEmpty()) {
+                                logger.warn("Database '{}' was created without column families, " +
+                                        "the single keyspace is used. Reset the database to enable column families", name);
+                            }
+                            db = RocksDB.open(options, dbPath.toString());
+                        }
                     } catch (RocksDBException e) {
                         logger.error(e.getMessage(), e);
                         throw new RuntimeException("Failed to initialize database", e);
@@ -175,6 +195,206 @@ public class RocksDbDataSource implements DbSource<byte[]> {
         }
     }
 
+    /**
+     * Opens DB with the default family plus all the requested and existing column families.
+     * The default family keeps the same options as the DB without column families
+     */
+    private void openWithColumnFamilies(Path dbPath, List<byte[]> existingFamilies) throws RocksDBException {
+        Map<String, DbSettings.ColumnFamily> requested = new LinkedHashMap<>();
+        for (DbSettings.ColumnFamily family : settings.getColumnFamilies()) {
+            requested.put(family.getName(), family);
+        }
+
+        List<String> names = new ArrayList<>();
+        for (byte[] existing : existingFamilies) {
+            if (!Arrays.equals(existing, RocksDB.DEFAULT_COLUMN_FAMILY)) {
+                names.add(new String(existing, StandardCharsets.UTF_8));
+            }
+        }
+        for (String family : requested.keySet()) {
+            if (!names.contains(family)) names.add(family);
+        }
+
+        List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+        Map<String, ColumnFamilyOptions> opts = new HashMap<>();
+        opts.put(null, familyOptions(null));
+        descriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, opts.get(null)));
+        for (String family : names) {
+            opts.put(family, familyOptions(requested.get(family)));
+            descriptors.add(new ColumnFamilyDescriptor(family.getBytes(StandardCharsets.UTF_8), opts.get(family)));
+        }
+
+        boolean opened = false;
+        try (DBOptions dbOptions = new DBOptions()) {
+            dbOptions.setCreateIfMissing(true);
+            dbOptions.setCreateMissingColumnFamilies(true);
+            dbOptions.setMaxOpenFiles(settings.getMaxOpenFiles());
+            dbOptions.setIncreaseParallelism(settings.getMaxThreads());
+
+            List<ColumnFamilyHandle> handles = new ArrayList<>();
+            db = RocksDB.open(dbOptions, dbPath.toString(), descriptors, handles);
+
+            familyHandles = handles;
+            familyOpts = opts;
+            families = new HashMap<>();
+            for (int i = 0; i < names.size(); i++) {
+                families.put(names.get(i), handles.get(i + 1));
+            }
+            opened = true;
+            logger.info("Database '{}' opened with column families: {}", name, names);
+        } finally {
+            if (!opened) opts.values().forEach(ColumnFamilyOptions::close);
+        }
+    }
+
+    private DbSettings.ColumnFamily familySettings(String family) {
+        for (DbSettings.ColumnFamily settings : this.settings.getColumnFamilies()) {
+            if (settings.getName().equals(family)) return settings;
+        }
+        return null;
+    }
+
+    /**
+     * Drops the column family with all its data and creates it anew with the same options
+     */
+    private void resetColumnFamily(String family) {
+        resetDbLock.writeLock().lock();
+        try {
+            ColumnFamilyHandle handle = handle(family);
+            logger.debug("Reset column family '{}' of db '{}'", family, name);
+            db.dropColumnFamily(handle);
+            familyHandles.remove(handle);
+            families.remove(family);
+            handle.close();
+
+            ColumnFamilyOptions opts = familyOpts.remove(family);
+            if (opts != null) opts.close();
+            createColumnFamily(family);
+        } catch (RocksDBException e) {
+            logger.error("Failed to reset column family '{}' of db '{}'", family, name, e);
+            throw new RuntimeException(e);
+        } finally {
+            resetDbLock.writeLock().unlock();
+        }
+    }
+
+    // should be called under the write lock
+    private void createColumnFamily(String family) throws RocksDBException {
+        ColumnFamilyOptions opts = familyOptions(familySettings(family));
+        try {
+            ColumnFamilyHandle handle = db.createColumnFamily(
+                    new ColumnFamilyDescriptor(family.getBytes(StandardCharsets.UTF_8), opts));
+            familyHandles.add(handle);
+            families.put(family, handle);
+            familyOpts.put(family, opts);
+        } catch (RocksDBException e) {
+            opts.close();
+            throw e;
+        }
+    }
+
+    private ColumnFamilyOptions familyOptions(DbSettings.ColumnFamily family) {
+        DbSettings.ColumnFamily.Profile profile = family == null ?
+                DbSettings.ColumnFamily.Profile.DEFAULT : family.getProfile();
+        ColumnFamilyOptions options = new ColumnFamilyOptions();
+        options.setLevelCompactionDynamicLevelBytes(true);
+        options.useFixedLengthPrefixExtractor(NodeKeyCompositor.PREFIX_BYTES);
+
+        final BlockBasedTableConfig tableCfg = new BlockBasedTableConfig();
+        tableCfg.setCacheIndexAndFilterBlocks(true);
+        tableCfg.setPinL0FilterAndIndexBlocksInCache(true);
+        tableCfg.setFilter(new BloomFilter(10, false));
+
+        switch (profile) {
+            case POINT_LOOKUP:
+                // small blocks: less bytes to read and decompress per lookup
+                options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+                options.setBottommostCompressionType(CompressionType.LZ4_COMPRESSION);
+                tableCfg.setBlockSize(4 * 1024);
+                break;
+            case COLD:
+                // large blocks and the strongest compression, index and filters are not pinned
+                options.setCompressionType(CompressionType.ZSTD_COMPRESSION);
+                options.setBottommostCompressionType(CompressionType.ZSTD_COMPRESSION);
+                tableCfg.setBlockSize(64 * 1024);
+                tableCfg.setPinL0FilterAndIndexBlocksInCache(false);
+                break;
+            default:
+                options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+                options.setBottommostCompressionType(CompressionType.ZSTD_COMPRESSION);
+                tableCfg.setBlockSize(16 * 1024);
+        }
+        tableCfg.setBlockCacheSize(family != null && family.getBlockCacheSize() > 0 ?
+                family.getBlockCacheSize() : 32 * 1024 * 1024);
+
+        options.setTableFormatConfig(tableCfg);
+        return options;
+    }
+
+    /**
+     * @return true if the DB was opened with column families
+     */
+    public boolean hasColumnFamilies() {
+        return !families.isEmpty();
+    }
+
+    /**
+     * @return names of the column families except the default one
+     */
+    public Set<String> getColumnFamilyNames() {
+        return Collections.unmodifiableSet(families.keySet());
+    }
+
+    /**
+     * Returns the view of the column family as a separate DbSource.
+     * The view is closed/opened together with this DB
+     *
+     * @return the family source or null if there is no such family
+     */
+    public DbSource<byte[]> getColumnFamily(String family) {
+        return families.containsKey(family) ? new ColumnFamilySource(family) : null;
+    }
+
+    /**
+     * Writes updates of several column families within a single atomic batch
+     *
+     * @param rows updates by the family name, null name stands for the default family
+     */
+    public void updateColumnFamilies(Map<String, Map<byte[], byte[]>> rows) {
+        resetDbLock.readLock().lock();
+        try {
+            if (logger.isTraceEnabled()) logger.trace("~> RocksDbDataSource.updateColumnFamilies(): " + name + ", families: " + rows.keySet());
+            try (WriteBatch batch = new WriteBatch();
+                 WriteOptions writeOptions = new WriteOptions()) {
+                for (Map.Entry<String, Map<byte[], byte[]>> familyRows : rows.entrySet()) {
+                    ColumnFamilyHandle handle = handle(familyRows.getKey());
+                    for (Map.Entry<byte[], byte[]> entry : familyRows.getValue().entrySet()) {
+                        if (entry.getValue() == null) {
+                            batch.remove(handle, entry.getKey());
+                        } else {
+                            batch.put(handle, entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                db.write(writeOptions, batch);
+                if (logger.isTraceEnabled()) logger.trace("<~ RocksDbDataSource.updateColumnFamilies(): " + name + ", families: " + rows.keySet());
+            } catch (RocksDBException e) {
+                logger.error("Error in batch update on db '{}'", name, e);
+                hintOnTooManyOpenFiles(e);
+                throw new RuntimeException(e);
+            }
+        } finally {
+            resetDbLock.readLock().unlock();
+        }
+    }
+
+    private ColumnFamilyHandle handle(String family) {
+        if (family == null) return db.getDefaultColumnFamily();
+        ColumnFamilyHandle handle = families.get(family);
+        if (handle == null) throw new IllegalArgumentException("No column family '" + family + "' in db '" + name + "'");
+        return handle;
+    }
+
     public void backup() {
         resetDbLock.readLock().lock();
         if (logger.isTraceEnabled()) logger.trace("~> RocksDbDataSource.backup(): " + name);
@@ -211,8 +431,17 @@ public class RocksDbDataSource implements DbSource<byte[]> {
             if (!isAlive()) return;
 
             logger.debug("Close db: {}", name);
+            for (ColumnFamilyHandle handle : familyHandles) {
+                handle.close();
+            }
+            familyHandles = new ArrayList<>();
+            families = new HashMap<>();
             db.close();
             readOpts.close();
+            for (ColumnFamilyOptions opts : familyOpts.values()) {
+                opts.close();
+            }
+            familyOpts = new HashMap<>();
 
             alive = false;
 
@@ -245,6 +474,96 @@ public class RocksDbDataSource implements DbSource<byte[]> {
         }
     }
 
+    @Override
+    public DbIterator<byte[]> iterator(byte[] from, byte[] to) {
+        return iterator(null, from, to);
+    }
+
+    private DbIterator<byte[]> iterator(String family, byte[] from, byte[] to) {
+        resetDbLock.readLock().lock();
+        try {
+            if (logger.isTraceEnabled()) logger.trace("~> RocksDbDataSource.iterator(): " + name);
+            // total order is needed to cross the key prefixes, also
+            // don't pollute the block cache with the scanned entries
+            ReadOptions opts = new ReadOptions().setTotalOrderSeek(true).setFillCache(false);
+            Slice upperBound = null;
+            if (to != null) {
+                upperBound = new Slice(to);
+                opts.setIterateUpperBound(upperBound);
+            }
+            RocksIterator iterator = db.newIterator(handle(family), opts);
+            if (from != null) {
+                iterator.seek(from);
+            } else {
+                iterator.seekToFirst();
+            }
+            return new RocksDbIterator(iterator, opts, upperBound);
+        } catch (RuntimeException e) {
+            resetDbLock.readLock().unlock();
+            logger.error("Error iterating db '{}'", name, e);
+            hintOnTooManyOpenFiles(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Holds the DB read lock until exhausted or closed.
+     * The native iterator is advanced lazily, so it stays on the last returned key to read its value
+     */
+    private class RocksDbIterator implements DbIterator<byte[]> {
+        private final RocksIterator iterator;
+        private final ReadOptions opts;
+        private final Slice upperBound;
+        // the native iterator points to the key returned by the last next()
+        private boolean positioned;
+        private boolean closed;
+
+        RocksDbIterator(RocksIterator iterator, ReadOptions opts, Slice upperBound) {
+            this.iterator = iterator;
+            this.opts = opts;
+            this.upperBound = upperBound;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) return false;
+            if (positioned) {
+                iterator.next();
+                positioned = false;
+            }
+            if (iterator.isValid()) return true;
+            // release the DB as soon as possible, the caller may not close the iterator in time
+            close();
+            return false;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            positioned = true;
+            return iterator.key();
+        }
+
+        @Override
+        public byte[] value() {
+            if (!positioned) throw new IllegalStateException("next() wasn't called or hasNext() was called after it");
+            return iterator.value();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            try {
+                iterator.close();
+                opts.close();
+                if (upperBound != null) upperBound.close();
+            } finally {
+                resetDbLock.readLock().unlock();
+            }
+        }
+    }
+
     @Override
     public void reset() {
         close();
@@ -342,7 +661,8 @@ public class RocksDbDataSource implements DbSource<byte[]> {
     public byte[] prefixLookup(byte[] key, int prefixBytes) {
 
         if (prefixBytes != NodeKeyCompositor.PREFIX_BYTES)
-            throw new RuntimeException("RocksDbDataSource.prefixLookup() supports only " + prefixBytes + "-bytes prefix");
+            throw new RuntimeException("RocksDbDataSource.prefixLookup() supports only " + NodeKeyCompositor.PREFIX_BYTES +
+                    "-bytes prefix, requested: " + prefixBytes);
 
         resetDbLock.readLock().lock();
         try {
@@ -382,6 +702,147 @@ public class RocksDbDataSource implements DbSource<byte[]> {
         return false;
     }
 
+    /**
+     * The column family view, all the calls are delegated to the outer DB
+     */
+    private class ColumnFamilySource implements DbSource<byte[]> {
+        private volatile String family;
+
+        ColumnFamilySource(String family) {
+            this.family = family;
+        }
+
+        /**
+         * Switches the view to another column family of the same DB,
+         * the family is created if missing
+         */
+        @Override
+        public void setName(String name) {
+            resetDbLock.writeLock().lock();
+            try {
+                if (!families.containsKey(name)) createColumnFamily(name);
+                this.family = name;
+            } catch (RocksDBException e) {
+                logger.error("Failed to create column family '{}' in db '{}'", name, RocksDbDataSource.this.name, e);
+                throw new RuntimeException(e);
+            } finally {
+                resetDbLock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name + "/" + family;
+        }
+
+        @Override
+        public void init() {}
+
+        @Override
+        public void init(DbSettings settings) {}
+
+        @Override
+        public boolean isAlive() {
+            return RocksDbDataSource.this.isAlive();
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public void reset() {
+            resetColumnFamily(family);
+        }
+
+        @Override
+        public Set<byte[]> keys() throws RuntimeException {
+            resetDbLock.readLock().lock();
+            try (RocksIterator iterator = db.newIterator(handle(family))) {
+                Set<byte[]> result = new HashSet<>();
+                for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                    result.add(iterator.key());
+                }
+                return result;
+            } finally {
+                resetDbLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public DbIterator<byte[]> iterator(byte[] from, byte[] to) {
+            return RocksDbDataSource.this.iterator(family, from, to);
+        }
+
+        @Override
+        public void updateBatch(Map<byte[], byte[]> rows) {
+            updateColumnFamilies(Collections.singletonMap(family, rows));
+        }
+
+        @Override
+        public void put(byte[] key, byte[] val) {
+            resetDbLock.readLock().lock();
+            try {
+                if (val != null) {
+                    db.put(handle(family), key, val);
+                } else {
+                    db.delete(handle(family), key);
+                }
+            } catch (RocksDBException e) {
+                logger.error("Failed to put into db '{}'", getName(), e);
+                hintOnTooManyOpenFiles(e);
+                throw new RuntimeException(e);
+            } finally {
+                resetDbLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public byte[] get(byte[] key) {
+            resetDbLock.readLock().lock();
+            try {
+                return db.get(handle(family), readOpts, key);
+            } catch (RocksDBException e) {
+                logger.error("Failed to get from db '{}'", getName(), e);
+                hintOnTooManyOpenFiles(e);
+                throw new RuntimeException(e);
+            } finally {
+                resetDbLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            put(key, null);
+        }
+
+        @Override
+        public byte[] prefixLookup(byte[] key, int prefixBytes) {
+            if (prefixBytes != NodeKeyCompositor.PREFIX_BYTES)
+                throw new RuntimeException("RocksDbDataSource.prefixLookup() supports only " + NodeKeyCompositor.PREFIX_BYTES +
+                        "-bytes prefix, requested: " + prefixBytes);
+
+            byte[] prefix = new byte[NodeKeyCompositor.PREFIX_BYTES];
+            arraycopy(key, 0, prefix, 0, NodeKeyCompositor.PREFIX_BYTES);
+
+            resetDbLock.readLock().lock();
+            try (RocksIterator it = db.newIterator(handle(family), readOpts)) {
+                it.seek(prefix);
+                return it.isValid() ? it.value() : null;
+            } catch (Exception e) {
+                logger.error("Failed to seek by prefix {} in db '{}'", toHexString(prefix), getName(), e);
+                hintOnTooManyOpenFiles(e);
+                throw new RuntimeException(e);
+            } finally {
+                resetDbLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean flush() {
+            return false;
+        }
+    }
+
     private void hintOnTooManyOpenFiles(Exception e) {
         if (e.getMessage() != null && e.getMessage().toLowerCase().contains("too many open files")) {
             logger.info("");
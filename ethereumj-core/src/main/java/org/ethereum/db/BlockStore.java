@@ -43,6 +43,14 @@ public interface BlockStore {
     Block getBlockByHash(byte[] hash);
     boolean isBlockExist(byte[] hash);
 
+    /**
+     * @return RLP encoded block body (transactions and uncles) or null if no such block
+     */
+    default byte[] getBlockBodyByHash(byte[] hash) {
+        Block block = getBlockByHash(hash);
+        return block == null ? null : block.getEncodedBody();
+    }
+
     List<byte[]> getListHashesEndWith(byte[] hash, long qty);
 
     List<BlockHeader> getListHeadersEndWith(byte[] hash, long qty);
@@ -20,6 +20,8 @@ package org.ethereum.db;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.JdkFutureAdapters;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.ethereum.config.CommonConfig;
 import org.ethereum.config.SystemProperties;
@@ -30,20 +32,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Flushes the write caches to the DBs in a pipeline:
+ * the caller thread just flips the async caches (cheap consistent snapshot) and continues,
+ * the flush thread then drains the caches into the shared blockchain DB cache and writes
+ * the blockchain DB batch. The caches backed by other DBs (see {@link #addCache(AbstractCachedSource, DbSource)})
+ * are grouped by their DB, each such DB has a single writer thread which writes
+ * the caches of its group one after another in parallel with the other DBs
+ *
+ * Each flush drains only the async cache generations flipped for it, so every blockchain DB
+ * batch is a consistent cut of all the async caches even when several flushes are pending
+ *
+ * The caller blocks only when [cache.flush.maxPendingFlushes] flushes are still pending
+ *
  * Created by Anton Nashatyrev on 01.12.2016.
  */
 public class DbFlushManager {
     private static final Logger logger = LoggerFactory.getLogger("db");
 
     List<AbstractCachedSource<byte[], ?>> writeCaches = new CopyOnWriteArrayList<>();
+    // the DB written by the cache if not the blockchain DB
+    Map<AbstractCachedSource<byte[], ?>, DbSource<?>> cacheDbs = new ConcurrentHashMap<>();
     List<Source<byte[], ?>> sources = new CopyOnWriteArrayList<>();
+    List<Runnable> flushListeners = new CopyOnWriteArrayList<>();
+    List<Runnable> closeHooks = new CopyOnWriteArrayList<>();
     Set<DbSource> dbSources = new HashSet<>();
     AbstractCachedSource<byte[], byte[]> stateDbCache;
 
@@ -55,12 +71,25 @@ public class DbFlushManager {
     SystemProperties config;
 
     int commitCount = 0;
+    int maxPendingFlushes;
 
-    private final BlockingQueue<Runnable> executorQueue = new ArrayBlockingQueue<>(1);
-    private final ExecutorService flushThread = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
-            executorQueue, new ThreadFactoryBuilder().setNameFormat("DbFlushManagerThread-%d").build());
+    private final ExecutorService flushThread = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("DbFlushManagerThread-%d").build());
+    // a single writer per DB
+    private final Map<DbSource<?>, ListeningExecutorService> writers = new ConcurrentHashMap<>();
+    private final ThreadFactory writerThreadFactory =
+            new ThreadFactoryBuilder().setNameFormat("DbFlushManagerWriter-%d").build();
+    private final Deque<Future<Boolean>> pendingFlushes = new ArrayDeque<>();
     Future<Boolean> lastFlush = Futures.immediateFuture(false);
 
+    // metrics
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushTime = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicLong blockedTime = new AtomicLong();
+    private volatile long lastFlushTime;
+    private volatile long lastFlushBytes;
+
     public DbFlushManager(SystemProperties config, Set<DbSource> dbSources, AbstractCachedSource<byte[], byte[]> stateDbCache) {
         this.config = config;
         this.dbSources = dbSources;
@@ -68,6 +97,7 @@ public class DbFlushManager {
         commitsCountThreshold = config.getConfig().getInt("cache.flush.blocks");
         flushAfterSyncDone = config.getConfig().getBoolean("cache.flush.shortSyncFlush");
         this.stateDbCache = stateDbCache;
+        maxPendingFlushes = Math.max(1, config.getConfig().getInt("cache.flush.maxPendingFlushes"));
     }
 
     @Autowired
@@ -88,14 +118,44 @@ public class DbFlushManager {
         this.sizeThreshold = sizeThreshold;
     }
 
+    /**
+     * Adds the cache which is flushed to the blockchain DB cache
+     */
     public void addCache(AbstractCachedSource<byte[], ?> cache) {
+        if (cache instanceof AsyncWriteCache) {
+            ((AsyncWriteCache) cache).withMaxPendingFlushes(maxPendingFlushes);
+        }
         writeCaches.add(cache);
     }
 
+    /**
+     * Adds the cache which is flushed directly to the separate DB,
+     * the caches of the same DB are written by the single writer
+     */
+    public void addCache(AbstractCachedSource<byte[], ?> cache, DbSource<?> db) {
+        cacheDbs.put(cache, db);
+        addCache(cache);
+    }
+
     public void addSource(Source<byte[], ?> src) {
         sources.add(src);
     }
 
+    /**
+     * Adds listener which is called each time the flushed data is written to the DB
+     */
+    public void addFlushListener(Runnable listener) {
+        flushListeners.add(listener);
+    }
+
+    /**
+     * Adds hook which is called on {@link #close()} after all the caches are flushed,
+     * the updates made by the hook are flushed before DBs are closed
+     */
+    public void addCloseHook(Runnable hook) {
+        closeHooks.add(hook);
+    }
+
     public long getCacheSize() {
         long ret = 0;
         for (AbstractCachedSource<byte[], ?> writeCache : writeCaches) {
@@ -134,19 +194,20 @@ public class DbFlushManager {
     }
 
     public synchronized Future<Boolean> flush() {
-        if (!lastFlush.isDone()) {
-            logger.info("Waiting for previous flush to complete...");
-            try {
-                lastFlush.get();
-            } catch (Exception e) {
-                logger.error("Error during last flush", e);
-            }
-        }
+        waitPendingFlushes(maxPendingFlushes - 1);
+
         logger.debug("Flipping async storages");
+        long size = 0;
+        // the flipped generation of each cache, null for the caches which are not async
+        Map<AbstractCachedSource<byte[], ?>, AsyncFlushable.Generation> generations = new LinkedHashMap<>();
         for (AbstractCachedSource<byte[], ?> writeCache : writeCaches) {
             try {
                 if (writeCache instanceof AsyncFlushable) {
-                    ((AsyncFlushable) writeCache).flipStorage();
+                    size += ((AsyncFlushable) writeCache).estimateFlipSize();
+                    generations.put(writeCache, ((AsyncFlushable) writeCache).flipStorage());
+                } else {
+                    size += writeCache.estimateCacheSize();
+                    generations.put(writeCache, null);
                 }
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
@@ -154,32 +215,132 @@ public class DbFlushManager {
         }
 
         logger.debug("Submitting flush task");
-        return lastFlush = flushThread.submit(() -> {
-            boolean ret = false;
-            long s = System.nanoTime();
-            logger.info("Flush started");
+        long flushSize = size;
+        lastFlush = flushThread.submit(() -> doFlush(generations, flushSize));
+        pendingFlushes.addLast(lastFlush);
+        return lastFlush;
+    }
 
-            sources.forEach(Source::flush);
+    /**
+     * Blocks the caller until no more than specified number of flushes is pending
+     */
+    private void waitPendingFlushes(int maxPending) {
+        while (!pendingFlushes.isEmpty() && pendingFlushes.peekFirst().isDone()) {
+            pendingFlushes.removeFirst();
+        }
+        if (pendingFlushes.size() <= maxPending) return;
 
-            for (AbstractCachedSource<byte[], ?> writeCache : writeCaches) {
-                if (writeCache instanceof AsyncFlushable) {
-                    try {
-                        ret |= ((AsyncFlushable) writeCache).flushAsync().get();
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
-                } else {
-                    ret |= writeCache.flush();
-                }
+        logger.info("Waiting for previous flush to complete...");
+        long s = System.nanoTime();
+        while (pendingFlushes.size() > maxPending) {
+            try {
+                pendingFlushes.removeFirst().get();
+            } catch (Exception e) {
+                logger.error("Error during last flush", e);
             }
-            if (stateDbCache != null) {
-                logger.debug("Flushing to DB");
-                stateDbCache.flush();
+        }
+        blockedTime.addAndGet(System.nanoTime() - s);
+    }
+
+    private boolean doFlush(Map<AbstractCachedSource<byte[], ?>, AsyncFlushable.Generation> generations,
+                            long size) throws Exception {
+        boolean ret = false;
+        long s = System.nanoTime();
+        logger.info("Flush started");
+
+        sources.forEach(Source::flush);
+
+        Map<DbSource<?>, List<Callable<Boolean>>> dbGroups = new LinkedHashMap<>();
+        List<Future<Boolean>> drains = new ArrayList<>();
+        List<Future<Boolean>> dbWrites = new ArrayList<>();
+        List<AbstractCachedSource<byte[], ?>> sharedCaches = new ArrayList<>();
+        for (Map.Entry<AbstractCachedSource<byte[], ?>, AsyncFlushable.Generation> entry : generations.entrySet()) {
+            AbstractCachedSource<byte[], ?> writeCache = entry.getKey();
+            AsyncFlushable.Generation generation = entry.getValue();
+            DbSource<?> db = cacheDbs.get(writeCache);
+            if (db != null) {
+                dbGroups.computeIfAbsent(db, k -> new ArrayList<>()).add(generation != null ?
+                        () -> generation.flushAsync().get() : writeCache::flush);
+            } else if (generation != null) {
+                drains.add(generation.flushAsync());
+            } else {
+                sharedCaches.add(writeCache);
             }
-            logger.info("Flush completed in " + (System.nanoTime() - s) / 1000000 + " ms");
+        }
+        for (Map.Entry<DbSource<?>, List<Callable<Boolean>>> group : dbGroups.entrySet()) {
+            dbWrites.add(writer(group.getKey()).submit(() -> {
+                boolean written = false;
+                for (Callable<Boolean> write : group.getValue()) {
+                    written |= write.call();
+                }
+                return written;
+            }));
+        }
+        for (AbstractCachedSource<byte[], ?> writeCache : sharedCaches) {
+            ret |= writeCache.flush();
+        }
+        for (Future<Boolean> drain : drains) {
+            ret |= drain.get();
+        }
+        long drained = System.nanoTime();
 
-            return ret;
-        });
+        if (stateDbCache != null) {
+            logger.debug("Flushing to DB");
+            stateDbCache.flush();
+        }
+        for (Future<Boolean> write : dbWrites) {
+            ret |= write.get();
+        }
+        flushListeners.forEach(Runnable::run);
+
+        long time = System.nanoTime() - s;
+        flushCount.incrementAndGet();
+        flushTime.addAndGet(time);
+        flushedBytes.addAndGet(size);
+        lastFlushTime = time;
+        lastFlushBytes = size;
+        logger.info("Flush completed in " + time / 1000000 + " ms (caches " + (drained - s) / 1000000 +
+                " ms, db " + (System.nanoTime() - drained) / 1000000 + " ms), ~" + (size >> 20) + " Mb");
+
+        return ret;
+    }
+
+    private ListeningExecutorService writer(DbSource<?> db) {
+        return writers.computeIfAbsent(db, k -> MoreExecutors.listeningDecorator(
+                Executors.newSingleThreadExecutor(writerThreadFactory)));
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * @return total time (ms) spent on flushes
+     */
+    public long getFlushTime() {
+        return flushTime.get() / 1000000;
+    }
+
+    public long getLastFlushTime() {
+        return lastFlushTime / 1000000;
+    }
+
+    /**
+     * @return total estimated size of the flushed data
+     */
+    public long getFlushedBytes() {
+        return flushedBytes.get();
+    }
+
+    public long getLastFlushBytes() {
+        return lastFlushBytes;
+    }
+
+    /**
+     * @return total time (ms) the callers were blocked waiting for the pending flushes
+     */
+    public long getBlockedTime() {
+        return blockedTime.get() / 1000000;
     }
 
     /**
@@ -188,7 +349,12 @@ public class DbFlushManager {
     public synchronized void close() {
         logger.info("Flushing DBs...");
         flushSync();
+        if (!closeHooks.isEmpty()) {
+            closeHooks.forEach(Runnable::run);
+            flushSync();
+        }
         logger.info("Flush done.");
+        writers.values().forEach(ExecutorService::shutdown);
         for (DbSource dbSource : dbSources) {
             logger.info("Closing DB: {}", dbSource.getName());
             try {
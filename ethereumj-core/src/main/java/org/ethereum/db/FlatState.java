@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import org.ethereum.core.AccountState;
+import org.ethereum.datasource.DbSource;
+import org.ethereum.datasource.NodeKeyCompositor;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.SourceCodec;
+import org.ethereum.datasource.XorDataSource;
+import org.ethereum.trie.TrieImpl;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.RLP;
+import org.ethereum.util.RLPElement;
+import org.ethereum.util.RLPList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.ethereum.crypto.HashUtil.EMPTY_TRIE_HASH;
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.ethereum.util.ByteUtil.EMPTY_BYTE_ARRAY;
+import static org.ethereum.util.ByteUtil.longToBytes;
+import static org.ethereum.util.ByteUtil.toHexString;
+
+/**
+ * The flat copy of the world state at a single state root (normally the best block state):
+ * sha3(address) -> account RLP and sha3(address) + sha3(key) -> contract storage value RLP,
+ * so the value is read with a single lookup instead of the trie walk from the root
+ *
+ * Each {@link RepositoryRoot} commit records the changes to the journal (see {@link #record}),
+ * then the flat state is moved along the journal to the new best state (see {@link #moveTo}).
+ * The applied changes are recorded together with the replaced values, so on rebranch the flat state
+ * is moved back to the common state and then forward along the new branch.
+ * When the state can't be reached via the journal the flat state gets out of sync and is not used
+ * until it is generated from the state trie on the next start (see {@link #syncTo})
+ */
+public class FlatState {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private static final byte[] META_KEY = sha3("flatStateMeta".getBytes());
+    private static final int GENERATE_BATCH_SIZE = 100_000;
+
+    private final Source<byte[], byte[]> flatSource;
+    private final Source<byte[], byte[]> journal;
+    private final DbSource<byte[]> db;
+    private final Source<byte[], byte[]> stateSource;
+    private final int maxDepth;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // the state root the flat entries correspond to, null when out of sync
+    private byte[] root;
+    // number of the last journal record
+    private long seq;
+
+    /**
+     * Creates the disabled flat state
+     */
+    public FlatState() {
+        this(null, null, null, -1);
+    }
+
+    /**
+     * @param src the (cached) source of the DB which takes the updates
+     * @param db the DB, it is reset and filled directly by {@link #generate(byte[])}
+     * @param stateSource the source of the state trie nodes
+     * @param maxDepth number of the last commits kept in the journal
+     */
+    public FlatState(Source<byte[], byte[]> src, DbSource<byte[]> db, Source<byte[], byte[]> stateSource, int maxDepth) {
+        this.flatSource = src;
+        this.journal = src == null ? null : new XorDataSource<>(src, sha3("journal".getBytes()));
+        this.db = db;
+        this.stateSource = stateSource;
+        this.maxDepth = maxDepth;
+        if (isEnabled()) loadMeta();
+    }
+
+    public boolean isEnabled() {
+        return flatSource != null;
+    }
+
+    /**
+     * @return the value of the flat key or empty array if the key is absent,
+     * null if the flat state doesn't correspond to the stateRoot
+     */
+    public byte[] get(byte[] stateRoot, byte[] key) {
+        if (!isEnabled()) return null;
+        lock.readLock().lock();
+        try {
+            if (root == null || !FastByteComparisons.equal(root, stateRoot)) return null;
+            byte[] ret = flatSource.get(key);
+            return ret == null ? EMPTY_BYTE_ARRAY : ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records the changes turning the parent state into the new one to the journal
+     * @param changes flat key -> new value (null if deleted)
+     */
+    public void record(byte[] parentRoot, byte[] stateRoot, Map<ByteArrayWrapper, byte[]> changes) {
+        if (!isEnabled()) return;
+        lock.writeLock().lock();
+        try {
+            if (root == null) return;
+
+            // the same state may be reached by a sibling block, the applied record is kept then
+            Record existing = getRecord(stateRoot);
+            if (existing != null && FastByteComparisons.equal(existing.parentRoot, parentRoot)) return;
+
+            journal.put(stateRoot, new Record(++seq, parentRoot, changes, null).encode());
+            journal.put(longToBytes(seq), stateRoot);
+
+            byte[] expiredRoot = journal.get(longToBytes(seq - maxDepth));
+            if (expiredRoot != null) {
+                journal.delete(longToBytes(seq - maxDepth));
+                Record expired = getRecord(expiredRoot);
+                // unless overwritten by the later record
+                if (expired != null && expired.seq == seq - maxDepth) journal.delete(expiredRoot);
+            }
+            saveMeta();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the flat state along the journal to the state root,
+     * the flat state gets out of sync if the state can't be reached
+     * @return true if the flat state corresponds to the stateRoot
+     */
+    public boolean moveTo(byte[] stateRoot) {
+        if (!isEnabled()) return false;
+        lock.writeLock().lock();
+        try {
+            if (root == null) return false;
+            if (move(stateRoot)) return true;
+
+            logger.warn("Flat state can't be moved from {} to {}, it is not used until generated on the next start",
+                    toHexString(root), toHexString(stateRoot));
+            root = null;
+            saveMeta();
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Brings the flat state to the state root on start,
+     * the flat state is generated if the state can't be reached via the journal
+     */
+    public void syncTo(byte[] stateRoot) {
+        if (!isEnabled()) return;
+        lock.writeLock().lock();
+        try {
+            if (root == null || !move(stateRoot)) {
+                generate(stateRoot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean move(byte[] stateRoot) {
+        if (FastByteComparisons.equal(root, stateRoot)) return true;
+
+        // the target state ancestors: root -> index of the record leading from it
+        Map<ByteArrayWrapper, Integer> ancestors = new HashMap<>();
+        List<Record> forward = new ArrayList<>();
+        byte[] cur = stateRoot;
+        while (true) {
+            ancestors.put(new ByteArrayWrapper(cur), forward.size());
+            Record record = forward.size() < maxDepth ? getRecord(cur) : null;
+            if (record == null) break;
+            forward.add(record);
+            cur = record.parentRoot;
+        }
+
+        List<Record> backward = new ArrayList<>();
+        cur = root;
+        while (!ancestors.containsKey(new ByteArrayWrapper(cur))) {
+            Record record = backward.size() < maxDepth ? getRecord(cur) : null;
+            if (record == null || record.undo == null) return false;
+            backward.add(record);
+            cur = record.parentRoot;
+        }
+
+        for (Record record : backward) {
+            apply(record.undo);
+        }
+        for (int i = ancestors.get(new ByteArrayWrapper(cur)) - 1; i >= 0; i--) {
+            Record record = forward.get(i);
+            record.undo = new LinkedHashMap<>();
+            for (ByteArrayWrapper key : record.changes.keySet()) {
+                record.undo.put(key, flatSource.get(key.getData()));
+            }
+            apply(record.changes);
+            journal.put(record.root, record.encode());
+        }
+        root = stateRoot;
+        saveMeta();
+        return true;
+    }
+
+    private void apply(Map<ByteArrayWrapper, byte[]> values) {
+        for (Map.Entry<ByteArrayWrapper, byte[]> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                flatSource.delete(entry.getKey().getData());
+            } else {
+                flatSource.put(entry.getKey().getData(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Regenerates the flat state from the state trie, should be called on start
+     * when there are no pending updates of the flat state
+     */
+    public void generate(byte[] stateRoot) {
+        lock.writeLock().lock();
+        try {
+            logger.info("Generating flat state for the state root {}...", toHexString(stateRoot));
+            long s = System.currentTimeMillis();
+            db.reset();
+
+            Map<byte[], byte[]> batch = new HashMap<>();
+            long[] counts = new long[2];
+            new TrieImpl(stateSource, stateRoot).scanValues((addrHash, accountRlp) -> {
+                batch.put(addrHash, accountRlp);
+                AccountState account = new AccountState(accountRlp);
+                if (!FastByteComparisons.equal(account.getStateRoot(), EMPTY_TRIE_HASH)) {
+                    Source<byte[], byte[]> storageSource = new SourceCodec.KeyOnly<>(stateSource, new NodeKeyCompositor(addrHash));
+                    new TrieImpl(storageSource, account.getStateRoot()).scanValues((keyHash, value) -> {
+                        batch.put(ByteUtil.merge(addrHash, keyHash), value);
+                        counts[1]++;
+                        writeIfFull(batch);
+                    });
+                }
+                writeIfFull(batch);
+                if (++counts[0] % 1_000_000 == 0) {
+                    logger.info("Flat state generation: {} accounts, {} storage entries", counts[0], counts[1]);
+                }
+            });
+            db.updateBatch(batch);
+
+            root = stateRoot;
+            seq = 0;
+            saveMeta();
+            logger.info("Flat state generated in {} s: {} accounts, {} storage entries",
+                    (System.currentTimeMillis() - s) / 1000, counts[0], counts[1]);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeIfFull(Map<byte[], byte[]> batch) {
+        if (batch.size() >= GENERATE_BATCH_SIZE) {
+            db.updateBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return the state root the flat state corresponds to, null if out of sync
+     */
+    public byte[] getRoot() {
+        lock.readLock().lock();
+        try {
+            return root;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public static byte[] accountKey(byte[] address) {
+        return sha3(address);
+    }
+
+    public static byte[] storageKey(byte[] addrHash, byte[] key) {
+        return ByteUtil.merge(addrHash, sha3(key));
+    }
+
+    private Record getRecord(byte[] stateRoot) {
+        byte[] bytes = journal.get(stateRoot);
+        return bytes == null ? null : new Record(stateRoot, bytes);
+    }
+
+    private void loadMeta() {
+        byte[] bytes = journal.get(META_KEY);
+        if (bytes == null) return;
+        RLPList meta = (RLPList) RLP.decode2(bytes).get(0);
+        root = meta.get(0).getRLPData();
+        seq = ByteUtil.byteArrayToLong(meta.get(1).getRLPData());
+    }
+
+    private void saveMeta() {
+        journal.put(META_KEY, RLP.encodeList(RLP.encodeElement(root), RLP.encodeBigInteger(BigInteger.valueOf(seq))));
+    }
+
+    /**
+     * The changes made by a single commit
+     */
+    private static class Record {
+        byte[] root;
+        long seq;
+        byte[] parentRoot;
+        // flat key -> new value (null if deleted)
+        Map<ByteArrayWrapper, byte[]> changes;
+        // flat key -> replaced value, is set once the changes are applied
+        Map<ByteArrayWrapper, byte[]> undo;
+
+        Record(long seq, byte[] parentRoot, Map<ByteArrayWrapper, byte[]> changes, Map<ByteArrayWrapper, byte[]> undo) {
+            this.seq = seq;
+            this.parentRoot = parentRoot;
+            this.changes = changes;
+            this.undo = undo;
+        }
+
+        Record(byte[] root, byte[] encoded) {
+            this.root = root;
+            RLPList l = (RLPList) RLP.decode2(encoded).get(0);
+            seq = ByteUtil.byteArrayToLong(l.get(0).getRLPData());
+            parentRoot = l.get(1).getRLPData();
+            changes = decodeMap((RLPList) l.get(2));
+            if (l.size() > 3) undo = decodeMap((RLPList) l.get(3));
+        }
+
+        byte[] encode() {
+            byte[] encodedSeq = RLP.encodeBigInteger(BigInteger.valueOf(seq));
+            return undo == null ?
+                    RLP.encodeList(encodedSeq, RLP.encodeElement(parentRoot), encodeMap(changes)) :
+                    RLP.encodeList(encodedSeq, RLP.encodeElement(parentRoot), encodeMap(changes), encodeMap(undo));
+        }
+
+        private static byte[] encodeMap(Map<ByteArrayWrapper, byte[]> map) {
+            byte[][] entries = new byte[map.size()][];
+            int i = 0;
+            for (Map.Entry<ByteArrayWrapper, byte[]> entry : map.entrySet()) {
+                entries[i++] = RLP.encodeList(RLP.encodeElement(entry.getKey().getData()),
+                        RLP.encodeElement(entry.getValue() == null ? EMPTY_BYTE_ARRAY : entry.getValue()));
+            }
+            return RLP.encodeList(entries);
+        }
+
+        private static Map<ByteArrayWrapper, byte[]> decodeMap(RLPList list) {
+            Map<ByteArrayWrapper, byte[]> ret = new LinkedHashMap<>();
+            for (RLPElement entry : list) {
+                RLPList pair = (RLPList) entry;
+                ret.put(new ByteArrayWrapper(pair.get(0).getRLPData()), pair.get(1).getRLPData());
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only store of the block RLPs ordered by block number (starting from 0)
+ *
+ * Blocks are written to the memory mapped segment files of fixed size, the block
+ * offsets are kept in the dense index file, so the lookup by number costs a couple
+ * of memory reads. Readers don't take any locks: the entry becomes visible to them
+ * only after it is completely written and the count is updated
+ *
+ * Entry layout: [int rlpLength][32 bytes hash][rlp]
+ * Index layout: [long count][long offset of the block 0][long offset of the block 1]...
+ */
+public class MappedBlockFile {
+
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+    private static final int INDEX_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int HASH_LENGTH = 32;
+    private static final int ENTRY_HEADER = 4 + HASH_LENGTH;
+
+    private final File dir;
+    private final int segmentSize;
+
+    private final RandomAccessFile indexFile;
+    private volatile MappedByteBuffer[] indexChunks = new MappedByteBuffer[0];
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    private volatile long count;
+    // global offset for the next entry
+    private long writePos;
+    // segments before this one are complete and were forced to the disk
+    private int forcedSegment = 0;
+
+    public MappedBlockFile(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    MappedBlockFile(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Can't create directory " + dir);
+            }
+            indexFile = new RandomAccessFile(new File(dir, "index"), "rw");
+            long cnt = indexChunk(0).getLong(0);
+            if (cnt > 0) {
+                long idxPos = indexPos(cnt - 1);
+                long lastOffset = indexChunk(idxPos / INDEX_CHUNK_SIZE).getLong((int) (idxPos % INDEX_CHUNK_SIZE));
+                ByteBuffer lastSegment = segment((int) (lastOffset / segmentSize));
+                writePos = lastOffset + ENTRY_HEADER + lastSegment.getInt((int) (lastOffset % segmentSize));
+            }
+            count = cnt;
+            logger.info("Block file opened: {}, blocks: {}", dir, cnt);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't open block file " + dir, e);
+        }
+    }
+
+    /**
+     * @return number of the stored blocks, i.e. the number of the next block to append
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Appends the next block
+     * @return the block number
+     */
+    public synchronized long append(byte[] hash, byte[] rlp) {
+        if (hash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Wrong hash length: " + hash.length);
+        }
+        if (ENTRY_HEADER + rlp.length > segmentSize) {
+            throw new IllegalArgumentException("Block is too large for the segment: " + rlp.length);
+        }
+        try {
+            if (writePos % segmentSize + ENTRY_HEADER + rlp.length > segmentSize) {
+                writePos = (writePos / segmentSize + 1) * segmentSize;
+            }
+            long number = count;
+            long offset = writePos;
+
+            ByteBuffer buf = segment((int) (offset / segmentSize)).duplicate();
+            buf.position((int) (offset % segmentSize));
+            buf.putInt(rlp.length).put(hash).put(rlp);
+
+            long idxPos = indexPos(number);
+            indexChunk(idxPos / INDEX_CHUNK_SIZE).putLong((int) (idxPos % INDEX_CHUNK_SIZE), offset);
+            indexChunks[0].putLong(0, number + 1);
+
+            writePos = offset + ENTRY_HEADER + rlp.length;
+            count = number + 1;
+            return number;
+        } catch (IOException e) {
+            throw new RuntimeException("Can't append block to " + dir, e);
+        }
+    }
+
+    /**
+     * Returns the read-only view of the block RLP backed by the mapped file,
+     * the bytes are not copied
+     * @return the block RLP or null if no such block
+     */
+    public ByteBuffer getRaw(long number) {
+        long offset = offset(number);
+        if (offset < 0) return null;
+        ByteBuffer buf = segments[(int) (offset / segmentSize)].duplicate();
+        int pos = (int) (offset % segmentSize);
+        int len = buf.getInt(pos);
+        buf.position(pos + ENTRY_HEADER);
+        buf.limit(pos + ENTRY_HEADER + len);
+        return buf.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the copy of the block RLP or null if no such block
+     */
+    public byte[] get(long number) {
+        ByteBuffer raw = getRaw(number);
+        if (raw == null) return null;
+        byte[] ret = new byte[raw.remaining()];
+        raw.get(ret);
+        return ret;
+    }
+
+    /**
+     * @return the block hash or null if no such block
+     */
+    public byte[] getHash(long number) {
+        long offset = offset(number);
+        if (offset < 0) return null;
+        ByteBuffer buf = segments[(int) (offset / segmentSize)].duplicate();
+        buf.position((int) (offset % segmentSize) + 4);
+        byte[] ret = new byte[HASH_LENGTH];
+        buf.get(ret);
+        return ret;
+    }
+
+    private long offset(long number) {
+        if (number < 0 || number >= count) return -1;
+        long idxPos = indexPos(number);
+        return indexChunks[(int) (idxPos / INDEX_CHUNK_SIZE)].getLong((int) (idxPos % INDEX_CHUNK_SIZE));
+    }
+
+    private static long indexPos(long number) {
+        return 8 + number * 8;
+    }
+
+    private MappedByteBuffer indexChunk(long idx) throws IOException {
+        MappedByteBuffer[] chunks = indexChunks;
+        if (idx < chunks.length) return chunks[(int) idx];
+
+        chunks = Arrays.copyOf(chunks, (int) idx + 1);
+        for (int i = indexChunks.length; i <= idx; i++) {
+            chunks[i] = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    (long) i * INDEX_CHUNK_SIZE, INDEX_CHUNK_SIZE);
+        }
+        indexChunks = chunks;
+        return chunks[(int) idx];
+    }
+
+    private MappedByteBuffer segment(int idx) throws IOException {
+        MappedByteBuffer[] segs = segments;
+        if (idx < segs.length) return segs[idx];
+
+        segs = Arrays.copyOf(segs, idx + 1);
+        for (int i = segments.length; i <= idx; i++) {
+            try (RandomAccessFile file = new RandomAccessFile(new File(dir, String.format("blocks-%05d", i)), "rw")) {
+                // the mapping stays valid after the file is closed
+                segs[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+        }
+        segments = segs;
+        return segs[idx];
+    }
+
+    /**
+     * Drops the blocks starting from the given number, the next block is appended in place of it
+     */
+    public synchronized void truncate(long number) {
+        if (number < 0) throw new IllegalArgumentException("Negative block number: " + number);
+        if (number >= count) return;
+        long offset = offset(number);
+        count = number;
+        writePos = offset;
+        indexChunks[0].putLong(0, number);
+    }
+
+    /**
+     * Drops all the blocks
+     */
+    public synchronized void reset() {
+        count = 0;
+        writePos = 0;
+        indexChunks[0].putLong(0, 0);
+    }
+
+    /**
+     * Forces written blocks to the disk. The data is written before the index
+     * so the index never refers to the lost data
+     */
+    public synchronized void flush() {
+        MappedByteBuffer[] segs = segments;
+        for (int i = forcedSegment; i < segs.length; i++) {
+            segs[i].force();
+        }
+        forcedSegment = Math.max(0, segs.length - 1);
+        for (MappedByteBuffer chunk : indexChunks) {
+            chunk.force();
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        try {
+            indexFile.close();
+        } catch (IOException e) {
+            logger.warn("Problems closing block file index " + dir, e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import org.ethereum.core.Block;
+import org.ethereum.datasource.AbstractChainedSource;
+import org.ethereum.datasource.Source;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.RLP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * {@link IndexedBlockStore} which moves the main chain blocks deep enough to not be
+ * reverted by a fork ('frozen' blocks) to the append-only {@link MappedBlockFile}.
+ * Fork blocks, the recent main chain blocks and the blocks index are kept
+ * in the key-value storage as before
+ *
+ * The lookups of the frozen blocks by number don't take the store lock,
+ * the frozen block bodies are served without decoding the blocks
+ */
+public class MappedBlockStore extends IndexedBlockStore {
+
+    private static final Logger logger = LoggerFactory.getLogger("general");
+
+    // max number of blocks to move to the file on a single flush
+    private static final int FREEZE_BATCH = 1000;
+
+    private final MappedBlockFile blockFile;
+    private final long freezeDepth;
+    // hash => number of the frozen blocks
+    private Source<byte[], byte[]> frozenNumbers;
+
+    /**
+     * @param freezeDepth the number of the most recent main chain blocks kept in the key-value storage
+     */
+    public MappedBlockStore(MappedBlockFile blockFile, long freezeDepth) {
+        this.blockFile = blockFile;
+        this.freezeDepth = freezeDepth;
+    }
+
+    public void init(Source<byte[], byte[]> index, Source<byte[], byte[]> blocks, Source<byte[], byte[]> frozenNumbers) {
+        this.frozenNumbers = frozenNumbers;
+        FrozenBlocksSource blocksSource = new FrozenBlocksSource(blocks);
+        blocksSource.setFlushSource(true);
+        super.init(index, blocksSource);
+
+        if (this.index.size() == 0 && blockFile.size() > 0) {
+            logger.warn("Blocks index is empty, dropping {} frozen blocks", blockFile.size());
+            blockFile.reset();
+        }
+    }
+
+    public MappedBlockFile getBlockFile() {
+        return blockFile;
+    }
+
+    @Override
+    public Block getChainBlockByNumber(long number) {
+        byte[] rlp = blockFile.get(number);
+        return rlp != null ? new Block(rlp) : super.getChainBlockByNumber(number);
+    }
+
+    @Override
+    public byte[] getBlockHashByNumber(long blockNumber) {
+        byte[] hash = blockFile.getHash(blockNumber);
+        return hash != null ? hash : super.getBlockHashByNumber(blockNumber);
+    }
+
+    @Override
+    public byte[] getBlockBodyByHash(byte[] hash) {
+        byte[] number = frozenNumbers.get(hash);
+        if (number != null) {
+            byte[] rlp = blockFile.get(ByteUtil.byteArrayToLong(number));
+            if (rlp != null) return getEncodedBody(rlp);
+        }
+        return super.getBlockBodyByHash(hash);
+    }
+
+    /**
+     * Extracts the body (transactions and uncles lists) from the block RLP
+     * by skipping the header without decoding the block
+     */
+    static byte[] getEncodedBody(byte[] blockRlp) {
+        int headerPos = RLP.getFirstListElement(blockRlp, 0);
+        int txPos = RLP.getNextElementIndex(blockRlp, headerPos);
+        byte[] listHeader = RLP.encodeListHeader(blockRlp.length - txPos);
+        byte[] ret = new byte[listHeader.length + blockRlp.length - txPos];
+        System.arraycopy(listHeader, 0, ret, 0, listHeader.length);
+        System.arraycopy(blockRlp, txPos, ret, listHeader.length, blockRlp.length - txPos);
+        return ret;
+    }
+
+    @Override
+    public synchronized void flush() {
+        freeze();
+        super.flush();
+        frozenNumbers.flush();
+        blockFile.flush();
+    }
+
+    private void freeze() {
+        long maxFrozen = Math.min(getMaxNumber() - freezeDepth, blockFile.size() + FREEZE_BATCH - 1);
+        for (long number = blockFile.size(); number <= maxFrozen; number++) {
+            Block block = super.getChainBlockByNumber(number);
+            // the older blocks are not there yet (e.g. after fast sync)
+            if (block == null) break;
+
+            blockFile.append(block.getHash(), block.getEncoded());
+            frozenNumbers.put(block.getHash(), ByteUtil.longToBytes(number));
+            blocks.delete(block.getHash());
+        }
+    }
+
+    /**
+     * The frozen blocks are not expected to be reverted, but if the fork goes deeper than
+     * the freeze depth the reverted frozen blocks are moved back to the key-value storage
+     * (as the fork blocks now) and the file is truncated to the fork point
+     */
+    @Override
+    public synchronized void reBranch(Block forkBlock) {
+        long forkPoint = frozenForkPoint(forkBlock);
+        if (forkPoint < blockFile.size()) {
+            logger.warn("Rebranch reverts frozen blocks starting from #{}, the freeze depth {} is too small",
+                    forkPoint, freezeDepth);
+            unfreeze(forkPoint);
+        }
+        super.reBranch(forkBlock);
+    }
+
+    /**
+     * @return the number of the first frozen block which is not an ancestor of the fork block
+     * or the number of the blocks in the file if all of them are
+     */
+    private long frozenForkPoint(Block forkBlock) {
+        Block line = forkBlock;
+        while (line != null && line.getNumber() >= blockFile.size()) {
+            line = getBlockByHash(line.getParentHash());
+        }
+        long ret = blockFile.size();
+        while (line != null && !Arrays.equals(line.getHash(), blockFile.getHash(line.getNumber()))) {
+            ret = line.getNumber();
+            line = line.getNumber() == 0 ? null : getBlockByHash(line.getParentHash());
+        }
+        return ret;
+    }
+
+    private void unfreeze(long fromNumber) {
+        for (long number = blockFile.size() - 1; number >= fromNumber; number--) {
+            Block block = new Block(blockFile.get(number));
+            blocks.put(block.getHash(), block);
+            frozenNumbers.delete(block.getHash());
+        }
+        blockFile.truncate(fromNumber);
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        blockFile.close();
+    }
+
+    /**
+     * Looks up the frozen blocks when the block is not found in the key-value storage
+     */
+    private class FrozenBlocksSource extends AbstractChainedSource<byte[], byte[], byte[], byte[]> {
+
+        FrozenBlocksSource(Source<byte[], byte[]> src) {
+            super(src);
+        }
+
+        @Override
+        public void put(byte[] key, byte[] val) {
+            getSource().put(key, val);
+        }
+
+        @Override
+        public byte[] get(byte[] key) {
+            byte[] ret = getSource().get(key);
+            if (ret != null) return ret;
+
+            byte[] number = frozenNumbers.get(key);
+            return number == null ? null : blockFile.get(ByteUtil.byteArrayToLong(number));
+        }
+
+        @Override
+        public void delete(byte[] key) {
+            getSource().delete(key);
+        }
+
+        @Override
+        protected boolean flushImpl() {
+            return false;
+        }
+    }
+}
@@ -17,11 +17,14 @@
  */
 package org.ethereum.db;
 
+import org.ethereum.config.CommonConfig;
 import org.ethereum.config.SystemProperties;
 import org.ethereum.core.Block;
 import org.ethereum.core.BlockHeader;
+import org.ethereum.datasource.DbSource;
 import org.ethereum.datasource.JournalSource;
 import org.ethereum.datasource.Source;
+import org.ethereum.datasource.rocksdb.RocksDbDataSource;
 import org.ethereum.db.prune.Segment;
 import org.ethereum.db.prune.Pruner;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -54,6 +57,8 @@ public class PruneManager {
 
     private Segment segment;
     private Pruner pruner;
+    // the journal keys can be scanned only when the journal has own column family
+    private DbSource<byte[]> journalDb;
 
     @Autowired
     private PruneManager(SystemProperties config) {
@@ -77,6 +82,14 @@ public class PruneManager {
             pruner = new Pruner(journalSource.getJournal(), stateSource.getNoJournalSource());
     }
 
+    @Autowired
+    public void setCommonConfig(CommonConfig commonConfig) {
+        DbSource<byte[]> db = commonConfig.blockchainDB();
+        if (db instanceof RocksDbDataSource) {
+            journalDb = ((RocksDbDataSource) db).getColumnFamily("journal");
+        }
+    }
+
     public void blockCommitted(BlockHeader block) {
         if (pruneBlocksCnt < 0) return; // pruning disabled
 
@@ -118,6 +131,7 @@ public class PruneManager {
                             segment.getRootNumber());
                     pruner.withSecondStep(mainChainWindow, mainChainWindowSize);
                 }
+                if (journalDb != null && pruner.isReady()) pruner.sweepJournal(journalDb.iterator(null, null));
             }
             pruner.prune(segment);
             segment = new Segment(chainBlock);
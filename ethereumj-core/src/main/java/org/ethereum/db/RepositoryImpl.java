@@ -41,7 +41,11 @@ public class RepositoryImpl implements Repository, org.ethereum.facade.Repositor
 
     protected Source<byte[], AccountState> accountStateCache;
     protected Source<byte[], byte[]> codeCache;
-    protected MultiCache<? extends CachedSource<DataWord, DataWord>> storageCache;
+    protected Source<byte[], ? extends Source<DataWord, DataWord>> storageCache;
+
+    // set when this is a track backed by the overlay shared with the parent tracks
+    RepositoryOverlay overlay;
+    private RepositoryOverlay.Frame frame;
 
     @Autowired
     protected SystemProperties config = SystemProperties.getDefault();
@@ -50,12 +54,12 @@ public class RepositoryImpl implements Repository, org.ethereum.facade.Repositor
     }
 
     public RepositoryImpl(Source<byte[], AccountState> accountStateCache, Source<byte[], byte[]> codeCache,
-                          MultiCache<? extends CachedSource<DataWord, DataWord>> storageCache) {
+                          Source<byte[], ? extends Source<DataWord, DataWord>> storageCache) {
         init(accountStateCache, codeCache, storageCache);
     }
 
     protected void init(Source<byte[], AccountState> accountStateCache, Source<byte[], byte[]> codeCache,
-                        MultiCache<? extends CachedSource<DataWord, DataWord>> storageCache) {
+                        Source<byte[], ? extends Source<DataWord, DataWord>> storageCache) {
         this.accountStateCache = accountStateCache;
         this.codeCache = codeCache;
         this.storageCache = storageCache;
@@ -177,19 +181,19 @@ public class RepositoryImpl implements Repository, org.ethereum.facade.Repositor
         return accountState.getBalance();
     }
 
+    /**
+     * All the nested tracks share the single {@link RepositoryOverlay} created by the outermost one,
+     * so the lookup cost doesn't depend on the nesting depth
+     */
     @Override
     public synchronized RepositoryImpl startTracking() {
-        Source<byte[], AccountState> trackAccountStateCache = new WriteCache.BytesKey<>(accountStateCache,
-                WriteCache.CacheType.SIMPLE);
-        Source<byte[], byte[]> trackCodeCache = new WriteCache.BytesKey<>(codeCache, WriteCache.CacheType.SIMPLE);
-        MultiCache<CachedSource<DataWord, DataWord>> trackStorageCache = new MultiCache(storageCache) {
-            @Override
-            protected CachedSource create(byte[] key, CachedSource srcCache) {
-                return new WriteCache<>(srcCache, WriteCache.CacheType.SIMPLE);
-            }
-        };
+        RepositoryOverlay trackOverlay = overlay != null ? overlay : new RepositoryOverlay(this);
+        RepositoryImpl ret = new RepositoryImpl();
+        RepositoryOverlay.Frame trackFrame = trackOverlay.newFrame(frame, ret);
 
-        RepositoryImpl ret = new RepositoryImpl(trackAccountStateCache, trackCodeCache, trackStorageCache);
+        ret.init(trackOverlay.accounts(trackFrame), trackOverlay.code(trackFrame), trackOverlay.storage(trackFrame));
+        ret.overlay = trackOverlay;
+        ret.frame = trackFrame;
         ret.parent = this;
         return ret;
     }
@@ -201,6 +205,11 @@ public class RepositoryImpl implements Repository, org.ethereum.facade.Repositor
 
     @Override
     public synchronized void commit() {
+        if (overlay != null) {
+            overlay.commit(frame);
+            return;
+        }
+
         Repository parentSync = parent == null ? this : parent;
         // need to synchronize on parent since between different caches flush
         // the parent repo would not be in consistent state
@@ -212,9 +221,16 @@ public class RepositoryImpl implements Repository, org.ethereum.facade.Repositor
         }
     }
 
+    /**
+     * Drops the track changes, the track stays usable afterwards.
+     * Changes of the tracks which are neither committed nor rolled back
+     * are dropped when the track is garbage collected
+     */
     @Override
     public synchronized void rollback() {
-        // nothing to do, will be GCed
+        if (overlay != null) {
+            overlay.rollback(frame);
+        }
     }
 
     @Override
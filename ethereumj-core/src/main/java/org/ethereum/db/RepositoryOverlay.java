@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import org.ethereum.core.AccountState;
+import org.ethereum.datasource.Source;
+import org.ethereum.util.ByteArrayMap;
+import org.ethereum.vm.DataWord;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Copy-on-write changes overlay shared by all the nested tracks started from the same
+ * {@link RepositoryImpl} (block -> transaction -> nested calls -> ...)
+ *
+ * Instead of the chain of write caches (one per nesting level) each key holds a short list
+ * of versions tagged by the {@link Frame} (track) which made the change. A frame sees
+ * the versions of its ancestors and its own ones, the deepest one wins. Thus a lookup costs
+ * a single map lookup regardless of the nesting depth, and the frame commit (moving the versions
+ * to the parent frame) or rollback (dropping the versions) costs O(changes made by the frame).
+ * The root frame commits to the backing repository.
+ *
+ * Sibling frames (e.g. {@link RepositoryImpl#clone()}) don't see each other changes until committed.
+ * Versions of the abandoned frames (neither committed nor rolled back) are dropped once the track
+ * owning the frame is garbage collected, so they don't pile up in the long living overlays
+ * (e.g. the pending state)
+ */
+class RepositoryOverlay {
+
+    /**
+     * The overlay view of a single track
+     */
+    static final class Frame {
+        final Frame parent;
+        final int depth;
+        // the frame ancestors indexed by depth including this frame
+        final Frame[] path;
+
+        // the keys which have the version of this frame
+        final List<byte[]> accounts = new ArrayList<>();
+        final List<byte[]> codes = new ArrayList<>();
+        final List<byte[]> wiped = new ArrayList<>();
+        final Map<byte[], List<DataWord>> storage = new ByteArrayMap<>();
+
+        Frame(Frame parent) {
+            this.parent = parent;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+            this.path = parent == null ? new Frame[1] : Arrays.copyOf(parent.path, depth + 1);
+            this.path[depth] = this;
+        }
+
+        boolean sees(Frame frame) {
+            return frame.depth <= depth && path[frame.depth] == frame;
+        }
+
+        private void clear() {
+            accounts.clear();
+            codes.clear();
+            wiped.clear();
+            storage.clear();
+        }
+    }
+
+    /**
+     * Enqueued when the track owning the frame becomes unreachable
+     */
+    private static final class FrameRef extends WeakReference<Object> {
+        final Frame frame;
+
+        FrameRef(Object track, Frame frame, ReferenceQueue<Object> queue) {
+            super(track, queue);
+            this.frame = frame;
+        }
+    }
+
+    private static final class Version<V> {
+        final Frame frame;
+        V value;
+        Version<V> next;
+
+        Version(Frame frame, V value, Version<V> next) {
+            this.frame = frame;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    private final RepositoryImpl backing;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<byte[], Version<AccountState>> accounts = new ByteArrayMap<>();
+    private final Map<byte[], Version<byte[]>> codes = new ByteArrayMap<>();
+    private final Map<byte[], Map<DataWord, Version<DataWord>>> storage = new ByteArrayMap<>();
+    // versions of the contract storage wipe (account deletion)
+    private final Map<byte[], Version<Boolean>> wipes = new ByteArrayMap<>();
+
+    private final ReferenceQueue<Object> droppedTracks = new ReferenceQueue<>();
+    // keeps the references reachable until enqueued
+    private final Set<FrameRef> frameRefs = new HashSet<>();
+
+    RepositoryOverlay(RepositoryImpl backing) {
+        this.backing = backing;
+    }
+
+    /**
+     * @param parent the parent frame or null to start the root frame
+     * @param track the track using the frame, the frame uncommitted changes are dropped
+     *              when the track is garbage collected
+     */
+    Frame newFrame(Frame parent, Object track) {
+        lock.writeLock().lock();
+        try {
+            pruneDropped();
+            Frame frame = new Frame(parent);
+            frameRefs.add(new FrameRef(track, frame, droppedTracks));
+            return frame;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the changes of the frames which tracks were garbage collected
+     * neither committed nor rolled back.
+     * Child tracks reference the parent ones, so the frame is never dropped before its children
+     */
+    private void pruneDropped() {
+        for (Reference<?> ref; (ref = droppedTracks.poll()) != null; ) {
+            frameRefs.remove(ref);
+            rollbackImpl(((FrameRef) ref).frame);
+        }
+    }
+
+    /**
+     * @return number of the key versions kept in the overlay
+     */
+    int versionsCount() {
+        lock.readLock().lock();
+        try {
+            int ret = count(accounts) + count(codes) + count(wipes);
+            for (Map<DataWord, Version<DataWord>> rows : storage.values()) {
+                ret += count(rows);
+            }
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static <K, V> int count(Map<K, Version<V>> map) {
+        int ret = 0;
+        for (Version<V> head : map.values()) {
+            for (Version<V> v = head; v != null; v = v.next) ret++;
+        }
+        return ret;
+    }
+
+    Source<byte[], AccountState> accounts(Frame frame) {
+        return new FrameSource<byte[], AccountState>() {
+            @Override
+            public void put(byte[] key, AccountState val) {
+                putAccount(frame, key, val);
+            }
+
+            @Override
+            public AccountState get(byte[] key) {
+                return getAccount(frame, key);
+            }
+
+            @Override
+            public void delete(byte[] key) {
+                putAccount(frame, key, null);
+            }
+        };
+    }
+
+    Source<byte[], byte[]> code(Frame frame) {
+        return new FrameSource<byte[], byte[]>() {
+            @Override
+            public void put(byte[] key, byte[] val) {
+                putCode(frame, key, val);
+            }
+
+            @Override
+            public byte[] get(byte[] key) {
+                return getCode(frame, key);
+            }
+
+            @Override
+            public void delete(byte[] key) {
+                putCode(frame, key, null);
+            }
+        };
+    }
+
+    Source<byte[], Source<DataWord, DataWord>> storage(Frame frame) {
+        return new FrameSource<byte[], Source<DataWord, DataWord>>() {
+            @Override
+            public void put(byte[] key, Source<DataWord, DataWord> val) {
+                throw new RuntimeException("Not supported");
+            }
+
+            @Override
+            public Source<DataWord, DataWord> get(byte[] addr) {
+                return contractStorage(frame, addr);
+            }
+
+            @Override
+            public void delete(byte[] addr) {
+                wipeStorage(frame, addr);
+            }
+        };
+    }
+
+    private Source<DataWord, DataWord> contractStorage(Frame frame, byte[] addr) {
+        return new FrameSource<DataWord, DataWord>() {
+            @Override
+            public void put(DataWord key, DataWord val) {
+                putStorage(frame, addr, key, val);
+            }
+
+            @Override
+            public DataWord get(DataWord key) {
+                return getStorage(frame, addr, key);
+            }
+
+            @Override
+            public void delete(DataWord key) {
+                putStorage(frame, addr, key, null);
+            }
+        };
+    }
+
+    private AccountState getAccount(Frame frame, byte[] addr) {
+        lock.readLock().lock();
+        try {
+            Version<AccountState> v = visible(accounts.get(addr), frame);
+            return v != null ? v.value : backing.accountStateCache.get(addr);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void putAccount(Frame frame, byte[] addr, AccountState state) {
+        lock.writeLock().lock();
+        try {
+            if (put(accounts, addr, frame, state)) frame.accounts.add(addr);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private byte[] getCode(Frame frame, byte[] key) {
+        lock.readLock().lock();
+        try {
+            Version<byte[]> v = visible(codes.get(key), frame);
+            return v != null ? v.value : backing.codeCache.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void putCode(Frame frame, byte[] key, byte[] code) {
+        lock.writeLock().lock();
+        try {
+            if (put(codes, key, frame, code)) frame.codes.add(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private DataWord getStorage(Frame frame, byte[] addr, DataWord key) {
+        lock.readLock().lock();
+        try {
+            Map<DataWord, Version<DataWord>> rows = storage.get(addr);
+            Version<DataWord> row = rows == null ? null : visible(rows.get(key), frame);
+            Version<Boolean> wipe = visible(wipes.get(addr), frame);
+            // the frame wipe drops the frame rows, so the row of the same frame was put after the wipe
+            if (wipe != null && (row == null || row.frame.depth < wipe.frame.depth)) return null;
+            return row != null ? row.value : backing.storageCache.get(addr).get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void putStorage(Frame frame, byte[] addr, DataWord key, DataWord value) {
+        lock.writeLock().lock();
+        try {
+            putRow(frame, addr, key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void wipeStorage(Frame frame, byte[] addr) {
+        lock.writeLock().lock();
+        try {
+            wipe(frame, addr);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void putRow(Frame frame, byte[] addr, DataWord key, DataWord value) {
+        Map<DataWord, Version<DataWord>> rows = storage.computeIfAbsent(addr, k -> new HashMap<>());
+        if (put(rows, key, frame, value)) {
+            frame.storage.computeIfAbsent(addr, k -> new ArrayList<>()).add(key);
+        }
+    }
+
+    private void wipe(Frame frame, byte[] addr) {
+        List<DataWord> keys = frame.storage.remove(addr);
+        if (keys != null) {
+            Map<DataWord, Version<DataWord>> rows = storage.get(addr);
+            for (DataWord key : keys) {
+                take(rows, key, frame);
+            }
+        }
+        if (put(wipes, addr, frame, Boolean.TRUE)) frame.wiped.add(addr);
+    }
+
+    /**
+     * Moves the frame changes to the parent frame or to the backing repository
+     * if this is the root frame. The frame may be used and committed again afterwards
+     */
+    void commit(Frame frame) {
+        lock.writeLock().lock();
+        try {
+            pruneDropped();
+            if (frame.parent == null) {
+                commitToBacking(frame);
+            } else {
+                commitToParent(frame);
+            }
+            frame.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void commitToParent(Frame frame) {
+        Frame parent = frame.parent;
+        // the wipe precedes any frame row of the same contract
+        for (byte[] addr : frame.wiped) {
+            take(wipes, addr, frame);
+            wipe(parent, addr);
+        }
+        for (Map.Entry<byte[], List<DataWord>> entry : frame.storage.entrySet()) {
+            Map<DataWord, Version<DataWord>> rows = storage.get(entry.getKey());
+            for (DataWord key : entry.getValue()) {
+                putRow(parent, entry.getKey(), key, take(rows, key, frame));
+            }
+        }
+        for (byte[] key : frame.codes) {
+            if (put(codes, key, parent, take(codes, key, frame))) parent.codes.add(key);
+        }
+        for (byte[] addr : frame.accounts) {
+            if (put(accounts, addr, parent, take(accounts, addr, frame))) parent.accounts.add(addr);
+        }
+    }
+
+    private void commitToBacking(Frame frame) {
+        // the same order as for the RepositoryImpl caches flush
+        synchronized (backing) {
+            for (byte[] addr : frame.wiped) {
+                take(wipes, addr, frame);
+                backing.storageCache.delete(addr);
+                // the storage rows put after the wipe shouldn't be merged with the old contract storage
+                backing.accountStateCache.delete(addr);
+            }
+            for (Map.Entry<byte[], List<DataWord>> entry : frame.storage.entrySet()) {
+                Map<DataWord, Version<DataWord>> rows = storage.get(entry.getKey());
+                Source<DataWord, DataWord> contractStorage = backing.storageCache.get(entry.getKey());
+                for (DataWord key : entry.getValue()) {
+                    contractStorage.put(key, take(rows, key, frame));
+                }
+            }
+            for (byte[] key : frame.codes) {
+                backing.codeCache.put(key, take(codes, key, frame));
+            }
+            for (byte[] addr : frame.accounts) {
+                AccountState state = take(accounts, addr, frame);
+                if (state == null) {
+                    backing.accountStateCache.delete(addr);
+                } else {
+                    backing.accountStateCache.put(addr, state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the frame changes. The frame may be used afterwards
+     */
+    void rollback(Frame frame) {
+        lock.writeLock().lock();
+        try {
+            rollbackImpl(frame);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void rollbackImpl(Frame frame) {
+        for (byte[] addr : frame.wiped) {
+            take(wipes, addr, frame);
+        }
+        for (Map.Entry<byte[], List<DataWord>> entry : frame.storage.entrySet()) {
+            Map<DataWord, Version<DataWord>> rows = storage.get(entry.getKey());
+            for (DataWord key : entry.getValue()) {
+                take(rows, key, frame);
+            }
+        }
+        for (byte[] key : frame.codes) {
+            take(codes, key, frame);
+        }
+        for (byte[] addr : frame.accounts) {
+            take(accounts, addr, frame);
+        }
+        frame.clear();
+    }
+
+    /**
+     * @return the deepest version visible from the frame or null if none
+     */
+    private static <V> Version<V> visible(Version<V> head, Frame frame) {
+        Version<V> ret = null;
+        for (Version<V> v = head; v != null; v = v.next) {
+            if (frame.sees(v.frame) && (ret == null || v.frame.depth > ret.frame.depth)) {
+                ret = v;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Sets the value of the frame version
+     * @return true if the frame had no version of the key yet
+     */
+    private static <K, V> boolean put(Map<K, Version<V>> map, K key, Frame frame, V value) {
+        Version<V> head = map.get(key);
+        for (Version<V> v = head; v != null; v = v.next) {
+            if (v.frame == frame) {
+                v.value = value;
+                return false;
+            }
+        }
+        map.put(key, new Version<>(frame, value, head));
+        return true;
+    }
+
+    /**
+     * Removes the frame version which must exist
+     * @return the version value
+     */
+    private static <K, V> V take(Map<K, Version<V>> map, K key, Frame frame) {
+        Version<V> prev = null;
+        for (Version<V> v = map.get(key); v != null; prev = v, v = v.next) {
+            if (v.frame == frame) {
+                if (prev != null) {
+                    prev.next = v.next;
+                } else if (v.next != null) {
+                    map.put(key, v.next);
+                } else {
+                    map.remove(key);
+                }
+                return v.value;
+            }
+        }
+        throw new IllegalStateException("No version of the frame");
+    }
+
+    /**
+     * Frame changes are committed by {@link RepositoryImpl#commit()} for all the sources at once
+     */
+    private static abstract class FrameSource<K, V> implements Source<K, V> {
+        @Override
+        public boolean flush() {
+            return false;
+        }
+    }
+}
@@ -21,8 +21,22 @@ import org.ethereum.core.AccountState;
 import org.ethereum.core.Repository;
 import org.ethereum.datasource.*;
 import org.ethereum.trie.*;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.FixedKeyByteArrayMap;
 import org.ethereum.vm.DataWord;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.ethereum.util.ByteUtil.merge;
+
 /**
  * Created by Anton Nashatyrev on 07.10.2016.
  */
@@ -30,10 +44,38 @@ public class RepositoryRoot extends RepositoryImpl {
 
     private static class StorageCache extends ReadWriteCache<DataWord, DataWord> {
         Trie<byte[]> trie;
+        // collects the flushed changes to apply these to the trie in a single batch
+        BatchSourceWriter<byte[], byte[]> trieWriter;
+        // the changes were flushed to the trie and hashed ahead of the account update
+        volatile boolean preFlushed;
 
         public StorageCache(Trie<byte[]> trie) {
-            super(new SourceCodec<>(trie, Serializers.StorageKeySerializer, Serializers.StorageValueSerializer), WriteCache.CacheType.SIMPLE);
+            this(trie, new BatchSourceWriter<>(trie), null);
+        }
+
+        /**
+         * @param trieSource the trieWriter or the {@link FlatStateSource} on top of it
+         */
+        StorageCache(Trie<byte[]> trie, BatchSourceWriter<byte[], byte[]> trieWriter, Source<byte[], byte[]> trieSource) {
+            super(new SourceCodec<>(trieSource != null ? trieSource : trieWriter,
+                    Serializers.StorageKeySerializer, Serializers.StorageValueSerializer), WriteCache.CacheType.SIMPLE);
             this.trie = trie;
+            this.trieWriter = trieWriter;
+        }
+
+        @Override
+        public synchronized boolean flush() {
+            boolean ret = super.flush();
+            trieWriter.flush();
+            return ret;
+        }
+
+        void preFlush() {
+            if (flush()) {
+                // the nodes are hashed and persisted, though kept loaded, see retainStorageTries()
+                trie.getRootHash();
+                preFlushed = true;
+            }
         }
     }
 
@@ -41,22 +83,82 @@ public class RepositoryRoot extends RepositoryImpl {
         public MultiStorageCache() {
             super(null);
         }
+
         @Override
         protected synchronized StorageCache create(byte[] key, StorageCache srcCache) {
             AccountState accountState = accountStateCache.get(key);
             Serializer<byte[], byte[]> keyCompositor = new NodeKeyCompositor(key);
             Source<byte[], byte[]> composingSrc = new SourceCodec.KeyOnly<>(trieCache, keyCompositor);
-            TrieImpl storageTrie = createTrie(composingSrc, accountState == null ? null : accountState.getStateRoot());
-            return new StorageCache(storageTrie);
+            byte[] storageRoot = accountState == null ? null : accountState.getStateRoot();
+            // the trie committed by this or another repository keeps the nodes loaded
+            TrieImpl storageTrie = takesStorageTries && storageRoot != null ? storageTries.take(key, storageRoot) : null;
+            if (storageTrie != null) {
+                storageTrie.setCache(composingSrc);
+            } else {
+                storageTrie = createTrie(composingSrc, storageRoot);
+            }
+            if (flatState == null) return new StorageCache(storageTrie);
+
+            BatchSourceWriter<byte[], byte[]> trieWriter = new BatchSourceWriter<>(storageTrie);
+            // the storage of the account deleted since the flat state root is not there anymore
+            boolean readable = !wipedStorage.contains(new ByteArrayWrapper(key));
+            return new StorageCache(storageTrie, trieWriter, new FlatStateSource(trieWriter, key, readable));
+        }
+
+        @Override
+        public synchronized void delete(byte[] key) {
+            if (flatState != null) {
+                wipedStorage.add(new ByteArrayWrapper(key));
+                changedStorage.remove(new ByteArrayWrapper(key));
+            }
+            super.delete(key);
+        }
+
+        /**
+         * The storage tries are independent, so these are updated and hashed in parallel
+         * before the account storage roots are updated in {@link #flushChild(byte[], StorageCache)}
+         */
+        @Override
+        public synchronized boolean flushImpl() {
+            List<StorageCache> children = new ArrayList<>();
+            for (byte[] key : getModified()) {
+                AbstractCachedSource.Entry<StorageCache> entry = getCached(key);
+                if (entry != null && entry.value() != null) children.add(entry.value());
+            }
+            if (children.size() > 1) {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (StorageCache child : children) {
+                    tasks.add(TrieImpl.getForkJoinPool().submit(child::preFlush));
+                }
+                tasks.forEach(ForkJoinTask::join);
+            }
+            return super.flushImpl();
+        }
+
+        synchronized void retainTries() {
+            for (byte[] address : new ArrayList<>(getModified())) {
+                AbstractCachedSource.Entry<StorageCache> entry = getCached(address);
+                StorageCache cache = entry == null ? null : entry.value();
+                if (cache != null && !cache.hasModified() && cache.trie instanceof TrieImpl) {
+                    storageTries.retain(address, (TrieImpl) cache.trie);
+                }
+            }
+            evictFlushed();
         }
 
         @Override
         protected synchronized boolean flushChild(byte[] key, StorageCache childCache) {
-            if (super.flushChild(key, childCache)) {
+            boolean changed;
+            if (childCache != null && childCache.preFlushed) {
+                childCache.preFlushed = false;
+                changed = true;
+            } else {
+                changed = super.flushChild(key, childCache);
+            }
+            if (changed) {
                 if (childCache != null) {
                     AccountState storageOwnerAcct = accountStateCache.get(key);
                     // need to update account storage root
-                    childCache.trie.flush();
                     byte[] rootHash = childCache.trie.getRootHash();
                     accountStateCache.put(key, storageOwnerAcct.withStateRoot(rootHash));
                     return true;
@@ -71,39 +173,160 @@ public class RepositoryRoot extends RepositoryImpl {
         }
     }
 
+    /**
+     * Serves the reads of the keys which weren't put to the trie since the {@link #flatRoot}
+     * from the {@link FlatState} and collects the changes put to the trie for {@link FlatState#record}
+     */
+    private class FlatStateSource extends AbstractChainedSource<byte[], byte[], byte[], byte[]> {
+        // the storage owner, null for the accounts
+        private final byte[] address;
+        private final byte[] addrHash;
+        private boolean readable;
+        private Map<ByteArrayWrapper, byte[]> changes = new HashMap<>();
+        private int generation = flatGeneration;
+
+        FlatStateSource(Source<byte[], byte[]> src, byte[] address, boolean readable) {
+            super(src);
+            this.address = address;
+            this.addrHash = address == null ? null : sha3(address);
+            this.readable = readable;
+            setFlushSource(true);
+        }
+
+        @Override
+        public synchronized byte[] get(byte[] key) {
+            checkGeneration();
+            if (readable && !changes.containsKey(new ByteArrayWrapper(key))) {
+                byte[] ret = flatState.get(flatRoot, flatKey(key));
+                if (ret != null) return ret.length == 0 ? null : ret;
+            }
+            return getSource().get(key);
+        }
+
+        @Override
+        public synchronized void put(byte[] key, byte[] val) {
+            changed(key, val);
+            getSource().put(key, val);
+        }
+
+        @Override
+        public synchronized void delete(byte[] key) {
+            changed(key, null);
+            getSource().delete(key);
+        }
+
+        private void changed(byte[] key, byte[] val) {
+            checkGeneration();
+            changes.put(new ByteArrayWrapper(key), val == null || val.length == 0 ? null : val);
+            if (address != null) changedStorage.put(new ByteArrayWrapper(address), this);
+        }
+
+        /**
+         * @return the changes since the {@link #flatRoot} by the flat keys
+         */
+        synchronized void collectChanges(Map<ByteArrayWrapper, byte[]> ret) {
+            checkGeneration();
+            for (Map.Entry<ByteArrayWrapper, byte[]> entry : changes.entrySet()) {
+                ret.put(new ByteArrayWrapper(flatKey(entry.getKey().getData())), entry.getValue());
+            }
+        }
+
+        // the changes are dropped once the flat root is moved to the trie root
+        private void checkGeneration() {
+            if (generation != flatGeneration) {
+                generation = flatGeneration;
+                changes = new HashMap<>();
+                readable = true;
+            }
+        }
+
+        private byte[] flatKey(byte[] key) {
+            return address == null ? FlatState.accountKey(key) : FlatState.storageKey(addrHash, key);
+        }
+
+        @Override
+        protected boolean flushImpl() {
+            return false;
+        }
+    }
+
     private Source<byte[], byte[]> stateDS;
     private CachedSource.BytesKey<byte[]> trieCache;
     private Trie<byte[]> stateTrie;
+    private BatchSourceWriter<byte[], byte[]> stateTrieWriter;
+
+    // null if disabled
+    private FlatState flatState;
+    // the state root the changes are collected since
+    private volatile byte[] flatRoot;
+    // incremented each time the flatRoot is moved
+    private volatile int flatGeneration;
+    private FlatStateSource accountsFlatSource;
+    private final Map<ByteArrayWrapper, FlatStateSource> changedStorage = new ConcurrentHashMap<>();
+    // the accounts deleted since the flatRoot
+    private final Set<ByteArrayWrapper> wipedStorage = ConcurrentHashMap.newKeySet();
+
+    // the storage tries kept loaded between the commits, shared with the snapshots
+    private final StorageTrieCache storageTries;
+    // the main chain repository, the others don't take the tries from the storageTries
+    private final boolean takesStorageTries;
 
     public RepositoryRoot(Source<byte[], byte[]> stateDS) {
         this(stateDS, null);
     }
 
+    public RepositoryRoot(final Source<byte[], byte[]> stateDS, byte[] root) {
+        this(stateDS, root, null);
+    }
+
+    public RepositoryRoot(final Source<byte[], byte[]> stateDS, byte[] root, FlatState flatState) {
+        this(stateDS, root, flatState, new StorageTrieCache(0));
+    }
+
     /**
      * Building the following structure for snapshot Repository:
      *
-     * stateDS --> trieCache --> stateTrie --> accountStateCodec --> accountStateCache
+     * stateDS --> trieCache --> stateTrie --> stateTrieWriter --> (flatStateSource) --> accountStateCodec --> accountStateCache
      *  \                 \
-     *   \                 \-->>> storageKeyCompositor --> contractStorageTrie --> storageCodec --> storageCache
+     *   \                 \-->>> storageKeyCompositor --> contractStorageTrie --> trieWriter --> (flatStateSource) --> storageCodec --> storageCache
      *    \--> codeCache
      *
      *
      * @param stateDS
      * @param root
+     * @param flatState serves the reads of the unchanged accounts and storage
+     *                  while it corresponds to the root, null if disabled
+     * @param storageTries keeps the contract storage tries loaded for the next blocks,
+     *                  passed to the snapshots of this repository
      */
-    public RepositoryRoot(final Source<byte[], byte[]> stateDS, byte[] root) {
+    public RepositoryRoot(final Source<byte[], byte[]> stateDS, byte[] root, FlatState flatState, StorageTrieCache storageTries) {
+        this(stateDS, root, flatState, storageTries, true);
+    }
+
+    private RepositoryRoot(final Source<byte[], byte[]> stateDS, byte[] root, FlatState flatState,
+                           StorageTrieCache storageTries, boolean takesStorageTries) {
         this.stateDS = stateDS;
+        this.flatState = flatState != null && flatState.isEnabled() ? flatState : null;
+        this.storageTries = storageTries;
+        this.takesStorageTries = takesStorageTries;
 
-        trieCache = new WriteCache.BytesKey<>(stateDS, WriteCache.CacheType.COUNTING);
+        trieCache = new WriteCache.BytesKey<>(stateDS, WriteCache.CacheType.COUNTING, FixedKeyByteArrayMap.HASH_LENGTH);
         stateTrie = new SecureTrie(trieCache, root);
+        flatRoot = stateTrie.getRootHash();
 
-        SourceCodec.BytesKey<AccountState, byte[]> accountStateCodec = new SourceCodec.BytesKey<>(stateTrie, Serializers.AccountStateSerializer);
+        // the trie is updated with the batches of the sorted keys on flush
+        stateTrieWriter = new BatchSourceWriter<>(stateTrie);
+        Source<byte[], byte[]> accountSource = stateTrieWriter;
+        if (this.flatState != null) {
+            accountSource = accountsFlatSource = new FlatStateSource(stateTrieWriter, null, true);
+        }
+        SourceCodec.BytesKey<AccountState, byte[]> accountStateCodec = new SourceCodec.BytesKey<>(accountSource, Serializers.AccountStateSerializer);
         final ReadWriteCache.BytesKey<AccountState> accountStateCache = new ReadWriteCache.BytesKey<>(accountStateCodec, WriteCache.CacheType.SIMPLE);
 
-        final MultiCache<StorageCache> storageCache = new MultiStorageCache();
+        final MultiStorageCache storageCache = new MultiStorageCache();
 
         // counting as there can be 2 contracts with the same code, 1 can suicide
-        Source<byte[], byte[]> codeCache = new WriteCache.BytesKey<>(stateDS, WriteCache.CacheType.COUNTING);
+        Source<byte[], byte[]> codeCache = new WriteCache.BytesKey<>(stateDS, WriteCache.CacheType.COUNTING, FixedKeyByteArrayMap.HASH_LENGTH);
 
         init(accountStateCache, codeCache, storageCache);
     }
@@ -112,14 +335,63 @@ public class RepositoryRoot extends RepositoryImpl {
     public synchronized void commit() {
         super.commit();
 
+        stateTrieWriter.flush();
         stateTrie.flush();
         trieCache.flush();
+
+        if (flatState != null) recordFlatState();
+        retainStorageTries();
+    }
+
+    /**
+     * The storage caches accessed since the last commit are dropped, so the repository doesn't
+     * keep every storage it ever accessed. Their tries are passed with the loaded nodes
+     * to the {@link #storageTries} shared with the snapshots, which are opened for the next blocks.
+     * The tracks of this repository should be committed or dropped by now, as they refer the dropped caches
+     */
+    private void retainStorageTries() {
+        ((MultiStorageCache) storageCache).retainTries();
+    }
+
+    /**
+     * Passes the changes made since the {@link #flatRoot} to the {@link FlatState} journal
+     */
+    private void recordFlatState() {
+        byte[] root = stateTrie.getRootHash();
+        if (!FastByteComparisons.equal(root, flatRoot)) {
+            Map<ByteArrayWrapper, byte[]> changes = new LinkedHashMap<>();
+            // the nodes replaced since the flatRoot are deleted from the trieCache, though are still in the stateDS
+            Trie<byte[]> flatRootTrie = wipedStorage.isEmpty() ? null : new SecureTrie(stateDS, flatRoot);
+            for (ByteArrayWrapper address : wipedStorage) {
+                byte[] accountRlp = flatRootTrie.get(address.getData());
+                if (accountRlp == null) continue;
+                byte[] storageRoot = new AccountState(accountRlp).getStateRoot();
+                byte[] addrHash = sha3(address.getData());
+                // all the storage entries of the deleted account are deleted from the flat state
+                new TrieImpl(new SourceCodec.KeyOnly<>(stateDS, new NodeKeyCompositor(addrHash)), storageRoot)
+                        .scanValues((keyHash, value) -> changes.put(new ByteArrayWrapper(merge(addrHash, keyHash)), null));
+            }
+            accountsFlatSource.collectChanges(changes);
+            for (FlatStateSource storage : changedStorage.values()) {
+                storage.collectChanges(changes);
+            }
+            flatState.record(flatRoot, root, changes);
+        }
+        moveFlatRoot(root);
+    }
+
+    private void moveFlatRoot(byte[] root) {
+        flatRoot = root;
+        flatGeneration++;
+        changedStorage.clear();
+        wipedStorage.clear();
     }
 
     @Override
     public synchronized byte[] getRoot() {
         storageCache.flush();
         accountStateCache.flush();
+        stateTrieWriter.flush();
 
         return stateTrie.getRootHash();
     }
@@ -129,9 +401,22 @@ public class RepositoryRoot extends RepositoryImpl {
         commit();
     }
 
+    /**
+     * The snapshot passes the storage tries it commits to the {@link StorageTrieCache} though doesn't take
+     * the tries from there, since a trie is owned by a single repository and the read only snapshot
+     * (like the pending state or the call) never gives it back, see {@link #getChainSnapshotTo(byte[])}
+     */
     @Override
     public Repository getSnapshotTo(byte[] root) {
-        return new RepositoryRoot(stateDS, root);
+        return new RepositoryRoot(stateDS, root, flatState, storageTries, false);
+    }
+
+    /**
+     * The snapshot to apply the next block of the chain to, it takes over the storage tries
+     * committed by the repositories of the previous blocks
+     */
+    public RepositoryRoot getChainSnapshotTo(byte[] root) {
+        return new RepositoryRoot(stateDS, root, flatState, storageTries, true);
     }
 
     @Override
@@ -147,6 +432,7 @@ public class RepositoryRoot extends RepositoryImpl {
     @Override
     public synchronized void syncToRoot(byte[] root) {
         stateTrie.setRoot(root);
+        if (flatState != null) moveFlatRoot(stateTrie.getRootHash());
     }
 
     protected TrieImpl createTrie(Source<byte[], byte[]> trieCache, byte[] root) {
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.ethereum.core.AccountState;
+import org.ethereum.core.Block;
+import org.ethereum.core.Transaction;
+import org.ethereum.datasource.NodeKeyCompositor;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.SourceCodec;
+import org.ethereum.trie.SecureTrie;
+import org.ethereum.util.FastByteComparisons;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.ethereum.crypto.HashUtil.EMPTY_DATA_HASH;
+import static org.ethereum.crypto.HashUtil.EMPTY_TRIE_HASH;
+
+/**
+ * Warms the state caches ahead of the block execution.
+ *
+ * The accounts touched by the block (the coinbase, the senders, the receivers and the created
+ * contracts) are read by the pool threads from the state source while the transactions are executed,
+ * together with the contract code and the root node of the contract storage trie. Thus the executing
+ * thread mostly finds the trie nodes in the {@link StateSource} read cache instead of reading the DB.
+ *
+ * The touched addresses are resolved by the calling thread, so the pool threads never touch the
+ * {@link Transaction}s which are lazily parsed and are read by the executing thread at the same time.
+ * The sender is usually recovered already by the sync, otherwise the execution would need it anyway.
+ * The reads go through the separate read-only tries, the executing repository isn't touched
+ */
+public class StatePrefetcher {
+    private static final Logger logger = LoggerFactory.getLogger("state");
+
+    private final Source<byte[], byte[]> stateSource;
+    private final ExecutorService executor;
+
+    /**
+     * @param threads number of the reading threads, 0 disables prefetching
+     */
+    public StatePrefetcher(Source<byte[], byte[]> stateSource, int threads) {
+        this(stateSource, threads > 0 ? Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("state-prefetch-%d").setDaemon(true).build()) : null);
+    }
+
+    StatePrefetcher(Source<byte[], byte[]> stateSource, ExecutorService executor) {
+        this.stateSource = stateSource;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts prefetching the state touched by the block
+     * @param stateRoot the state root the block is applied to
+     * @return the handle to cancel the prefetching which is no more needed
+     */
+    public Prefetch prefetch(byte[] stateRoot, Block block) {
+        Prefetch ret = new Prefetch();
+        if (executor == null || block.getTransactionsList().isEmpty()) return ret;
+
+        Set<ByteArrayWrapper> accounts = ConcurrentHashMap.newKeySet();
+        ret.tasks.add(executor.submit(() -> prefetchAccount(stateRoot, block.getCoinbase(), accounts)));
+        // in the execution order, so the first transactions are served first
+        for (Transaction tx : block.getTransactionsList()) {
+            byte[] sender = tx.getSender();
+            byte[] receiver = tx.isContractCreation() ? tx.getContractAddress() : tx.getReceiveAddress();
+            ret.tasks.add(executor.submit(() -> {
+                prefetchAccount(stateRoot, sender, accounts);
+                prefetchAccount(stateRoot, receiver, accounts);
+            }));
+        }
+        return ret;
+    }
+
+    private void prefetchAccount(byte[] stateRoot, byte[] address, Set<ByteArrayWrapper> accounts) {
+        if (address == null || !accounts.add(new ByteArrayWrapper(address))) return;
+        try {
+            byte[] accountRlp = new SecureTrie(stateSource, stateRoot).get(address);
+            if (accountRlp == null) return;
+
+            AccountState account = new AccountState(accountRlp);
+            if (!FastByteComparisons.equal(account.getCodeHash(), EMPTY_DATA_HASH)) {
+                stateSource.get(NodeKeyCompositor.compose(account.getCodeHash(), address));
+            }
+            // the storage slots can't be predicted, though the trie root is read by any storage access
+            if (!FastByteComparisons.equal(account.getStateRoot(), EMPTY_TRIE_HASH)) {
+                new SourceCodec.KeyOnly<>(stateSource, new NodeKeyCompositor(address)).get(account.getStateRoot());
+            }
+        } catch (Exception e) {
+            // e.g. the state was pruned meanwhile, the executing thread would deal with it
+            logger.debug("State prefetch failed", e);
+        }
+    }
+
+    public void shutdown() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * The prefetching of a single block
+     */
+    public static class Prefetch {
+        private final List<Future<?>> tasks = new ArrayList<>();
+
+        /**
+         * Drops the reads which weren't started yet,
+         * should be called once the block is executed
+         */
+        public void cancel() {
+            for (Future<?> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+}
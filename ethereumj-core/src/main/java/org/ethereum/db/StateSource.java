@@ -34,18 +34,33 @@ public class StateSource extends SourceChainBox<byte[], byte[], byte[], byte[]>
     JournalSource<byte[]> journalSource;
     NoDeleteSource<byte[], byte[]> noDeleteSource;
 
+    OffHeapReadCache offHeapCache;
     ReadCache<byte[], byte[]> readCache;
     AbstractCachedSource<byte[], byte[]> writeCache;
 
     public StateSource(Source<byte[], byte[]> src, boolean pruningEnabled) {
+        this(src, pruningEnabled, false);
+    }
+
+    /**
+     * @param concurrentWriteCache use {@link ConcurrentWriteCache} to avoid state readers
+     *                             and writers contention on a single cache lock
+     */
+    public StateSource(Source<byte[], byte[]> src, boolean pruningEnabled, boolean concurrentWriteCache) {
         super(src);
         INST = this;
-        add(readCache = new ReadCache.BytesKey<>(src).withMaxCapacity(16 * 1024 * 1024 / 512)); // 512 - approx size of a node
+        add(offHeapCache = new OffHeapReadCache(src));
+        offHeapCache.setFlushSource(true);
+        readCache = new ReadCache.BytesKey<>(offHeapCache);
+        readCache.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
+        add(readCache.withMaxSize(16 * 1024 * 1024));
         readCache.setFlushSource(true);
         writeCache = new AsyncWriteCache<byte[], byte[]>(readCache) {
             @Override
             protected WriteCache<byte[], byte[]> createCache(Source<byte[], byte[]> source) {
-                WriteCache.BytesKey<byte[]> ret = new WriteCache.BytesKey<byte[]>(source, WriteCache.CacheType.SIMPLE);
+                WriteCache<byte[], byte[]> ret = concurrentWriteCache ?
+                        new ConcurrentWriteCache.BytesKey<byte[]>(source, WriteCache.CacheType.SIMPLE) :
+                        new WriteCache.BytesKey<byte[]>(source, WriteCache.CacheType.SIMPLE);
                 ret.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
                 ret.setFlushSource(true);
                 return ret;
@@ -63,8 +78,8 @@ public class StateSource extends SourceChainBox<byte[], byte[], byte[], byte[]>
 
     @Autowired
     public void setConfig(SystemProperties config) {
-        int size = config.getConfig().getInt("cache.stateCacheSize");
-        readCache.withMaxCapacity(size * 1024 * 1024 / 512); // 512 - approx size of a node
+        readCache.withMaxSize(config.getConfig().getLong("cache.stateCacheSize") * 1024 * 1024);
+        offHeapCache.withCapacity(config.getConfig().getLong("cache.stateOffHeapCacheSize") * 1024 * 1024);
     }
 
     @Autowired
@@ -92,4 +107,8 @@ public class StateSource extends SourceChainBox<byte[], byte[], byte[], byte[]>
     public ReadCache<byte[], byte[]> getReadCache() {
         return readCache;
     }
+
+    public OffHeapReadCache getOffHeapCache() {
+        return offHeapCache;
+    }
 }
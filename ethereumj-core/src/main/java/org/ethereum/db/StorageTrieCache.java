@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import org.ethereum.trie.TrieImpl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import static org.ethereum.util.ByteUtil.merge;
+
+/**
+ * Keeps the recently committed contract storage tries with their loaded nodes for the next blocks.
+ *
+ * Each block is applied to a fresh {@link RepositoryRoot} snapshot, thus the cache is shared by the
+ * snapshots: the repository passes the storage tries here on commit and the main chain repository
+ * of the next block (see {@link RepositoryRoot#getChainSnapshotTo(byte[])}) takes the trie when it opens
+ * the storage of the same contract at the same storage root. The trie is owned either by a single
+ * repository or by the cache, so the repositories used by the different threads never share a trie.
+ *
+ * The least recently committed tries are dropped once the total size of their nodes exceeds the limit
+ */
+public class StorageTrieCache {
+
+    private static final class Retained {
+        final TrieImpl trie;
+        // estimated size of the loaded trie nodes
+        final long size;
+
+        Retained(TrieImpl trie, long size) {
+            this.trie = trie;
+            this.size = size;
+        }
+    }
+
+    private final long maxSize;
+    // by the address and the storage root, in the access order
+    private final LinkedHashMap<ByteArrayWrapper, Retained> tries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * @param maxSize max estimated size in bytes of the trie nodes kept loaded, 0 keeps nothing
+     */
+    public StorageTrieCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Takes the trie out of the cache, the caller owns it since then
+     * @return the storage trie of the contract with the root or null if it isn't retained
+     */
+    public synchronized TrieImpl take(byte[] address, byte[] root) {
+        Retained ret = tries.remove(key(address, root));
+        if (ret == null) return null;
+        size -= ret.size;
+        return ret.trie;
+    }
+
+    /**
+     * Passes the storage trie to the cache, the trie must have no changes which aren't persisted,
+     * since its nodes are read by another repository then
+     */
+    public synchronized void retain(byte[] address, TrieImpl trie) {
+        if (maxSize <= 0) return;
+        long trieSize = trie.estimateLoadedSize();
+        if (trieSize == 0) return;
+
+        Retained old = tries.put(key(address, trie.getRootHash()), new Retained(trie, trieSize));
+        if (old != null) size -= old.size;
+        size += trieSize;
+
+        Iterator<Retained> it = tries.values().iterator();
+        while (it.hasNext() && size > maxSize) {
+            size -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * @return estimated size of the trie nodes kept
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private static ByteArrayWrapper key(byte[] address, byte[] root) {
+        return new ByteArrayWrapper(merge(address, root));
+    }
+}
@@ -2,6 +2,7 @@ package org.ethereum.db.prune;
 
 import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.CountingQuotientFilter;
+import org.ethereum.datasource.DbIterator;
 import org.ethereum.datasource.JournalSource;
 import org.ethereum.datasource.QuotientFilter;
 import org.ethereum.datasource.Source;
@@ -61,6 +62,8 @@ public class Pruner {
     QuotientFilter filter;
     QuotientFilter distantFilter;
     boolean ready = false;
+    // hashes of the updates loaded on init, the rest of the journal is stale
+    Set<byte[]> windowHashes;
 
     private static class Stats {
         int collisions = 0;
@@ -107,6 +110,8 @@ public class Pruner {
         }
 
         this.filter = filter;
+        this.windowHashes = new ByteArraySet();
+        windowHashes.addAll(forkWindow);
         return ready = true;
     }
 
@@ -118,6 +123,7 @@ public class Pruner {
         if (!ready) return;
 
         QuotientFilter filter = instantiateFilter(sizeInBlocks, FILTER_ENTRIES_DISTANT);
+        if (windowHashes != null) windowHashes.addAll(mainChainWindow);
 
         if (!mainChainWindow.isEmpty()) {
             int i = mainChainWindow.size() - 1;
@@ -146,6 +152,34 @@ public class Pruner {
         return CountingQuotientFilter.create(size, size);
     }
 
+    /**
+     * Deletes the journal updates of the blocks which are out of the windows passed to
+     * {@link #init(List, int)} and {@link #withSecondStep(List, int)}.
+     * Such updates are left by an unclean shutdown and are never removed otherwise.
+     * Their nodes are kept in the storage, it's safe though not optimal
+     *
+     * Should be called right after the initialization, the journal keys are streamed
+     *
+     * @param journalKeys keys of the journal storage, closed after the scan
+     * @return the number of deleted updates
+     */
+    public int sweepJournal(DbIterator<?> journalKeys) {
+        int deleted = 0;
+        try (DbIterator<?> it = journalKeys) {
+            if (windowHashes == null) return 0;
+            while (it.hasNext()) {
+                byte[] hash = it.next();
+                if (!windowHashes.contains(hash)) {
+                    journal.delete(hash);
+                    deleted++;
+                }
+            }
+        }
+        windowHashes = null;
+        logger.debug("journal sweep: {} stale updates deleted", deleted);
+        return deleted;
+    }
+
     public boolean init(byte[] ... upcoming) {
         return init(Arrays.asList(upcoming), 192);
     }
@@ -21,6 +21,7 @@ import org.ethereum.config.SystemProperties;
 import org.ethereum.core.*;
 import org.ethereum.db.BlockStore;
 import org.ethereum.db.DbFlushManager;
+import org.ethereum.db.FlatState;
 import org.ethereum.db.HeaderStore;
 import org.ethereum.db.migrate.MigrateHeaderSourceTotalDiff;
 import org.ethereum.listener.CompositeEthereumListener;
@@ -90,6 +91,9 @@ public class WorldManager {
     @Autowired
     private DbFlushManager dbFlushManager;
 
+    @Autowired
+    private FlatState flatState;
+
     @Autowired
     private ApplicationContext ctx;
 
@@ -242,6 +246,9 @@ public class WorldManager {
             }
         }
 
+        // the flat state follows the best block, on the first start it is generated for the existing state
+        flatState.syncTo(blockchain.getBestBlock().getStateRoot());
+
 /* todo: return it when there is no state conflicts on the chain
         boolean dbValid = this.repository.getWorldState().validate() || bestBlock.isGenesis();
         if (!dbValid){
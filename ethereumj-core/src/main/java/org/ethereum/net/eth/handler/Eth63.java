@@ -35,7 +35,8 @@ import org.ethereum.net.eth.message.ReceiptsMessage;
 
 import org.ethereum.net.message.ReasonCode;
 import org.ethereum.sync.PeerState;
-import org.ethereum.util.ByteArraySet;
+import org.ethereum.util.FixedKeyByteArrayMap;
+import org.ethereum.util.FixedKeyByteArraySet;
 import org.ethereum.util.Value;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -155,7 +156,7 @@ public class Eth63 extends Eth62 {
         if (peerState != PeerState.IDLE) return null;
 
         GetNodeDataMessage msg = new GetNodeDataMessage(hashes);
-        requestedNodes = new ByteArraySet();
+        requestedNodes = new FixedKeyByteArraySet(FixedKeyByteArrayMap.HASH_LENGTH);
         requestedNodes.addAll(hashes);
 
         requestNodesFuture = SettableFuture.create();
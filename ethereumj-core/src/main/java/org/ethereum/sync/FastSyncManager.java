@@ -341,7 +341,7 @@ public class FastSyncManager {
     }
 
     Deque<TrieNodeRequest> nodesQueue = new LinkedBlockingDeque<>();
-    ByteArrayMap<TrieNodeRequest> pendingNodes = new ByteArrayMap<>();
+    Map<byte[], TrieNodeRequest> pendingNodes = new FixedKeyByteArrayMap<>(FixedKeyByteArrayMap.HASH_LENGTH);
     Long requestId = 0L;
 
     private synchronized void purgePending(byte[] hash) {
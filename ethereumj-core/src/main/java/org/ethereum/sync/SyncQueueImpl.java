@@ -22,7 +22,7 @@ import org.ethereum.core.BlockHeader;
 import org.ethereum.core.BlockHeaderWrapper;
 import org.ethereum.core.Blockchain;
 import org.ethereum.db.ByteArrayWrapper;
-import org.ethereum.util.ByteArrayMap;
+import org.ethereum.util.FixedKeyByteArrayMap;
 import org.ethereum.validator.DependentBlockHeaderRule;
 
 import java.util.*;
@@ -235,12 +235,12 @@ public class SyncQueueImpl implements SyncQueueIfc {
         assert lastValidatedGen.size() == 1;
         HeaderElement lastHeader = lastValidatedGen.values().iterator().next();
 
-        Map<byte[], HeaderElement> chainedParents = new ByteArrayMap<>();
+        Map<byte[], HeaderElement> chainedParents = new FixedKeyByteArrayMap<>(FixedKeyByteArrayMap.HASH_LENGTH);
         chainedParents.put(lastHeader.header.getHash(), lastHeader);
 
         for(long curNum = darkZoneNum + 1; ; curNum++) {
             // keep track of blocks chained to lastHeader until no children
-            Map<byte[], HeaderElement> chainedBlocks = new ByteArrayMap<>();
+            Map<byte[], HeaderElement> chainedBlocks = new FixedKeyByteArrayMap<>(FixedKeyByteArrayMap.HASH_LENGTH);
             Map<ByteArrayWrapper, HeaderElement> curLevel = headers.get(curNum);
             if (curLevel == null) break;
             for (HeaderElement element : curLevel.values()) {
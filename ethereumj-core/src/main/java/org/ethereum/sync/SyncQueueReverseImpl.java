@@ -19,7 +19,7 @@ package org.ethereum.sync;
 
 import org.ethereum.core.Block;
 import org.ethereum.core.BlockHeaderWrapper;
-import org.ethereum.util.ByteArrayMap;
+import org.ethereum.util.FixedKeyByteArrayMap;
 import org.ethereum.util.FastByteComparisons;
 import org.ethereum.util.MinMaxMap;
 
@@ -36,7 +36,7 @@ public class SyncQueueReverseImpl implements SyncQueueIfc {
     long minValidated = -1;
     long finishValidated = 0;
 
-    ByteArrayMap<Block> blocks = new ByteArrayMap<>();
+    Map<byte[], Block> blocks = new FixedKeyByteArrayMap<>(FixedKeyByteArrayMap.HASH_LENGTH);
 
     boolean headersOnly;
 
@@ -20,15 +20,17 @@ package org.ethereum.trie;
 import org.ethereum.db.ByteArrayWrapper;
 import org.ethereum.util.Value;
 
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Thread safe, so may be used by the {@link TrieImpl#scanTreeParallel}
+ *
  * @author Roman Mandeleil
  * @since 29.08.2014
  */
 public class CollectFullSetOfNodes implements TrieImpl.ScanAction {
-    Set<ByteArrayWrapper> nodes = new HashSet<>();
+    Set<ByteArrayWrapper> nodes = ConcurrentHashMap.newKeySet();
 
     @Override
     public void doOnNode(byte[] hash, TrieImpl.Node node) {
@@ -17,25 +17,50 @@
  */
 package org.ethereum.trie;
 
+import org.ethereum.datasource.DbIterator;
+import org.ethereum.datasource.DbSource;
 import org.ethereum.util.Value;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
+ * Counts the nodes reachable from the trie root. Unlike the DB key scan
+ * ({@link org.ethereum.datasource.DbSource#iterator}) it doesn't count the nodes of other tries
+ * and the orphan nodes left in the DB
+ *
+ * Thread safe, so may be used by the {@link TrieImpl#scanTreeParallel}
+ *
  * @author Roman Mandeleil
  * @since 29.08.2014
  */
 public class CountAllNodes implements TrieImpl.ScanAction {
 
-    int counted = 0;
+    AtomicInteger counted = new AtomicInteger();
 
     @Override
     public void doOnNode(byte[] hash, TrieImpl.Node node) {
-        ++counted;
+        counted.incrementAndGet();
     }
 
     @Override
     public void doOnValue(byte[] nodeHash, TrieImpl.Node node, byte[] key, byte[] value) {}
 
     public int getCounted() {
-        return counted;
+        return counted.get();
+    }
+
+    /**
+     * Counts all the nodes stored in the DB, i.e. the nodes of all the tries kept there
+     * and the orphan nodes. The keys are streamed, so the memory use doesn't depend on the DB size
+     */
+    public static long countStored(DbSource<?> db) {
+        long ret = 0;
+        try (DbIterator<?> it = db.iterator(null, null)) {
+            while (it.hasNext()) {
+                it.next();
+                ret++;
+            }
+        }
+        return ret;
     }
 }
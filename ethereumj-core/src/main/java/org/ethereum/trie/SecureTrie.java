@@ -20,6 +20,12 @@ package org.ethereum.trie;
 import org.ethereum.datasource.Source;
 import org.ethereum.util.Value;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import static org.ethereum.crypto.HashUtil.sha3;
 import static org.ethereum.util.ByteUtil.EMPTY_BYTE_ARRAY;
 
@@ -51,4 +57,26 @@ public class SecureTrie extends TrieImpl {
     public void delete(byte[] key) {
         put(key, EMPTY_BYTE_ARRAY);
     }
+
+    @Override
+    public void updateBatch(Map<byte[], byte[]> rows) {
+        Map<byte[], byte[]> hashed = new LinkedHashMap<>();
+        for (Map.Entry<byte[], byte[]> entry : rows.entrySet()) {
+            hashed.put(sha3(entry.getKey()), entry.getValue());
+        }
+        super.updateBatch(hashed);
+    }
+
+    /**
+     * The proof is built for the key hashes,
+     * so it is verified by {@link TrieImpl#verifyProof(byte[], List, Collection)} with the hashed keys
+     */
+    @Override
+    public List<byte[]> getProof(Collection<byte[]> keys) {
+        List<byte[]> hashed = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            hashed.add(sha3(key));
+        }
+        return super.getProof(hashed);
+    }
 }
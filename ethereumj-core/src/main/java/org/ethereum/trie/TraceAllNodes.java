@@ -22,6 +22,8 @@ import org.ethereum.util.Value;
 import org.spongycastle.util.encoders.Hex;
 
 /**
+ * Thread safe, so may be used by the {@link TrieImpl#scanTreeParallel}
+ *
  * @author Roman Mandeleil
  * @since 29.08.2014
  */
@@ -31,14 +33,18 @@ public class TraceAllNodes implements TrieImpl.ScanAction {
 
     @Override
     public void doOnNode(byte[] hash, TrieImpl.Node node) {
-
-        output.append(Hex.toHexString(hash)).append(" ==> ").append(node.toString()).append("\n");
+        String line = Hex.toHexString(hash) + " ==> " + node.toString() + "\n";
+        synchronized (output) {
+            output.append(line);
+        }
     }
 
     @Override
     public void doOnValue(byte[] nodeHash, TrieImpl.Node node, byte[] key, byte[] value) {}
 
     public String getOutput() {
-        return output.toString();
+        synchronized (output) {
+            return output.toString();
+        }
     }
 }
@@ -17,12 +17,12 @@
  */
 package org.ethereum.trie;
 
-import org.ethereum.datasource.Source;
+import org.ethereum.datasource.BatchSource;
 
 /**
  * Created by Anton Nashatyrev on 05.10.2016.
  */
-public interface Trie<V> extends Source<byte[], V> {
+public interface Trie<V> extends BatchSource<byte[], V> {
 
     byte[] getRootHash();
 
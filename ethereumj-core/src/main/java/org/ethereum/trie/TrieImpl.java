@@ -17,12 +17,13 @@
  */
 package org.ethereum.trie;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang3.text.StrBuilder;
+import org.ethereum.config.SystemProperties;
 import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.Source;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.datasource.inmem.HashMapDBSimple;
+import org.ethereum.db.ByteArrayWrapper;
 import org.ethereum.net.swarm.Key;
 import org.ethereum.util.FastByteComparisons;
 import org.ethereum.util.RLP;
@@ -32,33 +33,56 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.util.encoders.Hex;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
-import static org.apache.commons.lang3.concurrent.ConcurrentUtils.constantFuture;
 import static org.ethereum.crypto.HashUtil.EMPTY_TRIE_HASH;
 import static org.ethereum.util.ByteUtil.EMPTY_BYTE_ARRAY;
-import static org.ethereum.util.RLP.EMPTY_ELEMENT_RLP;
 import static org.ethereum.util.RLP.encodeElement;
-import static org.ethereum.util.RLP.encodeList;
 import static org.ethereum.util.ByteUtil.toHexString;
 
 /**
  * Created by Anton Nashatyrev on 07.02.2017.
  */
 public class TrieImpl implements Trie<byte[]> {
-    private final static Object NULL_NODE = new Object();
+    private final static Object[] EMPTY_CHILDREN = new Object[0];
+    private final static int HASH_LENGTH = 32;
+    private final static int VALUE_BIT = 1 << 16;
     private final static int MIN_BRANCHES_CONCURRENTLY = 3;
-    private static ExecutorService executor;
+    // dirty branches are hashed in parallel on the upper trie levels only
+    // where the subtrees are large enough to pay off the task overhead
+    private final static int MAX_CONCURRENT_DEPTH = 3;
+    private static volatile ForkJoinPool forkJoinPool;
 
     private static final Logger logger = LoggerFactory.getLogger("state");
 
-    public static ExecutorService getExecutor() {
-        if (executor == null) {
-            executor = Executors.newFixedThreadPool(4,
-                    new ThreadFactoryBuilder().setNameFormat("trie-calc-thread-%d").build());
+    /**
+     * The work stealing pool shared by all the tries: the forked subtree hashing tasks are
+     * joined without blocking the pool threads, so the nested tasks of the different tries
+     * (e.g. all the storage tries flushed by the {@link org.ethereum.db.RepositoryRoot}) are balanced
+     */
+    public static ForkJoinPool getForkJoinPool() {
+        if (forkJoinPool == null) {
+            synchronized (TrieImpl.class) {
+                if (forkJoinPool == null) {
+                    forkJoinPool = new ForkJoinPool(SystemProperties.getDefault().trieHashingThreads(), pool -> {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        thread.setName("trie-calc-thread-" + thread.getPoolIndex());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, null, false);
+                }
+            }
         }
-        return executor;
+        return forkJoinPool;
     }
 
     public enum NodeType {
@@ -70,14 +94,25 @@ public class TrieImpl implements Trie<byte[]> {
     public final class Node {
         private byte[] hash = null;
         private byte[] rlp = null;
-        private RLP.LList parsedRlp = null;
         private boolean dirty = false;
 
+        // BranchNode: bit i is set if the child i is present, VALUE_BIT if the value is present
+        // KVNode: -1
+        private int mask = -1;
+        // BranchNode: the present children in the hex order followed by the value (if any),
+        //   the child which wasn't accessed yet is null and its hash is kept in childHashes
+        // KVNode: the key (TrieKey or the packed key bytes from RLP) and the value or child node
         private Object[] children = null;
+        // BranchNode: HASH_LENGTH bytes per each present child (in the children order),
+        //   so the parsed node doesn't retain its RLP, null if no children were loaded by hash
+        private byte[] childHashes = null;
+        // the size of the node accounted in the loadedSize
+        private int countedSize = 0;
 
         // new empty BranchNode
         public Node() {
-            children = new Object[17];
+            mask = 0;
+            children = EMPTY_CHILDREN;
             dirty = true;
         }
 
@@ -89,16 +124,18 @@ public class TrieImpl implements Trie<byte[]> {
 
         // new Node with hash or RLP
         public Node(byte[] hashOrRlp) {
-            if (hashOrRlp.length == 32) {
+            if (hashOrRlp.length == HASH_LENGTH) {
                 this.hash = hashOrRlp;
             } else {
                 this.rlp = hashOrRlp;
             }
         }
 
+        // embedded Node
         private Node(RLP.LList parsedRlp) {
-            this.parsedRlp = parsedRlp;
             this.rlp = parsedRlp.getEncoded();
+            parse(parsedRlp);
+            countSize();
         }
 
         private Node(Object[] children) {
@@ -106,7 +143,7 @@ public class TrieImpl implements Trie<byte[]> {
         }
 
         public boolean resolveCheck() {
-            if (rlp != null || parsedRlp != null || hash == null) return true;
+            if (rlp != null || children != null || hash == null) return true;
             rlp = getHash(hash);
             return rlp != null;
         }
@@ -119,137 +156,229 @@ public class TrieImpl implements Trie<byte[]> {
         }
 
         public byte[] encode() {
-            return encode(1, true);
+            encode(1, true);
+            return encodeElement(hash);
         }
-        private byte[] encode(final int depth, boolean forceHash) {
-            if (!dirty) {
-                return hash != null ? encodeElement(hash) : rlp;
-            } else {
-                NodeType type = getType();
-                byte[] ret;
-                if (type == NodeType.BranchNode) {
-                    if (depth == 1 && async) {
-                        // parallelize encode() on the first trie level only and if there are at least
-                        // MIN_BRANCHES_CONCURRENTLY branches are modified
-                        final Object[] encoded = new Object[17];
-                        int encodeCnt = 0;
-                        for (int i = 0; i < 16; i++) {
-                            final Node child = branchNodeGetChild(i);
-                            if (child == null) {
-                                encoded[i] = EMPTY_ELEMENT_RLP;
-                            } else if (!child.dirty) {
-                                encoded[i] = child.encode(depth + 1, false);
-                            } else {
-                                encodeCnt++;
-                            }
-                        }
-                        for (int i = 0; i < 16; i++) {
-                            if (encoded[i] == null) {
-                                final Node child = branchNodeGetChild(i);
-                                if (encodeCnt >= MIN_BRANCHES_CONCURRENTLY) {
-                                    encoded[i] = getExecutor().submit(() -> child.encode(depth + 1, false));
-                                } else {
-                                    encoded[i] = child.encode(depth + 1, false);
-                                }
-                            }
-                        }
-                        byte[] value = branchNodeGetValue();
-                        encoded[16] = constantFuture(encodeElement(value));
-                        try {
-                            ret = encodeRlpListFutures(encoded);
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
+
+        // the node is either hashed or embedded into the parent (the rlp is set) afterwards
+        private void encode(final int depth, boolean forceHash) {
+            if (!dirty) return;
+
+            NodeType type = getType();
+            // the dirty children are encoded first since they reuse the encoding buffer of this thread
+            if (type == NodeType.BranchNode) {
+                // fork all the dirty branches but the last one which is encoded by this thread
+                // if there are at least MIN_BRANCHES_CONCURRENTLY branches modified
+                boolean concurrent = async && depth <= MAX_CONCURRENT_DEPTH && ForkJoinTask.getPool() == forkJoinPool;
+                int dirtyCnt = 0;
+                if (concurrent) {
+                    for (Object child : children) {
+                        if (child instanceof Node && ((Node) child).dirty) dirtyCnt++;
+                    }
+                }
+                ForkJoinTask<?>[] forked = dirtyCnt >= MIN_BRANCHES_CONCURRENTLY ? new ForkJoinTask<?>[dirtyCnt - 1] : null;
+                int forkedCnt = 0;
+                for (Object c : children) {
+                    if (!(c instanceof Node) || !((Node) c).dirty) continue;
+                    final Node child = (Node) c;
+                    if (forked != null && forkedCnt < forked.length) {
+                        forked[forkedCnt++] = ForkJoinTask.adapt(() -> child.encode(depth + 1, false)).fork();
                     } else {
-                        byte[][] encoded = new byte[17][];
-                        for (int i = 0; i < 16; i++) {
-                            Node child = branchNodeGetChild(i);
-                            encoded[i] = child == null ? EMPTY_ELEMENT_RLP : child.encode(depth + 1, false);
-                        }
-                        byte[] value = branchNodeGetValue();
-                        encoded[16] = encodeElement(value);
-                        ret = encodeList(encoded);
+                        child.encode(depth + 1, false);
                     }
-                } else if (type == NodeType.KVNodeNode) {
-                    ret = encodeList(encodeElement(kvNodeGetKey().toPacked()), kvNodeGetChildNode().encode(depth + 1, false));
-                } else {
-                    byte[] value = kvNodeGetValue();
-                    ret = encodeList(encodeElement(kvNodeGetKey().toPacked()),
-                                    encodeElement(value == null ? EMPTY_BYTE_ARRAY : value));
                 }
-                if (hash != null) {
-                    deleteHash(hash);
+                for (int i = 0; i < forkedCnt; i++) {
+                    forked[i].join();
                 }
-                dirty = false;
-                if (ret.length < 32 && !forceHash) {
-                    rlp = ret;
-                    return ret;
-                } else {
-                    hash = HashUtil.sha3(ret);
-                    addHash(hash, ret);
-                    return encodeElement(hash);
+            } else if (type == NodeType.KVNodeNode) {
+                kvNodeGetChildNode().encode(depth + 1, false);
+            }
+
+            RLP.ListBuffer buf = encodeBuffer.get();
+            buf.start();
+            if (type == NodeType.BranchNode) {
+                for (int i = 0, idx = 0; i < 16; i++) {
+                    if ((mask & (1 << i)) == 0) {
+                        buf.writeElement(EMPTY_BYTE_ARRAY);
+                        continue;
+                    }
+                    Node child = (Node) children[idx];
+                    if (child == null) {
+                        // not loaded, so not modified
+                        buf.writeElement(childHashes, idx * HASH_LENGTH, HASH_LENGTH);
+                    } else {
+                        child.writeRef(buf);
+                    }
+                    idx++;
                 }
+                buf.writeElement(branchNodeGetValue());
+            } else if (type == NodeType.KVNodeNode) {
+                buf.writeElement(kvNodeGetPackedKey());
+                kvNodeGetChildNode().writeRef(buf);
+            } else {
+                buf.writeElement(kvNodeGetPackedKey());
+                buf.writeElement(kvNodeGetValue());
+            }
+            buf.end();
+
+            byte[] oldHash = hash;
+            if (buf.size() < 32 && !forceHash) {
+                // the node may have been shrunk, it is embedded into the parent now
+                hash = null;
+                rlp = buf.toArray();
+            } else {
+                hash = HashUtil.sha3(buf.buffer(), buf.offset(), buf.size());
+                rlp = buf.toArray();
+            }
+            dirty = false;
+            if (oldHash != null) {
+                deleteHash(oldHash);
+            }
+            if (hash != null) {
+                addHash(hash, rlp);
+                rlp = null;
             }
+            countSize();
         }
 
-        @SafeVarargs
-        private final byte[] encodeRlpListFutures(Object... list) throws ExecutionException, InterruptedException {
-            byte[][] vals = new byte[list.length][];
-            for (int i = 0; i < list.length; i++) {
-                if (list[i] instanceof Future) {
-                    vals[i] = ((Future<byte[]>) list[i]).get();
-                } else {
-                    vals[i] = (byte[]) list[i];
-                }
+        // the reference from the parent node, i.e. either the hash or the embedded node
+        private void writeRef(RLP.ListBuffer buf) {
+            if (hash != null) {
+                buf.writeElement(hash);
+            } else {
+                buf.writeEncoded(rlp);
             }
-            return encodeList(vals);
         }
 
         private void parse() {
             if (children != null) return;
             resolve();
 
-            RLP.LList list = parsedRlp == null ? RLP.decodeLazyList(rlp) : parsedRlp;
+            parse(RLP.decodeLazyList(rlp));
+            // the hashed node is referred by its hash, the RLP is only needed by the embedded one
+            if (hash != null) rlp = null;
+            countSize();
+        }
+
+        // the node changed by an update is counted again once encoded
+        private void countSize() {
+            int size = (int) estimateSize();
+            loadedSize.addAndGet(size - countedSize);
+            countedSize = size;
+        }
+
+        // approximate heap size of the node itself, the child nodes are counted when loaded
+        private long estimateSize() {
+            // object header, the fields and the outer trie reference
+            long ret = 48 + arraySize(hash) + arraySize(rlp);
+            if (children == null) return ret;
+            ret += 16 + 4 * children.length + arraySize(childHashes);
+            for (Object child : children) {
+                if (child instanceof byte[]) {
+                    ret += arraySize((byte[]) child);
+                } else if (child instanceof TrieKey) {
+                    ret += 64;
+                }
+            }
+            return ret;
+        }
 
+        private void parse(RLP.LList list) {
             if (list.size() == 2) {
-                children = new Object[2];
-                TrieKey key = TrieKey.fromPacked(list.getBytes(0));
-                children[0] = key;
-                if (key.isTerminal()) {
-                    children[1] = list.getBytes(1);
+                byte[] packedKey = list.getBytes(0);
+                Object valueOrNode;
+                if (TrieKey.fromPacked(packedKey).isTerminal()) {
+                    valueOrNode = list.getBytes(1);
                 } else {
-                    children[1] = list.isList(1) ? new Node(list.getList(1)) : new Node(list.getBytes(1));
+                    valueOrNode = list.isList(1) ? new Node(list.getList(1)) : new Node(list.getBytes(1));
                 }
+                children = new Object[]{packedKey, valueOrNode};
             } else {
-                children = new Object[17];
-                parsedRlp = list;
+                Object[] slots = new Object[17];
+                int newMask = 0;
+                int cnt = 0;
+                int hashCnt = 0;
+                for (int i = 0; i < 16; i++) {
+                    if (list.isList(i)) {
+                        slots[cnt++] = new Node(list.getList(i));
+                    } else {
+                        byte[] bytes = list.getBytes(i);
+                        if (bytes.length == 0) continue;
+                        if (bytes.length == HASH_LENGTH) hashCnt++;
+                        slots[cnt++] = bytes.length == HASH_LENGTH ? bytes : new Node(bytes);
+                    }
+                    newMask |= 1 << i;
+                }
+                byte[] value = list.getBytes(16);
+                int childCnt = cnt;
+                if (value.length > 0) {
+                    slots[cnt++] = value;
+                    newMask |= VALUE_BIT;
+                }
+
+                byte[] hashes = hashCnt == 0 ? null : new byte[childCnt * HASH_LENGTH];
+                for (int i = 0; i < childCnt; i++) {
+                    if (slots[i] instanceof byte[]) {
+                        System.arraycopy(slots[i], 0, hashes, i * HASH_LENGTH, HASH_LENGTH);
+                        slots[i] = null;
+                    }
+                }
+                childHashes = hashes;
+                children = Arrays.copyOf(slots, cnt);
+                mask = newMask;
             }
         }
 
+        // index of the hex child in children
+        private int childIdx(int hex) {
+            return Integer.bitCount(mask & ((1 << hex) - 1));
+        }
+
+        private byte[] childHash(int idx) {
+            return Arrays.copyOfRange(childHashes, idx * HASH_LENGTH, (idx + 1) * HASH_LENGTH);
+        }
+
         public Node branchNodeGetChild(int hex) {
             parse();
             assert getType() == NodeType.BranchNode;
-            Object n = children[hex];
-            if (n == null && parsedRlp != null) {
-                if (parsedRlp.isList(hex)) {
-                    n = new Node(parsedRlp.getList(hex));
-                } else {
-                    byte[] bytes = parsedRlp.getBytes(hex);
-                    if (bytes.length == 0) {
-                        n = NULL_NODE;
-                    } else {
-                        n = new Node(bytes);
-                    }
-                }
-                children[hex] = n;
+            if ((mask & (1 << hex)) == 0) return null;
+            int idx = childIdx(hex);
+            Node n = (Node) children[idx];
+            if (n == null) {
+                n = new Node(childHash(idx));
+                children[idx] = n;
             }
-            return n == NULL_NODE ? null : (Node) n;
+            return n;
+        }
+
+        // the child which wasn't accessed yet isn't kept by this node
+        private Node branchNodePeekChild(int hex) {
+            parse();
+            if ((mask & (1 << hex)) == 0) return null;
+            int idx = childIdx(hex);
+            Node n = (Node) children[idx];
+            return n != null ? n : new Node(childHash(idx));
         }
 
         public Node branchNodeSetChild(int hex, Node node) {
             parse();
             assert getType() == NodeType.BranchNode;
-            children[hex] = node == null ? NULL_NODE : node;
+            int bit = 1 << hex;
+            int idx = childIdx(hex);
+            if ((mask & bit) != 0) {
+                if (node != null) {
+                    children[idx] = node;
+                } else {
+                    children = remove(children, idx, 1);
+                    if (childHashes != null) childHashes = remove(childHashes, idx * HASH_LENGTH, HASH_LENGTH);
+                    mask &= ~bit;
+                }
+            } else if (node != null) {
+                children = insert(children, idx, 1);
+                children[idx] = node;
+                if (childHashes != null) childHashes = insert(childHashes, idx * HASH_LENGTH, HASH_LENGTH);
+                mask |= bit;
+            }
             dirty = true;
             return this;
         }
@@ -257,23 +386,24 @@ public class TrieImpl implements Trie<byte[]> {
         public byte[] branchNodeGetValue() {
             parse();
             assert getType() == NodeType.BranchNode;
-            Object n = children[16];
-            if (n == null && parsedRlp != null) {
-                byte[] bytes = parsedRlp.getBytes(16);
-                if (bytes.length == 0) {
-                    n = NULL_NODE;
-                } else {
-                    n = bytes;
-                }
-                children[16] = n;
-            }
-            return n == NULL_NODE ? null : (byte[]) n;
+            return (mask & VALUE_BIT) == 0 ? null : (byte[]) children[children.length - 1];
         }
 
         public Node branchNodeSetValue(byte[] val) {
             parse();
             assert getType() == NodeType.BranchNode;
-            children[16] = val == null ? NULL_NODE : val;
+            if ((mask & VALUE_BIT) != 0) {
+                if (val != null) {
+                    children[children.length - 1] = val;
+                } else {
+                    children = Arrays.copyOf(children, children.length - 1);
+                    mask &= ~VALUE_BIT;
+                }
+            } else if (val != null) {
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = val;
+                mask |= VALUE_BIT;
+            }
             dirty = true;
             return this;
         }
@@ -281,32 +411,31 @@ public class TrieImpl implements Trie<byte[]> {
         public int branchNodeCompactIdx() {
             parse();
             assert getType() == NodeType.BranchNode;
-            int cnt = 0;
-            int idx = -1;
-            for (int i = 0; i < 16; i++) {
-                if (branchNodeGetChild(i) != null) {
-                    cnt++;
-                    idx = i;
-                    if (cnt > 1) return -1;
-                }
-            }
-            return cnt > 0 ? idx : (branchNodeGetValue() == null ? -1 : 16);
+            int childMask = mask & ~VALUE_BIT;
+            int cnt = Integer.bitCount(childMask);
+            if (cnt > 1) return -1;
+            // the single child can't be compacted with the value
+            if (cnt > 0) return (mask & VALUE_BIT) == 0 ? Integer.numberOfTrailingZeros(childMask) : -1;
+            return (mask & VALUE_BIT) == 0 ? -1 : 16;
         }
         public boolean branchNodeCanCompact() {
             parse();
             assert getType() == NodeType.BranchNode;
-            int cnt = 0;
-            for (int i = 0; i < 16; i++) {
-                cnt += branchNodeGetChild(i) == null ? 0 : 1;
-                if (cnt > 1) return false;
-            }
-            return cnt == 0 || branchNodeGetValue() == null;
+            int cnt = Integer.bitCount(mask & ~VALUE_BIT);
+            return cnt == 0 || (cnt == 1 && (mask & VALUE_BIT) == 0);
         }
 
         public TrieKey kvNodeGetKey() {
             parse();
             assert getType() != NodeType.BranchNode;
-            return (TrieKey) children[0];
+            Object key = children[0];
+            // the key bytes aren't copied
+            return key instanceof TrieKey ? (TrieKey) key : TrieKey.fromPacked((byte[]) key);
+        }
+
+        private byte[] kvNodeGetPackedKey() {
+            Object key = children[0];
+            return key instanceof TrieKey ? ((TrieKey) key).toPacked() : (byte[]) key;
         }
 
         public Node kvNodeGetChildNode() {
@@ -345,7 +474,7 @@ public class TrieImpl implements Trie<byte[]> {
         public NodeType getType() {
             parse();
 
-            return children.length == 17 ? NodeType.BranchNode :
+            return mask >= 0 ? NodeType.BranchNode :
                     (children[1] instanceof Node ? NodeType.KVNodeNode : NodeType.KVNodeValue);
         }
 
@@ -435,8 +564,22 @@ public class TrieImpl implements Trie<byte[]> {
         void doOnValue(byte[] nodeHash, Node node, byte[] key, byte[] value);
     }
 
+    public interface DiffAction {
+
+        /**
+         * @param oldValue null if the key was added
+         * @param newValue null if the key was removed
+         */
+        void onDiff(byte[] key, byte[] oldValue, byte[] newValue);
+    }
+
+    // the node RLP is written by the thread to its own buffer
+    private static final ThreadLocal<RLP.ListBuffer> encodeBuffer = ThreadLocal.withInitial(RLP.ListBuffer::new);
+
     private Source<byte[], byte[]> cache;
     private Node root;
+    // estimated size of the nodes loaded since the root node was (re)set
+    private final AtomicLong loadedSize = new AtomicLong();
     private boolean async = true;
 
     public TrieImpl() {
@@ -461,11 +604,16 @@ public class TrieImpl implements Trie<byte[]> {
 
     private void encode() {
         if (root != null) {
-            root.encode();
+            if (async && root.dirty && ForkJoinTask.getPool() != getForkJoinPool()) {
+                getForkJoinPool().invoke(ForkJoinTask.adapt((Callable<byte[]>) root::encode));
+            } else {
+                root.encode();
+            }
         }
     }
 
     public void setRoot(byte[] root) {
+        loadedSize.set(0);
         if (root != null && !FastByteComparisons.equal(root, EMPTY_TRIE_HASH)) {
             this.root = new Node(root);
         } else {
@@ -482,6 +630,14 @@ public class TrieImpl implements Trie<byte[]> {
         return cache;
     }
 
+    /**
+     * Switches the trie to another Source holding the same nodes, the loaded nodes are kept,
+     * so these should be persisted already, i.e. the trie should have no changes not yet flushed
+     */
+    public void setCache(Source<byte[], byte[]> cache) {
+        this.cache = cache;
+    }
+
     private byte[] getHash(byte[] hash) {
         return cache.get(hash);
     }
@@ -518,6 +674,49 @@ public class TrieImpl implements Trie<byte[]> {
         }
     }
 
+    /**
+     * Collects the Merkle proof of the key value (or of its absence): the RLP of the hashed nodes
+     * on the key path starting from the root. The embedded nodes are part of the parent RLP.
+     * The modified nodes are hashed and stored to the Source first, like by {@link #getRootHash()}
+     */
+    public List<byte[]> getProof(byte[] key) {
+        return getProof(Collections.singletonList(key));
+    }
+
+    /**
+     * Collects the Merkle proof of the several keys, the nodes shared by the key paths are included once.
+     * The node RLP is taken as is from the Source (or from the not yet parsed node), nothing is re-encoded
+     */
+    public List<byte[]> getProof(Collection<byte[]> keys) {
+        encode();
+        Map<ByteArrayWrapper, byte[]> proof = new LinkedHashMap<>();
+        if (!hasRoot()) return new ArrayList<>();
+        for (byte[] key : keys) {
+            collectProof(root, TrieKey.fromNormal(key), proof);
+        }
+        return new ArrayList<>(proof.values());
+    }
+
+    private void collectProof(Node n, TrieKey k, Map<ByteArrayWrapper, byte[]> proof) {
+        if (n == null) return;
+
+        if (n.hash != null) {
+            ByteArrayWrapper hash = new ByteArrayWrapper(n.hash);
+            // the upper nodes are shared by the key paths
+            if (!proof.containsKey(hash)) {
+                n.resolve();
+                proof.put(hash, n.rlp != null ? n.rlp : getHash(n.hash));
+            }
+        }
+        NodeType type = n.getType();
+        if (type == NodeType.BranchNode) {
+            if (!k.isEmpty()) collectProof(n.branchNodeGetChild(k.getHex(0)), k.shift(1), proof);
+        } else if (type == NodeType.KVNodeNode) {
+            TrieKey k1 = k.matchAndShift(n.kvNodeGetKey());
+            if (k1 != null) collectProof(n.kvNodeGetChildNode(), k1, proof);
+        }
+    }
+
     public void put(byte[] key, byte[] value) {
         TrieKey k = TrieKey.fromNormal(key);
         if (root == null) {
@@ -554,14 +753,15 @@ public class TrieImpl implements Trie<byte[]> {
         } else {
             TrieKey currentNodeKey = n.kvNodeGetKey();
             TrieKey commonPrefix = k.getCommonPrefix(currentNodeKey);
-            if (commonPrefix.isEmpty()) {
+            if (commonPrefix.equals(k)) {
+                // checked first as the empty key of the leaf may be updated
+                return n.kvNodeSetValueOrNode(nodeOrValue);
+            } else if (commonPrefix.isEmpty()) {
                 Node newBranchNode = new Node();
                 insert(newBranchNode, currentNodeKey, n.kvNodeGetValueOrNode());
                 insert(newBranchNode, k, nodeOrValue);
                 n.dispose();
                 return newBranchNode;
-            } else if (commonPrefix.equals(k)) {
-                return n.kvNodeSetValueOrNode(nodeOrValue);
             } else if (commonPrefix.equals(currentNodeKey)) {
                 insert(n.kvNodeGetChildNode(), k.shift(commonPrefix.getLength()), nodeOrValue);
                 return n.invalidate();
@@ -649,6 +849,178 @@ public class TrieImpl implements Trie<byte[]> {
         }
     }
 
+    /**
+     * Applies all the updates (null or empty value stands for deletion) in a single descent:
+     * the keys are sorted by the nibble path and the updates sharing the path prefix are
+     * applied to the node together, so each node is resolved at most once
+     */
+    @Override
+    public void updateBatch(Map<byte[], byte[]> rows) {
+        if (rows.isEmpty()) return;
+
+        // not the copy constructor since not every Map (e.g. ByteArrayMap) supports entrySet().toArray()
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>(rows.size());
+        for (Map.Entry<byte[], byte[]> entry : rows.entrySet()) entries.add(entry);
+        entries.sort((e1, e2) -> FastByteComparisons.compareTo(
+                e1.getKey(), 0, e1.getKey().length, e2.getKey(), 0, e2.getKey().length));
+
+        TrieKey[] keys = new TrieKey[entries.size()];
+        byte[][] values = new byte[entries.size()][];
+        // the number of deletions before the index
+        int[] deletes = new int[entries.size() + 1];
+        int cnt = 0;
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            // the equal keys may come from a Map with the identity byte[] keys, the last wins
+            if (cnt > 0 && FastByteComparisons.equal(entry.getKey(), entries.get(cnt - 1).getKey())) cnt--;
+            byte[] value = entry.getValue() == null || entry.getValue().length == 0 ? null : entry.getValue();
+            keys[cnt] = TrieKey.fromNormal(entry.getKey());
+            values[cnt] = value;
+            deletes[cnt + 1] = deletes[cnt] + (value == null ? 1 : 0);
+            entries.set(cnt++, entry);
+        }
+
+        root = update(root, new Batch(keys, values, deletes), 0, cnt, 0);
+    }
+
+    private static final class Batch {
+        final TrieKey[] keys;
+        final byte[][] values;
+        final int[] deletes;
+
+        Batch(TrieKey[] keys, byte[][] values, int[] deletes) {
+            this.keys = keys;
+            this.values = values;
+            this.deletes = deletes;
+        }
+
+        TrieKey key(int idx, int depth) {
+            return keys[idx].shift(depth);
+        }
+
+        boolean hasDeletes(int from, int to) {
+            return deletes[to] - deletes[from] > 0;
+        }
+    }
+
+    /**
+     * Applies the batch updates [from, to) to the node
+     * @param depth the number of the key hexes matched by the path to the node
+     * @return the updated node
+     */
+    private Node update(Node n, Batch batch, int from, int to, int depth) {
+        if (from == to) return n;
+        if (n == null) return create(batch, from, to, depth);
+
+        NodeType type = n.getType();
+        if (type == NodeType.BranchNode) {
+            int i = from;
+            // the key ending at this node is the first one in the sorted order
+            if (batch.keys[i].getLength() == depth) {
+                n.branchNodeSetValue(batch.values[i++]);
+            }
+            while (i < to) {
+                int hex = batch.keys[i].getHex(depth);
+                int j = i + 1;
+                while (j < to && batch.keys[j].getHex(depth) == hex) j++;
+                n.branchNodeSetChild(hex, update(n.branchNodeGetChild(hex), batch, i, j, depth + 1));
+                i = j;
+            }
+            return batch.hasDeletes(from, to) ? compact(n) : n;
+        }
+
+        TrieKey nodeKey = n.kvNodeGetKey();
+        int common = nodeKey.getLength();
+        for (int i = from; i < to && common > 0; i++) {
+            common = Math.min(common, batch.key(i, depth).getCommonPrefixLength(nodeKey));
+        }
+
+        if (common == nodeKey.getLength()) {
+            if (type == NodeType.KVNodeValue) {
+                if (to - from == 1 && batch.keys[from].getLength() == depth + common) {
+                    // the same key
+                    if (batch.values[from] != null) return n.kvNodeSetValue(batch.values[from]);
+                    n.dispose();
+                    return null;
+                }
+            } else {
+                Node newChild = update(n.kvNodeGetChildNode(), batch, from, to, depth + common);
+                if (newChild != null && newChild.getType() == NodeType.BranchNode) {
+                    return n.kvNodeSetValueOrNode(newChild);
+                }
+                n.dispose();
+                return kvNode(nodeKey, newChild);
+            }
+        }
+
+        // the keys diverge from the node key: split the node with the branch node
+        Node branch = new Node();
+        TrieKey rest = nodeKey.shift(common);
+        if (rest.isEmpty()) {
+            branch.branchNodeSetValue(n.kvNodeGetValue());
+        } else {
+            TrieKey childKey = rest.shift(1);
+            Object valueOrNode = n.kvNodeGetValueOrNode();
+            branch.branchNodeSetChild(rest.getHex(0), childKey.isEmpty() && valueOrNode instanceof Node ?
+                    (Node) valueOrNode : new Node(childKey, valueOrNode));
+        }
+        n.dispose();
+        Node newBranch = update(branch, batch, from, to, depth + common);
+        return common == 0 ? newBranch : kvNode(nodeKey.getPrefix(common), newBranch);
+    }
+
+    /**
+     * Creates the subtree for the batch updates [from, to), the deletions are skipped
+     */
+    private Node create(Batch batch, int from, int to, int depth) {
+        if (to - from == 1) {
+            return batch.values[from] == null ? null : new Node(batch.key(from, depth), batch.values[from]);
+        }
+        if (batch.deletes[to] - batch.deletes[from] == to - from) return null;
+
+        // the common path of the sorted keys is the common path of the first and the last keys
+        TrieKey first = batch.key(from, depth);
+        int common = first.getCommonPrefixLength(batch.key(to - 1, depth));
+        Node newBranch = update(new Node(), batch, from, to, depth + common);
+        return common == 0 ? newBranch : kvNode(first.getPrefix(common), newBranch);
+    }
+
+    /**
+     * @return the extension node with the (non-empty) key, merged with the child if the child is kvNode
+     */
+    private Node kvNode(TrieKey key, Node child) {
+        if (child == null) return null;
+        if (child.getType() == NodeType.BranchNode) return new Node(key, child);
+
+        Node ret = new Node(key.concat(child.kvNodeGetKey()), child.kvNodeGetValueOrNode());
+        child.dispose();
+        return ret;
+    }
+
+    /**
+     * Replaces the branch node with kvNode if only value or a single child is left
+     */
+    private Node compact(Node branch) {
+        int children = 0;
+        int idx = -1;
+        for (int i = 0; i < 16 && children < 2; i++) {
+            if (branch.branchNodeGetChild(i) != null) {
+                children++;
+                idx = i;
+            }
+        }
+        if (children > 1) return branch;
+
+        byte[] value = branch.branchNodeGetValue();
+        if (children == 1 && value != null) return branch;
+
+        branch.dispose();
+        if (children == 1) {
+            return kvNode(TrieKey.singleHex(idx), branch.branchNodeGetChild(idx));
+        } else {
+            return value == null ? null : new Node(TrieKey.empty(true), value);
+        }
+    }
+
     @Override
     public byte[] getRootHash() {
         encode();
@@ -667,12 +1039,40 @@ public class TrieImpl implements Trie<byte[]> {
             encode();
             // release all Trie Node instances for GC
             root = new Node(root.hash);
+            loadedSize.set(0);
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Releases all the loaded nodes for GC like the {@link #flush()} does,
+     * the modified nodes are persisted to the Source first
+     */
+    public void release() {
+        if (root != null) {
+            encode();
+            root = new Node(root.hash);
+            loadedSize.set(0);
+        }
+    }
+
+    /**
+     * The size is counted as the nodes are loaded from the Source or encoded after the updates
+     * and reset when they are released, so the call is cheap. The nodes replaced by the updates
+     * are counted until the nodes are released, thus the estimate is rough for the heavily updated tries
+     *
+     * @return approximate heap size of the nodes loaded and kept by the trie
+     */
+    public long estimateLoadedSize() {
+        return loadedSize.get();
+    }
+
+    private static long arraySize(byte[] arr) {
+        return arr == null ? 0 : 16 + arr.length;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -725,6 +1125,298 @@ public class TrieImpl implements Trie<byte[]> {
     }
 
 
+    /**
+     * Visits all the values with their keys in the ascending key order.
+     * Unlike {@link #scanTree(ScanAction)} the loaded nodes are not retained by the trie,
+     * so the memory taken by the scan doesn't depend on the trie size
+     */
+    public void scanValues(BiConsumer<byte[], byte[]> action) {
+        scanValues(root, TrieKey.empty(false), action);
+    }
+
+    private void scanValues(Node node, TrieKey k, BiConsumer<byte[], byte[]> action) {
+        if (node == null) return;
+        if (node.getType() == NodeType.BranchNode) {
+            if (node.branchNodeGetValue() != null) action.accept(k.toNormal(), node.branchNodeGetValue());
+            for (int i = 0; i < 16; i++) {
+                scanValues(node.branchNodePeekChild(i), k.concat(TrieKey.singleHex(i)), action);
+            }
+        } else if (node.getType() == NodeType.KVNodeNode) {
+            scanValues(node.kvNodeGetChildNode(), k.concat(node.kvNodeGetKey()), action);
+        } else {
+            action.accept(k.concat(node.kvNodeGetKey()).toNormal(), node.kvNodeGetValue());
+        }
+    }
+
+    /**
+     * Reports the values which differ between this trie and the trie with the other root in the same Source.
+     * Both tries are walked together and the subtries with the same hash are skipped,
+     * thus only the nodes on the paths to the changed values are read.
+     * For the storage tries the Source should compose the node keys, e.g.
+     * <code>new SourceCodec.KeyOnly<>(stateSource, new NodeKeyCompositor(addrHash))</code>
+     * @param otherRoot the root of the new trie
+     */
+    public void diff(byte[] otherRoot, DiffAction action) {
+        encode();
+        Node other = otherRoot == null || FastByteComparisons.equal(otherRoot, EMPTY_TRIE_HASH) ? null : new Node(otherRoot);
+        diff(root, 0, other, 0, TrieKey.empty(false), action);
+    }
+
+    // off is the number of the KV node key hexes already passed
+    private void diff(Node n1, int off1, Node n2, int off2, TrieKey k, DiffAction action) {
+        // checked before the nodes are resolved
+        if (sameNode(n1, off1, n2, off2)) return;
+        while (n1 != null && n1.getType() == NodeType.KVNodeNode && off1 == n1.kvNodeGetKey().getLength()) {
+            n1 = n1.kvNodeGetChildNode();
+            off1 = 0;
+        }
+        while (n2 != null && n2.getType() == NodeType.KVNodeNode && off2 == n2.kvNodeGetKey().getLength()) {
+            n2 = n2.kvNodeGetChildNode();
+            off2 = 0;
+        }
+        if (n1 == null && n2 == null) return;
+        if (sameNode(n1, off1, n2, off2)) return;
+        if (n1 == null || n2 == null) {
+            boolean added = n1 == null;
+            scanValues(added ? n2 : n1, added ? off2 : off1, k,
+                    (key, value) -> action.onDiff(key, added ? null : value, added ? value : null));
+            return;
+        }
+
+        byte[] v1 = diffValue(n1, off1);
+        byte[] v2 = diffValue(n2, off2);
+        if (v1 != null || v2 != null) {
+            if (v1 == null || v2 == null || !FastByteComparisons.equal(v1, v2)) action.onDiff(k.toNormal(), v1, v2);
+        }
+        for (int i = 0; i < 16; i++) {
+            Node c1 = diffChild(n1, off1, i);
+            Node c2 = diffChild(n2, off2, i);
+            if (c1 == null && c2 == null) continue;
+            diff(c1, c1 == n1 ? off1 + 1 : 0, c2, c2 == n2 ? off2 + 1 : 0, k.concat(TrieKey.singleHex(i)), action);
+        }
+    }
+
+    private static boolean sameNode(Node n1, int off1, Node n2, int off2) {
+        return n1 != null && n2 != null && off1 == 0 && off2 == 0 &&
+                n1.hash != null && n2.hash != null && FastByteComparisons.equal(n1.hash, n2.hash);
+    }
+
+    // the value at the position in the node
+    private static byte[] diffValue(Node n, int off) {
+        if (n.getType() == NodeType.BranchNode) return n.branchNodeGetValue();
+        return n.getType() == NodeType.KVNodeValue && off == n.kvNodeGetKey().getLength() ? n.kvNodeGetValue() : null;
+    }
+
+    // the child at the hex position, the KV node itself while its key isn't passed
+    private static Node diffChild(Node n, int off, int hex) {
+        if (n.getType() == NodeType.BranchNode) return n.branchNodePeekChild(hex);
+        TrieKey key = n.kvNodeGetKey();
+        return off < key.getLength() && key.getHex(off) == hex ? n : null;
+    }
+
+    private void scanValues(Node n, int off, TrieKey k, BiConsumer<byte[], byte[]> action) {
+        if (off == 0) {
+            scanValues(n, k, action);
+        } else if (n.getType() == NodeType.KVNodeValue) {
+            action.accept(k.concat(n.kvNodeGetKey().shift(off)).toNormal(), n.kvNodeGetValue());
+        } else {
+            scanValues(n.kvNodeGetChildNode(), k.concat(n.kvNodeGetKey().shift(off)), action);
+        }
+    }
+
+    /**
+     * Progress of the {@link #scanTreeParallel(ScanAction, ScanProgress)}, may be polled
+     * and cancelled from any thread
+     */
+    public static class ScanProgress {
+        private final AtomicLong nodes = new AtomicLong();
+        private final AtomicLong values = new AtomicLong();
+        private volatile boolean cancelled = false;
+
+        public long getNodes() {
+            return nodes.get();
+        }
+
+        public long getValues() {
+            return values.get();
+        }
+
+        /**
+         * The scan stops at the next visited node
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Parallel version of the {@link #scanTree(ScanAction)}: the subtries under the different
+     * key prefixes of the upper trie levels are visited by the {@link #getForkJoinPool()} threads,
+     * so the action is called concurrently and must be thread safe. The action blocking on anything
+     * but the scan itself should do it via {@link ForkJoinPool#managedBlock}, since the pool is shared
+     * with the trie hashing and its threads are not spare.
+     * Every node is visited (and thus read from the Source) once, and like by the {@link #scanValues(BiConsumer)}
+     * the loaded nodes are not retained by the trie, so the memory is taken by the nodes being visited only
+     * @return false if the scan was cancelled
+     */
+    public boolean scanTreeParallel(ScanAction scanAction, ScanProgress progress) {
+        if (root != null) {
+            getForkJoinPool().invoke(new ScanTask(root, TrieKey.empty(false), 0, scanAction, progress));
+        }
+        return !progress.isCancelled();
+    }
+
+    private final class ScanTask extends RecursiveAction {
+        private final Node node;
+        private final TrieKey k;
+        private final int depth;
+        private final ScanAction scanAction;
+        private final ScanProgress progress;
+
+        ScanTask(Node node, TrieKey k, int depth, ScanAction scanAction, ScanProgress progress) {
+            this.node = node;
+            this.k = k;
+            this.depth = depth;
+            this.scanAction = scanAction;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            scanParallel(node, k, depth, scanAction, progress);
+        }
+    }
+
+    private void scanParallel(Node node, TrieKey k, int depth, ScanAction scanAction, ScanProgress progress) {
+        if (node == null || progress.cancelled) return;
+        if (node.hash != null) {
+            scanAction.doOnNode(node.hash, node);
+            progress.nodes.incrementAndGet();
+        }
+        NodeType type = node.getType();
+        if (type == NodeType.BranchNode) {
+            if (node.branchNodeGetValue() != null) {
+                scanAction.doOnValue(node.hash, node, k.toNormal(), node.branchNodeGetValue());
+                progress.values.incrementAndGet();
+            }
+            if (depth < MAX_CONCURRENT_DEPTH) {
+                List<ScanTask> tasks = new ArrayList<>();
+                for (int i = 0; i < 16; i++) {
+                    Node child = node.branchNodePeekChild(i);
+                    if (child != null) {
+                        tasks.add(new ScanTask(child, k.concat(TrieKey.singleHex(i)), depth + 1, scanAction, progress));
+                    }
+                }
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                for (int i = 0; i < 16; i++) {
+                    scanParallel(node.branchNodePeekChild(i), k.concat(TrieKey.singleHex(i)), depth + 1, scanAction, progress);
+                }
+            }
+        } else if (type == NodeType.KVNodeNode) {
+            scanParallel(node.kvNodeGetChildNode(), k.concat(node.kvNodeGetKey()), depth, scanAction, progress);
+        } else {
+            scanAction.doOnValue(node.hash, node, k.concat(node.kvNodeGetKey()).toNormal(), node.kvNodeGetValue());
+            progress.values.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reconstructs the key value from the proof collected by {@link #getProof(byte[])},
+     * the proof nodes are addressed by their hashes, no Source is needed
+     * @return the value or null if the proof shows there is no such key
+     * @throws IllegalArgumentException if the proof lacks a node on the key path
+     */
+    public static byte[] verifyProof(byte[] rootHash, byte[] key, Collection<byte[]> proof) {
+        return verifyProof(rootHash, Collections.singletonList(key), proof).get(0);
+    }
+
+    /**
+     * Reconstructs the values of the several keys from their shared proof
+     * @return the values in the keys order, null for the absent keys
+     */
+    public static List<byte[]> verifyProof(byte[] rootHash, List<byte[]> keys, Collection<byte[]> proof) {
+        Map<ByteArrayWrapper, byte[]> nodes = new HashMap<>();
+        for (byte[] rlp : proof) {
+            nodes.put(new ByteArrayWrapper(HashUtil.sha3(rlp)), rlp);
+        }
+        List<byte[]> ret = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            ret.add(FastByteComparisons.equal(rootHash, EMPTY_TRIE_HASH) ? null :
+                    verifyProof(proofNode(nodes, rootHash), TrieKey.fromNormal(key), nodes));
+        }
+        return ret;
+    }
+
+    private static byte[] verifyProof(RLP.LList node, TrieKey k, Map<ByteArrayWrapper, byte[]> nodes) {
+        while (true) {
+            int childIdx;
+            if (node.size() == 2) {
+                TrieKey nodeKey = TrieKey.fromPacked(node.getBytes(0));
+                k = k.matchAndShift(nodeKey);
+                if (k == null) return null;
+                if (nodeKey.isTerminal()) return k.isEmpty() ? node.getBytes(1) : null;
+                childIdx = 1;
+            } else {
+                if (k.isEmpty()) {
+                    byte[] value = node.getBytes(16);
+                    return value.length > 0 ? value : null;
+                }
+                childIdx = k.getHex(0);
+                k = k.shift(1);
+            }
+
+            if (node.isList(childIdx)) {
+                node = node.getList(childIdx);
+            } else {
+                byte[] ref = node.getBytes(childIdx);
+                if (ref.length == 0) return null;
+                node = ref.length == HASH_LENGTH ? proofNode(nodes, ref) : RLP.decodeLazyList(ref);
+            }
+        }
+    }
+
+    private static RLP.LList proofNode(Map<ByteArrayWrapper, byte[]> nodes, byte[] hash) {
+        byte[] rlp = nodes.get(new ByteArrayWrapper(hash));
+        if (rlp == null) {
+            throw new IllegalArgumentException("The proof lacks the node " + toHexString(hash));
+        }
+        return RLP.decodeLazyList(rlp);
+    }
+
+    // copy of the array with cnt null elements inserted at the pos
+    private static Object[] insert(Object[] arr, int pos, int cnt) {
+        Object[] ret = new Object[arr.length + cnt];
+        System.arraycopy(arr, 0, ret, 0, pos);
+        System.arraycopy(arr, pos, ret, pos + cnt, arr.length - pos);
+        return ret;
+    }
+
+    private static Object[] remove(Object[] arr, int pos, int cnt) {
+        Object[] ret = new Object[arr.length - cnt];
+        System.arraycopy(arr, 0, ret, 0, pos);
+        System.arraycopy(arr, pos + cnt, ret, pos, ret.length - pos);
+        return ret;
+    }
+
+    private static byte[] insert(byte[] arr, int pos, int cnt) {
+        byte[] ret = new byte[arr.length + cnt];
+        System.arraycopy(arr, 0, ret, 0, pos);
+        System.arraycopy(arr, pos, ret, pos + cnt, arr.length - pos);
+        return ret;
+    }
+
+    private static byte[] remove(byte[] arr, int pos, int cnt) {
+        byte[] ret = new byte[arr.length - cnt];
+        System.arraycopy(arr, 0, ret, 0, pos);
+        System.arraycopy(arr, pos + cnt, ret, pos, ret.length - pos);
+        return ret;
+    }
+
     private static String hash2str(byte[] hash, boolean shortHash) {
         String ret = Hex.toHexString(hash);
         return "0x" + (shortHash ? ret.substring(0,8) : ret);
@@ -89,17 +89,33 @@ public final class TrieKey {
     }
 
     public TrieKey getCommonPrefix(TrieKey k) {
+        int prefixLen = getCommonPrefixLength(k);
+        byte[] prefixKey = new byte[(prefixLen + 1) >> 1];
+        TrieKey ret = new TrieKey(prefixKey, (prefixLen & 1) == 0 ? 0 : 1,
+                prefixLen == getLength() && prefixLen == k.getLength() && terminal && k.isTerminal());
+        for (int i = 0; i < prefixLen; i++) {
+            ret.setHex(i, k.getHex(i));
+        }
+        return ret;
+    }
+
+    public int getCommonPrefixLength(TrieKey k) {
         // TODO can be optimized
         int prefixLen = 0;
         int thisLength = getLength();
         int kLength = k.getLength();
         while (prefixLen < thisLength && prefixLen < kLength && getHex(prefixLen) == k.getHex(prefixLen))
             prefixLen++;
-        byte[] prefixKey = new byte[(prefixLen + 1) >> 1];
-        TrieKey ret = new TrieKey(prefixKey, (prefixLen & 1) == 0 ? 0 : 1,
-                prefixLen == getLength() && prefixLen == k.getLength() && terminal && k.isTerminal());
-        for (int i = 0; i < prefixLen; i++) {
-            ret.setHex(i, k.getHex(i));
+        return prefixLen;
+    }
+
+    /**
+     * @return non-terminal key of the first hexCnt hexes of this key
+     */
+    public TrieKey getPrefix(int hexCnt) {
+        TrieKey ret = new TrieKey(new byte[(hexCnt + 1) >> 1], hexCnt & 1, false);
+        for (int i = 0; i < hexCnt; i++) {
+            ret.setHex(i, getHex(i));
         }
         return ret;
     }
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.util;
+
+import java.util.*;
+
+/**
+ * The Map with byte[] keys of the fixed length like 32 bytes hashes or 20 bytes addresses.
+ * Can be used instead of {@link ByteArrayMap} when all the keys have the same length
+ *
+ * Keys are not wrapped: their bytes are copied to a single flat array and looked up
+ * with open addressing (linear probing), thus get/put/remove don't allocate objects.
+ * The hash is taken from the key bytes directly which is fine for Keccak derived keys
+ * (hashes, addresses) and acceptable for numeric keys (e.g. storage keys)
+ *
+ * Keys of other length are never contained in the map and can't be put into it.
+ * Note that keys returned from the keySet() and entrySet() are copies of the original keys
+ * The class is not thread safe
+ */
+public class FixedKeyByteArrayMap<V> extends AbstractMap<byte[], V> {
+
+    public static final int HASH_LENGTH = 32;
+    public static final int ADDRESS_LENGTH = 20;
+
+    private static final byte FREE = 0;
+    private static final byte FULL = 1;
+    private static final byte REMOVED = 2;
+
+    private final int keyLength;
+
+    private byte[] keys;
+    private Object[] values;
+    private byte[] states;
+    private int mask;
+    private int threshold;
+
+    private int size = 0;
+    // number of slots which are not FREE
+    private int used = 0;
+
+    public FixedKeyByteArrayMap(int keyLength) {
+        this(keyLength, 16);
+    }
+
+    public FixedKeyByteArrayMap(int keyLength, int expectedSize) {
+        if (keyLength < 8) {
+            throw new IllegalArgumentException("Key length should be at least 8 bytes: " + keyLength);
+        }
+        this.keyLength = keyLength;
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int cap = 16;
+        while (cap * 3 / 4 < expectedSize) cap <<= 1;
+        return cap;
+    }
+
+    private void allocate(int capacity) {
+        keys = new byte[capacity * keyLength];
+        values = new Object[capacity];
+        states = new byte[capacity];
+        mask = capacity - 1;
+        threshold = capacity * 3 / 4;
+    }
+
+    private int hash(byte[] key, int offset) {
+        long h = getLong(key, offset) ^ getLong(key, offset + keyLength - 8);
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        return ((long) b[offset] << 56) | ((long) (b[offset + 1] & 0xFF) << 48) |
+                ((long) (b[offset + 2] & 0xFF) << 40) | ((long) (b[offset + 3] & 0xFF) << 32) |
+                ((long) (b[offset + 4] & 0xFF) << 24) | ((b[offset + 5] & 0xFF) << 16) |
+                ((b[offset + 6] & 0xFF) << 8) | (b[offset + 7] & 0xFF);
+    }
+
+    private boolean keyEquals(int slot, byte[] key) {
+        return FastByteComparisons.compareTo(keys, slot * keyLength, keyLength, key, 0, keyLength) == 0;
+    }
+
+    private int indexOf(Object k) {
+        if (!(k instanceof byte[])) return -1;
+        byte[] key = (byte[]) k;
+        if (key.length != keyLength) return -1;
+
+        for (int i = hash(key, 0) & mask; ; i = (i + 1) & mask) {
+            byte state = states[i];
+            if (state == FREE) return -1;
+            if (state == FULL && keyEquals(i, key)) return i;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public V get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    @Override
+    public V put(byte[] key, V value) {
+        if (key.length != keyLength) {
+            throw new IllegalArgumentException("Wrong key length " + key.length + ", expected " + keyLength);
+        }
+
+        int firstRemoved = -1;
+        int i = hash(key, 0) & mask;
+        for (; ; i = (i + 1) & mask) {
+            byte state = states[i];
+            if (state == FREE) break;
+            if (state == REMOVED) {
+                if (firstRemoved < 0) firstRemoved = i;
+            } else if (keyEquals(i, key)) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+
+        if (firstRemoved >= 0) {
+            i = firstRemoved;
+        } else {
+            used++;
+        }
+        System.arraycopy(key, 0, keys, i * keyLength, keyLength);
+        values[i] = value;
+        states[i] = FULL;
+        size++;
+
+        if (used > threshold) {
+            // grow if the table is really full, otherwise just purge removed slots
+            rehash(size > threshold / 2 ? states.length * 2 : states.length);
+        }
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        int i = indexOf(key);
+        if (i < 0) return null;
+        V old = (V) values[i];
+        removeAt(i);
+        return old;
+    }
+
+    private void removeAt(int i) {
+        states[i] = REMOVED;
+        values[i] = null;
+        size--;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(states, FREE);
+        Arrays.fill(values, null);
+        size = 0;
+        used = 0;
+    }
+
+    private void rehash(int newCapacity) {
+        byte[] oldKeys = keys;
+        Object[] oldValues = values;
+        byte[] oldStates = states;
+        allocate(newCapacity);
+        used = size;
+
+        for (int j = 0; j < oldStates.length; j++) {
+            if (oldStates[j] != FULL) continue;
+            int i = hash(oldKeys, j * keyLength) & mask;
+            while (states[i] != FREE) i = (i + 1) & mask;
+            System.arraycopy(oldKeys, j * keyLength, keys, i * keyLength, keyLength);
+            values[i] = oldValues[j];
+            states[i] = FULL;
+        }
+    }
+
+    private byte[] keyAt(int slot) {
+        return Arrays.copyOfRange(keys, slot * keyLength, (slot + 1) * keyLength);
+    }
+
+    @Override
+    public Set<byte[]> keySet() {
+        return new AbstractSet<byte[]>() {
+            @Override
+            public Iterator<byte[]> iterator() {
+                return new SlotIterator<byte[]>() {
+                    @Override
+                    byte[] get(int slot) {
+                        return keyAt(slot);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                int i = indexOf(o);
+                if (i < 0) return false;
+                removeAt(i);
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                FixedKeyByteArrayMap.this.clear();
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<byte[], V>> entrySet() {
+        return new AbstractSet<Entry<byte[], V>>() {
+            @Override
+            public Iterator<Entry<byte[], V>> iterator() {
+                return new SlotIterator<Entry<byte[], V>>() {
+                    @Override
+                    Entry<byte[], V> get(final int slot) {
+                        return new SimpleEntry<byte[], V>(keyAt(slot), (V) values[slot]) {
+                            @Override
+                            public V setValue(V value) {
+                                values[slot] = value;
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void clear() {
+                FixedKeyByteArrayMap.this.clear();
+            }
+        };
+    }
+
+    private abstract class SlotIterator<E> implements Iterator<E> {
+        int next = -1;
+        int last = -1;
+
+        SlotIterator() {
+            advance();
+        }
+
+        private void advance() {
+            do {
+                next++;
+            } while (next < states.length && states[next] != FULL);
+        }
+
+        abstract E get(int slot);
+
+        @Override
+        public boolean hasNext() {
+            return next < states.length;
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            last = next;
+            advance();
+            return get(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) throw new IllegalStateException();
+            // removed slot is marked only, no entries are moved thus iteration is not affected
+            removeAt(last);
+            last = -1;
+        }
+    }
+}
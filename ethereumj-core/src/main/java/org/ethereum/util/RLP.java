@@ -731,6 +731,110 @@ public class RLP {
         }
     }
 
+    /**
+     * Growable buffer the list RLP is written to element by element,
+     * unlike {@link #encodeList(byte[]...)} no intermediate arrays are allocated.
+     * The buffer is reused for the next list after the {@link #start()}
+     */
+    public static final class ListBuffer {
+        // the list header is written just in front of the payload once the payload size is known
+        private static final int MAX_HEADER_SIZE = 5;
+        private static final int INITIAL_SIZE = 1024;
+        // the buffer grown by a large list isn't kept
+        private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+        private byte[] data = new byte[INITIAL_SIZE];
+        private int start;
+        private int pos;
+
+        public void start() {
+            if (data.length > MAX_RETAINED_SIZE) data = new byte[INITIAL_SIZE];
+            start = pos = MAX_HEADER_SIZE;
+        }
+
+        public void writeElement(byte[] srcData) {
+            writeElement(srcData, 0, srcData == null ? 0 : srcData.length);
+        }
+
+        public void writeElement(byte[] srcData, int off, int len) {
+            ensureCapacity(len + MAX_HEADER_SIZE);
+            if (len == 1 && (srcData[off] & 0xFF) < OFFSET_SHORT_ITEM) {
+                data[pos++] = srcData[off];
+                return;
+            } else if (len < SIZE_THRESHOLD) {
+                data[pos++] = (byte) (OFFSET_SHORT_ITEM + len);
+            } else {
+                writeLength(OFFSET_LONG_ITEM, len);
+            }
+            if (len > 0) System.arraycopy(srcData, off, data, pos, len);
+            pos += len;
+        }
+
+        /**
+         * Writes the already encoded element as is
+         */
+        public void writeEncoded(byte[] encoded) {
+            ensureCapacity(encoded.length);
+            System.arraycopy(encoded, 0, data, pos, encoded.length);
+            pos += encoded.length;
+        }
+
+        /**
+         * Completes the list, no elements may be added afterwards
+         */
+        public void end() {
+            int len = pos - MAX_HEADER_SIZE;
+            if (len < SIZE_THRESHOLD) {
+                start = MAX_HEADER_SIZE - 1;
+                data[start] = (byte) (OFFSET_SHORT_LIST + len);
+            } else {
+                int lenBytes = bytesNum(len);
+                start = MAX_HEADER_SIZE - 1 - lenBytes;
+                data[start] = (byte) (OFFSET_LONG_LIST + lenBytes);
+                for (int i = 0; i < lenBytes; i++) {
+                    data[MAX_HEADER_SIZE - 1 - i] = (byte) (len >> (8 * i));
+                }
+            }
+        }
+
+        public int size() {
+            return pos - start;
+        }
+
+        /**
+         * Buffer holding the list RLP at the {@link #offset()}, valid until the buffer is reused
+         */
+        public byte[] buffer() {
+            return data;
+        }
+
+        public int offset() {
+            return start;
+        }
+
+        public byte[] toArray() {
+            return Arrays.copyOfRange(data, start, pos);
+        }
+
+        private void writeLength(int offset, int len) {
+            int lenBytes = bytesNum(len);
+            data[pos++] = (byte) (offset + lenBytes);
+            for (int i = lenBytes - 1; i >= 0; i--) {
+                data[pos++] = (byte) (len >> (8 * i));
+            }
+        }
+
+        private static int bytesNum(int len) {
+            return (32 - Integer.numberOfLeadingZeros(len) + 7) / 8;
+        }
+
+        private void ensureCapacity(int len) {
+            if (pos + len > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, pos + len));
+            }
+        }
+    }
+
     public static LList decodeLazyList(byte[] data) {
         return decodeLazyList(data, 0, data.length).getList(0);
     }
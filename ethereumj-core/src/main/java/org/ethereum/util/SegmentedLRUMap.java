@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.util;
+
+import java.util.*;
+
+/**
+ * Map bounded by the total weight of its entries with Segmented LRU eviction
+ *
+ * New entries are placed to the probation segment and are promoted to the protected
+ * segment on the first hit. When the protected segment exceeds its share of the weight
+ * its LRU entries are demoted back to the probation. Entries are evicted from the
+ * probation segment first, thus a one-time scan over many entries doesn't flush
+ * the entries which are accessed repeatedly
+ *
+ * The weight of an entry is calculated by the supplied {@link Weigher} which
+ * must return the same value for the same entry. null values are not supported
+ *
+ * The class is not thread safe
+ */
+public class SegmentedLRUMap<K, V> extends AbstractMap<K, V> {
+
+    public interface Weigher<K, V> {
+        long weigh(K key, V value);
+    }
+
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> protect = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Weigher<K, V> weigher;
+    private final long maxWeight;
+    private final long maxProtectedWeight;
+
+    private long probationWeight = 0;
+    private long protectedWeight = 0;
+
+    public SegmentedLRUMap(long maxWeight, Weigher<K, V> weigher) {
+        this.maxWeight = maxWeight;
+        this.maxProtectedWeight = (long) (maxWeight * PROTECTED_SHARE);
+        this.weigher = weigher;
+    }
+
+    /**
+     * Called when the entry is evicted due to the weight limit
+     */
+    protected void onEvict(K key, V value) {}
+
+    /**
+     * @return total weight of the entries
+     */
+    public long getWeight() {
+        return probationWeight + protectedWeight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public int size() {
+        return probation.size() + protect.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return protect.containsKey(key) || probation.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        V value = protect.get(key);
+        if (value != null) return value;
+
+        value = probation.remove(key);
+        if (value == null) return null;
+
+        K k = (K) key;
+        long weight = weigher.weigh(k, value);
+        probationWeight -= weight;
+        protect.put(k, value);
+        protectedWeight += weight;
+
+        while (protectedWeight > maxProtectedWeight && protect.size() > 1) {
+            Iterator<Entry<K, V>> it = protect.entrySet().iterator();
+            Entry<K, V> eldest = it.next();
+            it.remove();
+            weight = weigher.weigh(eldest.getKey(), eldest.getValue());
+            protectedWeight -= weight;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationWeight += weight;
+        }
+        return value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        long weight = weigher.weigh(key, value);
+        V old;
+        if (protect.containsKey(key)) {
+            old = protect.put(key, value);
+            protectedWeight += weight - weigher.weigh(key, old);
+        } else {
+            old = probation.put(key, value);
+            probationWeight += weight - (old == null ? 0 : weigher.weigh(key, old));
+        }
+        evict();
+        return old;
+    }
+
+    private void evict() {
+        while (getWeight() > maxWeight && !isEmpty()) {
+            boolean fromProbation = !probation.isEmpty();
+            Iterator<Entry<K, V>> it = (fromProbation ? probation : protect).entrySet().iterator();
+            Entry<K, V> eldest = it.next();
+            it.remove();
+            long weight = weigher.weigh(eldest.getKey(), eldest.getValue());
+            if (fromProbation) {
+                probationWeight -= weight;
+            } else {
+                protectedWeight -= weight;
+            }
+            onEvict(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        V old = protect.remove(key);
+        if (old != null) {
+            protectedWeight -= weigher.weigh((K) key, old);
+            return old;
+        }
+        old = probation.remove(key);
+        if (old != null) {
+            probationWeight -= weigher.weigh((K) key, old);
+        }
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        probation.clear();
+        protect.clear();
+        probationWeight = 0;
+        protectedWeight = 0;
+    }
+
+    /**
+     * Returns the snapshot of entries, probation segment entries first
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> ret = new LinkedHashSet<>(probation.entrySet());
+        ret.addAll(protect.entrySet());
+        return Collections.unmodifiableSet(ret);
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.ethereum.util;
 
+import org.ethereum.datasource.DbIterator;
 import org.ethereum.datasource.DbSource;
 import org.ethereum.db.ByteArrayWrapper;
 import org.ethereum.vm.DataWord;
@@ -222,10 +223,12 @@ public class Utils {
 
         ArrayList<ByteArrayWrapper> keys = new ArrayList<>();
 
-        for (byte[] key : ds.keys()) {
-            keys.add(ByteUtil.wrap(key));
+        // keys are iterated in the sorted order
+        try (DbIterator<byte[]> it = ds.iterator(null, null)) {
+            while (it.hasNext()) {
+                keys.add(ByteUtil.wrap(it.next()));
+            }
         }
-        Collections.sort(keys);
         return keys;
     }
 
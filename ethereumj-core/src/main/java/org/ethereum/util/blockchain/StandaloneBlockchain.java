@@ -33,6 +33,7 @@ import org.ethereum.datasource.*;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.db.PruneManager;
 import org.ethereum.db.RepositoryRoot;
+import org.ethereum.db.StorageTrieCache;
 import org.ethereum.db.ByteArrayWrapper;
 import org.ethereum.db.IndexedBlockStore;
 import org.ethereum.listener.CompositeEthereumListener;
@@ -90,6 +91,7 @@ public class StandaloneBlockchain implements LocalBlockchain {
 
     private BlockSummary lastSummary;
     private VMHook vmHook = VMHook.EMPTY;
+    private StorageTrieCache storageTrieCache;
 
     class PendingTx {
         ECKey sender;
@@ -206,6 +208,11 @@ public class StandaloneBlockchain implements LocalBlockchain {
         return this;
     }
 
+    public StandaloneBlockchain withStorageTrieCache(StorageTrieCache storageTrieCache) {
+        this.storageTrieCache = storageTrieCache;
+        return this;
+    }
+
     private Map<PendingTx, Transaction> createTransactions(Block parent) {
         Map<PendingTx, Transaction> txes = new LinkedHashMap<>();
         Map<ByteArrayWrapper, Long> nonces = new HashMap<>();
@@ -491,7 +498,10 @@ public class StandaloneBlockchain implements LocalBlockchain {
         pruneManager = new PruneManager(blockStore, pruningStateDS,
                 stateDS, SystemProperties.getDefault().databasePruneDepth());
 
-        final RepositoryRoot repository = new RepositoryRoot(pruningStateDS);
+        if (storageTrieCache == null) {
+            storageTrieCache = new StorageTrieCache(SystemProperties.getDefault().storageTrieCacheSize() * 1024L * 1024);
+        }
+        final RepositoryRoot repository = new RepositoryRoot(pruningStateDS, null, null, storageTrieCache);
 
         ProgramInvokeFactoryImpl programInvokeFactory = new ProgramInvokeFactoryImpl();
         listener = new CompositeEthereumListener();
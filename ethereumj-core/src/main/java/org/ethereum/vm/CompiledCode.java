@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.vm;
+
+import org.ethereum.vm.program.Program;
+import org.ethereum.vm.program.ProgramPrecompile;
+import org.ethereum.vm.program.Stack;
+
+import java.util.List;
+
+import static org.ethereum.vm.OpCode.*;
+
+/**
+ * The blocks of the simple ops (see {@link ProgramPrecompile}) compiled to the chains of the closures.
+ * The op, its arguments and the pc of the next op are decoded once by the compiler and bound
+ * to the closure, e.g. the PUSH data is kept as the stack word, so running the block is
+ * the plain calls of the closures on the stack with no decoding and dispatching of the ops
+ */
+class CompiledCode {
+
+    /**
+     * The compiled op
+     */
+    interface Op {
+        /**
+         * @return the pc of the next op
+         */
+        int run(Program program, Stack stack);
+    }
+
+    static class Block {
+        private final int start;
+        private final int gas;
+        private final int stackMin;
+        private final int stackMax;
+        private final byte lastOp;
+        private final Op[] ops;
+
+        Block(ProgramPrecompile.Block block, byte lastOp, Op[] ops) {
+            this.start = block.getStart();
+            this.gas = block.getGas();
+            this.stackMin = block.getStackMin();
+            this.stackMax = block.getStackMax();
+            this.lastOp = lastOp;
+            this.ops = ops;
+        }
+
+        /**
+         * Works like the {@link VM#executeBlock}, the block which can't be completed is left to the interpreter
+         * @return false if the block wasn't executed
+         */
+        boolean run(Program program) {
+            if (!program.isStackInBounds(stackMin, stackMax) || program.getGasLong() < gas) {
+                return false;
+            }
+
+            program.spendGas(gas, "block");
+
+            Stack stack = program.getStack();
+            int pc = start;
+            for (Op op : ops) {
+                pc = op.run(program, stack);
+            }
+
+            program.setLastOp(lastOp);
+            program.setPreviouslyExecutedOp(lastOp);
+            program.setPC(pc);
+            return true;
+        }
+
+        int size() {
+            return ops.length;
+        }
+    }
+
+    // sorted by the start
+    private final int[] starts;
+    private final Block[] blocks;
+
+    private CompiledCode(int[] starts, Block[] blocks) {
+        this.starts = starts;
+        this.blocks = blocks;
+    }
+
+    public static CompiledCode compile(byte[] code, ProgramPrecompile precompile) {
+        List<ProgramPrecompile.Block> blocks = precompile.getBlocks();
+        int[] starts = new int[blocks.size()];
+        Block[] compiled = new Block[blocks.size()];
+        for (int i = 0; i < blocks.size(); i++) {
+            starts[i] = blocks.get(i).getStart();
+            compiled[i] = compile(code, blocks.get(i));
+        }
+        return new CompiledCode(starts, compiled);
+    }
+
+    /**
+     * @return the compiled block starting at the pc or null if there is no such block
+     */
+    public Block getBlock(int pc) {
+        int lo = 0, hi = starts.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < pc) lo = mid + 1;
+            else if (starts[mid] > pc) hi = mid - 1;
+            else return blocks[mid];
+        }
+        return null;
+    }
+
+    private static Block compile(byte[] code, ProgramPrecompile.Block block) {
+        int count = 0;
+        for (int pc = block.getStart(); pc < block.getEnd(); pc = nextPc(code, pc)) {
+            count++;
+        }
+
+        Op[] ops = new Op[count];
+        OpCode last = null;
+        int i = 0;
+        for (int pc = block.getStart(); pc < block.getEnd(); pc = nextPc(code, pc)) {
+            last = OpCode.code(code[pc]);
+            ops[i++] = compile(code, pc, last);
+        }
+        return new Block(block, last.val(), ops);
+    }
+
+    private static Op compile(byte[] code, int pc, OpCode op) {
+        final int next = nextPc(code, pc);
+        switch (op) {
+            case ADD: return (p, s) -> { s.add(); return next; };
+            case MUL: return (p, s) -> { s.mul(); return next; };
+            case SUB: return (p, s) -> { s.sub(); return next; };
+            case DIV: return (p, s) -> { s.div(); return next; };
+            case SDIV: return (p, s) -> { s.sDiv(); return next; };
+            case MOD: return (p, s) -> { s.mod(); return next; };
+            case SMOD: return (p, s) -> { s.sMod(); return next; };
+            case ADDMOD: return (p, s) -> { s.addmod(); return next; };
+            case MULMOD: return (p, s) -> { s.mulmod(); return next; };
+            case LT: return (p, s) -> { s.lt(); return next; };
+            case GT: return (p, s) -> { s.gt(); return next; };
+            case SLT: return (p, s) -> { s.slt(); return next; };
+            case SGT: return (p, s) -> { s.sgt(); return next; };
+            case EQ: return (p, s) -> { s.eq(); return next; };
+            case ISZERO: return (p, s) -> { s.isZero(); return next; };
+            case AND: return (p, s) -> { s.and(); return next; };
+            case OR: return (p, s) -> { s.or(); return next; };
+            case XOR: return (p, s) -> { s.xor(); return next; };
+            case NOT: return (p, s) -> { s.not(); return next; };
+            case BYTE: return (p, s) -> { s.byteAt(); return next; };
+            case POP: return (p, s) -> { s.drop(); return next; };
+            case JUMPDEST: return (p, s) -> next;
+            case PC: {
+                byte[] data = DataWord.of(pc).getData();
+                return push(data, 0, data.length, next);
+            }
+            // the last op of the block
+            case JUMP: return (p, s) -> p.verifyJumpDest(s.pop());
+            case JUMPI: return (p, s) -> {
+                DataWord pos = s.pop();
+                DataWord cond = s.pop();
+                return cond.isZero() ? next : p.verifyJumpDest(pos);
+            };
+            default:
+                int val = op.val() & 0xFF;
+                if (val >= (PUSH1.val() & 0xFF) && val <= (PUSH32.val() & 0xFF)) {
+                    return push(code, pc + 1, next - pc - 1, next);
+                } else if (val >= (DUP1.val() & 0xFF) && val <= (DUP16.val() & 0xFF)) {
+                    int n = val - (DUP1.val() & 0xFF) + 1;
+                    return (p, s) -> { s.dup(n); return next; };
+                } else if (val >= (SWAP1.val() & 0xFF) && val <= (SWAP16.val() & 0xFF)) {
+                    int n = val - (SWAP1.val() & 0xFF) + 2;
+                    return (p, s) -> { s.swap(s.size() - 1, s.size() - n); return next; };
+                }
+                throw new IllegalStateException("Not a simple op in the block: " + op);
+        }
+    }
+
+    private static Op push(byte[] data, int off, int len, int next) {
+        long[] word = new long[4];
+        UInt256.fromBytes(data, off, len, word, 0);
+        return (p, s) -> { s.push(word); return next; };
+    }
+
+    private static int nextPc(byte[] code, int pc) {
+        int val = code[pc] & 0xFF;
+        if (val >= (PUSH1.val() & 0xFF) && val <= (PUSH32.val() & 0xFF)) {
+            return pc + 1 + val - (PUSH1.val() & 0xFF) + 1;
+        }
+        return pc + 1;
+    }
+}
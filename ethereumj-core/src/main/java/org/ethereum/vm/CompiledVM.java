@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.vm;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.vm.hook.VMHook;
+import org.ethereum.vm.program.Program;
+import org.ethereum.vm.program.ProgramPrecompile;
+
+/**
+ * The {@link VM} running the blocks of the simple ops of the hot code by the {@link CompiledCode},
+ * the rest of the ops and the code which isn't compiled yet are executed by the interpreter
+ *
+ * @see CompilingVMFactory
+ */
+public class CompiledVM extends VM {
+
+    private final CompilingVMFactory factory;
+    private CompiledCode code;
+
+    CompiledVM(SystemProperties config, VMHook hook, CompilingVMFactory factory) {
+        super(config, hook);
+        this.factory = factory;
+    }
+
+    @Override
+    public void run(Program program) {
+        code = factory.getCompiled(program);
+        super.run(program);
+    }
+
+    @Override
+    protected boolean executeBlock(Program program, ProgramPrecompile.Block block) {
+        CompiledCode.Block compiled = code == null ? null : code.getBlock(block.getStart());
+        if (compiled == null) return super.executeBlock(program, block);
+
+        try {
+            if (!compiled.run(program)) return false;
+            vmCounter += compiled.size();
+            return true;
+        } catch (RuntimeException e) {
+            halt(program, e);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.vm;
+
+import org.apache.commons.collections4.map.LRUMap;
+import org.ethereum.config.SystemProperties;
+import org.ethereum.db.ByteArrayWrapper;
+import org.ethereum.vm.hook.VMHook;
+import org.ethereum.vm.program.Program;
+
+import java.util.Map;
+
+/**
+ * Creates the {@link CompiledVM}s sharing the compiled code. The calls of each contract code are
+ * counted by the code hash and the code is compiled once it's called the threshold times,
+ * the rarely run code isn't worth compiling and is left to the interpreter.
+ * The structured trace and the hooks observe each op, then the plain interpreter {@link VM} is created.
+ *
+ * Thread safe, the VMs of the different threads share the factory
+ */
+public class CompilingVMFactory implements VMFactory {
+
+    private final int threshold;
+    // by the code hash, the least recently called code is dropped first
+    private final Map<ByteArrayWrapper, Integer> calls;
+    private final Map<ByteArrayWrapper, CompiledCode> compiled;
+
+    /**
+     * @param threshold number of calls of the code before it's compiled, 1 compiles on the first call
+     * @param maxContracts max number of the contract codes which are counted and kept compiled
+     */
+    public CompilingVMFactory(int threshold, int maxContracts) {
+        this.threshold = Math.max(1, threshold);
+        this.calls = new LRUMap<>(maxContracts);
+        this.compiled = new LRUMap<>(maxContracts);
+    }
+
+    @Override
+    public VM create(SystemProperties config, VMHook hook) {
+        if (config.vmTrace() || !hook.isEmpty()) {
+            return new VM(config, hook);
+        }
+        return new CompiledVM(config, hook, this);
+    }
+
+    /**
+     * Counts the call of the program code
+     * @return the compiled code or null if the code isn't hot yet or it's not the account code
+     */
+    CompiledCode getCompiled(Program program) {
+        if (program.getCodeHash() == null) return null;
+
+        ByteArrayWrapper key = new ByteArrayWrapper(program.getCodeHash());
+        synchronized (this) {
+            CompiledCode ret = compiled.get(key);
+            if (ret != null) return ret;
+
+            Integer count = calls.get(key);
+            count = count == null ? 1 : count + 1;
+            if (count < threshold) {
+                calls.put(key, count);
+                return null;
+            }
+            calls.remove(key);
+        }
+
+        // the same code may be compiled by a few threads at once, any of the results is fine
+        CompiledCode ret = CompiledCode.compile(program.getCode(), program.getProgramPrecompile());
+        synchronized (this) {
+            compiled.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @return true if the code with the hash is compiled
+     */
+    public synchronized boolean isCompiled(byte[] codeHash) {
+        return compiled.containsKey(new ByteArrayWrapper(codeHash));
+    }
+}
@@ -255,10 +255,11 @@ public final class DataWord implements Comparable<DataWord> {
     }
 
     public DataWord bnot() {
-        if (this.isZero()) {
-            return new DataWord(ByteUtil.copyToArray(MAX_VALUE));
+        byte[] newData = this.copyData();
+        for (int i = 0; i < this.data.length; ++i) {
+            newData[i] = (byte) ~newData[i];
         }
-        return new DataWord(ByteUtil.copyToArray(MAX_VALUE.subtract(this.value())));
+        return new DataWord(newData);
     }
 
     // By   : Holger
@@ -279,88 +280,40 @@ public final class DataWord implements Comparable<DataWord> {
         return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
     }
 
-    // TODO: mul can be done in more efficient way
-    // TODO:     with shift left shift right trick
-    // TODO      without BigInteger quick hack
     public DataWord mul(DataWord word) {
-        BigInteger result = value().multiply(word.value());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.mul(limbs(), word.limbs()));
     }
 
-    // TODO: improve with no BigInteger
     public DataWord div(DataWord word) {
-
-        if (word.isZero()) {
-            return ZERO;
-        }
-
-        BigInteger result = value().divide(word.value());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.div(limbs(), word.limbs()));
     }
 
-    // TODO: improve with no BigInteger
     public DataWord sDiv(DataWord word) {
-
-        if (word.isZero()) {
-            return ZERO;
-        }
-
-        BigInteger result = sValue().divide(word.sValue());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.sdiv(limbs(), word.limbs()));
     }
 
-    // TODO: improve with no BigInteger
     public DataWord sub(DataWord word) {
-        BigInteger result = value().subtract(word.value());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.sub(limbs(), word.limbs()));
     }
 
-    // TODO: improve with no BigInteger
     public DataWord exp(DataWord word) {
-        BigInteger newData = value().modPow(word.value(), _2_256);
-        return new DataWord(ByteUtil.copyToArray(newData));
+        return ofLimbs(UInt256.exp(limbs(), word.limbs()));
     }
 
-    // TODO: improve with no BigInteger
     public DataWord mod(DataWord word) {
-
-        if (word.isZero()) {
-            return ZERO;
-        }
-
-        BigInteger result = value().mod(word.value());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.mod(limbs(), word.limbs()));
     }
 
     public DataWord sMod(DataWord word) {
-
-        if (word.isZero()) {
-            return ZERO;
-        }
-
-        BigInteger result = sValue().abs().mod(word.sValue().abs());
-        result = (sValue().signum() == -1) ? result.negate() : result;
-
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.smod(limbs(), word.limbs()));
     }
 
     public DataWord addmod(DataWord word1, DataWord word2) {
-        if (word2.isZero()) {
-            return ZERO;
-        }
-
-        BigInteger result = value().add(word1.value()).mod(word2.value());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.addmod(limbs(), word1.limbs(), word2.limbs()));
     }
 
     public DataWord mulmod(DataWord word1, DataWord word2) {
-
-        if (this.isZero() || word1.isZero() || word2.isZero()) {
-            return ZERO;
-        }
-
-        BigInteger result = value().multiply(word1.value()).mod(word2.value());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.mulmod(limbs(), word1.limbs(), word2.limbs()));
     }
 
     /**
@@ -369,12 +322,11 @@ public final class DataWord implements Comparable<DataWord> {
      * @return this << arg
      */
     public DataWord shiftLeft(DataWord arg) {
-        if (arg.value().compareTo(BigInteger.valueOf(MAX_POW)) >= 0) {
+        if (arg.bytesOccupied() > 1) { // arg >= 256
             return DataWord.ZERO;
         }
-        
-        BigInteger result = value().shiftLeft(arg.intValueSafe());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+
+        return ofLimbs(UInt256.shiftLeft(limbs(), arg.intValue()));
     }
 
     /**
@@ -383,12 +335,11 @@ public final class DataWord implements Comparable<DataWord> {
      * @return this >> arg
      */
     public DataWord shiftRight(DataWord arg) {
-        if (arg.value().compareTo(BigInteger.valueOf(MAX_POW)) >= 0) {
+        if (arg.bytesOccupied() > 1) { // arg >= 256
             return DataWord.ZERO;
         }
 
-        BigInteger result = value().shiftRight(arg.intValueSafe());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.shiftRight(limbs(), arg.intValue()));
     }
 
     /**
@@ -397,7 +348,7 @@ public final class DataWord implements Comparable<DataWord> {
      * @return this >> arg
      */
     public DataWord shiftRightSigned(DataWord arg) {
-        if (arg.value().compareTo(BigInteger.valueOf(MAX_POW)) >= 0) {
+        if (arg.bytesOccupied() > 1) { // arg >= 256
             if (this.isNegative()) {
                 return DataWord.ONE.negate();
             } else {
@@ -405,8 +356,19 @@ public final class DataWord implements Comparable<DataWord> {
             }
         }
 
-        BigInteger result = sValue().shiftRight(arg.intValueSafe());
-        return new DataWord(ByteUtil.copyToArray(result.and(MAX_VALUE)));
+        return ofLimbs(UInt256.shiftRightSigned(limbs(), arg.intValue()));
+    }
+
+    /**
+     * The arithmetic is done over the four long limbs, see {@link UInt256}
+     */
+    private long[] limbs() {
+        return UInt256.fromBytes(data);
+    }
+
+    private static DataWord ofLimbs(long[] limbs) {
+        if (UInt256.isZero(limbs)) return ZERO;
+        return new DataWord(UInt256.toBytes(limbs));
     }
 
     @JsonValue
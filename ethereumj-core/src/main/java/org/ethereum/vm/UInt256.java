@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.vm;
+
+import java.util.Arrays;
+
+/**
+ * 256-bit arithmetic over four long limbs with the EVM semantics:
+ * the results are taken modulo 2^256 and the division by zero gives zero.
+ *
+ * The limbs are little-endian, i.e. {@code w[0]} holds the lowest 64 bits.
+ * The multiplication and the division (Knuth's Algorithm D) work over the 32-bit
+ * digits since Java 8 has no unsigned 64 by 64 bit product nor 128 by 64 bit division.
+ *
+ * The cheap ops have the forms working in place on the words laid out in a flat array,
+ * like the {@link org.ethereum.vm.program.Stack} does
+ */
+public final class UInt256 {
+
+    private static final long INT_MASK = 0xFFFFFFFFL;
+
+    private UInt256() {}
+
+    public static long[] fromBytes(byte[] data) {
+        long[] w = new long[4];
+        fromBytes(data, 0, data.length, w, 0);
+        return w;
+    }
+
+    /**
+     * Reads the big-endian number, up to 32 bytes long
+     */
+    public static void fromBytes(byte[] data, int off, int len, long[] r, int rOff) {
+        int end = off + len;
+        for (int i = 0; i < 4; i++) {
+            long v = 0;
+            for (int j = Math.max(end - 8 * i - 8, off); j < end - 8 * i; j++) {
+                v = (v << 8) | (data[j] & 0xFF);
+            }
+            r[rOff + i] = v;
+        }
+    }
+
+    public static byte[] toBytes(long[] w) {
+        return toBytes(w, 0);
+    }
+
+    public static byte[] toBytes(long[] w, int off) {
+        byte[] data = new byte[32];
+        toBytes(w, off, data, 0);
+        return data;
+    }
+
+    /**
+     * Writes the 32 bytes big-endian number at data[dataOff, dataOff + 32)
+     */
+    public static void toBytes(long[] w, int off, byte[] data, int dataOff) {
+        for (int i = 0; i < 4; i++) {
+            long v = w[off + 3 - i];
+            for (int j = dataOff + i * 8 + 7; j >= dataOff + i * 8; j--) {
+                data[j] = (byte) v;
+                v >>>= 8;
+            }
+        }
+    }
+
+    public static boolean isZero(long[] a) {
+        return (a[0] | a[1] | a[2] | a[3]) == 0;
+    }
+
+    public static boolean isNegative(long[] a) {
+        return a[3] < 0;
+    }
+
+    public static int compare(long[] a, long[] b) {
+        return compare(a, 0, b, 0);
+    }
+
+    public static int compare(long[] a, int aOff, long[] b, int bOff) {
+        for (int i = 3; i >= 0; i--) {
+            if (a[aOff + i] != b[bOff + i]) return Long.compareUnsigned(a[aOff + i], b[bOff + i]);
+        }
+        return 0;
+    }
+
+    /**
+     * Compares the words as the two's complement signed numbers
+     */
+    public static int compareSigned(long[] a, int aOff, long[] b, int bOff) {
+        long x = a[aOff + 3], y = b[bOff + 3];
+        if ((x ^ y) < 0) return x < 0 ? -1 : 1;
+        return compare(a, aOff, b, bOff);
+    }
+
+    public static long[] add(long[] a, long[] b) {
+        long[] r = new long[4];
+        add(a, 0, b, 0, r, 0);
+        return r;
+    }
+
+    /**
+     * r = a + b, the result may overwrite the arguments
+     */
+    public static void add(long[] a, int aOff, long[] b, int bOff, long[] r, int rOff) {
+        long carry = 0;
+        for (int i = 0; i < 4; i++) {
+            long x = a[aOff + i], y = b[bOff + i];
+            long s = x + y + carry;
+            carry = ((x & y) | ((x | y) & ~s)) >>> 63;
+            r[rOff + i] = s;
+        }
+    }
+
+    public static long[] sub(long[] a, long[] b) {
+        long[] r = new long[4];
+        sub(a, 0, b, 0, r, 0);
+        return r;
+    }
+
+    /**
+     * r = a - b, the result may overwrite the arguments
+     */
+    public static void sub(long[] a, int aOff, long[] b, int bOff, long[] r, int rOff) {
+        long borrow = 0;
+        for (int i = 0; i < 4; i++) {
+            long x = a[aOff + i], y = b[bOff + i];
+            long d = x - y - borrow;
+            borrow = ((~x & y) | (~(x ^ y) & d)) >>> 63;
+            r[rOff + i] = d;
+        }
+    }
+
+    public static long[] negate(long[] a) {
+        long[] r = new long[4];
+        long carry = 1;
+        for (int i = 0; i < 4; i++) {
+            long s = ~a[i] + carry;
+            carry = carry != 0 && s == 0 ? 1 : 0;
+            r[i] = s;
+        }
+        return r;
+    }
+
+    public static long[] mul(long[] a, long[] b) {
+        return mul(a, b, 8);
+    }
+
+    /**
+     * The product which isn't truncated, 8 limbs long
+     */
+    public static long[] mulFull(long[] a, long[] b) {
+        return mul(a, b, 16);
+    }
+
+    /**
+     * Schoolbook multiplication over the 32-bit digits, as the
+     * 64-bit digit products would need the unsigned 128-bit result
+     * @param digits count of the lowest product digits to compute
+     */
+    private static long[] mul(long[] a, long[] b, int digits) {
+        int[] ad = toDigits(a), bd = toDigits(b);
+        int bn = significantDigits(bd);
+        long[] acc = new long[digits];
+        for (int i = 0; i < 8; i++) {
+            long ai = ad[i] & INT_MASK;
+            if (ai == 0) continue;
+            long carry = 0;
+            int j = 0;
+            for (; j < bn && i + j < digits; j++) {
+                long t = ai * (bd[j] & INT_MASK) + acc[i + j] + carry;
+                acc[i + j] = t & INT_MASK;
+                carry = t >>> 32;
+            }
+            if (i + j < digits) acc[i + j] = carry;
+        }
+        long[] r = new long[digits / 2];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = acc[2 * i] | (acc[2 * i + 1] << 32);
+        }
+        return r;
+    }
+
+    public static long[] div(long[] a, long[] b) {
+        if (isZero(b)) return new long[4];
+        if ((a[1] | a[2] | a[3] | b[1] | b[2] | b[3]) == 0) {
+            return new long[] {Long.divideUnsigned(a[0], b[0]), 0, 0, 0};
+        }
+        if (compare(a, b) < 0) return new long[4];
+        return divmod(a, b, false);
+    }
+
+    public static long[] mod(long[] a, long[] b) {
+        if (isZero(b)) return new long[4];
+        if ((a[1] | a[2] | a[3] | b[1] | b[2] | b[3]) == 0) {
+            return new long[] {Long.remainderUnsigned(a[0], b[0]), 0, 0, 0};
+        }
+        if (compare(a, b) < 0) return a.clone();
+        return divmod(a, b, true);
+    }
+
+    /**
+     * Signed division, rounds towards zero, -2^255 / -1 overflows to -2^255
+     */
+    public static long[] sdiv(long[] a, long[] b) {
+        if (isZero(b)) return new long[4];
+        boolean negA = isNegative(a), negB = isNegative(b);
+        long[] r = div(negA ? negate(a) : a, negB ? negate(b) : b);
+        return negA != negB ? negate(r) : r;
+    }
+
+    /**
+     * Signed remainder, has the sign of the dividend
+     */
+    public static long[] smod(long[] a, long[] b) {
+        if (isZero(b)) return new long[4];
+        boolean negA = isNegative(a);
+        long[] r = mod(negA ? negate(a) : a, isNegative(b) ? negate(b) : b);
+        return negA ? negate(r) : r;
+    }
+
+    /**
+     * (a + b) % m where the sum isn't truncated
+     */
+    public static long[] addmod(long[] a, long[] b, long[] m) {
+        if (isZero(m)) return new long[4];
+        long[] s = add(a, b);
+        if (compare(s, a) >= 0) return mod(s, m);
+        // the sum has overflown, the 257th bit is restored
+        return divmod(new long[] {s[0], s[1], s[2], s[3], 1}, m, true);
+    }
+
+    /**
+     * (a * b) % m where the product isn't truncated
+     */
+    public static long[] mulmod(long[] a, long[] b, long[] m) {
+        if (isZero(m) || isZero(a) || isZero(b)) return new long[4];
+        long[] p = mulFull(a, b);
+        if ((p[4] | p[5] | p[6] | p[7]) == 0) return mod(p, m);
+        return divmod(p, m, true);
+    }
+
+    public static long[] exp(long[] base, long[] e) {
+        long[] r = {1, 0, 0, 0};
+        int bits = bitLength(e);
+        if (bits == 0) return r;
+        if ((base[1] | base[2] | base[3]) == 0 && (base[0] == 0 || base[0] == 1)) return base.clone();
+
+        // square-and-multiply over the digits, updated in place to not allocate per step
+        int[] b = toDigits(base);
+        int[] rd = toDigits(r);
+        long[] acc = new long[8];
+        for (int i = bits - 1; i >= 0; i--) {
+            squareTruncated(rd, acc);
+            if ((e[i >>> 6] & (1L << i)) != 0) mulTruncated(rd, b, acc);
+        }
+        return fromDigits(rd);
+    }
+
+    /**
+     * x = x * x truncated to 256 bits, the cross products are computed once and doubled
+     */
+    private static void squareTruncated(int[] x, long[] acc) {
+        Arrays.fill(acc, 0);
+        for (int i = 0; i < 4; i++) {
+            long xi = x[i] & INT_MASK;
+            if (xi == 0) continue;
+            long carry = 0;
+            for (int j = i + 1; i + j < 8; j++) {
+                long t = xi * (x[j] & INT_MASK) + acc[i + j] + carry;
+                acc[i + j] = t & INT_MASK;
+                carry = t >>> 32;
+            }
+        }
+        long carry = 0;
+        for (int k = 0; k < 8; k++) {
+            long t = (acc[k] << 1) | carry;
+            acc[k] = t & INT_MASK;
+            carry = t >>> 32;
+        }
+        carry = 0;
+        for (int i = 0; i < 4; i++) {
+            long xi = x[i] & INT_MASK;
+            long sq = xi * xi;
+            long t = acc[2 * i] + (sq & INT_MASK) + carry;
+            acc[2 * i] = t & INT_MASK;
+            t = acc[2 * i + 1] + (sq >>> 32) + (t >>> 32);
+            acc[2 * i + 1] = t & INT_MASK;
+            carry = t >>> 32;
+        }
+        for (int i = 0; i < 8; i++) {
+            x[i] = (int) acc[i];
+        }
+    }
+
+    /**
+     * x = x * y truncated to 256 bits, both are 8 digits long
+     */
+    private static void mulTruncated(int[] x, int[] y, long[] acc) {
+        Arrays.fill(acc, 0);
+        for (int i = 0; i < 8; i++) {
+            long xi = x[i] & INT_MASK;
+            if (xi == 0) continue;
+            long carry = 0;
+            for (int j = 0; i + j < 8; j++) {
+                long t = xi * (y[j] & INT_MASK) + acc[i + j] + carry;
+                acc[i + j] = t & INT_MASK;
+                carry = t >>> 32;
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            x[i] = (int) acc[i];
+        }
+    }
+
+    public static int bitLength(long[] a) {
+        for (int i = a.length - 1; i >= 0; i--) {
+            if (a[i] != 0) return i * 64 + 64 - Long.numberOfLeadingZeros(a[i]);
+        }
+        return 0;
+    }
+
+    /**
+     * @param n shift, should be less than 256
+     */
+    public static long[] shiftLeft(long[] a, int n) {
+        long[] r = new long[4];
+        shiftLeft(a, 0, n, r, 0);
+        return r;
+    }
+
+    /**
+     * r = a << n, the result may overwrite the argument
+     * @param n shift, should be less than 256
+     */
+    public static void shiftLeft(long[] a, int aOff, int n, long[] r, int rOff) {
+        int limbs = n >>> 6, bits = n & 63;
+        for (int i = 3; i >= limbs; i--) {
+            long v = a[aOff + i - limbs] << bits;
+            if (bits != 0 && i - limbs > 0) v |= a[aOff + i - limbs - 1] >>> (64 - bits);
+            r[rOff + i] = v;
+        }
+        for (int i = 0; i < limbs; i++) {
+            r[rOff + i] = 0;
+        }
+    }
+
+    /**
+     * @param n shift, should be less than 256
+     */
+    public static long[] shiftRight(long[] a, int n) {
+        long[] r = new long[4];
+        shiftRight(a, 0, n, 0, r, 0);
+        return r;
+    }
+
+    /**
+     * @param n shift, should be less than 256
+     */
+    public static long[] shiftRightSigned(long[] a, int n) {
+        long[] r = new long[4];
+        shiftRightSigned(a, 0, n, r, 0);
+        return r;
+    }
+
+    /**
+     * r = a >>> n, the result may overwrite the argument
+     * @param n shift, should be less than 256
+     */
+    public static void shiftRight(long[] a, int aOff, int n, long[] r, int rOff) {
+        shiftRight(a, aOff, n, 0, r, rOff);
+    }
+
+    /**
+     * r = a >> n, the result may overwrite the argument
+     * @param n shift, should be less than 256
+     */
+    public static void shiftRightSigned(long[] a, int aOff, int n, long[] r, int rOff) {
+        shiftRight(a, aOff, n, a[aOff + 3] >> 63, r, rOff);
+    }
+
+    private static void shiftRight(long[] a, int aOff, int n, long fill, long[] r, int rOff) {
+        int limbs = n >>> 6, bits = n & 63;
+        for (int i = 0; i < 4; i++) {
+            long v;
+            if (bits != 0) {
+                v = (limb(a, aOff, i + limbs, fill) >>> bits) | (limb(a, aOff, i + limbs + 1, fill) << (64 - bits));
+            } else {
+                v = limb(a, aOff, i + limbs, fill);
+            }
+            r[rOff + i] = v;
+        }
+    }
+
+    private static long limb(long[] a, int aOff, int i, long fill) {
+        return i < 4 ? a[aOff + i] : fill;
+    }
+
+    /**
+     * Divides any unsigned number by the 256-bit one
+     * @param u dividend, any count of limbs
+     * @param v divisor, 4 limbs, non-zero
+     * @return the remainder if {@code remainder} is set, otherwise the quotient truncated to 256 bits
+     */
+    private static long[] divmod(long[] u, long[] v, boolean remainder) {
+        int[] ud = toDigits(u);
+        int[] vd = toDigits(v);
+        int m = significantDigits(ud), n = significantDigits(vd);
+        int[] q = new int[Math.max(m - n + 1, 1)];
+        int[] r = new int[n];
+
+        if (m < n) {
+            System.arraycopy(ud, 0, r, 0, m);
+        } else if (n == 1) {
+            long d = vd[0] & INT_MASK;
+            long k = 0;
+            for (int j = m - 1; j >= 0; j--) {
+                long t = (k << 32) | (ud[j] & INT_MASK);
+                q[j] = (int) Long.divideUnsigned(t, d);
+                k = Long.remainderUnsigned(t, d);
+            }
+            r[0] = (int) k;
+        } else {
+            divmodKnuth(ud, m, vd, n, q, r);
+        }
+        return fromDigits(remainder ? r : q);
+    }
+
+    /**
+     * Knuth's Algorithm D (TAOCP vol. 2, 4.3.1), m >= n >= 2
+     */
+    private static void divmodKnuth(int[] u, int m, int[] v, int n, int[] q, int[] r) {
+        // normalizing, so the highest divisor digit has the top bit set
+        int s = Integer.numberOfLeadingZeros(v[n - 1]);
+        int[] vn = new int[n];
+        for (int i = n - 1; i > 0; i--) {
+            vn[i] = (v[i] << s) | (s == 0 ? 0 : v[i - 1] >>> (32 - s));
+        }
+        vn[0] = v[0] << s;
+        int[] un = new int[m + 1];
+        un[m] = s == 0 ? 0 : u[m - 1] >>> (32 - s);
+        for (int i = m - 1; i > 0; i--) {
+            un[i] = (u[i] << s) | (s == 0 ? 0 : u[i - 1] >>> (32 - s));
+        }
+        un[0] = u[0] << s;
+
+        long vTop = vn[n - 1] & INT_MASK, vNext = vn[n - 2] & INT_MASK;
+        for (int j = m - n; j >= 0; j--) {
+            // estimating the quotient digit, it may exceed the real one by 1 at most
+            long num = ((un[j + n] & INT_MASK) << 32) | (un[j + n - 1] & INT_MASK);
+            long qhat = Long.divideUnsigned(num, vTop);
+            long rhat = num - qhat * vTop;
+            while (qhat > INT_MASK ||
+                    Long.compareUnsigned(qhat * vNext, (rhat << 32) | (un[j + n - 2] & INT_MASK)) > 0) {
+                qhat--;
+                rhat += vTop;
+                if (rhat > INT_MASK) break;
+            }
+
+            // multiplying and subtracting
+            long k = 0, t;
+            for (int i = 0; i < n; i++) {
+                long p = qhat * (vn[i] & INT_MASK);
+                t = (un[i + j] & INT_MASK) - k - (p & INT_MASK);
+                un[i + j] = (int) t;
+                k = (p >>> 32) - (t >> 32);
+            }
+            t = (un[j + n] & INT_MASK) - k;
+            un[j + n] = (int) t;
+
+            if (t < 0) {
+                // subtracted too much, adding back
+                qhat--;
+                k = 0;
+                for (int i = 0; i < n; i++) {
+                    t = (un[i + j] & INT_MASK) + (vn[i] & INT_MASK) + k;
+                    un[i + j] = (int) t;
+                    k = t >>> 32;
+                }
+                un[j + n] += (int) k;
+            }
+            q[j] = (int) qhat;
+        }
+
+        // unnormalizing the remainder
+        for (int i = 0; i < n - 1; i++) {
+            r[i] = (un[i] >>> s) | (s == 0 ? 0 : un[i + 1] << (32 - s));
+        }
+        r[n - 1] = un[n - 1] >>> s;
+    }
+
+    private static int[] toDigits(long[] w) {
+        int[] d = new int[w.length * 2];
+        for (int i = 0; i < w.length; i++) {
+            d[2 * i] = (int) w[i];
+            d[2 * i + 1] = (int) (w[i] >>> 32);
+        }
+        return d;
+    }
+
+    private static long[] fromDigits(int[] d) {
+        long[] w = new long[4];
+        for (int i = 0; i < d.length && i < 8; i++) {
+            w[i >>> 1] |= (d[i] & INT_MASK) << ((i & 1) * 32);
+        }
+        return w;
+    }
+
+    private static int significantDigits(int[] d) {
+        int n = d.length;
+        while (n > 0 && d[n - 1] == 0) n--;
+        return n;
+    }
+}
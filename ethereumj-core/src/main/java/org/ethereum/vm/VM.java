@@ -22,6 +22,7 @@ import org.ethereum.config.SystemProperties;
 import org.ethereum.db.ContractDetails;
 import org.ethereum.vm.hook.VMHook;
 import org.ethereum.vm.program.Program;
+import org.ethereum.vm.program.ProgramPrecompile;
 import org.ethereum.vm.program.Stack;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,7 +38,6 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
-import static org.ethereum.crypto.HashUtil.sha3;
 import static org.ethereum.util.ByteUtil.EMPTY_BYTE_ARRAY;
 import static org.ethereum.util.ByteUtil.toHexString;
 import static org.ethereum.vm.OpCode.*;
@@ -92,7 +92,7 @@ public class VM {
     private static BigInteger MAX_MEM_SIZE = BigInteger.valueOf(Integer.MAX_VALUE);
 
     /* Keeps track of the number of steps performed in this VM */
-    private int vmCounter = 0;
+    int vmCounter = 0;
 
     private boolean vmTrace;
     private long dumpBlock;
@@ -452,99 +452,66 @@ public class VM {
                 }
                 break;
                 case ADD: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " + " + word2.value();
+                        hint = stack.peek().value() + " + " + stack.get(stack.size() - 2).value();
 
-                    DataWord addResult = word1.add(word2);
-                    program.stackPush(addResult);
+                    stack.add();
                     program.step();
-
                 }
                 break;
                 case MUL: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " * " + word2.value();
+                        hint = stack.peek().value() + " * " + stack.get(stack.size() - 2).value();
 
-                    DataWord mulResult = word1.mul(word2);
-                    program.stackPush(mulResult);
+                    stack.mul();
                     program.step();
                 }
                 break;
                 case SUB: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " - " + word2.value();
+                        hint = stack.peek().value() + " - " + stack.get(stack.size() - 2).value();
 
-                    DataWord subResult = word1.sub(word2);
-                    program.stackPush(subResult);
+                    stack.sub();
                     program.step();
                 }
                 break;
                 case DIV: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " / " + word2.value();
+                        hint = stack.peek().value() + " / " + stack.get(stack.size() - 2).value();
 
-                    DataWord divResult = word1.div(word2);
-                    program.stackPush(divResult);
+                    stack.div();
                     program.step();
                 }
                 break;
                 case SDIV: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.sValue() + " / " + word2.sValue();
+                        hint = stack.peek().sValue() + " / " + stack.get(stack.size() - 2).sValue();
 
-                    DataWord sDivResult = word1.sDiv(word2);
-                    program.stackPush(sDivResult);
+                    stack.sDiv();
                     program.step();
                 }
                 break;
                 case MOD: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " % " + word2.value();
+                        hint = stack.peek().value() + " % " + stack.get(stack.size() - 2).value();
 
-                    DataWord modResult = word1.mod(word2);
-                    program.stackPush(modResult);
+                    stack.mod();
                     program.step();
                 }
                 break;
                 case SMOD: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.sValue() + " #% " + word2.sValue();
+                        hint = stack.peek().sValue() + " #% " + stack.get(stack.size() - 2).sValue();
 
-                    DataWord sModResult = word1.sMod(word2);
-                    program.stackPush(sModResult);
+                    stack.sMod();
                     program.step();
                 }
                 break;
                 case EXP: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " ** " + word2.value();
+                        hint = stack.peek().value() + " ** " + stack.get(stack.size() - 2).value();
 
-                    DataWord expResult = word1.exp(word2);
-                    program.stackPush(expResult);
+                    stack.exp();
                     program.step();
                 }
                 break;
@@ -563,107 +530,59 @@ public class VM {
                 }
                 break;
                 case NOT: {
-                    DataWord word1 = program.stackPop();
-                    DataWord bnotWord = word1.bnot();
+                    stack.not();
 
                     if (logger.isInfoEnabled())
-                        hint = "" + bnotWord.value();
+                        hint = "" + stack.peek().value();
 
-                    program.stackPush(bnotWord);
                     program.step();
                 }
                 break;
                 case LT: {
-                    // TODO: can be improved by not using BigInteger
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " < " + word2.value();
+                        hint = stack.peek().value() + " < " + stack.get(stack.size() - 2).value();
 
-                    if (word1.value().compareTo(word2.value()) == -1) {
-                        program.stackPush(DataWord.ONE);
-                    } else {
-                        program.stackPush(DataWord.ZERO);
-                    }
+                    stack.lt();
                     program.step();
                 }
                 break;
                 case SLT: {
-                    // TODO: can be improved by not using BigInteger
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.sValue() + " < " + word2.sValue();
+                        hint = stack.peek().sValue() + " < " + stack.get(stack.size() - 2).sValue();
 
-                    if (word1.sValue().compareTo(word2.sValue()) == -1) {
-                        program.stackPush(DataWord.ONE);
-                    } else {
-                        program.stackPush(DataWord.ZERO);
-                    }
+                    stack.slt();
                     program.step();
                 }
                 break;
                 case SGT: {
-                    // TODO: can be improved by not using BigInteger
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.sValue() + " > " + word2.sValue();
+                        hint = stack.peek().sValue() + " > " + stack.get(stack.size() - 2).sValue();
 
-                    if (word1.sValue().compareTo(word2.sValue()) == 1) {
-                        program.stackPush(DataWord.ONE);
-                    } else {
-                        program.stackPush(DataWord.ZERO);
-                    }
+                    stack.sgt();
                     program.step();
                 }
                 break;
                 case GT: {
-                    // TODO: can be improved by not using BigInteger
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " > " + word2.value();
+                        hint = stack.peek().value() + " > " + stack.get(stack.size() - 2).value();
 
-                    if (word1.value().compareTo(word2.value()) == 1) {
-                        program.stackPush(DataWord.ONE);
-                    } else {
-                        program.stackPush(DataWord.ZERO);
-                    }
+                    stack.gt();
                     program.step();
                 }
                 break;
                 case EQ: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " == " + word2.value();
+                        hint = stack.peek().value() + " == " + stack.get(stack.size() - 2).value();
 
-                    DataWord xorResult = word1.xor(word2);
-                    if (xorResult.isZero()) {
-                        program.stackPush(DataWord.ONE);
-                    } else {
-                        program.stackPush(DataWord.ZERO);
-                    }
+                    stack.eq();
                     program.step();
                 }
                 break;
                 case ISZERO: {
-                    DataWord word1 = program.stackPop();
-                    if (word1.isZero()) {
-                        program.stackPush(DataWord.ONE);
-                    } else {
-                        program.stackPush(DataWord.ZERO);
-                    }
-
                     if (logger.isInfoEnabled())
-                        hint = "" + word1.value();
+                        hint = "" + stack.peek().value();
 
+                    stack.isZero();
                     program.step();
                 }
                 break;
@@ -672,110 +591,72 @@ public class VM {
                  * Bitwise Logic Operations
                  */
                 case AND: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " && " + word2.value();
+                        hint = stack.peek().value() + " && " + stack.get(stack.size() - 2).value();
 
-                    DataWord andResult = word1.and(word2);
-                    program.stackPush(andResult);
+                    stack.and();
                     program.step();
                 }
                 break;
                 case OR: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " || " + word2.value();
+                        hint = stack.peek().value() + " || " + stack.get(stack.size() - 2).value();
 
-                    DataWord orResult = word1.or(word2);
-                    program.stackPush(orResult);
+                    stack.or();
                     program.step();
                 }
                 break;
                 case XOR: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-
                     if (logger.isInfoEnabled())
-                        hint = word1.value() + " ^ " + word2.value();
+                        hint = stack.peek().value() + " ^ " + stack.get(stack.size() - 2).value();
 
-                    DataWord xorResult = word1.xor(word2);
-                    program.stackPush(xorResult);
+                    stack.xor();
                     program.step();
                 }
                 break;
                 case BYTE: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-                    final DataWord result;
-                    if (word1.value().compareTo(_32_) == -1) {
-                        byte tmp = word2.getData()[word1.intValue()];
-                        result = DataWord.of(tmp);
-                    } else {
-                        result = DataWord.ZERO;
-                    }
+                    stack.byteAt();
 
                     if (logger.isInfoEnabled())
-                        hint = "" + result.value();
+                        hint = "" + stack.peek().value();
 
-                    program.stackPush(result);
                     program.step();
                 }
                 break;
                 case SHL: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-                    final DataWord result = word2.shiftLeft(word1);
+                    stack.shiftLeft();
 
                     if (logger.isInfoEnabled())
-                        hint = "" + result.value();
+                        hint = "" + stack.peek().value();
 
-                    program.stackPush(result);
                     program.step();
                 }
                 break;
                 case SHR: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-                    final DataWord result = word2.shiftRight(word1);
+                    stack.shiftRight();
 
                     if (logger.isInfoEnabled())
-                        hint = "" + result.value();
+                        hint = "" + stack.peek().value();
 
-                    program.stackPush(result);
                     program.step();
                 }
                 break;
                 case SAR: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-                    final DataWord result = word2.shiftRightSigned(word1);
+                    stack.shiftRightSigned();
 
                     if (logger.isInfoEnabled())
-                        hint = "" + result.value();
+                        hint = "" + stack.peek().value();
 
-                    program.stackPush(result);
                     program.step();
                 }
                 break;
                 case ADDMOD: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-                    DataWord word3 = program.stackPop();
-                    DataWord addmodResult = word1.addmod(word2, word3);
-                    program.stackPush(addmodResult);
+                    stack.addmod();
                     program.step();
                 }
                 break;
                 case MULMOD: {
-                    DataWord word1 = program.stackPop();
-                    DataWord word2 = program.stackPop();
-                    DataWord word3 = program.stackPop();
-                    DataWord mulmodResult = word1.mulmod(word2, word3);
-                    program.stackPush(mulmodResult);
+                    stack.mulmod();
                     program.step();
                 }
                 break;
@@ -786,9 +667,7 @@ public class VM {
                 case SHA3: {
                     DataWord memOffsetData = program.stackPop();
                     DataWord lengthData = program.stackPop();
-                    byte[] buffer = program.memoryChunk(memOffsetData.intValueSafe(), lengthData.intValueSafe());
-
-                    byte[] encoded = sha3(buffer);
+                    byte[] encoded = program.memoryChunkHash(memOffsetData.intValueSafe(), lengthData.intValueSafe());
                     DataWord word = DataWord.of(encoded);
 
                     if (logger.isInfoEnabled())
@@ -1055,7 +934,7 @@ public class VM {
                 }
                 break;
                 case POP: {
-                    program.stackPop();
+                    stack.drop();
                     program.step();
                 }   break;
                 case DUP1: case DUP2: case DUP3: case DUP4:
@@ -1064,8 +943,7 @@ public class VM {
                 case DUP13: case DUP14: case DUP15: case DUP16:{
 
                     int n = op.val() - OpCode.DUP1.val() + 1;
-                    DataWord word_1 = stack.get(stack.size() - n);
-                    program.stackPush(word_1);
+                    stack.dup(n);
                     program.step();
 
                 }   break;
@@ -1113,23 +991,21 @@ public class VM {
                 break;
                 case MLOAD: {
                     DataWord addr = program.stackPop();
-                    DataWord data = program.memoryLoad(addr);
+                    program.memoryLoadToStack(addr);
 
                     if (logger.isInfoEnabled())
-                        hint = "data: " + data;
+                        hint = "data: " + program.getStack().peek();
 
-                    program.stackPush(data);
                     program.step();
                 }
                 break;
                 case MSTORE: {
                     DataWord addr = program.stackPop();
-                    DataWord value = program.stackPop();
 
                     if (logger.isInfoEnabled())
-                        hint = "addr: " + addr + " value: " + value;
+                        hint = "addr: " + addr + " value: " + program.getStack().peek();
 
-                    program.memorySave(addr, value);
+                    program.memorySaveFromStack(addr);
                     program.step();
                 }
                 break;
@@ -1416,16 +1292,116 @@ public class VM {
 
             vmCounter++;
         } catch (RuntimeException e) {
-            logger.warn("VM halted: [{}]", e);
-            program.spendAllGas();
-            program.resetFutureRefund();
-            program.stop();
+            halt(program, e);
             throw e;
         } finally {
             program.fullTrace();
         }
     }
 
+    void halt(Program program, RuntimeException e) {
+        logger.warn("VM halted: [{}]", e);
+        program.spendAllGas();
+        program.resetFutureRefund();
+        program.stop();
+    }
+
+    /**
+     * Runs the block of the simple ops at once: the gas and the stack bounds are checked
+     * for the whole block, then the ops are executed without the per op validation and metering.
+     * The block which can't be completed is left to the {@link #step}, so it fails at the same op
+     * @return false if the block wasn't executed
+     */
+    protected boolean executeBlock(Program program, ProgramPrecompile.Block block) {
+        if (!program.isStackInBounds(block.getStackMin(), block.getStackMax()) ||
+                program.getGasLong() < block.getGas()) {
+            return false;
+        }
+
+        try {
+            program.spendGas(block.getGas(), "block");
+
+            byte[] code = program.getCode();
+            Stack stack = program.getStack();
+            int pc = block.getStart();
+            OpCode op = null;
+            while (pc < block.getEnd()) {
+                op = OpCode.code(code[pc]);
+                vmCounter++;
+                int next = pc + 1;
+                switch (op) {
+                    case ADD: stack.add(); break;
+                    case MUL: stack.mul(); break;
+                    case SUB: stack.sub(); break;
+                    case DIV: stack.div(); break;
+                    case SDIV: stack.sDiv(); break;
+                    case MOD: stack.mod(); break;
+                    case SMOD: stack.sMod(); break;
+                    case ADDMOD: stack.addmod(); break;
+                    case MULMOD: stack.mulmod(); break;
+                    case LT: stack.lt(); break;
+                    case GT: stack.gt(); break;
+                    case SLT: stack.slt(); break;
+                    case SGT: stack.sgt(); break;
+                    case EQ: stack.eq(); break;
+                    case ISZERO: stack.isZero(); break;
+                    case AND: stack.and(); break;
+                    case OR: stack.or(); break;
+                    case XOR: stack.xor(); break;
+                    case NOT: stack.not(); break;
+                    case BYTE: stack.byteAt(); break;
+                    case POP: stack.drop(); break;
+                    case PC: stack.push(DataWord.of(pc)); break;
+                    case JUMPDEST: break;
+                    case JUMP:
+                        // the last op of the block
+                        next = program.verifyJumpDest(stack.pop());
+                        break;
+                    case JUMPI: {
+                        DataWord pos = stack.pop();
+                        DataWord cond = stack.pop();
+                        if (!cond.isZero()) next = program.verifyJumpDest(pos);
+                    }
+                    break;
+                    default:
+                        int val = op.val() & 0xFF;
+                        if (val >= (PUSH1.val() & 0xFF) && val <= (PUSH32.val() & 0xFF)) {
+                            int nPush = val - (PUSH1.val() & 0xFF) + 1;
+                            stack.push(code, next, nPush);
+                            next += nPush;
+                        } else if (val >= (DUP1.val() & 0xFF) && val <= (DUP16.val() & 0xFF)) {
+                            stack.dup(val - (DUP1.val() & 0xFF) + 1);
+                        } else if (val >= (SWAP1.val() & 0xFF) && val <= (SWAP16.val() & 0xFF)) {
+                            stack.swap(stack.size() - 1, stack.size() - (val - (SWAP1.val() & 0xFF) + 2));
+                        } else {
+                            throw new IllegalStateException("Not a simple op in the block: " + op);
+                        }
+                }
+                if (op == JUMP || op == JUMPI) {
+                    pc = next;
+                    break;
+                }
+                pc = next;
+            }
+
+            program.setLastOp(op.val());
+            program.setPreviouslyExecutedOp(op.val());
+            program.setPC(pc);
+            return true;
+        } catch (RuntimeException e) {
+            halt(program, e);
+            throw e;
+        }
+    }
+
+    /**
+     * The blocks are executed at once unless each op is observed
+     */
+    private boolean isBlockExecutionEnabled(Program program) {
+        return !vmTrace && !hasHooks && !logger.isInfoEnabled() && !program.isFullTraceEnabled() &&
+                program.getNumber().intValue() != dumpBlock;
+    }
+
     public void play(Program program) {
         if (program.byTestingSuite()) return;
 
@@ -1434,9 +1410,7 @@ public class VM {
                 onHookEvent(hook -> hook.startPlay(program));
             }
 
-            while (!program.isStopped()) {
-                this.step(program);
-            }
+            run(program);
 
         } catch (RuntimeException e) {
             program.setRuntimeFailure(e);
@@ -1450,6 +1424,20 @@ public class VM {
         }
     }
 
+    /**
+     * Executes the program till it's stopped, unlike the {@link #play} the program of the testing suite
+     * is executed and the failure is thrown after the program is halted
+     */
+    public void run(Program program) {
+        ProgramPrecompile precompile = isBlockExecutionEnabled(program) ? program.getProgramPrecompile() : null;
+        while (!program.isStopped()) {
+            ProgramPrecompile.Block block = precompile == null ? null : precompile.getBlock(program.getPC());
+            if (block == null || !executeBlock(program, block)) {
+                this.step(program);
+            }
+        }
+    }
+
     /**
      * @deprecated Define your hook component as a Spring bean, instead of this method using.
      * TODO: Remove after a few versions
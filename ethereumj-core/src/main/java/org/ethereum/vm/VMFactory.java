@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.vm;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.vm.hook.VMHook;
+
+/**
+ * Creates the {@link VM} executing the program of a transaction and the programs of its
+ * nested calls and creates. The engine is chosen by the <code>vm.engine</code> option,
+ * see {@link org.ethereum.config.CommonConfig#vmFactory()}: the {@link #INTERPRETER}
+ * or the {@link CompilingVMFactory} compiling the hot code.
+ *
+ * An alternative engine returns the {@link VM} subclass and is expected to give up to the {@link #INTERPRETER}
+ * when the structured trace is on or a non empty hook is passed, since these observe each op
+ */
+public interface VMFactory {
+
+    VM create(SystemProperties config, VMHook hook);
+
+    VMFactory INTERPRETER = VM::new;
+}
@@ -21,21 +21,29 @@ import org.ethereum.vm.DataWord;
 import org.ethereum.vm.program.listener.ProgramListener;
 import org.ethereum.vm.program.listener.ProgramListenerAware;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import static java.lang.Math.ceil;
 import static java.lang.Math.min;
 import static java.lang.String.format;
+import static org.ethereum.crypto.HashUtil.sha3;
 import static org.ethereum.util.ByteUtil.EMPTY_BYTE_ARRAY;
 import static org.ethereum.util.ByteUtil.oneByteToHexString;
 
+/**
+ * The program memory kept in the single array, so the words are read and written
+ * with one copy and the stack and hash ops access it in place.
+ * The memory is allocated by {@link #CHUNK_SIZE} while the array itself
+ * grows by doubling, the bytes past the allocated size are always zero
+ */
 public class Memory implements ProgramListenerAware {
 
     private static final int CHUNK_SIZE = 1024;
     private static final int WORD_SIZE = 32;
 
-    private List<byte[]> chunks = new LinkedList<>();
+    private byte[] buffer = EMPTY_BYTE_ARRAY;
+    private int internalSize;
     private int softSize;
     private ProgramListener programListener;
 
@@ -48,27 +56,7 @@ public class Memory implements ProgramListenerAware {
         if (size <= 0) return EMPTY_BYTE_ARRAY;
 
         extend(address, size);
-        byte[] data = new byte[size];
-
-        int chunkIndex = address / CHUNK_SIZE;
-        int chunkOffset = address % CHUNK_SIZE;
-
-        int toGrab = data.length;
-        int start = 0;
-
-        while (toGrab > 0) {
-            int copied = grabMax(chunkIndex, chunkOffset, toGrab, data, start);
-
-            // read next chunk from the start
-            ++chunkIndex;
-            chunkOffset = 0;
-
-            // mark remind
-            toGrab -= copied;
-            start += copied;
-        }
-
-        return data;
+        return Arrays.copyOfRange(buffer, address, address + size);
     }
 
     public void write(int address, byte[] data, int dataSize, boolean limited) {
@@ -80,26 +68,14 @@ public class Memory implements ProgramListenerAware {
         if (!limited)
             extend(address, dataSize);
 
-        int chunkIndex = address / CHUNK_SIZE;
-        int chunkOffset = address % CHUNK_SIZE;
-
         int toCapture = 0;
         if (limited)
             toCapture = (address + dataSize > softSize) ? softSize - address : dataSize;
         else
             toCapture = dataSize;
 
-        int start = 0;
-        while (toCapture > 0) {
-            int captured = captureMax(chunkIndex, chunkOffset, toCapture, data, start);
-
-            // capture next chunk
-            ++chunkIndex;
-            chunkOffset = 0;
-
-            // mark remind
-            toCapture -= captured;
-            start += captured;
+        if (toCapture > 0) {
+            System.arraycopy(data, 0, buffer, address, toCapture);
         }
 
         if (programListener != null) programListener.onMemoryWrite(address, data, dataSize);
@@ -116,14 +92,16 @@ public class Memory implements ProgramListenerAware {
 
         final int newSize = address + size;
 
-        int toAllocate = newSize - internalSize();
-        if (toAllocate > 0) {
-            addChunks((int) ceil((double) toAllocate / CHUNK_SIZE));
+        if (newSize > internalSize) {
+            internalSize = (newSize + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+            if (internalSize > buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.max(internalSize, min(2L * buffer.length, Integer.MAX_VALUE)));
+            }
         }
 
-        toAllocate = newSize - softSize;
+        int toAllocate = newSize - softSize;
         if (toAllocate > 0) {
-            toAllocate = (int) ceil((double) toAllocate / WORD_SIZE) * WORD_SIZE;
+            toAllocate = (toAllocate + WORD_SIZE - 1) / WORD_SIZE * WORD_SIZE;
             softSize += toAllocate;
 
             if (programListener != null) programListener.onMemoryExtend(toAllocate);
@@ -134,15 +112,38 @@ public class Memory implements ProgramListenerAware {
         return DataWord.of(read(address, 32));
     }
 
-    // just access expecting all data valid
-    public byte readByte(int address) {
+    /**
+     * Pushes the word at the address straight onto the stack
+     */
+    public void readWord(int address, Stack stack) {
+        extend(address, WORD_SIZE);
+        stack.push(buffer, address, WORD_SIZE);
+    }
+
+    /**
+     * Pops the top stack word straight into the memory at the address
+     */
+    public void writeWord(int address, Stack stack) {
+        extend(address, WORD_SIZE);
+        stack.pop(buffer, address);
 
-        int chunkIndex = address / CHUNK_SIZE;
-        int chunkOffset = address % CHUNK_SIZE;
+        if (programListener != null)
+            programListener.onMemoryWrite(address, Arrays.copyOfRange(buffer, address, address + WORD_SIZE), WORD_SIZE);
+    }
 
-        byte[] chunk = chunks.get(chunkIndex);
+    /**
+     * @return sha3 of the memory chunk, hashed in place
+     */
+    public byte[] hash(int address, int size) {
+        if (size <= 0) return sha3(EMPTY_BYTE_ARRAY);
 
-        return chunk[chunkOffset];
+        extend(address, size);
+        return sha3(buffer, address, size);
+    }
+
+    // just access expecting all data valid
+    public byte readByte(int address) {
+        return buffer[address];
     }
 
     @Override
@@ -180,35 +181,17 @@ public class Memory implements ProgramListenerAware {
     }
 
     public int internalSize() {
-        return chunks.size() * CHUNK_SIZE;
+        return internalSize;
     }
 
+    /**
+     * @return copies of the allocated memory split by {@link #CHUNK_SIZE}
+     */
     public List<byte[]> getChunks() {
-        return new LinkedList<>(chunks);
-    }
-
-    private int captureMax(int chunkIndex, int chunkOffset, int size, byte[] src, int srcPos) {
-
-        byte[] chunk = chunks.get(chunkIndex);
-        int toCapture = min(size, chunk.length - chunkOffset);
-
-        System.arraycopy(src, srcPos, chunk, chunkOffset, toCapture);
-        return toCapture;
-    }
-
-    private int grabMax(int chunkIndex, int chunkOffset, int size, byte[] dest, int destPos) {
-
-        byte[] chunk = chunks.get(chunkIndex);
-        int toGrab = min(size, chunk.length - chunkOffset);
-
-        System.arraycopy(chunk, chunkOffset, dest, destPos, toGrab);
-
-        return toGrab;
-    }
-
-    private void addChunks(int num) {
-        for (int i = 0; i < num; ++i) {
-            chunks.add(new byte[CHUNK_SIZE]);
+        List<byte[]> chunks = new ArrayList<>();
+        for (int i = 0; i < internalSize; i += CHUNK_SIZE) {
+            chunks.add(Arrays.copyOfRange(buffer, i, i + CHUNK_SIZE));
         }
+        return chunks;
     }
 }
@@ -139,7 +139,8 @@ public class Program {
         this.vmHook = vmHook;
         this.traceListener = new ProgramTraceListener(config.vmTrace());
         this.memory = setupProgramListener(new Memory());
-        this.stack = setupProgramListener(new Stack());
+        // the stack words are materialized for the listener on each op, only the trace needs them
+        this.stack = config.vmTrace() ? setupProgramListener(new Stack()) : new Stack();
         this.originalRepo = programInvoke.getOrigRepository();
         this.storage = setupProgramListener(new Storage(programInvoke));
         this.trace = new ProgramTrace(config, programInvoke);
@@ -231,7 +232,8 @@ public class Program {
     }
 
     public void stackPush(byte[] data) {
-        stackPush(DataWord.of(data));
+        verifyStackOverflow(0, 1); //Sanity Check
+        stack.push(data);
     }
 
     public void stackPushZero() {
@@ -313,6 +315,16 @@ public class Program {
         }
     }
 
+    /**
+     * Checks in advance the bounds which {@link #verifyStackSize} and {@link #verifyStackOverflow}
+     * verify for each of the ops executed in a row
+     * @param required the stack size the ops need
+     * @param growth the max stack growth in between the ops
+     */
+    public boolean isStackInBounds(int required, int growth) {
+        return stack.size() >= required && stack.size() + growth <= MAX_STACKSIZE;
+    }
+
     public void verifyStackOverflow(int argsReqs, int returnReqs) {
         if ((stack.size() - argsReqs + returnReqs) > MAX_STACKSIZE) {
             throw new StackTooLargeException("Expected: overflow " + MAX_STACKSIZE + " elements stack limit");
@@ -361,10 +373,28 @@ public class Program {
         return memory.readWord(address);
     }
 
+    /**
+     * Pushes the memory word at the address without the intermediate {@link DataWord}
+     */
+    public void memoryLoadToStack(DataWord addr) {
+        memory.readWord(addr.intValue(), stack);
+    }
+
+    /**
+     * Pops the stack word into the memory at the address without the intermediate {@link DataWord}
+     */
+    public void memorySaveFromStack(DataWord addr) {
+        memory.writeWord(addr.intValue(), stack);
+    }
+
     public byte[] memoryChunk(int offset, int size) {
         return memory.read(offset, size);
     }
 
+    public byte[] memoryChunkHash(int offset, int size) {
+        return memory.hash(offset, size);
+    }
+
     /**
      * Allocates extra memory in the program for
      * a specified size, calculated from a given offset
@@ -538,7 +568,7 @@ public class Program {
         if (contractAlreadyExists) {
             result.setException(new BytecodeExecutionException("Trying to create a contract with existing contract address: 0x" + toHexString(newAddress)));
         } else if (isNotEmpty(programCode)) {
-            VM vm = new VM(config, vmHook);
+            VM vm = commonConfig.vmFactory().create(config, vmHook);
             Program program = new Program(programCode, programInvoke, internalTx, config, vmHook).withCommonConfig(commonConfig);
             // reset storage if the contract with the same address already exists
             // TCK test case only - normally this is near-impossible situation in the real network
@@ -675,7 +705,7 @@ public class Program {
                     msg.getGas(), contextBalance, data, track, this.invoke.getOrigRepository(), this.invoke.getBlockStore(),
                     msg.getType().callIsStatic() || isStaticCall(), byTestingSuite());
 
-            VM vm = new VM(config, vmHook);
+            VM vm = commonConfig.vmFactory().create(config, vmHook);
             Program program = new Program(getStorage().getCodeHash(codeAddress), programCode, programInvoke, internalTx, config, vmHook)
                     .withCommonConfig(commonConfig);
             vm.play(program);
@@ -784,6 +814,13 @@ public class Program {
         return ops;
     }
 
+    /**
+     * @return hash of the code or null if the program isn't run from the account code, e.g. the init code
+     */
+    public byte[] getCodeHash() {
+        return codeHash;
+    }
+
     public byte[] getCodeAt(DataWord address) {
         byte[] code = invoke.getRepository().getCode(address.getLast20Bytes());
         return nullToEmpty(code);
@@ -929,9 +966,16 @@ public class Program {
         return memory.toString();
     }
 
+    /**
+     * @return whether the state is dumped after each op by the {@link #fullTrace()}
+     */
+    public boolean isFullTraceEnabled() {
+        return logger.isTraceEnabled() || listener != null;
+    }
+
     public void fullTrace() {
 
-        if (logger.isTraceEnabled() || listener != null) {
+        if (isFullTraceEnabled()) {
 
             StringBuilder stackData = new StringBuilder();
             for (int i = 0; i < stack.size(); ++i) {
@@ -24,26 +24,62 @@ import org.ethereum.util.RLPElement;
 import org.ethereum.util.RLPList;
 import org.ethereum.vm.OpCode;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import static org.ethereum.vm.OpCode.*;
+
 /**
+ * The code analysis cached by the code hash.
+ *
+ * Besides the jump destinations the code is split into the basic blocks of the simple ops,
+ * which have the static gas only and are valid on any fork. Such a block is entered at
+ * its start only and is left at its end only (by a jump or by falling through), so the VM
+ * checks the gas and the stack bounds once for the whole block, see {@link Block}
+ *
  * Created by Anton Nashatyrev on 06.02.2017.
  */
 public class ProgramPrecompile {
-    private static final int version = 1;
+    private static final int version = 2;
+
+    private static final Set<OpCode> SIMPLE_OPS = EnumSet.of(
+            ADD, MUL, SUB, DIV, SDIV, MOD, SMOD, ADDMOD, MULMOD,
+            LT, GT, SLT, SGT, EQ, ISZERO, AND, OR, XOR, NOT, BYTE,
+            POP, JUMP, JUMPI, PC, JUMPDEST);
+    static {
+        for (OpCode op : OpCode.values()) {
+            if (op.val() >= PUSH1.val() && op.val() <= PUSH32.val() ||
+                    op.val() >= DUP1.val() && op.val() <= DUP16.val() ||
+                    op.val() >= SWAP1.val() && op.val() <= SWAP16.val()) {
+                SIMPLE_OPS.add(op);
+            }
+        }
+    }
+
+    // shorter runs aren't worth the block lookup
+    private static final int MIN_BLOCK_OPS = 2;
 
     private Set<Integer> jumpdest = new HashSet<>();
+    // sorted by the start
+    private Block[] blocks = new Block[0];
 
     public byte[] serialize() {
-        byte[][] jdBytes = new byte[jumpdest.size() + 1][];
+        byte[][] jdBytes = new byte[jumpdest.size()][];
         int cnt = 0;
-        jdBytes[cnt++] = RLP.encodeInt(version);
         for (Integer dst : jumpdest) {
             jdBytes[cnt++] = RLP.encodeInt(dst);
         }
+        byte[][] blockBytes = new byte[blocks.length][];
+        for (int i = 0; i < blocks.length; i++) {
+            blockBytes[i] = blocks[i].serialize();
+        }
 
-        return RLP.encodeList(jdBytes);
+        return RLP.encodeList(RLP.encodeInt(version), RLP.encodeList(jdBytes), RLP.encodeList(blockBytes));
     }
 
     public static ProgramPrecompile deserialize(byte[] stream) {
@@ -51,25 +87,48 @@ public class ProgramPrecompile {
         int ver = ByteUtil.byteArrayToInt(l.get(0).getRLPData());
         if (ver != version) return null;
         ProgramPrecompile ret = new ProgramPrecompile();
-        for (int i = 1; i < l.size(); i++) {
-            ret.jumpdest.add(ByteUtil.byteArrayToInt(l.get(i).getRLPData()));
+        for (RLPElement dst : (RLPList) l.get(1)) {
+            ret.jumpdest.add(ByteUtil.byteArrayToInt(dst.getRLPData()));
+        }
+        RLPList blocks = (RLPList) l.get(2);
+        ret.blocks = new Block[blocks.size()];
+        for (int i = 0; i < blocks.size(); i++) {
+            ret.blocks[i] = Block.deserialize((RLPList) blocks.get(i));
         }
         return ret;
     }
 
     public static ProgramPrecompile compile(byte[] ops) {
         ProgramPrecompile ret = new ProgramPrecompile();
+        List<Block> blocks = new ArrayList<>();
+        BlockBuilder block = new BlockBuilder();
         for (int i = 0; i < ops.length; ++i) {
 
             OpCode op = OpCode.code(ops[i]);
-            if (op == null) continue;
+            int next = i + 1;
+            if (op != null && op.val() >= PUSH1.val() && op.val() <= PUSH32.val()) {
+                next += op.val() - PUSH1.val() + 1;
+            }
 
-            if (op.equals(OpCode.JUMPDEST)) ret.jumpdest.add(i);
+            if (op == JUMPDEST) {
+                ret.jumpdest.add(i);
+                // a jump may land here, so the block can't run through
+                block.close(i, blocks);
+            }
 
-            if (op.asInt() >= OpCode.PUSH1.asInt() && op.asInt() <= OpCode.PUSH32.asInt()) {
-                i += op.asInt() - OpCode.PUSH1.asInt() + 1;
+            // the PUSH data can be truncated by the code end
+            if (op != null && SIMPLE_OPS.contains(op) && next <= ops.length) {
+                block.add(i, op);
+                if (op == JUMP || op == JUMPI) block.close(next, blocks);
+            } else {
+                block.close(i, blocks);
             }
+
+            i = next - 1;
         }
+        block.close(ops.length, blocks);
+
+        ret.blocks = blocks.toArray(new Block[blocks.size()]);
         return ret;
     }
 
@@ -77,6 +136,120 @@ public class ProgramPrecompile {
         return jumpdest.contains(pc);
     }
 
+    /**
+     * @return the blocks of the simple ops sorted by the start
+     */
+    public List<Block> getBlocks() {
+        return Collections.unmodifiableList(Arrays.asList(blocks));
+    }
+
+    /**
+     * @return the block of the simple ops starting at the pc or null if there is no such block
+     */
+    public Block getBlock(int pc) {
+        int lo = 0, hi = blocks.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int start = blocks[mid].start;
+            if (start < pc) lo = mid + 1;
+            else if (start > pc) hi = mid - 1;
+            else return blocks[mid];
+        }
+        return null;
+    }
+
+    /**
+     * The run of the simple ops, the ops at [start, end) are always executed together
+     * unless the gas or the stack bounds are exceeded in between
+     */
+    public static class Block {
+        private final int start;
+        private final int end;
+        private final int gas;
+        private final int stackMin;
+        private final int stackMax;
+
+        Block(int start, int end, int gas, int stackMin, int stackMax) {
+            this.start = start;
+            this.end = end;
+            this.gas = gas;
+            this.stackMin = stackMin;
+            this.stackMax = stackMax;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * @return the pc after the last op of the block
+         */
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the gas of all the block ops
+         */
+        public int getGas() {
+            return gas;
+        }
+
+        /**
+         * @return the stack size the block ops need at the block start
+         */
+        public int getStackMin() {
+            return stackMin;
+        }
+
+        /**
+         * @return the max stack growth over the block start size in between the block ops
+         */
+        public int getStackMax() {
+            return stackMax;
+        }
+
+        private byte[] serialize() {
+            return RLP.encodeList(RLP.encodeInt(start), RLP.encodeInt(end), RLP.encodeInt(gas),
+                    RLP.encodeInt(stackMin), RLP.encodeInt(stackMax));
+        }
+
+        private static Block deserialize(RLPList l) {
+            return new Block(ByteUtil.byteArrayToInt(l.get(0).getRLPData()), ByteUtil.byteArrayToInt(l.get(1).getRLPData()),
+                    ByteUtil.byteArrayToInt(l.get(2).getRLPData()), ByteUtil.byteArrayToInt(l.get(3).getRLPData()),
+                    ByteUtil.byteArrayToInt(l.get(4).getRLPData()));
+        }
+
+        @Override
+        public String toString() {
+            return "Block[" + start + ", " + end + "): gas " + gas + ", stack " + stackMin + "/+" + stackMax;
+        }
+    }
+
+    private static class BlockBuilder {
+        int start = -1;
+        int ops, gas, height, stackMin, stackMax;
+
+        void add(int pc, OpCode op) {
+            if (start < 0) {
+                start = pc;
+                ops = gas = height = stackMin = stackMax = 0;
+            }
+            ops++;
+            gas += op.getTier().asInt();
+            stackMin = Math.max(stackMin, op.require() - height);
+            height += op.ret() - op.require();
+            stackMax = Math.max(stackMax, height);
+        }
+
+        void close(int end, List<Block> blocks) {
+            if (start >= 0 && ops >= MIN_BLOCK_OPS) {
+                blocks.add(new Block(start, end, gas, stackMin, stackMax));
+            }
+            start = -1;
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         ProgramPrecompile pp = new ProgramPrecompile();
         pp.jumpdest.add(100);
@@ -18,39 +18,396 @@
 package org.ethereum.vm.program;
 
 import org.ethereum.vm.DataWord;
+import org.ethereum.vm.UInt256;
 import org.ethereum.vm.program.listener.ProgramListener;
 import org.ethereum.vm.program.listener.ProgramListenerAware;
 
-public class Stack extends java.util.Stack<DataWord> implements ProgramListenerAware {
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BinaryOperator;
+
+/**
+ * The program stack kept in the flat array, each word takes four long limbs laid out
+ * like {@link UInt256} expects. The arithmetic, logic and stack manipulation ops
+ * are done in place on the top words, so the {@link DataWord}s are created only
+ * when a word is read out by the other ops, the tracing or the listeners.
+ *
+ * The indexes are counted from the bottom of the stack like in {@link java.util.Stack}.
+ * Not thread safe, the program is executed by a single thread
+ */
+public class Stack implements ProgramListenerAware, Iterable<DataWord> {
+
+    private static final int WORD = 4;
+    private static final int INITIAL_CAPACITY = 64;
 
     private ProgramListener programListener;
 
+    // grows up to the 1024 words limit checked by the Program
+    private long[] words = new long[INITIAL_CAPACITY * WORD];
+    private int size;
+
     @Override
     public void setProgramListener(ProgramListener listener) {
         this.programListener = listener;
     }
 
-    @Override
-    public synchronized DataWord pop() {
+    public DataWord push(DataWord item) {
+        byte[] data = item.getData();
+        int off = grow();
+        UInt256.fromBytes(data, 0, data.length, words, off);
+        if (programListener != null) programListener.onStackPush(item);
+        return item;
+    }
+
+    /**
+     * Pushes the big-endian number, up to 32 bytes long, e.g. the PUSH data
+     */
+    public void push(byte[] data) {
+        push(data, 0, data.length);
+    }
+
+    /**
+     * Pushes the big-endian number at data[off, off + len), e.g. straight from the code
+     */
+    public void push(byte[] data, int off, int len) {
+        int wordOff = grow();
+        UInt256.fromBytes(data, off, len, words, wordOff);
+        pushed();
+    }
+
+    /**
+     * Pushes the word given by the four limbs laid out like {@link UInt256} expects, e.g. the PUSH data decoded ahead
+     */
+    public void push(long[] word) {
+        int off = grow();
+        System.arraycopy(word, 0, words, off, WORD);
+        pushed();
+    }
+
+    public DataWord pop() {
+        DataWord ret = peek();
+        drop();
+        return ret;
+    }
+
+    /**
+     * Pops the top word into data[off, off + 32) as the big-endian number
+     */
+    public void pop(byte[] data, int off) {
+        if (size == 0) throw new EmptyStackException();
+        UInt256.toBytes(words, top(), data, off);
+        drop();
+    }
+
+    /**
+     * Pops the top word without reading it
+     */
+    public void drop() {
+        if (size == 0) throw new EmptyStackException();
         if (programListener != null) programListener.onStackPop();
-        return super.pop();
+        size--;
+    }
+
+    public DataWord peek() {
+        if (size == 0) throw new EmptyStackException();
+        return get(size - 1);
+    }
+
+    public DataWord get(int index) {
+        if (index < 0 || index >= size) throw new ArrayIndexOutOfBoundsException(index);
+        return DataWord.of(UInt256.toBytes(words, index * WORD));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public DataWord[] toArray() {
+        DataWord[] ret = new DataWord[size];
+        for (int i = 0; i < size; i++) {
+            ret[i] = get(i);
+        }
+        return ret;
     }
 
     @Override
-    public DataWord push(DataWord item) {
-        if (programListener != null) programListener.onStackPush(item);
-        return super.push(item);
+    public Iterator<DataWord> iterator() {
+        return new Iterator<DataWord>() {
+            int idx = 0;
+
+            @Override
+            public boolean hasNext() {
+                return idx < size;
+            }
+
+            @Override
+            public DataWord next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return get(idx++);
+            }
+        };
     }
 
     public void swap(int from, int to) {
         if (isAccessible(from) && isAccessible(to) && (from != to)) {
             if (programListener != null) programListener.onStackSwap(from, to);
-            DataWord tmp = get(from);
-            set(from, set(to, tmp));
+            int f = from * WORD, t = to * WORD;
+            for (int i = 0; i < WORD; i++) {
+                long tmp = words[f + i];
+                words[f + i] = words[t + i];
+                words[t + i] = tmp;
+            }
         }
     }
 
+    /**
+     * Pushes the copy of the n-th word from the top, 1 is the top one
+     */
+    public void dup(int n) {
+        int src = (size - n) * WORD;
+        int dst = grow();
+        System.arraycopy(words, src, words, dst, WORD);
+        pushed();
+    }
+
+    /*
+     * The binary ops replace the two top words with the result of
+     * (top OP next), e.g. sub() gives (top - next) like the SUB opcode does
+     */
+
+    public void add() {
+        UInt256.add(words, top(), words, next(), words, next());
+        replaced(2);
+    }
+
+    public void sub() {
+        UInt256.sub(words, top(), words, next(), words, next());
+        replaced(2);
+    }
+
+    public void mul() {
+        apply(UInt256::mul);
+    }
+
+    public void div() {
+        apply(UInt256::div);
+    }
+
+    public void sDiv() {
+        apply(UInt256::sdiv);
+    }
+
+    public void mod() {
+        apply(UInt256::mod);
+    }
+
+    public void sMod() {
+        apply(UInt256::smod);
+    }
+
+    public void exp() {
+        apply(UInt256::exp);
+    }
+
+    /**
+     * Replaces the three top words with (top + next) % third
+     */
+    public void addmod() {
+        apply(UInt256::addmod);
+    }
+
+    /**
+     * Replaces the three top words with (top * next) % third
+     */
+    public void mulmod() {
+        apply(UInt256::mulmod);
+    }
+
+    public void and() {
+        int t = top(), n = next();
+        for (int i = 0; i < WORD; i++) words[n + i] &= words[t + i];
+        replaced(2);
+    }
+
+    public void or() {
+        int t = top(), n = next();
+        for (int i = 0; i < WORD; i++) words[n + i] |= words[t + i];
+        replaced(2);
+    }
+
+    public void xor() {
+        int t = top(), n = next();
+        for (int i = 0; i < WORD; i++) words[n + i] ^= words[t + i];
+        replaced(2);
+    }
+
+    public void not() {
+        int t = top();
+        for (int i = 0; i < WORD; i++) words[t + i] = ~words[t + i];
+        replaced(1);
+    }
+
+    public void lt() {
+        setBool(next(), UInt256.compare(words, top(), words, next()) < 0);
+        replaced(2);
+    }
+
+    public void gt() {
+        setBool(next(), UInt256.compare(words, top(), words, next()) > 0);
+        replaced(2);
+    }
+
+    public void slt() {
+        setBool(next(), UInt256.compareSigned(words, top(), words, next()) < 0);
+        replaced(2);
+    }
+
+    public void sgt() {
+        setBool(next(), UInt256.compareSigned(words, top(), words, next()) > 0);
+        replaced(2);
+    }
+
+    public void eq() {
+        setBool(next(), UInt256.compare(words, top(), words, next()) == 0);
+        replaced(2);
+    }
+
+    public void isZero() {
+        int t = top();
+        setBool(t, (words[t] | words[t + 1] | words[t + 2] | words[t + 3]) == 0);
+        replaced(1);
+    }
+
+    /**
+     * Replaces the two top words with the byte of the next word indexed by the top one,
+     * 0 is the most significant byte
+     */
+    public void byteAt() {
+        int t = top(), n = next();
+        long idx = smallValue(t);
+        long v = idx < 32 ? (words[n + 3 - (int) idx / 8] >>> (56 - (idx % 8) * 8)) & 0xFF : 0;
+        words[n] = v;
+        words[n + 1] = words[n + 2] = words[n + 3] = 0;
+        replaced(2);
+    }
+
+    /**
+     * Replaces the two top words with (next << top)
+     */
+    public void shiftLeft() {
+        int t = top(), n = next();
+        long shift = smallValue(t);
+        if (shift >= 256) {
+            Arrays.fill(words, n, n + WORD, 0);
+        } else {
+            UInt256.shiftLeft(words, n, (int) shift, words, n);
+        }
+        replaced(2);
+    }
+
+    /**
+     * Replaces the two top words with (next >>> top)
+     */
+    public void shiftRight() {
+        int t = top(), n = next();
+        long shift = smallValue(t);
+        if (shift >= 256) {
+            Arrays.fill(words, n, n + WORD, 0);
+        } else {
+            UInt256.shiftRight(words, n, (int) shift, words, n);
+        }
+        replaced(2);
+    }
+
+    /**
+     * Replaces the two top words with (next >> top), the next word is signed
+     */
+    public void shiftRightSigned() {
+        int t = top(), n = next();
+        long shift = smallValue(t);
+        if (shift >= 256) {
+            Arrays.fill(words, n, n + WORD, words[n + 3] >> 63);
+        } else {
+            UInt256.shiftRightSigned(words, n, (int) shift, words, n);
+        }
+        replaced(2);
+    }
+
     private boolean isAccessible(int from) {
         return from >= 0 && from < size();
     }
+
+    private int top() {
+        return (size - 1) * WORD;
+    }
+
+    private int next() {
+        return (size - 2) * WORD;
+    }
+
+    /**
+     * The word value if it fits into int, Long.MAX_VALUE otherwise
+     */
+    private long smallValue(int off) {
+        if ((words[off + 1] | words[off + 2] | words[off + 3]) != 0 || words[off] < 0) return Long.MAX_VALUE;
+        return words[off];
+    }
+
+    private void setBool(int off, boolean value) {
+        words[off] = value ? 1 : 0;
+        words[off + 1] = words[off + 2] = words[off + 3] = 0;
+    }
+
+    private long[] word(int index) {
+        return Arrays.copyOfRange(words, index * WORD, index * WORD + WORD);
+    }
+
+    private void apply(BinaryOperator<long[]> op) {
+        long[] r = op.apply(word(size - 1), word(size - 2));
+        System.arraycopy(r, 0, words, next(), WORD);
+        replaced(2);
+    }
+
+    private void apply(TernaryOperator op) {
+        long[] r = op.apply(word(size - 1), word(size - 2), word(size - 3));
+        System.arraycopy(r, 0, words, (size - 3) * WORD, WORD);
+        replaced(3);
+    }
+
+    /**
+     * @return offset of the new top word
+     */
+    private int grow() {
+        if ((size + 1) * WORD > words.length) {
+            words = Arrays.copyOf(words, words.length * 2);
+        }
+        return size++ * WORD;
+    }
+
+    private void pushed() {
+        if (programListener != null) programListener.onStackPush(peek());
+    }
+
+    /**
+     * The listener sees the in place op as the pops of the arguments and the push of the result
+     */
+    private void replaced(int args) {
+        size -= args - 1;
+        if (programListener != null) {
+            for (int i = 0; i < args; i++) {
+                programListener.onStackPop();
+            }
+            programListener.onStackPush(peek());
+        }
+    }
+
+    private interface TernaryOperator {
+        long[] apply(long[] a, long[] b, long[] c);
+    }
 }
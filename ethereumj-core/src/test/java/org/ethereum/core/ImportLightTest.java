@@ -24,10 +24,13 @@ import org.ethereum.crypto.ECKey;
 import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.datasource.NoDeleteSource;
+import org.ethereum.db.ByteArrayWrapper;
 import org.ethereum.db.IndexedBlockStore;
 import org.ethereum.db.RepositoryRoot;
+import org.ethereum.db.StorageTrieCache;
 import org.ethereum.listener.EthereumListenerAdapter;
 import org.ethereum.mine.Ethash;
+import org.ethereum.trie.TrieImpl;
 import org.ethereum.util.ByteUtil;
 import org.ethereum.util.blockchain.SolidityContract;
 import org.ethereum.util.blockchain.StandaloneBlockchain;
@@ -339,6 +342,38 @@ public class ImportLightTest {
     }
 
 
+    @Test
+    public void storageTrieReusedByNextBlock() {
+        Set<ByteArrayWrapper> taken = new HashSet<>();
+        StorageTrieCache storageTries = new StorageTrieCache(1024 * 1024) {
+            @Override
+            public synchronized TrieImpl take(byte[] address, byte[] root) {
+                TrieImpl ret = super.take(address, root);
+                if (ret != null) taken.add(new ByteArrayWrapper(address));
+                return ret;
+            }
+        };
+        StandaloneBlockchain bc = new StandaloneBlockchain().withStorageTrieCache(storageTries);
+        SolidityContract contract = bc.submitNewContract("contract A {" +
+                "  mapping(uint => uint) public m;" +
+                "  function set(uint k, uint v) { for (uint i = 0; i < 20; i++) m[k + i] = v;}" +
+                "}");
+        bc.createBlock();
+        contract.callFunction("set", 0, 1);
+        bc.createBlock();
+
+        // the block is applied to the new repository snapshot,
+        // the storage trie committed by the repository of the previous block is taken over
+        taken.clear();
+        contract.callFunction("set", 10, 2);
+        bc.createBlock();
+        Assert.assertTrue(taken.contains(new ByteArrayWrapper(contract.getAddress())));
+
+        Assert.assertEquals(BigInteger.valueOf(1), contract.callConstFunction("m", 9)[0]);
+        Assert.assertEquals(BigInteger.valueOf(2), contract.callConstFunction("m", 10)[0]);
+        Assert.assertEquals(BigInteger.valueOf(2), contract.callConstFunction("m", 29)[0]);
+    }
+
     @Test
     public void createContractFork() throws Exception {
         //  #1 (Parent) --> #2 --> #3 (Child) ----------------------> #4 (call Child)
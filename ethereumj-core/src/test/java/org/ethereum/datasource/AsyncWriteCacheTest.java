@@ -17,7 +17,9 @@
  */
 package org.ethereum.datasource;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.db.SlowHashMapDb;
 import org.ethereum.db.StateSource;
 import org.ethereum.util.ByteUtil;
@@ -27,11 +29,13 @@ import org.junit.Test;
 
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.*;
 
 import static java.lang.Math.max;
 import static org.ethereum.crypto.HashUtil.sha3;
 import static org.ethereum.util.ByteUtil.intToBytes;
 import static org.ethereum.util.ByteUtil.intsToBytes;
+import static org.junit.Assert.*;
 import static org.spongycastle.util.encoders.Hex.decode;
 
 /**
@@ -115,6 +119,65 @@ public class AsyncWriteCacheTest {
         assert db.get(decode("3333")) == "3333";
     }
 
+    @Test
+    public void testPendingGenerations() throws Exception {
+        CountDownLatch dbReleased = new CountDownLatch(1);
+        HashMapDB<String> db = new HashMapDB<String>() {
+            @Override
+            public void put(byte[] key, String val) {
+                try {
+                    dbReleased.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.put(key, val);
+            }
+        };
+        AsyncWriteCache<byte[], String> cache = new AsyncWriteCache<byte[], String>(db) {
+            @Override
+            protected WriteCache<byte[], String> createCache(Source<byte[], String> source) {
+                return new WriteCache.BytesKey<>(source, WriteCache.CacheType.SIMPLE);
+            }
+        }.withMaxPendingFlushes(2);
+
+        cache.put(decode("1111"), "1111");
+        cache.flipStorage();
+        ListenableFuture<Boolean> flush1 = cache.flushAsync();
+
+        // the first generation flush is stuck, the second one doesn't block
+        cache.put(decode("1111"), "1112");
+        cache.put(decode("2222"), "2222");
+        cache.flipStorage();
+        ListenableFuture<Boolean> flush2 = cache.flushAsync();
+        cache.put(decode("3333"), "3333");
+        assertEquals("1112", cache.get(decode("1111")));
+        assertEquals("2222", cache.get(decode("2222")));
+        assertEquals("3333", cache.get(decode("3333")));
+
+        // the third one waits for the first one
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> flip3 = executor.submit(() -> {
+            cache.flipStorage();
+            return null;
+        });
+        Thread.sleep(200);
+        assertFalse(flip3.isDone());
+        assertFalse(flush1.isDone());
+
+        dbReleased.countDown();
+        flip3.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertTrue(flush1.get());
+        assertTrue(flush2.get());
+        cache.flushAsync().get();
+
+        assertEquals("1112", db.get(decode("1111")));
+        assertEquals("2222", db.get(decode("2222")));
+        assertEquals("3333", db.get(decode("3333")));
+        assertEquals("1112", cache.get(decode("1111")));
+        assertFalse(cache.flushAsync().get());
+    }
+
     @Ignore
     @Test
     public void highLoadTest1() throws InterruptedException {
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.datasource;
+
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Testing {@link BloomedSource} and {@link ConcurrentBloomFilter}
+ */
+public class BloomedSourceTest {
+
+    private static byte[] key(int i) {
+        return sha3(intToBytes(i));
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        ConcurrentBloomFilter filter = ConcurrentBloomFilter.create(100_000, 0.01);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int start = t * 25_000;
+            futures.add(executor.submit(() -> {
+                for (int i = start; i < start + 25_000; i++) filter.insert(key(i));
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        executor.shutdown();
+
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(filter.maybeContains(key(i)));
+        }
+        assertFalse(filter.isSaturated());
+
+        int falsePositives = 0;
+        for (int i = 100_000; i < 200_000; i++) {
+            if (filter.maybeContains(key(i))) falsePositives++;
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 1_500);
+
+        // short keys
+        assertTrue(filter.insert(new byte[] {1}));
+        assertTrue(filter.maybeContains(new byte[] {1}));
+
+        ConcurrentBloomFilter restored = ConcurrentBloomFilter.deserialize(filter.serialize());
+        assertEquals(filter.getInsertions(), restored.getInsertions());
+        assertEquals(filter.getExpectedInsertions(), restored.getExpectedInsertions());
+        for (int i = 0; i < 200_000; i++) {
+            assertEquals(filter.maybeContains(key(i)), restored.maybeContains(key(i)));
+        }
+    }
+
+    @Test
+    public void testRebuildAndSave() throws Exception {
+        HashMapDB<byte[]> db = new HashMapDB<>();
+        for (int i = 0; i < 1000; i++) {
+            db.put(key(i), intToBytes(i));
+        }
+
+        BloomedSource src = new BloomedSource(db, "test", 10_000, 0.01, () -> db.iterator(null, null));
+        // puts after the rebuild started must get to the filter
+        src.put(key(1000), intToBytes(1000));
+        assertFalse(src.isFiltering());
+        assertArrayEquals(intToBytes(5), src.get(key(5)));
+
+        src.onDbFlushed();
+        Thread.sleep(100);
+        assertFalse(src.isFiltering());
+        src.onDbFlushed();
+        waitFiltering(src);
+
+        for (int i = 0; i <= 1000; i++) {
+            assertArrayEquals(intToBytes(i), src.get(key(i)));
+        }
+        for (int i = 1001; i < 2000; i++) {
+            assertNull(src.get(key(i)));
+        }
+        assertTrue(src.getHits() > 950);
+        assertEquals(1001, src.getMisses());
+
+        src.save();
+
+        BloomedSource src2 = new BloomedSource(db, "test", 10_000, 0.01, () -> db.iterator(null, null));
+        assertTrue(src2.isFiltering());
+        // the filter is not trusted after the unclean shutdown
+        assertFalse(new BloomedSource(db, "test", 10_000, 0.01, () -> db.iterator(null, null)).isFiltering());
+
+        for (int i = 0; i <= 1000; i++) {
+            assertArrayEquals(intToBytes(i), src2.get(key(i)));
+        }
+        src2.put(key(2000), intToBytes(2000));
+        assertArrayEquals(intToBytes(2000), src2.get(key(2000)));
+    }
+
+    @Test
+    public void testSaturatedRebuild() throws Exception {
+        HashMapDB<byte[]> db = new HashMapDB<>();
+        BloomedSource src = new BloomedSource(db, "test", 100, 0.01, () -> db.iterator(null, null));
+        src.onDbFlushed();
+        src.onDbFlushed();
+        waitFiltering(src);
+
+        ConcurrentBloomFilter small = src.getFilter();
+        for (int i = 0; i < 1000; i++) {
+            src.put(key(i), intToBytes(i));
+        }
+        assertTrue(small.isSaturated());
+        // the source size is learned on the first rebuild
+        for (int i = 0; i < 100 && (src.getFilter() == small || src.getFilter().isSaturated()); i++) {
+            src.flush();
+            src.onDbFlushed();
+            Thread.sleep(10);
+        }
+
+        assertNotSame(small, src.getFilter());
+        assertFalse(src.getFilter().isSaturated());
+        for (int i = 0; i < 1000; i++) {
+            assertArrayEquals(intToBytes(i), src.get(key(i)));
+        }
+    }
+
+    private void waitFiltering(BloomedSource src) throws InterruptedException {
+        for (int i = 0; i < 100 && !src.isFiltering(); i++) Thread.sleep(10);
+        assertTrue(src.isFiltering());
+    }
+}
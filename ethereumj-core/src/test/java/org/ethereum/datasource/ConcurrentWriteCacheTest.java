@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.datasource;
+
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Testing {@link ConcurrentWriteCache}
+ */
+public class ConcurrentWriteCacheTest extends WriteCacheTest {
+
+    @Override
+    protected WriteCache<byte[], byte[]> createCache(Source<byte[], byte[]> src, WriteCache.CacheType cacheType) {
+        return new ConcurrentWriteCache.BytesKey<>(src, cacheType);
+    }
+
+    @Test
+    public void testWritesDuringFlush() throws InterruptedException {
+        final CountDownLatch flushStarted = new CountDownLatch(1);
+        final CountDownLatch proceedFlush = new CountDownLatch(1);
+        Source<byte[], byte[]> src = new HashMapDB<byte[]>() {
+            @Override
+            public void put(byte[] key, byte[] val) {
+                flushStarted.countDown();
+                try {
+                    proceedFlush.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.put(key, val);
+            }
+        };
+        final WriteCache<byte[], byte[]> cache = createCache(src, WriteCache.CacheType.SIMPLE);
+
+        cache.put(sha3(intToBytes(1)), intToBytes(1));
+        cache.put(sha3(intToBytes(2)), intToBytes(2));
+
+        Thread flushThread = new Thread(cache::flush);
+        flushThread.start();
+        assertTrue(flushStarted.await(10, TimeUnit.SECONDS));
+
+        // flushing entries are still visible while the backing source is being updated
+        assertArrayEquals(intToBytes(1), cache.get(sha3(intToBytes(1))));
+        assertArrayEquals(intToBytes(2), cache.get(sha3(intToBytes(2))));
+        assertNotNull(cache.getCached(sha3(intToBytes(2))));
+
+        // writers are not blocked by the flush in progress
+        cache.put(sha3(intToBytes(3)), intToBytes(3));
+        cache.delete(sha3(intToBytes(1)));
+        assertArrayEquals(intToBytes(3), cache.get(sha3(intToBytes(3))));
+        assertNull(cache.get(sha3(intToBytes(1))));
+        assertTrue(cache.hasModified());
+
+        proceedFlush.countDown();
+        flushThread.join();
+
+        assertArrayEquals(intToBytes(1), src.get(sha3(intToBytes(1))));
+        assertArrayEquals(intToBytes(2), src.get(sha3(intToBytes(2))));
+        assertNull(src.get(sha3(intToBytes(3))));
+        assertNull(cache.get(sha3(intToBytes(1))));
+
+        cache.flush();
+        assertFalse(cache.hasModified());
+        assertNull(src.get(sha3(intToBytes(1))));
+        assertArrayEquals(intToBytes(3), src.get(sha3(intToBytes(3))));
+    }
+
+    @Test
+    public void testDeleteDuringFlush() throws InterruptedException {
+        final CountDownLatch flushStarted = new CountDownLatch(1);
+        final CountDownLatch proceedFlush = new CountDownLatch(1);
+        Source<byte[], byte[]> src = new HashMapDB<byte[]>() {
+            @Override
+            public void put(byte[] key, byte[] val) {
+                flushStarted.countDown();
+                try {
+                    proceedFlush.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.put(key, val);
+            }
+        };
+        final WriteCache<byte[], byte[]> cache = createCache(src, WriteCache.CacheType.SIMPLE);
+
+        cache.put(sha3(intToBytes(1)), intToBytes(1));
+
+        Thread flushThread = new Thread(cache::flush);
+        flushThread.start();
+        assertTrue(flushStarted.await(10, TimeUnit.SECONDS));
+        assertArrayEquals(intToBytes(1), cache.getCached(sha3(intToBytes(1))).value());
+
+        // the key is absent in the fresh cache Map, so the delete is recorded with unknown value
+        cache.delete(sha3(intToBytes(1)));
+        assertNull(cache.getCached(sha3(intToBytes(1))));
+        assertNull(cache.get(sha3(intToBytes(1))));
+
+        proceedFlush.countDown();
+        flushThread.join();
+
+        assertNull(cache.getCached(sha3(intToBytes(1))));
+        assertNull(cache.get(sha3(intToBytes(1))));
+        assertArrayEquals(intToBytes(1), src.get(sha3(intToBytes(1))));
+
+        cache.flush();
+        assertNull(src.get(sha3(intToBytes(1))));
+    }
+}
@@ -24,6 +24,7 @@ import org.ethereum.db.prune.Segment;
 import org.ethereum.util.ByteUtil;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
 
 import static org.junit.Assert.assertEquals;
@@ -425,6 +426,33 @@ public class JournalPruneTest {
     }
 
 
+    @Test
+    public void sweepJournalTest() {
+        StringJDS jds = new StringJDS();
+        HashMapDB<byte[]> journalDb = new HashMapDB<>();
+        jds.setJournalStore(journalDb);
+        for (int i = 1; i <= 5; i++) {
+            jds.put("a" + i);
+            jds.commitUpdates(hashInt(i));
+        }
+
+        Pruner pruner = new Pruner(jds.getJournal(), jds.db);
+        // the updates 1 and 2 are left by a previous run
+        assertTrue(pruner.init(Arrays.asList(hashInt(4), hashInt(5)), 192));
+        pruner.withSecondStep(Collections.singletonList(hashInt(3)), 192);
+        assertEquals(2, pruner.sweepJournal(journalDb.iterator(null, null)));
+
+        assertEquals(3, journalDb.keys().size());
+        for (int i = 3; i <= 5; i++) {
+            assertTrue(journalDb.get(hashInt(i)) != null);
+        }
+        // the nodes are kept
+        checkDb(jds, "a1", "a2", "a3", "a4", "a5");
+
+        // the sweep is done once
+        assertEquals(0, pruner.sweepJournal(journalDb.iterator(null, null)));
+    }
+
     public byte[] hashInt(int i) {
         return HashUtil.sha3(ByteUtil.intToBytes(i));
     }
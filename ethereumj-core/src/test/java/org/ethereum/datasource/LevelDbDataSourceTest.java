@@ -60,6 +60,26 @@ public class LevelDbDataSourceTest {
         dataSource.close();
     }
 
+    @Test
+    public void testIterator() {
+        LevelDbDataSource dataSource = new LevelDbDataSource("test");
+        dataSource.init(DbSettings.DEFAULT);
+        dataSource.reset();
+
+        RocksDbDataSourceTest.checkIterator(dataSource);
+
+        dataSource.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testExhaustedIteratorReleased() {
+        LevelDbDataSource dataSource = new LevelDbDataSource("test");
+        dataSource.init(DbSettings.DEFAULT);
+        dataSource.reset();
+
+        RocksDbDataSourceTest.checkIteratorReleased(dataSource);
+    }
+
     private static Map<byte[], byte[]> createBatch(int batchSize) {
         HashMap<byte[], byte[]> result = new HashMap<>();
         for (int i = 0; i < batchSize; i++) {
@@ -29,12 +29,15 @@ import org.ethereum.util.ByteArrayMap;
 import org.ethereum.util.Utils;
 import org.ethereum.vm.DataWord;
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -307,6 +310,15 @@ public class MultiThreadSourcesTest {
         testExecutor.run(5);
     }
 
+    @Test
+    public void testConcurrentWriteCache() throws InterruptedException {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        final WriteCache writeCache = new ConcurrentWriteCache.BytesKey<>(src, WriteCache.CacheType.SIMPLE);
+
+        TestExecutor testExecutor = new TestExecutor(writeCache);
+        testExecutor.run(5);
+    }
+
     @Test
     public void testReadCache() throws InterruptedException {
         Source<byte[], byte[]> src = new HashMapDB<>();
@@ -438,6 +450,83 @@ public class MultiThreadSourcesTest {
         testExecutor.run(10);
     }
 
+    @Test
+    public void testCountingConcurrentWriteCache() throws InterruptedException {
+        Source<byte[], byte[]> parentSrc = new HashMapDB<>();
+        Source<byte[], byte[]> src = new CountingBytesSource(parentSrc);
+        final WriteCache writeCache = new ConcurrentWriteCache.BytesKey<>(src, WriteCache.CacheType.COUNTING);
+
+        TestExecutor testExecutor = new TestExecutor(writeCache, true);
+        testExecutor.run(10);
+    }
+
+    @Test
+    public void testConcurrentStateSource() throws Exception {
+        HashMapDB<byte[]> src = new HashMapDB<>();
+        StateSource stateSource = new StateSource(src, false, true);
+        stateSource.getReadCache().withMaxCapacity(10);
+
+        TestExecutor1 testExecutor = new TestExecutor1(stateSource);
+        testExecutor.start(10);
+    }
+
+    @Ignore
+    @Test
+    public void benchmarkConcurrentWriteCache() throws Exception {
+        int[][] threads = {{1, 1}, {2, 4}, {4, 8}, {4, 16}};
+        for (int[] t : threads) {
+            long simple = writeCacheThroughput(new WriteCache.BytesKey<>(new HashMapDB<>(), WriteCache.CacheType.SIMPLE), t[0], t[1]);
+            long concurrent = writeCacheThroughput(new ConcurrentWriteCache.BytesKey<>(new HashMapDB<>(), WriteCache.CacheType.SIMPLE), t[0], t[1]);
+            System.out.printf("writers: %d, readers: %d, WriteCache: %d ops/ms, ConcurrentWriteCache: %d ops/ms (x%.2f)%n",
+                    t[0], t[1], simple, concurrent, (double) concurrent / simple);
+        }
+    }
+
+    private long writeCacheThroughput(final WriteCache<byte[], byte[]> cache, int writers, int readers) throws Exception {
+        final int maxKey = 100_000;
+        final long duration = 5_000;
+        final byte[][] keys = new byte[maxKey][];
+        for (int i = 0; i < maxKey; i++) {
+            keys[i] = key(i);
+        }
+
+        final AtomicLong ops = new AtomicLong();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        List<Thread> all = new ArrayList<>();
+        for (int i = 0; i < writers + readers; i++) {
+            final boolean writer = i < writers;
+            final Random rnd = new Random(i);
+            all.add(new Thread(() -> {
+                long cnt = 0;
+                while (!stopped.get()) {
+                    byte[] key = keys[rnd.nextInt(maxKey)];
+                    if (writer) {
+                        cache.put(key, key);
+                    } else {
+                        cache.get(key);
+                    }
+                    cnt++;
+                }
+                ops.addAndGet(cnt);
+            }));
+        }
+        Thread flusher = new Thread(() -> {
+            while (!stopped.get()) {
+                Utils.sleep(50);
+                cache.flush();
+            }
+        });
+
+        for (Thread thread : all) thread.start();
+        flusher.start();
+        sleep(duration);
+        stopped.set(true);
+        for (Thread thread : all) thread.join();
+        flusher.join();
+
+        return ops.get() / duration;
+    }
+
     private static byte[] key(int key) {
         return sha3(intToBytes(key));
     }
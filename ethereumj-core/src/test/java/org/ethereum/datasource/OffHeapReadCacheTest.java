@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.datasource;
+
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.vm.DataWord;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Random;
+
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.ethereum.util.ByteUtil.longToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Testing {@link OffHeapReadCache}
+ */
+public class OffHeapReadCacheTest {
+
+    private byte[] intToKey(int i) {
+        return sha3(longToBytes(i));
+    }
+
+    private byte[] intToValue(int i) {
+        return (DataWord.of(i)).getData();
+    }
+
+    private String str(Object obj) {
+        if (obj == null) return null;
+        return Hex.toHexString((byte[]) obj);
+    }
+
+    @Test
+    public void test1() {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        OffHeapReadCache readCache = new OffHeapReadCache(src).withCapacity(16 * 1024 * 1024);
+        for (int i = 0; i < 10_000; ++i) {
+            src.put(intToKey(i), intToValue(i));
+        }
+        // Nothing is cached
+        assertNull(readCache.getCached(intToKey(0)));
+        assertNull(readCache.getCached(intToKey(9_999)));
+
+        for (int i = 0; i < 10_000; ++i) {
+            readCache.get(intToKey(i));
+        }
+        // Everything is cached
+        assertEquals(10_000, readCache.getEntriesCount());
+        assertEquals(str(intToValue(0)), str(readCache.getCached(intToKey(0)).value()));
+        assertEquals(str(intToValue(9_999)), str(readCache.getCached(intToKey(9_999)).value()));
+
+        // Source changes doesn't affect cache
+        src.delete(intToKey(13));
+        assertEquals(str(intToValue(13)), str(readCache.getCached(intToKey(13)).value()));
+
+        // null values are cached too
+        assertNull(readCache.get(intToKey(10_000)));
+        assertNotNull(readCache.getCached(intToKey(10_000)));
+        assertNull(readCache.getCached(intToKey(10_000)).value());
+
+        // updates are passed through
+        readCache.put(intToKey(1), intToValue(2));
+        assertEquals(str(intToValue(2)), str(readCache.getCached(intToKey(1)).value()));
+        assertEquals(str(intToValue(2)), str(src.get(intToKey(1))));
+        readCache.delete(intToKey(1));
+        assertNull(readCache.getCached(intToKey(1)));
+        assertNull(src.get(intToKey(1)));
+
+        // Flush is not implemented
+        assertFalse(readCache.flush());
+    }
+
+    @Test
+    public void testDisabled() {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        OffHeapReadCache readCache = new OffHeapReadCache(src);
+        readCache.put(intToKey(0), intToValue(0));
+        assertEquals(str(intToValue(0)), str(readCache.get(intToKey(0))));
+        assertNull(readCache.getCached(intToKey(0)));
+        assertEquals(0, readCache.getAllocatedSize());
+    }
+
+    @Test
+    public void testEviction() {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        OffHeapReadCache readCache = new OffHeapReadCache(src).withCapacity(64 * 1024, 4096);
+        for (int i = 0; i < 10_000; ++i) {
+            src.put(intToKey(i), intToValue(i));
+            readCache.get(intToKey(i));
+            // keeping the first entry hot
+            assertEquals(str(intToValue(0)), str(readCache.get(intToKey(0))));
+        }
+
+        assertTrue(readCache.getAllocatedSize() <= 64 * 1024);
+        assertTrue(readCache.getEntriesCount() < 10_000);
+        assertNotNull(readCache.getCached(intToKey(0)));
+        assertNull(readCache.getCached(intToKey(1)));
+        assertEquals(str(intToValue(9_999)), str(readCache.getCached(intToKey(9_999)).value()));
+
+        for (int i = 0; i < 10_000; ++i) {
+            assertEquals(str(intToValue(i)), str(readCache.get(intToKey(i))));
+        }
+    }
+
+    @Test
+    public void testRandomSizes() {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        OffHeapReadCache readCache = new OffHeapReadCache(src).withCapacity(256 * 1024, 16 * 1024);
+        Random rnd = new Random(0);
+        byte[][] values = new byte[2_000][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new byte[rnd.nextInt(20_000)];
+            rnd.nextBytes(values[i]);
+            readCache.put(intToKey(i), values[i]);
+        }
+        for (int j = 0; j < 20_000; j++) {
+            int i = rnd.nextInt(values.length);
+            if (rnd.nextInt(10) == 0) {
+                values[i] = new byte[rnd.nextInt(1_000)];
+                rnd.nextBytes(values[i]);
+                readCache.put(intToKey(i), values[i]);
+            }
+            assertArrayEquals(values[i], readCache.get(intToKey(i)));
+            AbstractCachedSource.Entry<byte[]> cached = readCache.getCached(intToKey(i));
+            if (cached != null) {
+                assertArrayEquals(values[i], cached.value());
+            }
+        }
+    }
+
+    @Test
+    public void testCapacitySharedBetweenClasses() {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        OffHeapReadCache readCache = new OffHeapReadCache(src).withCapacity(256 * 1024, 16 * 1024);
+
+        // small entries take all the pages
+        for (int i = 0; i < 20_000; ++i) {
+            readCache.put(intToKey(i), intToValue(i));
+        }
+        assertEquals(256 * 1024, readCache.getAllocatedSize());
+
+        // large entries get the pages of the cold small ones
+        byte[] value = new byte[5_000];
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; ++i) {
+                readCache.put(intToKey(100_000 + i), value);
+                assertNotNull(readCache.getCached(intToKey(100_000 + i)));
+            }
+        }
+        for (int i = 0; i < 10; ++i) {
+            assertArrayEquals(value, readCache.getCached(intToKey(100_000 + i)).value());
+        }
+        assertEquals(256 * 1024, readCache.getAllocatedSize());
+    }
+}
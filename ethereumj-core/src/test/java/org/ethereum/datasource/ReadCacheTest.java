@@ -88,4 +88,85 @@ public class ReadCacheTest {
         assertEquals(str(intToValue(9_901)), str(readCache.getCached(intToKey(9_901)).value()));
         assertNull(readCache.getCached(intToKey(9_900)));
     }
+
+    @Test
+    public void testMaxSize() {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        ReadCache.BytesKey<byte[]> readCache = new ReadCache.BytesKey<>(src);
+        readCache.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
+        readCache.withMaxSize(64 * 1024);
+        long entrySize = ReadCache.ENTRY_OVERHEAD + (32 + 16) * 2;
+        for (int i = 0; i < 10_000; ++i) {
+            src.put(intToKey(i), intToValue(i));
+            readCache.get(intToKey(i));
+            assertTrue(readCache.estimateCacheSize() <= 64 * 1024);
+        }
+
+        assertEquals(64 * 1024 / entrySize * entrySize, readCache.estimateCacheSize());
+        assertNull(readCache.getCached(intToKey(0)));
+        assertEquals(str(intToValue(9_999)), str(readCache.getCached(intToKey(9_999)).value()));
+        assertEquals(10_000 - 64 * 1024 / entrySize, readCache.getEvictionCount());
+
+        // large values take more room
+        byte[] large = new byte[16 * 1024];
+        src.put(intToKey(-1), large);
+        readCache.get(intToKey(-1));
+        assertTrue(readCache.estimateCacheSize() <= 64 * 1024);
+        assertNull(readCache.getCached(intToKey((int) (9_999 - 64 * 1024 / entrySize + 16 * 1024 / entrySize))));
+        assertNotNull(readCache.getCached(intToKey(9_999)));
+
+        // deleted entries free the room
+        readCache.delete(intToKey(-1));
+        assertTrue(readCache.estimateCacheSize() <= 64 * 1024 - 16 * 1024);
+
+        // null values are accounted too
+        readCache.get(intToKey(-2));
+        assertNotNull(readCache.getCached(intToKey(-2)));
+        assertNull(readCache.getCached(intToKey(-2)).value());
+    }
+
+    @Test
+    public void testScanResistance() {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        ReadCache.BytesKey<byte[]> readCache = new ReadCache.BytesKey<>(src);
+        readCache.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
+        readCache.withMaxSize(160 * 1000);
+        for (int i = 0; i < 100_000; ++i) {
+            src.put(intToKey(i), intToValue(i));
+        }
+
+        // hot set is accessed repeatedly
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < 500; i++) {
+                readCache.get(intToKey(i));
+            }
+        }
+        // single pass over a large number of entries
+        for (int i = 500; i < 100_000; ++i) {
+            readCache.get(intToKey(i));
+        }
+
+        long hits = readCache.getHitCount();
+        for (int i = 0; i < 500; i++) {
+            assertEquals(str(intToValue(i)), str(readCache.get(intToKey(i))));
+        }
+        assertEquals(hits + 500, readCache.getHitCount());
+    }
+
+    @Test
+    public void testCounters() {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        ReadCache<byte[], byte[]> readCache = new ReadCache.BytesKey<>(src).withMaxCapacity(10);
+        for (int i = 0; i < 20; ++i) {
+            src.put(intToKey(i), intToValue(i));
+            readCache.get(intToKey(i));
+            readCache.get(intToKey(i));
+        }
+        readCache.get(intToKey(100));
+        readCache.get(intToKey(100));
+
+        assertEquals(21, readCache.getMissCount());
+        assertEquals(21, readCache.getHitCount());
+        assertEquals(11, readCache.getEvictionCount());
+    }
 }
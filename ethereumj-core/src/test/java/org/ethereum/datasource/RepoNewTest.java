@@ -20,15 +20,25 @@ package org.ethereum.datasource;
 import org.ethereum.core.AccountState;
 import org.ethereum.core.Repository;
 import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.db.ByteArrayWrapper;
 import org.ethereum.db.RepositoryRoot;
+import org.ethereum.db.StorageTrieCache;
+import org.ethereum.trie.SecureTrie;
+import org.ethereum.trie.TrieImpl;
 import org.ethereum.vm.DataWord;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import static java.math.BigInteger.ONE;
 import static java.math.BigInteger.valueOf;
+import static org.ethereum.crypto.HashUtil.sha3;
 import static org.spongycastle.util.encoders.Hex.decode;
 import static org.spongycastle.util.encoders.Hex.toHexString;
 
@@ -193,4 +203,104 @@ public class RepoNewTest {
 
         Assert.assertEquals(DataWord.of(111), repo.getStorageValue(addr2, DataWord.ONE));
     }
+
+    @Test
+    public void testStorageTrieRetained() throws Exception {
+        byte[] addr1 = decode("aaaa");
+        byte[] addr2 = decode("bbbb");
+        Set<ByteArrayWrapper> storageReads = new HashSet<>();
+        HashMapDB<byte[]> stateDb = new HashMapDB<byte[]>() {
+            @Override
+            public byte[] get(byte[] key) {
+                // the storage node keys end with the address hash prefix, see NodeKeyCompositor
+                for (byte[] addr : Arrays.asList(addr1, addr2)) {
+                    if (key.length == 32 && Arrays.equals(Arrays.copyOfRange(key, 16, 32), Arrays.copyOf(sha3(addr), 16))) {
+                        storageReads.add(new ByteArrayWrapper(addr));
+                    }
+                }
+                return super.get(key);
+            }
+        };
+
+        // the nodes of the both storage tries are kept after the commit
+        StorageTrieCache cache = new StorageTrieCache(1024 * 1024);
+        RepositoryRoot repo = new RepositoryRoot(stateDb, null, null, cache);
+        fillStorage(repo, addr1, addr2);
+        Assert.assertTrue(cache.getSize() > 0);
+        storageReads.clear();
+        Assert.assertNull(repo.getStorageValue(addr1, DataWord.of(1000)));
+        Assert.assertEquals(DataWord.of(6), repo.getStorageValue(addr1, DataWord.of(5)));
+        Assert.assertTrue(storageReads.isEmpty());
+
+        // and are taken over by the snapshot of the next block
+        repo.commit();
+        RepositoryRoot next = repo.getChainSnapshotTo(repo.getRoot());
+        storageReads.clear();
+        Assert.assertNull(next.getStorageValue(addr2, DataWord.of(1000)));
+        Assert.assertEquals(DataWord.of(6), next.getStorageValue(addr2, DataWord.of(5)));
+        Assert.assertTrue(storageReads.isEmpty());
+        // the other snapshots don't take these
+        Assert.assertEquals(DataWord.of(6), repo.getSnapshotTo(repo.getRoot()).getStorageValue(addr1, DataWord.of(5)));
+        Assert.assertTrue(storageReads.contains(new ByteArrayWrapper(addr1)));
+
+        // the nodes are released on each commit
+        repo = new RepositoryRoot(stateDb, null, null, new StorageTrieCache(0));
+        fillStorage(repo, addr1, addr2);
+        storageReads.clear();
+        Assert.assertNull(repo.getStorageValue(addr1, DataWord.of(1000)));
+        Assert.assertFalse(storageReads.isEmpty());
+
+        // the size limit is exceeded
+        cache = new StorageTrieCache(1);
+        repo = new RepositoryRoot(stateDb, null, null, cache);
+        fillStorage(repo, addr1, addr2);
+        Assert.assertEquals(0, cache.getSize());
+        storageReads.clear();
+        Assert.assertNull(repo.getStorageValue(addr2, DataWord.of(1000)));
+        Assert.assertFalse(storageReads.isEmpty());
+    }
+
+    @Test
+    public void testStateDiff() throws Exception {
+        Source<byte[], byte[]> stateDb = new NoDeleteSource<>(new HashMapDB<byte[]>());
+        byte[] addr1 = decode("aaaa");
+        byte[] addr2 = decode("bbbb");
+        RepositoryRoot repo = new RepositoryRoot(stateDb, null);
+        fillStorage(repo, addr1, addr2);
+        byte[] root1 = repo.getRoot();
+
+        repo.addStorageRow(addr1, DataWord.of(5), DataWord.of(50));
+        repo.addStorageRow(addr1, DataWord.of(6), DataWord.ZERO);
+        repo.addBalance(addr2, BigInteger.TEN);
+        repo.commit();
+        byte[] root2 = repo.getRoot();
+
+        Map<String, String> accounts = new HashMap<>();
+        Map<String, String> storage = new HashMap<>();
+        new SecureTrie(stateDb, root1).diff(root2, (addrHash, oldValue, newValue) -> {
+            accounts.put(toHexString(addrHash), toHexString(newValue));
+            byte[] oldStorageRoot = new AccountState(oldValue).getStateRoot();
+            byte[] newStorageRoot = new AccountState(newValue).getStateRoot();
+            // the storage trie nodes are keyed by the address hash
+            new TrieImpl(new SourceCodec.KeyOnly<>(stateDb, new NodeKeyCompositor(addrHash)), oldStorageRoot)
+                    .diff(newStorageRoot, (keyHash, oldVal, newVal) ->
+                            storage.put(toHexString(keyHash), newVal == null ? null : toHexString(newVal)));
+        });
+
+        Assert.assertEquals(2, accounts.size());
+        Assert.assertEquals(2, storage.size());
+        Assert.assertTrue(storage.containsKey(toHexString(sha3(DataWord.of(5).getData()))));
+        Assert.assertNull(storage.get(toHexString(sha3(DataWord.of(6).getData()))));
+    }
+
+    private static void fillStorage(RepositoryRoot repo, byte[]... addrs) {
+        Repository track = repo.startTracking();
+        for (byte[] addr : addrs) {
+            for (int i = 0; i < 100; i++) {
+                track.addStorageRow(addr, DataWord.of(i), DataWord.of(i + 1));
+            }
+        }
+        track.commit();
+        repo.commit();
+    }
 }
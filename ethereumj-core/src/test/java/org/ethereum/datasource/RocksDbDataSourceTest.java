@@ -17,13 +17,18 @@
  */
 package org.ethereum.datasource;
 
+import org.ethereum.datasource.rocksdb.ColumnFamilyBatchWriter;
 import org.ethereum.datasource.rocksdb.RocksDbDataSource;
+import org.ethereum.util.FastByteComparisons;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import static org.ethereum.TestUtils.randomBytes;
 import static org.junit.Assert.*;
@@ -131,6 +136,194 @@ public class RocksDbDataSourceTest {
         dataSource.close();
     }
 
+    @Test
+    public void testColumnFamilies() {
+        DbSettings settings = DbSettings.newInstance()
+                .withColumnFamily("state", DbSettings.ColumnFamily.Profile.POINT_LOOKUP, 1024 * 1024)
+                .withColumnFamily("block", DbSettings.ColumnFamily.Profile.COLD, 0);
+        RocksDbDataSource dataSource = new RocksDbDataSource("test");
+        dataSource.init(settings);
+        dataSource.reset();
+        assertTrue(dataSource.hasColumnFamilies());
+
+        ColumnFamilyBatchWriter writer = new ColumnFamilyBatchWriter(dataSource, dataSource.getColumnFamilyNames());
+        WriteCache<byte[], byte[]> cache = new WriteCache.BytesKey<>(writer, WriteCache.CacheType.SIMPLE);
+        cache.setFlushSource(true);
+        Source<byte[], byte[]> state = writer.familySource(cache, "state");
+        Source<byte[], byte[]> block = writer.familySource(cache, "block");
+        Source<byte[], byte[]> other = writer.familySource(cache, null);
+
+        byte[] key = randomBytes(32);
+        state.put(key, "state".getBytes());
+        block.put(key, "block".getBytes());
+        other.put(key, "other".getBytes());
+        assertNull(dataSource.get(key));
+        cache.flush();
+
+        // the same key in different families
+        assertArrayEquals("state".getBytes(), dataSource.getColumnFamily("state").get(key));
+        assertArrayEquals("state".getBytes(), dataSource.getColumnFamily("state").prefixLookup(key, NodeKeyCompositor.PREFIX_BYTES));
+        assertArrayEquals("block".getBytes(), dataSource.getColumnFamily("block").get(key));
+        assertArrayEquals("other".getBytes(), dataSource.get(key));
+        assertEquals(1, dataSource.getColumnFamily("block").keys().size());
+
+        block.delete(key);
+        cache.flush();
+        assertNull(dataSource.getColumnFamily("block").get(key));
+        assertArrayEquals("state".getBytes(), state.get(key));
+
+        // families are opened regardless of the settings
+        dataSource.close();
+        dataSource.init(DbSettings.DEFAULT);
+        assertTrue(dataSource.hasColumnFamilies());
+        assertArrayEquals("state".getBytes(), dataSource.getColumnFamily("state").get(key));
+        assertNull(dataSource.getColumnFamily("journal"));
+
+        dataSource.close();
+    }
+
+    @Test
+    public void testColumnFamilyReset() {
+        RocksDbDataSource dataSource = new RocksDbDataSource("test");
+        dataSource.init(DbSettings.newInstance()
+                .withColumnFamily("state", DbSettings.ColumnFamily.Profile.POINT_LOOKUP, 0)
+                .withColumnFamily("block", DbSettings.ColumnFamily.Profile.COLD, 0));
+        dataSource.reset();
+
+        DbSource<byte[]> state = dataSource.getColumnFamily("state");
+        DbSource<byte[]> block = dataSource.getColumnFamily("block");
+        byte[] key = randomBytes(32);
+        state.put(key, key);
+        block.put(key, key);
+        dataSource.put(key, key);
+
+        // only the family data is dropped, the view keeps working with the recreated family
+        state.reset();
+        assertNull(state.get(key));
+        assertTrue(state.keys().isEmpty());
+        assertArrayEquals(key, block.get(key));
+        assertArrayEquals(key, dataSource.get(key));
+        state.put(key, "state".getBytes());
+        assertArrayEquals("state".getBytes(), dataSource.getColumnFamily("state").get(key));
+
+        // the view is switched to a new family
+        state.setName("journal");
+        assertEquals("test/journal", state.getName());
+        assertNull(state.get(key));
+        state.put(key, "journal".getBytes());
+        assertArrayEquals("journal".getBytes(), dataSource.getColumnFamily("journal").get(key));
+
+        // the recreated families survive reopening
+        dataSource.close();
+        dataSource.init(DbSettings.DEFAULT);
+        assertArrayEquals("state".getBytes(), dataSource.getColumnFamily("state").get(key));
+        assertArrayEquals("journal".getBytes(), dataSource.getColumnFamily("journal").get(key));
+
+        dataSource.close();
+    }
+
+    @Test
+    public void testColumnFamiliesOnExistingDb() {
+        RocksDbDataSource dataSource = new RocksDbDataSource("test");
+        dataSource.reset();
+        byte[] key = randomBytes(32);
+        dataSource.put(key, key);
+        dataSource.close();
+
+        // existing DB without families keeps the single keyspace
+        dataSource.init(DbSettings.newInstance()
+                .withColumnFamily("state", DbSettings.ColumnFamily.Profile.POINT_LOOKUP, 0));
+        assertFalse(dataSource.hasColumnFamilies());
+        assertNull(dataSource.getColumnFamily("state"));
+        assertArrayEquals(key, dataSource.get(key));
+
+        dataSource.close();
+    }
+
+    @Test
+    public void testIterator() {
+        RocksDbDataSource dataSource = new RocksDbDataSource("test");
+        dataSource.init(DbSettings.newInstance()
+                .withColumnFamily("state", DbSettings.ColumnFamily.Profile.POINT_LOOKUP, 0));
+        dataSource.reset();
+
+        checkIterator(dataSource);
+        checkIterator(dataSource.getColumnFamily("state"));
+
+        dataSource.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testExhaustedIteratorReleased() {
+        RocksDbDataSource dataSource = new RocksDbDataSource("test");
+        dataSource.reset();
+
+        checkIteratorReleased(dataSource);
+    }
+
+    /**
+     * Iterates to the end without closing, the DB must not stay locked
+     */
+    static void checkIteratorReleased(DbSource<byte[]> db) {
+        db.updateBatch(createBatch(10));
+        DbIterator<byte[]> it = db.iterator(null, null);
+        int cnt = 0;
+        while (it.hasNext()) {
+            it.next();
+            cnt++;
+        }
+        assertEquals(10, cnt);
+        assertFalse(it.hasNext());
+
+        // blocks forever if the iterator still holds the read lock
+        db.reset();
+        assertTrue(db.keys().isEmpty());
+        it.close();
+        db.close();
+    }
+
+    static void checkIterator(DbSource<byte[]> db) {
+        Comparator<byte[]> order = (b1, b2) -> FastByteComparisons.compareTo(b1, 0, b1.length, b2, 0, b2.length);
+        TreeMap<byte[], byte[]> rows = new TreeMap<>(order);
+        for (int i = 0; i < 1000; i++) {
+            // keys crossing the prefix extractor boundaries
+            byte[] key = i % 2 == 0 ? randomBytes(32) : randomBytes(1 + i % 40);
+            rows.put(key, randomBytes(8));
+        }
+        rows.put(Hex.decode("0102ff"), randomBytes(8));
+        rows.put(Hex.decode("0103"), randomBytes(8));
+        db.updateBatch(rows);
+
+        checkRows(rows, db.iterator(null, null));
+        byte[][] keys = rows.keySet().toArray(new byte[0][]);
+        checkRows(rows.subMap(keys[100], keys[600]), db.iterator(keys[100], keys[600]));
+        checkRows(rows.subMap(Hex.decode("0102"), Hex.decode("0103")), db.prefixIterator(Hex.decode("0102")));
+        checkRows(rows.tailMap(Hex.decode("ff")), db.prefixIterator(Hex.decode("ff")));
+
+        // keys only
+        try (DbIterator<byte[]> it = db.iterator(null, null)) {
+            int cnt = 0;
+            while (it.hasNext()) {
+                it.next();
+                cnt++;
+            }
+            assertEquals(rows.size(), cnt);
+        }
+    }
+
+    private static void checkRows(SortedMap<byte[], byte[]> expected, DbIterator<byte[]> it) {
+        try {
+            for (Map.Entry<byte[], byte[]> row : expected.entrySet()) {
+                assertTrue(it.hasNext());
+                assertArrayEquals(row.getKey(), it.next());
+                assertArrayEquals(row.getValue(), it.value());
+            }
+            assertFalse(it.hasNext());
+        } finally {
+            it.close();
+        }
+    }
+
     private static Map<byte[], byte[]> createBatch(int batchSize) {
         HashMap<byte[], byte[]> result = new HashMap<>();
         for (int i = 0; i < batchSize; i++) {
@@ -44,10 +44,14 @@ public class WriteCacheTest {
         return Hex.toHexString((byte[]) obj);
     }
 
+    protected WriteCache<byte[], byte[]> createCache(Source<byte[], byte[]> src, WriteCache.CacheType cacheType) {
+        return new WriteCache.BytesKey<>(src, cacheType);
+    }
+
     @Test
     public void testSimple() {
         Source<byte[], byte[]> src = new HashMapDB<>();
-        WriteCache<byte[], byte[]> writeCache = new WriteCache.BytesKey<>(src, WriteCache.CacheType.SIMPLE);
+        WriteCache<byte[], byte[]> writeCache = createCache(src, WriteCache.CacheType.SIMPLE);
         for (int i = 0; i < 10_000; ++i) {
             writeCache.put(intToKey(i), intToValue(i));
         }
@@ -87,7 +91,7 @@ public class WriteCacheTest {
     public void testCounting() {
         Source<byte[], byte[]> parentSrc = new HashMapDB<>();
         Source<byte[], byte[]> src = new CountingBytesSource(parentSrc);
-        WriteCache<byte[], byte[]> writeCache = new WriteCache.BytesKey<>(src, WriteCache.CacheType.COUNTING);
+        WriteCache<byte[], byte[]> writeCache = createCache(src, WriteCache.CacheType.COUNTING);
         for (int i = 0; i < 100; ++i) {
             for (int j = 0; j <= i; ++j) {
                 writeCache.put(intToKey(i), intToValue(i));
@@ -134,7 +138,7 @@ public class WriteCacheTest {
     @Test
     public void testWithSizeEstimator() {
         Source<byte[], byte[]> src = new HashMapDB<>();
-        WriteCache<byte[], byte[]> writeCache = new WriteCache.BytesKey<>(src, WriteCache.CacheType.SIMPLE);
+        WriteCache<byte[], byte[]> writeCache = createCache(src, WriteCache.CacheType.SIMPLE);
         writeCache.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
         assertEquals(0, writeCache.estimateCacheSize());
 
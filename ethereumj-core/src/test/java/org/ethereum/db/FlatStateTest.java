@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import org.ethereum.core.AccountState;
+import org.ethereum.core.Repository;
+import org.ethereum.datasource.NoDeleteSource;
+import org.ethereum.datasource.NodeKeyCompositor;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.SourceCodec;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.trie.TrieImpl;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.vm.DataWord;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.ethereum.crypto.HashUtil.EMPTY_TRIE_HASH;
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.junit.Assert.*;
+
+public class FlatStateTest {
+
+    private static final byte[] a = Hex.decode("cd2a3d9f938e13cd947ec05abc7fe734df8dd826");
+    private static final byte[] b = Hex.decode("13978aee95f38490e9769c39b2773ed763d9cd5f");
+    private static final byte[] c = Hex.decode("3cb91b4c6b21d6b2b3e59eb6e1ae2d3c6c0cd1b4");
+
+    private final AtomicInteger stateReads = new AtomicInteger();
+    private final HashMapDB<byte[]> stateDb = new HashMapDB<byte[]>() {
+        @Override
+        public byte[] get(byte[] key) {
+            stateReads.incrementAndGet();
+            return super.get(key);
+        }
+    };
+    // the replaced nodes are kept like by the pruning
+    private final Source<byte[], byte[]> stateSource = new NoDeleteSource<>(stateDb);
+    private final HashMapDB<byte[]> flatDb = new HashMapDB<>();
+
+    @Test
+    public void testRebranch() {
+        FlatState flatState = new FlatState(flatDb, flatDb, stateDb, 16);
+        flatState.syncTo(EMPTY_TRIE_HASH);
+
+        byte[] root1 = commit(flatState, EMPTY_TRIE_HASH, repo -> {
+            repo.addBalance(a, BigInteger.TEN);
+            repo.addStorageRow(a, DataWord.of(1), DataWord.of(1));
+            repo.addStorageRow(a, DataWord.of(2), DataWord.of(2));
+            repo.increaseNonce(b);
+        });
+        assertTrue(flatState.moveTo(root1));
+        assertFlatState(flatState, root1);
+
+        byte[] root2 = commit(flatState, root1, repo -> {
+            repo.addStorageRow(a, DataWord.of(1), DataWord.of(3));
+            repo.addStorageRow(a, DataWord.of(2), DataWord.ZERO);
+            repo.addBalance(b, BigInteger.ONE);
+        });
+        byte[] forkRoot2 = commit(flatState, root1, repo -> {
+            repo.addBalance(a, BigInteger.TEN);
+            repo.addStorageRow(c, DataWord.of(1), DataWord.of(1));
+        });
+        byte[] forkRoot3 = commit(flatState, forkRoot2, repo -> repo.delete(b));
+
+        assertTrue(flatState.moveTo(root2));
+        assertFlatState(flatState, root2);
+        assertTrue(flatState.moveTo(forkRoot3));
+        assertFlatState(flatState, forkRoot3);
+        assertTrue(flatState.moveTo(root2));
+        assertFlatState(flatState, root2);
+
+        // the unchanged values are read without the trie walk
+        stateReads.set(0);
+        Repository repo = new RepositoryRoot(stateSource, root2, flatState);
+        assertEquals(DataWord.of(3), repo.getStorageValue(a, DataWord.of(1)));
+        assertNull(repo.getStorageValue(a, DataWord.of(2)));
+        assertEquals(BigInteger.ONE, repo.getNonce(b));
+        assertEquals(0, stateReads.get());
+
+        // and the changed ones from the trie
+        repo.addStorageRow(a, DataWord.of(1), DataWord.of(4));
+        repo.getRoot();
+        assertEquals(DataWord.of(4), repo.getStorageValue(a, DataWord.of(1)));
+    }
+
+    @Test
+    public void testDeletedStorage() {
+        FlatState flatState = new FlatState(flatDb, flatDb, stateDb, 16);
+        flatState.syncTo(EMPTY_TRIE_HASH);
+
+        byte[] root1 = commit(flatState, EMPTY_TRIE_HASH, repo -> {
+            repo.addStorageRow(a, DataWord.of(1), DataWord.of(1));
+            repo.addStorageRow(a, DataWord.of(2), DataWord.of(2));
+        });
+        assertTrue(flatState.moveTo(root1));
+
+        RepositoryRoot repo = new RepositoryRoot(stateSource, root1, flatState);
+        repo.delete(a);
+        repo.addStorageRow(a, DataWord.of(3), DataWord.of(3));
+        // the storage of the deleted account isn't read from the flat state
+        assertNull(repo.getStorageValue(a, DataWord.of(1)));
+        repo.commit();
+
+        assertTrue(flatState.moveTo(repo.getRoot()));
+        assertFlatState(flatState, repo.getRoot());
+        assertEquals(0, flatState.get(repo.getRoot(), FlatState.storageKey(sha3(a), DataWord.of(1).getData())).length);
+
+        assertTrue(flatState.moveTo(root1));
+        assertFlatState(flatState, root1);
+    }
+
+    @Test
+    public void testGenerate() {
+        byte[] root = commit(null, EMPTY_TRIE_HASH, repo -> {
+            repo.addBalance(a, BigInteger.TEN);
+            repo.addStorageRow(a, DataWord.of(1), DataWord.of(1));
+            repo.addStorageRow(b, DataWord.of(1), DataWord.of(2));
+            repo.saveCode(b, new byte[] {1});
+        });
+
+        // stale entries are dropped
+        flatDb.put(FlatState.storageKey(sha3(c), DataWord.of(1).getData()), new byte[] {1});
+
+        FlatState flatState = new FlatState(flatDb, flatDb, stateDb, 16);
+        flatState.syncTo(root);
+        assertFlatState(flatState, root);
+        assertNull(flatDb.get(FlatState.storageKey(sha3(c), DataWord.of(1).getData())));
+
+        // the state is kept in the DB
+        assertArrayEquals(root, new FlatState(flatDb, flatDb, stateDb, 16).getRoot());
+    }
+
+    @Test
+    public void testOutOfSync() {
+        FlatState flatState = new FlatState(flatDb, flatDb, stateDb, 2);
+        flatState.syncTo(EMPTY_TRIE_HASH);
+
+        byte[] root = EMPTY_TRIE_HASH;
+        for (int i = 0; i < 3; i++) {
+            root = commit(flatState, root, repo -> repo.increaseNonce(a));
+        }
+        // the records are gone
+        assertFalse(flatState.moveTo(root));
+        assertNull(flatState.getRoot());
+        assertNull(flatState.get(EMPTY_TRIE_HASH, FlatState.accountKey(a)));
+
+        // the trie is still read
+        assertEquals(BigInteger.valueOf(3), new RepositoryRoot(stateSource, root, flatState).getNonce(a));
+        assertNull(new FlatState(flatDb, flatDb, stateDb, 2).getRoot());
+    }
+
+    private byte[] commit(FlatState flatState, byte[] root, Consumer<Repository> changes) {
+        RepositoryRoot repo = new RepositoryRoot(stateSource, root, flatState);
+        Repository track = repo.startTracking();
+        changes.accept(track);
+        track.commit();
+        repo.commit();
+        return repo.getRoot();
+    }
+
+    private void assertFlatState(FlatState flatState, byte[] root) {
+        Map<ByteArrayWrapper, byte[]> expected = new HashMap<>();
+        new TrieImpl(stateDb, root).scanValues((addrHash, accountRlp) -> {
+            expected.put(new ByteArrayWrapper(addrHash), accountRlp);
+            AccountState account = new AccountState(accountRlp);
+            new TrieImpl(new SourceCodec.KeyOnly<>(stateDb, new NodeKeyCompositor(addrHash)), account.getStateRoot())
+                    .scanValues((keyHash, value) -> expected.put(new ByteArrayWrapper(ByteUtil.merge(addrHash, keyHash)), value));
+        });
+
+        for (Map.Entry<ByteArrayWrapper, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getValue(), flatState.get(root, entry.getKey().getData()));
+        }
+        // the journal keys are never 64 bytes long
+        for (byte[] key : flatDb.keys()) {
+            if (key.length == 64) assertTrue(expected.containsKey(new ByteArrayWrapper(key)));
+        }
+        assertTrue(FastByteComparisons.equal(root, flatState.getRoot()));
+    }
+}
@@ -18,17 +18,28 @@
 package org.ethereum.db;
 
 import org.ethereum.config.SystemProperties;
+import org.ethereum.datasource.AsyncWriteCache;
+import org.ethereum.datasource.BatchSourceWriter;
 import org.ethereum.datasource.DbSource;
 import org.ethereum.datasource.MemSizeEstimator;
+import org.ethereum.datasource.Source;
 import org.ethereum.datasource.WriteCache;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.ethereum.datasource.MemSizeEstimator.ByteArrayEstimator;
+import static org.ethereum.util.ByteUtil.byteArrayToInt;
 import static org.ethereum.util.ByteUtil.intToBytes;
 
 /**
@@ -120,4 +131,108 @@ public class FlushDbManagerTest {
 
         if (exception[0] != null) throw exception[0];
     }
+
+    @Test
+    public void testPendingFlushesConsistency() throws Exception {
+        // check that each blockchain DB batch contains the changes of a single flip
+        // when several flushes are pending
+
+        final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        final HashMapDB<byte[]> db = new HashMapDB<byte[]>() {
+            @Override
+            public void updateBatch(Map<byte[], byte[]> rows) {
+                List<Integer> batch = new ArrayList<>();
+                for (byte[] val : rows.values()) {
+                    batch.add(byteArrayToInt(val));
+                }
+                batches.add(batch);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {}
+                super.updateBatch(rows);
+            }
+        };
+        final WriteCache<byte[], byte[]> dbCache = new WriteCache.BytesKey<>(new BatchSourceWriter<>(db), WriteCache.CacheType.SIMPLE);
+        dbCache.setFlushSource(true);
+        final AsyncWriteCache<byte[], byte[]> cache1 = asyncCache(dbCache);
+        final AsyncWriteCache<byte[], byte[]> cache2 = asyncCache(dbCache);
+
+        final DbFlushManager dbFlushManager = new DbFlushManager(SystemProperties.getDefault(), Collections.<DbSource>emptySet(), dbCache);
+        dbFlushManager.addCache(cache1);
+        dbFlushManager.addCache(cache2);
+        Assert.assertTrue(dbFlushManager.maxPendingFlushes > 1);
+
+        for (int i = 1; i <= 30; i++) {
+            cache1.put(intToBytes(i), intToBytes(i));
+            cache2.put(intToBytes(-i), intToBytes(i));
+            dbFlushManager.flush();
+        }
+        dbFlushManager.flushSync();
+
+        Assert.assertEquals(30, batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            Assert.assertEquals(2, batches.get(i).size());
+            Assert.assertEquals(i + 1, (int) batches.get(i).get(0));
+            Assert.assertEquals(i + 1, (int) batches.get(i).get(1));
+        }
+    }
+
+    @Test
+    public void testWritersPerDb() throws Exception {
+        // check that the caches of the same DB are written by the single writer one after another
+
+        final Map<String, Set<String>> writers = new ConcurrentHashMap<>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final HashMapDB<byte[]> db1 = writerDb("db1", writers, overlaps);
+        final HashMapDB<byte[]> db2 = writerDb("db2", writers, overlaps);
+        final DbFlushManager dbFlushManager = new DbFlushManager(SystemProperties.getDefault(), Collections.<DbSource>emptySet(), null);
+        List<WriteCache<byte[], byte[]>> caches = new ArrayList<>();
+        for (HashMapDB<byte[]> db : Arrays.asList(db1, db1, db2, db2)) {
+            WriteCache<byte[], byte[]> cache = new WriteCache.BytesKey<>(new BatchSourceWriter<>(db), WriteCache.CacheType.SIMPLE);
+            cache.setFlushSource(true);
+            dbFlushManager.addCache(cache, db);
+            caches.add(cache);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < caches.size(); j++) {
+                caches.get(j).put(intToBytes(i * caches.size() + j), intToBytes(i));
+            }
+            dbFlushManager.flush();
+        }
+        dbFlushManager.flushSync();
+
+        Assert.assertEquals(0, overlaps.get());
+        Assert.assertEquals(20, db1.keys().size());
+        Assert.assertEquals(20, db2.keys().size());
+        Assert.assertEquals(1, writers.get("db1").size());
+        Assert.assertEquals(1, writers.get("db2").size());
+        Assert.assertNotEquals(writers.get("db1"), writers.get("db2"));
+    }
+
+    private HashMapDB<byte[]> writerDb(String name, Map<String, Set<String>> writers, AtomicInteger overlaps) {
+        return new HashMapDB<byte[]>() {
+            final AtomicInteger active = new AtomicInteger();
+
+            @Override
+            public void updateBatch(Map<byte[], byte[]> rows) {
+                if (active.incrementAndGet() > 1) overlaps.incrementAndGet();
+                writers.computeIfAbsent(name, k -> ConcurrentHashMap.newKeySet()).add(Thread.currentThread().getName());
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {}
+                super.updateBatch(rows);
+                active.decrementAndGet();
+            }
+        };
+    }
+
+    private AsyncWriteCache<byte[], byte[]> asyncCache(Source<byte[], byte[]> src) {
+        return new AsyncWriteCache<byte[], byte[]>(src) {
+            @Override
+            protected WriteCache<byte[], byte[]> createCache(Source<byte[], byte[]> source) {
+                return new WriteCache.BytesKey<>(source, WriteCache.CacheType.SIMPLE);
+            }
+        };
+    }
 }
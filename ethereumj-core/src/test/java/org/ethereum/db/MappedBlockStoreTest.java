@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import org.ethereum.core.Block;
+import org.ethereum.crypto.ECKey;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.util.FileUtil;
+import org.ethereum.util.blockchain.StandaloneBlockchain;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Testing {@link MappedBlockFile} and {@link MappedBlockStore}
+ */
+public class MappedBlockStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mapped-blocks").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(dir.getAbsolutePath());
+    }
+
+    @Test
+    public void testBlockFile() {
+        Random rnd = new Random(0);
+        List<byte[]> rlps = new ArrayList<>();
+        // small segments to test the rollover
+        MappedBlockFile file = new MappedBlockFile(dir, 64 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            byte[] rlp = new byte[rnd.nextInt(2000)];
+            rnd.nextBytes(rlp);
+            rlps.add(rlp);
+            assertEquals(i, file.append(sha3(intToBytes(i)), rlp));
+        }
+        checkFile(file, rlps);
+        assertNull(file.get(1000));
+        assertNull(file.getHash(-1));
+
+        ByteBuffer raw = file.getRaw(10);
+        assertTrue(raw.isReadOnly());
+        assertEquals(rlps.get(10).length, raw.remaining());
+        file.close();
+
+        file = new MappedBlockFile(dir, 64 * 1024);
+        checkFile(file, rlps);
+        byte[] rlp = new byte[100];
+        rlps.add(rlp);
+        assertEquals(1000, file.append(sha3(intToBytes(1000)), rlp));
+        checkFile(file, rlps);
+
+        // the truncated blocks are overwritten by the appended ones
+        file.truncate(500);
+        rlps = new ArrayList<>(rlps.subList(0, 500));
+        checkFile(file, rlps);
+        assertNull(file.get(500));
+        rlps.add(rlp);
+        assertEquals(500, file.append(sha3(intToBytes(500)), rlp));
+        checkFile(file, rlps);
+        file.close();
+        file = new MappedBlockFile(dir, 64 * 1024);
+        checkFile(file, rlps);
+
+        file.reset();
+        assertEquals(0, file.size());
+        assertNull(file.get(0));
+        file.close();
+
+        file = new MappedBlockFile(dir, 64 * 1024);
+        assertEquals(0, file.size());
+        file.close();
+    }
+
+    private void checkFile(MappedBlockFile file, List<byte[]> rlps) {
+        assertEquals(rlps.size(), file.size());
+        for (int i = 0; i < rlps.size(); i++) {
+            assertArrayEquals(rlps.get(i), file.get(i));
+            assertArrayEquals(sha3(intToBytes(i)), file.getHash(i));
+        }
+    }
+
+    @Test
+    public void testBlockStore() {
+        StandaloneBlockchain sb = new StandaloneBlockchain();
+        byte[] receiver = new ECKey().getAddress();
+        List<Block> chain = new ArrayList<>();
+        chain.add(sb.getBlockchain().getBestBlock());
+        for (int i = 0; i < 30; i++) {
+            if (i % 3 == 0) sb.sendEther(receiver, BigInteger.valueOf(i + 1));
+            chain.add(sb.createBlock());
+        }
+        Block fork = sb.createForkBlock(chain.get(5));
+
+        HashMapDB<byte[]> index = new HashMapDB<>();
+        HashMapDB<byte[]> blocks = new HashMapDB<>();
+        HashMapDB<byte[]> frozenNumbers = new HashMapDB<>();
+        MappedBlockStore store = new MappedBlockStore(new MappedBlockFile(dir), 10);
+        store.init(index, blocks, frozenNumbers);
+
+        BigInteger td = BigInteger.ZERO;
+        for (Block block : chain) {
+            td = td.add(block.getDifficultyBI());
+            store.saveBlock(block, td, true);
+        }
+        store.saveBlock(fork, BigInteger.ONE, false);
+        store.flush();
+
+        // blocks 0..20 are frozen
+        assertEquals(21, store.getBlockFile().size());
+        assertEquals(31 - 21 + 1, blocks.keys().size());
+        assertNotNull(blocks.get(fork.getHash()));
+
+        for (Block block : chain) {
+            assertArrayEquals(block.getHash(), store.getChainBlockByNumber(block.getNumber()).getHash());
+            assertArrayEquals(block.getHash(), store.getBlockHashByNumber(block.getNumber()));
+            assertArrayEquals(block.getHash(), store.getBlockByHash(block.getHash()).getHash());
+            assertArrayEquals(block.getEncodedBody(), store.getBlockBodyByHash(block.getHash()));
+            assertArrayEquals(block.getEncodedBody(), MappedBlockStore.getEncodedBody(block.getEncoded()));
+            assertTrue(store.isBlockExist(block.getHash()));
+        }
+        assertArrayEquals(fork.getHash(), store.getBlockByHash(fork.getHash()).getHash());
+        assertEquals(2, store.getBlocksByNumber(6).size());
+
+        List<Block> list = store.getListBlocksEndWith(chain.get(25).getHash(), 10);
+        assertEquals(10, list.size());
+        for (int i = 0; i < list.size(); i++) {
+            assertArrayEquals(chain.get(25 - i).getHash(), list.get(i).getHash());
+        }
+        store.close();
+
+        // reopen on the same sources
+        store = new MappedBlockStore(new MappedBlockFile(dir), 10);
+        store.init(index, blocks, frozenNumbers);
+        assertEquals(21, store.getBlockFile().size());
+        assertArrayEquals(chain.get(7).getHash(), store.getChainBlockByNumber(7).getHash());
+        store.close();
+
+        // the blocks index is lost, the file should be dropped
+        store = new MappedBlockStore(new MappedBlockFile(dir), 10);
+        store.init(new HashMapDB<>(), new HashMapDB<>(), new HashMapDB<>());
+        assertEquals(0, store.getBlockFile().size());
+        store.close();
+    }
+
+    @Test
+    public void testRebranchBelowFrozen() {
+        StandaloneBlockchain sb = new StandaloneBlockchain();
+        List<Block> chain = new ArrayList<>();
+        chain.add(sb.getBlockchain().getBestBlock());
+        for (int i = 0; i < 30; i++) {
+            chain.add(sb.createBlock());
+        }
+        // the fork from the block 5 which outgrows the main chain
+        List<Block> fork = new ArrayList<>(chain.subList(0, 6));
+        for (int i = 0; i < 27; i++) {
+            fork.add(sb.createForkBlock(fork.get(fork.size() - 1)));
+        }
+
+        HashMapDB<byte[]> blocks = new HashMapDB<>();
+        MappedBlockStore store = new MappedBlockStore(new MappedBlockFile(dir), 10);
+        store.init(new HashMapDB<>(), blocks, new HashMapDB<>());
+        BigInteger td = BigInteger.ZERO;
+        for (Block block : chain) {
+            td = td.add(block.getDifficultyBI());
+            store.saveBlock(block, td, true);
+        }
+        store.flush();
+        assertEquals(21, store.getBlockFile().size());
+
+        for (Block block : fork.subList(6, fork.size())) {
+            store.saveBlock(block, BigInteger.ONE, false);
+        }
+        store.reBranch(fork.get(fork.size() - 1));
+
+        // the reverted blocks are not served from the file anymore
+        assertEquals(6, store.getBlockFile().size());
+        checkChain(store, fork);
+        for (Block block : chain) {
+            assertArrayEquals(block.getHash(), store.getBlockByHash(block.getHash()).getHash());
+            assertArrayEquals(block.getEncodedBody(), store.getBlockBodyByHash(block.getHash()));
+        }
+        assertNotNull(blocks.get(chain.get(6).getHash()));
+
+        // the new main chain is frozen in place of the reverted one
+        store.flush();
+        assertEquals(23, store.getBlockFile().size());
+        checkChain(store, fork);
+        assertArrayEquals(chain.get(20).getHash(), store.getBlockByHash(chain.get(20).getHash()).getHash());
+
+        // the rebranch above the frozen blocks keeps the file
+        Block shallowFork = sb.createForkBlock(fork.get(30));
+        store.saveBlock(shallowFork, BigInteger.ONE, false);
+        store.reBranch(shallowFork);
+        assertEquals(23, store.getBlockFile().size());
+        assertArrayEquals(shallowFork.getHash(), store.getChainBlockByNumber(31).getHash());
+        assertArrayEquals(fork.get(22).getHash(), store.getChainBlockByNumber(22).getHash());
+        store.close();
+    }
+
+    private void checkChain(MappedBlockStore store, List<Block> chain) {
+        assertArrayEquals(chain.get(chain.size() - 1).getHash(), store.getBestBlock().getHash());
+        for (Block block : chain) {
+            assertArrayEquals(block.getHash(), store.getChainBlockByNumber(block.getNumber()).getHash());
+            assertArrayEquals(block.getHash(), store.getBlockHashByNumber(block.getNumber()));
+        }
+    }
+}
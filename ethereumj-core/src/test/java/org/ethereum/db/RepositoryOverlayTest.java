@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import org.ethereum.core.Repository;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.vm.DataWord;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Testing nested tracks backed by {@link RepositoryOverlay}
+ */
+public class RepositoryOverlayTest {
+
+    private final byte[] cow = Hex.decode("CD2A3D9F938E13CD947EC05ABC7FE734DF8DD826");
+    private final byte[] horse = Hex.decode("13978AEE95F38490E9769C39B2773ED763D9CD5F");
+
+    private final DataWord key1 = DataWord.of(1);
+    private final DataWord key2 = DataWord.of(2);
+    private final DataWord val1 = DataWord.of(0x11);
+    private final DataWord val2 = DataWord.of(0x22);
+    private final DataWord val3 = DataWord.of(0x33);
+
+    @Test
+    public void testNestedCommitRollback() {
+        RepositoryRoot repository = new RepositoryRoot(new HashMapDB<>());
+
+        Repository track1 = repository.startTracking();
+        track1.addBalance(cow, BigInteger.TEN);
+
+        Repository track2 = track1.startTracking();
+        track2.addBalance(cow, BigInteger.ONE);
+        track2.addStorageRow(cow, key1, val1);
+        track2.saveCode(horse, Hex.decode("A1A2A3"));
+
+        Repository track3 = track2.startTracking();
+        track3.addBalance(cow, BigInteger.ONE);
+        track3.addStorageRow(cow, key1, val2);
+        track3.addStorageRow(cow, key2, val2);
+        assertEquals(BigInteger.valueOf(12), track3.getBalance(cow));
+        assertEquals(BigInteger.valueOf(11), track2.getBalance(cow));
+
+        track3.rollback();
+        assertEquals(BigInteger.valueOf(11), track3.getBalance(cow));
+        assertEquals(val1, track3.getStorageValue(cow, key1));
+        assertNull(track3.getStorageValue(cow, key2));
+        assertEquals(val1, track2.getStorageValue(cow, key1));
+        assertNull(track2.getStorageValue(cow, key2));
+
+        // the parent doesn't see the child changes until committed
+        assertEquals(BigInteger.TEN, track1.getBalance(cow));
+        assertNull(track1.getStorageValue(cow, key1));
+
+        track2.commit();
+        assertEquals(BigInteger.valueOf(11), track1.getBalance(cow));
+        assertEquals(val1, track1.getStorageValue(cow, key1));
+        assertArrayEquals(Hex.decode("A1A2A3"), track1.getCode(horse));
+        assertEquals(BigInteger.ZERO, repository.getBalance(cow));
+
+        // the committed track may be used again
+        track2.addStorageRow(cow, key1, val3);
+        assertEquals(val3, track2.getStorageValue(cow, key1));
+        track2.rollback();
+        assertEquals(val1, track2.getStorageValue(cow, key1));
+        assertEquals(val1, track1.getStorageValue(cow, key1));
+
+        track1.commit();
+        assertEquals(BigInteger.valueOf(11), repository.getBalance(cow));
+        assertEquals(val1, repository.getStorageValue(cow, key1));
+        assertArrayEquals(Hex.decode("A1A2A3"), repository.getCode(horse));
+
+        // rollback after commit has nothing to drop
+        track1.rollback();
+        assertEquals(BigInteger.valueOf(11), track1.getBalance(cow));
+        assertEquals(0, ((RepositoryImpl) track1).overlay.versionsCount());
+
+        repository.close();
+    }
+
+    @Test
+    public void testWriteAfterWipe() {
+        RepositoryRoot repository = new RepositoryRoot(new HashMapDB<>());
+        repository.addBalance(cow, BigInteger.TEN);
+        repository.addStorageRow(cow, key1, val1);
+        repository.addStorageRow(cow, key2, val2);
+        repository.commit();
+
+        Repository track1 = repository.startTracking();
+        Repository track2 = track1.startTracking();
+        track2.addStorageRow(cow, key1, val2);
+        track2.delete(cow);
+        assertNull(track2.getStorageValue(cow, key1));
+        assertNull(track2.getStorageValue(cow, key2));
+        assertEquals(BigInteger.ZERO, track2.getBalance(cow));
+
+        // the rows written after the wipe don't pick up the old storage
+        track2.addStorageRow(cow, key1, val3);
+        assertEquals(val3, track2.getStorageValue(cow, key1));
+        assertNull(track2.getStorageValue(cow, key2));
+
+        // the parent is intact
+        assertEquals(val1, track1.getStorageValue(cow, key1));
+        assertEquals(val2, track1.getStorageValue(cow, key2));
+
+        track2.commit();
+        assertEquals(val3, track1.getStorageValue(cow, key1));
+        assertNull(track1.getStorageValue(cow, key2));
+
+        // the wipe in a nested track hides the rows committed to the parent
+        Repository track3 = track1.startTracking();
+        track3.delete(cow);
+        assertNull(track3.getStorageValue(cow, key1));
+        track3.rollback();
+        assertEquals(val3, track3.getStorageValue(cow, key1));
+
+        track1.commit();
+        assertEquals(val3, repository.getStorageValue(cow, key1));
+        assertNull(repository.getStorageValue(cow, key2));
+
+        repository.close();
+    }
+
+    @Test
+    public void testSiblingsIsolation() {
+        RepositoryRoot repository = new RepositoryRoot(new HashMapDB<>());
+        Repository track = repository.startTracking();
+        track.addBalance(cow, BigInteger.TEN);
+
+        Repository sibling1 = track.startTracking();
+        Repository sibling2 = track.startTracking();
+        Repository sibling3 = sibling2.clone();
+
+        sibling1.addBalance(cow, BigInteger.ONE);
+        sibling1.addStorageRow(cow, key1, val1);
+        sibling2.addStorageRow(cow, key1, val2);
+        sibling2.delete(horse);
+        Repository nested1 = sibling1.startTracking();
+        nested1.addStorageRow(cow, key2, val1);
+
+        assertEquals(BigInteger.valueOf(11), sibling1.getBalance(cow));
+        assertEquals(BigInteger.TEN, sibling2.getBalance(cow));
+        assertEquals(BigInteger.TEN, sibling3.getBalance(cow));
+        assertEquals(val1, sibling1.getStorageValue(cow, key1));
+        assertEquals(val2, sibling2.getStorageValue(cow, key1));
+        assertNull(sibling3.getStorageValue(cow, key1));
+        assertNull(sibling2.getStorageValue(cow, key2));
+
+        sibling1.commit();
+        // the committed changes are visible through the common parent
+        assertEquals(BigInteger.valueOf(11), track.getBalance(cow));
+        assertEquals(BigInteger.valueOf(11), sibling2.getBalance(cow));
+        assertEquals(val1, sibling3.getStorageValue(cow, key1));
+        // while the own ones still win
+        assertEquals(val2, sibling2.getStorageValue(cow, key1));
+
+        sibling2.commit();
+        assertEquals(val2, track.getStorageValue(cow, key1));
+        assertEquals(val2, sibling3.getStorageValue(cow, key1));
+
+        repository.close();
+    }
+
+    @Test
+    public void testCommitDeletedAndRecreated() {
+        RepositoryRoot repository = new RepositoryRoot(new HashMapDB<>());
+        repository.addBalance(cow, BigInteger.TEN);
+        repository.increaseNonce(cow);
+        repository.saveCode(cow, Hex.decode("A1A2A3"));
+        repository.addStorageRow(cow, key1, val1);
+        repository.addStorageRow(cow, key2, val2);
+        repository.commit();
+
+        Repository track = repository.startTracking();
+        Repository nested = track.startTracking();
+        nested.delete(cow);
+        nested.commit();
+        track.createAccount(cow);
+        track.addBalance(cow, BigInteger.ONE);
+        track.addStorageRow(cow, key2, val3);
+        track.commit();
+
+        assertEquals(BigInteger.ONE, repository.getBalance(cow));
+        assertEquals(BigInteger.ZERO, repository.getNonce(cow));
+        assertNull(repository.getStorageValue(cow, key1));
+        assertEquals(val3, repository.getStorageValue(cow, key2));
+        repository.commit();
+
+        // the same state created from scratch
+        RepositoryRoot expected = new RepositoryRoot(new HashMapDB<>());
+        expected.createAccount(cow);
+        expected.addBalance(cow, BigInteger.ONE);
+        expected.addStorageRow(cow, key2, val3);
+        expected.commit();
+
+        assertArrayEquals(expected.getRoot(), repository.getRoot());
+
+        repository.close();
+        expected.close();
+    }
+
+    @Test
+    public void testAbandonedFramesPruned() throws InterruptedException {
+        RepositoryRoot repository = new RepositoryRoot(new HashMapDB<>());
+        RepositoryImpl track = repository.startTracking();
+        track.addBalance(cow, BigInteger.TEN);
+
+        abandonTracks(track, 1000);
+        assertTrue(track.overlay.versionsCount() > 1000);
+
+        for (int i = 0; i < 100 && track.overlay.versionsCount() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+            // the abandoned frames are pruned on the next track start
+            track.startTracking();
+        }
+        assertEquals(1, track.overlay.versionsCount());
+        assertEquals(BigInteger.TEN, track.getBalance(cow));
+        assertNull(track.getStorageValue(cow, DataWord.of(0)));
+
+        repository.close();
+    }
+
+    private void abandonTracks(Repository parent, int count) {
+        for (int i = 0; i < count; i++) {
+            Repository nested = parent.startTracking();
+            nested.addBalance(DataWord.of(i).getLast20Bytes(), BigInteger.ONE);
+            nested.addStorageRow(cow, DataWord.of(i), val1);
+            // neither committed nor rolled back
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.db;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.ethereum.core.Block;
+import org.ethereum.core.Repository;
+import org.ethereum.core.Transaction;
+import org.ethereum.crypto.ECKey;
+import org.ethereum.datasource.NodeKeyCompositor;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.vm.DataWord;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.ethereum.util.ByteUtil.EMPTY_BYTE_ARRAY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatePrefetcherTest {
+
+    @Test
+    public void testPrefetch() {
+        Set<ByteArrayWrapper> reads = new HashSet<>();
+        HashMapDB<byte[]> db = new HashMapDB<byte[]>() {
+            @Override
+            public byte[] get(byte[] key) {
+                reads.add(new ByteArrayWrapper(key));
+                return super.get(key);
+            }
+        };
+
+        ECKey sender = new ECKey();
+        byte[] contract = new ECKey().getAddress();
+        byte[] coinbase = new ECKey().getAddress();
+        byte[] code = new byte[] {0x60, 0x00};
+
+        Repository repo = new RepositoryRoot(db);
+        repo.addBalance(sender.getAddress(), BigInteger.TEN);
+        repo.saveCode(contract, code);
+        repo.addStorageRow(contract, DataWord.ONE, DataWord.ONE);
+        repo.commit();
+        byte[] root = repo.getRoot();
+        byte[] storageRoot = repo.getAccountState(contract).getStateRoot();
+
+        Transaction tx = new Transaction(EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY,
+                contract, EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY);
+        tx.sign(sender);
+        // new contract
+        Transaction createTx = new Transaction(EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY,
+                EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY, code);
+        createTx.sign(sender);
+        Block block = block(coinbase, Arrays.asList(tx, createTx));
+
+        reads.clear();
+        StatePrefetcher prefetcher = new StatePrefetcher(db, MoreExecutors.newDirectExecutorService());
+        prefetcher.prefetch(root, block).cancel();
+
+        assertTrue(reads.contains(new ByteArrayWrapper(root)));
+        assertTrue(reads.contains(new ByteArrayWrapper(NodeKeyCompositor.compose(sha3(code), contract))));
+        assertTrue(reads.contains(new ByteArrayWrapper(NodeKeyCompositor.compose(storageRoot, contract))));
+    }
+
+    @Test
+    public void testUnknownRoot() {
+        StatePrefetcher prefetcher = new StatePrefetcher(new HashMapDB<>(), MoreExecutors.newDirectExecutorService());
+        Transaction tx = new Transaction(EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY,
+                new ECKey().getAddress(), EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY);
+        tx.sign(new ECKey());
+        Block block = block(new ECKey().getAddress(), Collections.singletonList(tx));
+
+        // nothing to read, the failure isn't propagated
+        prefetcher.prefetch(sha3(new byte[] {1}), block).cancel();
+    }
+
+    @Test
+    public void testTxReadByCallerOnly() throws Exception {
+        Set<Thread> readers = ConcurrentHashMap.newKeySet();
+        Transaction signed = new Transaction(EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY,
+                new ECKey().getAddress(), EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY);
+        signed.sign(new ECKey());
+        // not parsed yet, as the one received from the wire
+        Transaction tx = new Transaction(signed.getEncoded()) {
+            @Override
+            public synchronized void rlpParse() {
+                readers.add(Thread.currentThread());
+                super.rlpParse();
+            }
+
+            @Override
+            public synchronized byte[] getSender() {
+                readers.add(Thread.currentThread());
+                return super.getSender();
+            }
+        };
+        Block block = block(new ECKey().getAddress(), Collections.singletonList(tx));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        StatePrefetcher prefetcher = new StatePrefetcher(new HashMapDB<>(), executor);
+        prefetcher.prefetch(sha3(new byte[] {1}), block);
+        // lets the submitted reads complete
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(Collections.singleton(Thread.currentThread()), readers);
+    }
+
+    private static Block block(byte[] coinbase, List<Transaction> txs) {
+        return new Block(EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY, coinbase, EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY, 1,
+                EMPTY_BYTE_ARRAY, 0, 0, EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY, txs, Collections.emptyList());
+    }
+}
@@ -24,6 +24,7 @@ import org.ethereum.core.BlockchainImpl;
 import org.ethereum.core.ImportResult;
 import org.ethereum.core.PendingStateImpl;
 import org.ethereum.core.Repository;
+import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.db.*;
 import org.ethereum.jsontestsuite.suite.builder.BlockBuilder;
@@ -37,6 +38,7 @@ import org.ethereum.validator.DependentBlockHeaderRuleAdapter;
 import org.ethereum.vm.DataWord;
 import org.ethereum.vm.LogInfo;
 import org.ethereum.vm.VM;
+import org.ethereum.vm.hook.VMHook;
 import org.ethereum.vm.program.Program;
 import org.ethereum.vm.program.invoke.ProgramInvoke;
 import org.ethereum.vm.program.invoke.ProgramInvokeFactoryImpl;
@@ -227,13 +229,14 @@ public class TestRunner {
 
             /* 3. Create Program - exec.code */
             /* 4. run VM */
-            VM vm = new VM();
-            Program program = new Program(exec.getCode(), programInvoke);
+            // the engine is set by the vm.engine option, the code hash lets the compiling engine count the calls
+            VM vm = CommonConfig.getDefault().vmFactory().create(SystemProperties.getDefault(), VMHook.EMPTY);
+            Program program = new Program(HashUtil.sha3(exec.getCode()), exec.getCode(), programInvoke, null,
+                    SystemProperties.getDefault(), VMHook.EMPTY);
             boolean vmDidThrowAnEception = false;
             RuntimeException e = null;
             try {
-                while (!program.isStopped())
-                    vm.step(program);
+                vm.run(program);
             } catch (RuntimeException ex) {
                 vmDidThrowAnEception = true;
                 e = ex;
@@ -27,9 +27,11 @@ import org.ethereum.core.Transaction;
 import org.ethereum.core.TransactionInfo;
 import org.ethereum.core.TransactionReceipt;
 import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.DbSource;
 import org.ethereum.datasource.NodeKeyCompositor;
 import org.ethereum.datasource.Source;
 import org.ethereum.datasource.SourceCodec;
+import org.ethereum.datasource.rocksdb.RocksDbDataSource;
 import org.ethereum.db.BlockStore;
 import org.ethereum.db.HeaderStore;
 import org.ethereum.facade.Ethereum;
@@ -87,7 +89,11 @@ public class BlockchainValidation {
         try {
             Source<byte[], byte[]> stateDS = commonConfig.stateSource();
             byte[] stateRoot = ethereum.getBlockchain().getBestBlock().getHeader().getStateRoot();
-            int rootsSize = TrieTraversal.ofState(stateDS, stateRoot, true).go();
+            // the stored nodes can be counted only when the state has own column family
+            DbSource<byte[]> db = commonConfig.blockchainDB();
+            DbSource<byte[]> stateDb = db instanceof RocksDbDataSource ?
+                    ((RocksDbDataSource) db).getColumnFamily("state") : null;
+            int rootsSize = TrieTraversal.ofState(stateDS, stateRoot, true, stateDb).go();
             testLogger.info("Node validation successful");
             testLogger.info("Non-unique node size: {}", rootsSize);
         } catch (Exception | AssertionError ex) {
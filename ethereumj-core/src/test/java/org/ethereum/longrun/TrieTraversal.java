@@ -2,9 +2,11 @@ package org.ethereum.longrun;
 
 import org.ethereum.core.AccountState;
 import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.DbSource;
 import org.ethereum.datasource.NodeKeyCompositor;
 import org.ethereum.datasource.Source;
 import org.ethereum.datasource.SourceCodec;
+import org.ethereum.trie.CountAllNodes;
 import org.ethereum.trie.SecureTrie;
 import org.ethereum.trie.TrieImpl;
 import org.ethereum.util.FastByteComparisons;
@@ -13,10 +15,12 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.util.encoders.Hex;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.Runtime.getRuntime;
 
@@ -39,15 +43,25 @@ public abstract class TrieTraversal  {
         this.stats = stats;
     }
 
+    // updated by the scanning pool threads and polled by the stats logger
     private static class TraversalStats {
-        long startedAt = System.currentTimeMillis();
-        long updatedAt = System.currentTimeMillis();
-        int checkpoint = 0;
-        int passed = 0;
+        volatile long startedAt = System.currentTimeMillis();
+        volatile long updatedAt = System.currentTimeMillis();
+        volatile long checkpoint = 0;
+        final AtomicLong passed = new AtomicLong();
     }
 
     public static TrieTraversal ofState(final Source<byte[], byte[]> src, final byte[] root, boolean includeAccounts) {
-        return new StateTraversal(src, root, includeAccounts);
+        return new StateTraversal(src, root, includeAccounts, null);
+    }
+
+    /**
+     * @param stateDb the DB keeping only the state nodes, its keys are scanned
+     *                to report the number of stored nodes along with the traversed ones
+     */
+    public static TrieTraversal ofState(final Source<byte[], byte[]> src, final byte[] root, boolean includeAccounts,
+                                        final DbSource<byte[]> stateDb) {
+        return new StateTraversal(src, root, includeAccounts, stateDb);
     }
 
     public static TrieTraversal ofStorage(final Source<byte[], byte[]> src, final byte[] stateRoot, final byte[] address) {
@@ -81,11 +95,11 @@ public abstract class TrieTraversal  {
         stats.startedAt = System.currentTimeMillis();
 
         SecureTrie trie = new SecureTrie(src, root);
-        trie.scanTree(new TrieImpl.ScanAction() {
+        TrieImpl.ScanAction action = new TrieImpl.ScanAction() {
             @Override
             public void doOnNode(byte[] hash, TrieImpl.Node node) {
                 nodesCount.incrementAndGet();
-                ++stats.passed;
+                stats.passed.incrementAndGet();
                 onNodeImpl(hash, node);
             }
 
@@ -93,17 +107,26 @@ public abstract class TrieTraversal  {
             public void doOnValue(byte[] nodeHash, TrieImpl.Node node, byte[] key, byte[] value) {
                 if (nodeHash == null) { // other value nodes are counted in doOnNode call
                     nodesCount.incrementAndGet();
-                    ++stats.passed;
+                    stats.passed.incrementAndGet();
                 }
                 onValueImpl(nodeHash, node, key, value);
             }
-        });
+        };
+        if (isParallel()) {
+            trie.scanTreeParallel(action, new TrieImpl.ScanProgress());
+        } else {
+            trie.scanTree(action);
+        }
 
         onEndImpl();
 
         return nodesCount.get();
     }
 
+    protected boolean isParallel() {
+        return false;
+    }
+
     protected abstract void onNodeImpl(byte[] hash, TrieImpl.Node node);
     protected abstract void onValueImpl(byte[] nodeHash, TrieImpl.Node node, byte[] key, byte[] value);
     protected abstract void onStartImpl();
@@ -112,6 +135,7 @@ public abstract class TrieTraversal  {
     static class StateTraversal extends TrieTraversal {
 
         final boolean includeAccounts;
+        final DbSource<byte[]> stateDb;
 
         private Thread statsLogger;
 
@@ -119,6 +143,20 @@ public abstract class TrieTraversal  {
         private BlockingQueue<Runnable> traversalQueue;
         private ThreadPoolExecutor traversalExecutor;
         private final Object mutex = new Object();
+        private final ForkJoinPool.ManagedBlocker storageSlot = new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                synchronized (mutex) {
+                    while (!isReleasable()) mutex.wait();
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return traversalExecutor.getActiveCount() <= maxThreads();
+            }
+        };
 
         private void setupAsyncGroup() {
             traversalQueue = new LinkedBlockingQueue<>();
@@ -153,9 +191,17 @@ public abstract class TrieTraversal  {
             }
         }
 
-        private StateTraversal(final Source<byte[], byte[]> src, final byte[] root, boolean includeAccounts) {
+        private StateTraversal(final Source<byte[], byte[]> src, final byte[] root, boolean includeAccounts,
+                               final DbSource<byte[]> stateDb) {
             super(src, root, new TraversalStats());
             this.includeAccounts = includeAccounts;
+            this.stateDb = stateDb;
+        }
+
+        // the storage tries are traversed by the separate executor
+        @Override
+        protected boolean isParallel() {
+            return true;
         }
 
         @Override
@@ -168,7 +214,7 @@ public abstract class TrieTraversal  {
                 final AccountState accountState = new AccountState(value);
                 if (!FastByteComparisons.equal(accountState.getCodeHash(), HashUtil.EMPTY_DATA_HASH)) {
                     nodesCount.incrementAndGet();
-                    ++stats.passed;
+                    stats.passed.incrementAndGet();
                     assert (null != src.get(NodeKeyCompositor.compose(accountState.getCodeHash(), key)));
                 }
                 if (!FastByteComparisons.equal(accountState.getStateRoot(), HashUtil.EMPTY_TRIE_HASH)) {
@@ -177,20 +223,20 @@ public abstract class TrieTraversal  {
                     final StorageTraversal storage = new StorageTraversal(new SourceCodec.KeyOnly<>(src, nodeKeyCompositor),
                             accountState.getStateRoot(), stats, key);
 
-                    synchronized (mutex) {
-                        try {
-                            while (traversalExecutor.getActiveCount() > maxThreads()) mutex.wait();
-                        } catch (InterruptedException e) {
-                            logger.error("Validating nodes: traversal has been interrupted", e);
-                            throw new RuntimeException("Traversal has been interrupted", e);
-                        }
-                        traversalExecutor.submit(() -> {
-                            nodesCount.addAndGet(storage.go());
-                            synchronized (mutex) {
-                                mutex.notifyAll();
-                            }
-                        });
+                    // called by the ForkJoinPool worker, which is compensated while waiting
+                    // so the rest of the scan and the trie hashing sharing the pool aren't stalled
+                    try {
+                        ForkJoinPool.managedBlock(storageSlot);
+                    } catch (InterruptedException e) {
+                        logger.error("Validating nodes: traversal has been interrupted", e);
+                        throw new RuntimeException("Traversal has been interrupted", e);
                     }
+                    traversalExecutor.submit(() -> {
+                        nodesCount.addAndGet(storage.go());
+                        synchronized (mutex) {
+                            mutex.notifyAll();
+                        }
+                    });
                 }
             }
         }
@@ -231,10 +277,11 @@ public abstract class TrieTraversal  {
                     try {
                         Thread.sleep(30000);
                         long cur = System.currentTimeMillis();
-                        logger.info("Validating nodes: running for " + ((cur - stats.startedAt) / 1000) + " sec, " + stats.passed + " passed, " +
-                                String.format("%.2f nodes/sec", (double) (stats.passed - stats.checkpoint) / (cur - stats.updatedAt) * 1000) +
+                        long passed = stats.passed.get();
+                        logger.info("Validating nodes: running for " + ((cur - stats.startedAt) / 1000) + " sec, " + passed + " passed, " +
+                                String.format("%.2f nodes/sec", (double) (passed - stats.checkpoint) / (cur - stats.updatedAt) * 1000) +
                                 ", storage threads " + (traversalExecutor != null ? traversalExecutor.getActiveCount() : 0) + "/" + maxThreads());
-                        stats.checkpoint = stats.passed;
+                        stats.checkpoint = passed;
                         stats.updatedAt = cur;
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
@@ -252,6 +299,9 @@ public abstract class TrieTraversal  {
 
             logger.info("Validating nodes: traversal completed in " + ((System.currentTimeMillis() - stats.startedAt) / 1000) + " sec, "
                     + stats.passed + " nodes passed");
+            if (stateDb != null) {
+                logger.info("Validating nodes: {} nodes stored", CountAllNodes.countStored(stateDb));
+            }
         }
     }
 
@@ -286,12 +336,13 @@ public abstract class TrieTraversal  {
         private void logStatsImpl() {
             if (!logStats) return;
 
-            if (stats.passed % 10000 == 0 && stats.passed > stats.checkpoint) {
+            long passed = stats.passed.get();
+            if (passed % 10000 == 0 && passed > stats.checkpoint) {
                 long cur = System.currentTimeMillis();
                 logger.info("Validating storage " + HashUtil.shortHash(stateAddressOrHash) +
-                        ": running for " + ((cur - stats.startedAt) / 1000) + " sec, " + stats.passed + " passed, " +
-                        String.format("%.2f nodes/sec", (double) (stats.passed - stats.checkpoint) / (cur - stats.updatedAt) * 1000));
-                stats.checkpoint = stats.passed;
+                        ": running for " + ((cur - stats.startedAt) / 1000) + " sec, " + passed + " passed, " +
+                        String.format("%.2f nodes/sec", (double) (passed - stats.checkpoint) / (cur - stats.updatedAt) * 1000));
+                stats.checkpoint = passed;
                 stats.updatedAt = cur;
             }
         }
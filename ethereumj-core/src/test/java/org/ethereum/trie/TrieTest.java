@@ -22,6 +22,8 @@ import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.*;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.datasource.inmem.HashMapDBSimple;
+import org.ethereum.db.ByteArrayWrapper;
+import org.ethereum.util.ByteArrayMap;
 import org.ethereum.util.Value;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -43,6 +45,7 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.ethereum.crypto.HashUtil.EMPTY_TRIE_HASH;
 import static org.ethereum.crypto.HashUtil.sha3;
@@ -1194,4 +1197,445 @@ public class TrieTest {
             System.out.println((System.nanoTime() - s) / 1_000_000 + " ms, root: " + (System.nanoTime() - s1) / 1_000_000 + " ms");
         }
     }
+
+    @Test
+    public void testParallelRootHash() {
+        TrieImpl trie = new TrieImpl(new HashMapDB<byte[]>(), null);
+        TrieImpl syncTrie = new TrieImpl(new HashMapDB<byte[]>(), null);
+        syncTrie.setAsync(false);
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 20_000; i++) {
+                byte[] k = sha3(intToBytes(round * 10_000 + i));
+                trie.put(k, k);
+                syncTrie.put(k, k);
+            }
+            for (int i = 0; i < 1000; i++) {
+                byte[] k = sha3(intToBytes(round * 10_000 + i * 7));
+                trie.delete(k);
+                syncTrie.delete(k);
+            }
+            assertArrayEquals(syncTrie.getRootHash(), trie.getRootHash());
+        }
+    }
+
+    @Ignore
+    @Test
+    public void perfTestParallelRoot() {
+        for (int size : new int[] {10_000, 100_000, 1_000_000}) {
+            for (boolean async : new boolean[] {false, true, false, true}) {
+                TrieImpl trie = new TrieImpl(new HashMapDB<byte[]>(), null);
+                trie.setAsync(async);
+                for (int i = 0; i < size; i++) {
+                    byte[] k = sha3(intToBytes(i));
+                    trie.put(k, k);
+                }
+                trie.getRootHash();
+
+                // update existing keys to get the dirty nodes spread over the whole trie
+                for (int i = 0; i < size; i++) {
+                    byte[] k = sha3(intToBytes(i));
+                    trie.put(k, intToBytes(i));
+                }
+                long s = System.nanoTime();
+                byte[] root = trie.getRootHash();
+                System.out.println(size + " dirty keys, " + (async ? "parallel (" +
+                        TrieImpl.getForkJoinPool().getParallelism() + " threads)" : "single thread") +
+                        ": " + (System.nanoTime() - s) / 1_000_000 + " ms, root: " + Hex.toHexString(root));
+            }
+        }
+    }
+
+    @Test
+    public void testUpdateBatch() {
+        Random rnd = new Random(42);
+        TrieImpl trie = new TrieImpl(new HashMapDB<byte[]>(), null);
+        TrieImpl batchTrie = new TrieImpl(new HashMapDB<byte[]>(), null);
+        List<byte[]> keys = new ArrayList<>();
+
+        for (int round = 0; round < 20; round++) {
+            Map<byte[], byte[]> batch = new ByteArrayMap<>();
+            for (int i = 0; i < 500; i++) {
+                // variable length keys to get the values in the branch nodes and long extensions
+                byte[] key = new byte[1 + rnd.nextInt(round % 2 == 0 ? 3 : 32)];
+                rnd.nextBytes(key);
+                byte[] value = intToBytes(rnd.nextInt());
+                batch.put(key, value);
+                keys.add(key);
+            }
+            for (int i = 0; i < 200 && !keys.isEmpty(); i++) {
+                byte[] key = keys.remove(rnd.nextInt(keys.size()));
+                batch.put(key, rnd.nextBoolean() ? null : new byte[0]);
+            }
+            // non-existing keys
+            batch.put(new byte[] {1, 2, 3, 4, 5}, null);
+
+            for (byte[] key : batch.keySet()) {
+                trie.put(key, batch.get(key));
+            }
+            batchTrie.updateBatch(batch);
+
+            assertArrayEquals(trie.getRootHash(), batchTrie.getRootHash());
+            for (byte[] key : batch.keySet()) {
+                assertArrayEquals(trie.get(key), batchTrie.get(key));
+            }
+        }
+
+        // removing everything
+        Map<byte[], byte[]> batch = new HashMap<>();
+        for (byte[] key : keys) batch.put(key, null);
+        batchTrie.updateBatch(batch);
+        batch.put(new byte[] {1, 2, 3, 4, 5}, null);
+        batchTrie.updateBatch(batch);
+        assertArrayEquals(EMPTY_TRIE_HASH, batchTrie.getRootHash());
+    }
+
+    @Test
+    public void testUpdateBatchSecure() {
+        Source<byte[], byte[]> src = new HashMapDB<>();
+        SecureTrie trie = new SecureTrie(new HashMapDB<byte[]>());
+        SecureTrie batchTrie = new SecureTrie(src);
+
+        Map<byte[], byte[]> batch = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            trie.put(intToBytes(i), intToBytes(i + 1));
+            batch.put(intToBytes(i), intToBytes(i + 1));
+        }
+        batchTrie.updateBatch(batch);
+        assertArrayEquals(trie.getRootHash(), batchTrie.getRootHash());
+
+        batch.clear();
+        for (int i = 0; i < 1000; i += 3) {
+            trie.delete(intToBytes(i));
+            batch.put(intToBytes(i), null);
+        }
+        batchTrie.updateBatch(batch);
+        assertArrayEquals(trie.getRootHash(), batchTrie.getRootHash());
+        batchTrie.flush();
+
+        // reloaded from the hashes
+        SecureTrie reloaded = new SecureTrie(src, batchTrie.getRootHash());
+        batch.clear();
+        for (int i = 1; i < 1000; i += 3) {
+            trie.put(intToBytes(i), intToBytes(i * 2));
+            batch.put(intToBytes(i), intToBytes(i * 2));
+        }
+        reloaded.updateBatch(batch);
+        assertArrayEquals(trie.getRootHash(), reloaded.getRootHash());
+        assertArrayEquals(intToBytes(4 * 2), reloaded.get(intToBytes(4)));
+        assertNull(reloaded.get(intToBytes(9)));
+    }
+
+    @Ignore
+    @Test
+    public void perfTestUpdateBatch() {
+        for (int size : new int[] {100_000, 1_000_000, 1_000_000}) {
+            // the disposed nodes are deleted from the source, so each trie gets its own one
+            HashMapDB<byte[]> src = new HashMapDB<>();
+            HashMapDB<byte[]> batchSrc = new HashMapDB<>();
+            TrieImpl trie = new TrieImpl(src, null);
+            for (int i = 0; i < size; i++) {
+                byte[] k = sha3(intToBytes(i));
+                trie.put(k, k);
+            }
+            byte[] root = trie.getRootHash();
+            batchSrc.updateBatch(src.getStorage());
+
+            // updating the nodes which are resolved from the source
+            Map<byte[], byte[]> batch = new HashMap<>();
+            for (int i = 0; i < size / 10; i++) {
+                byte[] k = sha3(intToBytes(i * 10));
+                batch.put(k, i % 2 == 0 ? null : intToBytes(i));
+            }
+
+            long s = System.nanoTime();
+            trie = new TrieImpl(src, root);
+            for (Map.Entry<byte[], byte[]> entry : batch.entrySet()) {
+                trie.put(entry.getKey(), entry.getValue());
+            }
+            byte[] newRoot = trie.getRootHash();
+            long t1 = System.nanoTime() - s;
+
+            s = System.nanoTime();
+            TrieImpl batchTrie = new TrieImpl(batchSrc, root);
+            batchTrie.updateBatch(batch);
+            byte[] batchRoot = batchTrie.getRootHash();
+            long t2 = System.nanoTime() - s;
+
+            assertArrayEquals(newRoot, batchRoot);
+            System.out.println(size + " keys, " + batch.size() + " updated: put: " + t1 / 1_000_000 +
+                    " ms, updateBatch: " + t2 / 1_000_000 + " ms");
+        }
+    }
+
+    @Ignore
+    @Test
+    public void perfTestNodeMemory() {
+        int size = 200_000;
+        HashMapDB<byte[]> src = new HashMapDB<>();
+        TrieImpl filler = new TrieImpl(src, null);
+        for (int i = 0; i < size; i++) {
+            byte[] k = sha3(intToBytes(i));
+            filler.put(k, sha3(k));
+        }
+        byte[] root = filler.getRootHash();
+        filler = null;
+
+        int[] nodes = new int[1];
+        new TrieImpl(src, root).scanTree(new TrieImpl.ScanAction() {
+            @Override
+            public void doOnNode(byte[] hash, TrieImpl.Node node) {
+                nodes[0]++;
+            }
+
+            @Override
+            public void doOnValue(byte[] nodeHash, TrieImpl.Node node, byte[] key, byte[] value) {}
+        });
+
+        long before = usedMemory();
+        // all the nodes are resolved and stay in memory
+        TrieImpl trie = new TrieImpl(new NoDeleteSource<>(src), root);
+        for (int i = 0; i < size; i++) {
+            trie.get(sha3(intToBytes(i)));
+        }
+        System.out.println("Resolved nodes: " + nodes[0] + ", bytes per node: " + (usedMemory() - before) / nodes[0]);
+
+        for (int i = 0; i < size; i += 4) {
+            trie.put(sha3(intToBytes(i)), intToBytes(i));
+        }
+        trie.getRootHash();
+        System.out.println("After update, bytes per node: " + (usedMemory() - before) / nodes[0]);
+        // keeps the trie reachable while measuring
+        assertArrayEquals(intToBytes(0), trie.get(sha3(intToBytes(0))));
+    }
+
+    @Test
+    public void testScanTreeParallel() {
+        Map<ByteArrayWrapper, Integer> reads = new HashMap<>();
+        HashMapDB<byte[]> src = new HashMapDB<byte[]>() {
+            @Override
+            public synchronized byte[] get(byte[] key) {
+                reads.merge(new ByteArrayWrapper(key), 1, Integer::sum);
+                return super.get(key);
+            }
+        };
+        TrieImpl trie = new TrieImpl(src);
+        for (int i = 0; i < 2000; i++) {
+            byte[] k = sha3(intToBytes(i));
+            trie.put(k, i % 2 == 0 ? intToBytes(i) : sha3(k));
+        }
+        byte[] root = trie.getRootHash();
+
+        CollectFullSetOfNodes expected = new CollectFullSetOfNodes();
+        new TrieImpl(src, root).scanTree(expected);
+
+        reads.clear();
+        CollectFullSetOfNodes collected = new CollectFullSetOfNodes();
+        TrieImpl.ScanProgress progress = new TrieImpl.ScanProgress();
+        assertTrue(new TrieImpl(src, root).scanTreeParallel(collected, progress));
+        assertEquals(expected.getCollectedHashes(), collected.getCollectedHashes());
+        assertEquals(expected.getCollectedHashes().size(), progress.getNodes());
+        assertEquals(2000, progress.getValues());
+        // every node is read once
+        assertEquals(expected.getCollectedHashes(), reads.keySet());
+        for (Integer cnt : reads.values()) {
+            assertEquals(1, (int) cnt);
+        }
+
+        TrieImpl.ScanProgress cancelled = new TrieImpl.ScanProgress();
+        CountAllNodes counter = new CountAllNodes() {
+            @Override
+            public void doOnNode(byte[] hash, TrieImpl.Node node) {
+                super.doOnNode(hash, node);
+                if (getCounted() == 10) cancelled.cancel();
+            }
+        };
+        assertFalse(new TrieImpl(src, root).scanTreeParallel(counter, cancelled));
+        assertTrue(counter.getCounted() < expected.getCollectedHashes().size());
+    }
+
+    @Test
+    public void testDiff() {
+        AtomicInteger reads = new AtomicInteger();
+        Source<byte[], byte[]> src = new NoDeleteSource<>(new HashMapDB<byte[]>() {
+            @Override
+            public byte[] get(byte[] key) {
+                reads.incrementAndGet();
+                return super.get(key);
+            }
+        });
+        Map<ByteArrayWrapper, byte[]> values = new HashMap<>();
+        TrieImpl trie = new TrieImpl(src);
+        for (int i = 0; i < 1000; i++) {
+            byte[] k = sha3(intToBytes(i));
+            trie.put(k, intToBytes(i));
+            values.put(new ByteArrayWrapper(k), intToBytes(i));
+        }
+        // the key prefixing the other one gets its value in the branch node
+        trie.put(new byte[] {1}, new byte[] {1});
+        trie.put(new byte[] {1, 2}, new byte[] {2});
+        byte[] root1 = trie.getRootHash();
+
+        Map<ByteArrayWrapper, byte[][]> expected = new TreeMap<>();
+        Random rnd = new Random(1);
+        for (int i = 0; i < 30; i++) {
+            byte[] k = sha3(intToBytes(rnd.nextInt(1000)));
+            byte[] newValue = intToBytes(-i - 1);
+            expected.put(new ByteArrayWrapper(k), new byte[][] {values.get(new ByteArrayWrapper(k)), newValue});
+            trie.put(k, newValue);
+        }
+        for (int i = 0; i < 10; i++) {
+            byte[] k = sha3(intToBytes(1000 + i));
+            expected.put(new ByteArrayWrapper(k), new byte[][] {null, intToBytes(i)});
+            trie.put(k, intToBytes(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            byte[] k = sha3(intToBytes(500 + i));
+            expected.put(new ByteArrayWrapper(k), new byte[][] {values.get(new ByteArrayWrapper(k)), null});
+            trie.delete(k);
+        }
+        trie.delete(new byte[] {1});
+        expected.put(new ByteArrayWrapper(new byte[] {1}), new byte[][] {new byte[] {1}, null});
+        byte[] root2 = trie.getRootHash();
+
+        reads.set(0);
+        List<byte[][]> diff = new ArrayList<>();
+        new TrieImpl(src, root1).diff(root2, (key, oldValue, newValue) -> diff.add(new byte[][] {key, oldValue, newValue}));
+        assertEquals(expected.size(), diff.size());
+        int i = 0;
+        for (Map.Entry<ByteArrayWrapper, byte[][]> entry : expected.entrySet()) {
+            byte[][] d = diff.get(i++);
+            // in the keys order
+            assertArrayEquals(entry.getKey().getData(), d[0]);
+            assertArrayEquals(entry.getValue()[0], d[1]);
+            assertArrayEquals(entry.getValue()[1], d[2]);
+        }
+        // the unchanged subtries aren't read
+        int diffReads = reads.get();
+        int[] nodes = new int[1];
+        new TrieImpl(src, root2).scanTree(new TrieImpl.ScanAction() {
+            @Override
+            public void doOnNode(byte[] hash, TrieImpl.Node node) {
+                nodes[0]++;
+            }
+
+            @Override
+            public void doOnValue(byte[] nodeHash, TrieImpl.Node node, byte[] key, byte[] value) {}
+        });
+        assertTrue(diffReads < nodes[0] / 4);
+
+        // and backwards
+        List<byte[][]> reverse = new ArrayList<>();
+        new TrieImpl(src, root2).diff(root1, (key, oldValue, newValue) -> reverse.add(new byte[][] {key, oldValue, newValue}));
+        assertEquals(diff.size(), reverse.size());
+        for (i = 0; i < diff.size(); i++) {
+            assertArrayEquals(diff.get(i)[1], reverse.get(i)[2]);
+            assertArrayEquals(diff.get(i)[2], reverse.get(i)[1]);
+        }
+
+        // all the values are added to the empty trie
+        List<byte[]> added = new ArrayList<>();
+        new TrieImpl(src).diff(root2, (key, oldValue, newValue) -> added.add(newValue));
+        assertEquals(1000 + 10 - 10 + 1, added.size());
+        new TrieImpl(src, root2).diff(root2, (key, oldValue, newValue) -> fail());
+    }
+
+    @Test
+    public void testProof() {
+        HashMapDB<byte[]> src = new HashMapDB<>();
+        TrieImpl trie = new TrieImpl(src);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] k = sha3(intToBytes(i));
+            keys.add(k);
+            // the short values make the embedded nodes
+            trie.put(k, i % 2 == 0 ? intToBytes(i) : sha3(k));
+        }
+        // the key prefixing the other one gets its value in the branch node
+        trie.put(new byte[] {1}, new byte[] {1});
+        trie.put(new byte[] {1, 2}, new byte[] {2});
+        keys.add(new byte[] {1});
+        keys.add(new byte[] {1, 2});
+        keys.add(sha3(intToBytes(-1)));
+        keys.add(new byte[] {1, 3});
+        // the proof of the modified trie
+        byte[] root = trie.getRootHash();
+
+        TrieImpl stored = new TrieImpl(src, root);
+        for (byte[] key : keys) {
+            assertArrayEquals(trie.get(key), TrieImpl.verifyProof(root, key, stored.getProof(key)));
+        }
+
+        List<byte[]> proof = new TrieImpl(src, root).getProof(keys);
+        List<byte[]> values = TrieImpl.verifyProof(root, keys, proof);
+        int singleProofs = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            assertArrayEquals(trie.get(keys.get(i)), values.get(i));
+            singleProofs += trie.getProof(keys.get(i)).size();
+        }
+        assertNull(values.get(values.size() - 1));
+        // the shared nodes are included once
+        assertTrue(proof.size() < singleProofs);
+
+        try {
+            TrieImpl.verifyProof(root, keys.get(0), proof.subList(1, proof.size()));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // the root node is missing
+        }
+        assertNull(TrieImpl.verifyProof(EMPTY_TRIE_HASH, keys.get(0), new TrieImpl().getProof(keys.get(0))));
+    }
+
+    @Test
+    public void testSecureTrieProof() {
+        SecureTrie trie = new SecureTrie(new HashMapDB<byte[]>());
+        for (int i = 0; i < 100; i++) {
+            trie.put(intToBytes(i), sha3(intToBytes(i)));
+        }
+        byte[] root = trie.getRootHash();
+        List<byte[]> proof = trie.getProof(Arrays.asList(intToBytes(1), intToBytes(100)));
+        List<byte[]> values = TrieImpl.verifyProof(root, Arrays.asList(sha3(intToBytes(1)), sha3(intToBytes(100))), proof);
+        assertArrayEquals(sha3(intToBytes(1)), values.get(0));
+        assertNull(values.get(1));
+    }
+
+    @Test
+    public void testLoadedSize() {
+        HashMapDB<byte[]> src = new HashMapDB<>();
+        TrieImpl trie = new TrieImpl(src);
+        for (int i = 0; i < 100; i++) {
+            trie.put(intToBytes(i), sha3(intToBytes(i)));
+        }
+        // the created nodes are counted once encoded
+        trie.getRootHash();
+        long created = trie.estimateLoadedSize();
+        assertTrue(created > 0);
+        // the changed node is counted once
+        trie.put(intToBytes(1), sha3(intToBytes(2)));
+        trie.getRootHash();
+        assertTrue(trie.estimateLoadedSize() < created * 2);
+        trie.flush();
+        assertEquals(0, trie.estimateLoadedSize());
+
+        trie = new TrieImpl(src, trie.getRootHash());
+        assertEquals(0, trie.estimateLoadedSize());
+        trie.get(intToBytes(1));
+        long size = trie.estimateLoadedSize();
+        assertTrue(size > 0);
+        // the same path is loaded already
+        trie.get(intToBytes(1));
+        assertEquals(size, trie.estimateLoadedSize());
+        for (int i = 0; i < 100; i++) {
+            trie.get(intToBytes(i));
+        }
+        assertTrue(trie.estimateLoadedSize() > size);
+
+        trie.release();
+        assertEquals(0, trie.estimateLoadedSize());
+    }
+
+    private static long usedMemory() {
+        for (int i = 0; i < 5; i++) System.gc();
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.util;
+
+import org.ethereum.vm.DataWord;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Testing {@link FixedKeyByteArrayMap} and {@link FixedKeyByteArraySet}
+ */
+public class FixedKeyByteArrayMapTest {
+
+    @Test
+    public void testRandomOps() {
+        Random rnd = new Random(0);
+        Map<byte[], Integer> map = new FixedKeyByteArrayMap<>(32);
+        Map<byte[], Integer> expected = new ByteArrayMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            int k = rnd.nextInt(5_000);
+            // numeric keys should be handled as good as hashes
+            byte[] key = k % 2 == 0 ? sha3(intToBytes(k)) : DataWord.of(k).getData();
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.put(key, i), map.put(key, i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        Map<byte[], Integer> iterated = new ByteArrayMap<>();
+        for (Map.Entry<byte[], Integer> entry : map.entrySet()) {
+            iterated.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(expected.size(), iterated.size());
+        for (Map.Entry<byte[], Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), iterated.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        Map<byte[], Integer> map = new FixedKeyByteArrayMap<>(20);
+        for (int i = 0; i < 1000; i++) {
+            map.put(Arrays.copyOf(sha3(intToBytes(i)), 20), i);
+        }
+        for (Iterator<Map.Entry<byte[], Integer>> it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<byte[], Integer> entry = it.next();
+            if (entry.getValue() % 2 == 0) {
+                it.remove();
+            } else {
+                entry.setValue(-entry.getValue());
+            }
+        }
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? null : -i, map.get(Arrays.copyOf(sha3(intToBytes(i)), 20)));
+        }
+    }
+
+    @Test
+    public void testWrongKeyLength() {
+        Map<byte[], Integer> map = new FixedKeyByteArrayMap<>(32);
+        map.put(sha3(intToBytes(1)), 1);
+        assertNull(map.get(new byte[20]));
+        assertFalse(map.containsKey(new byte[0]));
+        assertNull(map.remove(new byte[33]));
+        try {
+            map.put(new byte[20], 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSet() {
+        Set<byte[]> set = new FixedKeyByteArraySet(20);
+        byte[] addr = Arrays.copyOf(sha3(intToBytes(1)), 20);
+        assertTrue(set.add(addr));
+        assertFalse(set.add(addr.clone()));
+        assertTrue(set.contains(addr.clone()));
+        assertEquals(1, set.size());
+        assertArrayEquals(addr, set.iterator().next());
+        assertTrue(set.remove(addr.clone()));
+        assertTrue(set.isEmpty());
+    }
+
+    @Ignore
+    @Test
+    public void testTime() {
+        int KEYS = 100_000;
+        int PASSES = 50;
+        byte[][] keys = new byte[KEYS][];
+        byte[][] lookups = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = sha3(intToBytes(i));
+            lookups[i] = keys[i].clone();
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long wrapped = measure(new ByteArrayMap<>(), keys, lookups, PASSES);
+            long fixed = measure(new FixedKeyByteArrayMap<>(32), keys, lookups, PASSES);
+            System.out.printf("put/get/remove ops per 1 ms: ByteArrayMap: %d, FixedKeyByteArrayMap: %d%n",
+                    3L * PASSES * KEYS / wrapped, 3L * PASSES * KEYS / fixed);
+        }
+    }
+
+    private long measure(Map<byte[], Object> map, byte[][] keys, byte[][] lookups, int passes) {
+        long s = System.currentTimeMillis();
+        int found = 0;
+        for (int p = 0; p < passes; p++) {
+            for (byte[] key : keys) map.put(key, key);
+            for (byte[] key : lookups) if (map.get(key) != null) found++;
+            for (byte[] key : lookups) map.remove(key);
+        }
+        assertEquals(passes * keys.length, found);
+        return Math.max(1, System.currentTimeMillis() - s);
+    }
+}
@@ -1803,4 +1803,34 @@ public class RLPTest {
         assertArrayEquals(shortItemData, decoded.get(7).getRLPData());
         assertArrayEquals(longItemData, decoded.get(8).getRLPData());
     }
+
+    @Test
+    public void testListBuffer() {
+        byte[][] elements = {ByteUtil.EMPTY_BYTE_ARRAY, new byte[] {0}, new byte[] {0x7f}, new byte[] {(byte) 0x80},
+                new byte[55], new byte[56], new byte[300], HashUtil.sha3(new byte[] {1})};
+        RLP.ListBuffer buf = new RLP.ListBuffer();
+        for (int cnt = 1; cnt <= elements.length; cnt++) {
+            byte[][] encoded = new byte[cnt][];
+            buf.start();
+            for (int i = 0; i < cnt; i++) {
+                encoded[i] = encodeElement(elements[i]);
+                buf.writeElement(elements[i]);
+            }
+            buf.end();
+            byte[] expected = encodeList(encoded);
+            assertArrayEquals(expected, buf.toArray());
+            assertEquals(expected.length, buf.size());
+            assertArrayEquals(expected, Arrays.copyOfRange(buf.buffer(), buf.offset(), buf.offset() + buf.size()));
+        }
+
+        // the grown buffer is reused
+        buf.start();
+        buf.writeElement(new byte[100_000]);
+        buf.writeEncoded(encodeList(new byte[] {1}));
+        buf.end();
+        assertArrayEquals(encodeList(encodeElement(new byte[100_000]), encodeList(new byte[] {1})), buf.toArray());
+        buf.start();
+        buf.end();
+        assertArrayEquals(encodeList(), buf.toArray());
+    }
 }
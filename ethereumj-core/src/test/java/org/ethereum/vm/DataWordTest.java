@@ -17,11 +17,16 @@
  */
 package org.ethereum.vm;
 
+import org.ethereum.util.ByteUtil;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import org.spongycastle.util.encoders.Hex;
 
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.BinaryOperator;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -410,6 +415,135 @@ public class DataWordTest {
         assertTrue(actual.isZero());
     }
 
+    @Test
+    public void testLimbArithmetic() {
+        Random rnd = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            DataWord a = randomWord(rnd), b = randomWord(rnd), c = randomWord(rnd);
+            BigInteger x = a.value(), y = b.value(), z = c.value();
+
+            assertEquals(word(x.subtract(y)), a.sub(b));
+            assertEquals(word(x.multiply(y)), a.mul(b));
+            assertEquals(y.signum() == 0 ? DataWord.ZERO : word(x.divide(y)), a.div(b));
+            assertEquals(y.signum() == 0 ? DataWord.ZERO : word(x.mod(y)), a.mod(b));
+            assertEquals(y.signum() == 0 ? DataWord.ZERO : word(a.sValue().divide(b.sValue())), a.sDiv(b));
+            assertEquals(y.signum() == 0 ? DataWord.ZERO :
+                    word(a.sValue().abs().mod(b.sValue().abs()).multiply(BigInteger.valueOf(a.sValue().signum() < 0 ? -1 : 1))),
+                    a.sMod(b));
+            assertEquals(z.signum() == 0 ? DataWord.ZERO : word(x.add(y).mod(z)), a.addmod(b, c));
+            assertEquals(z.signum() == 0 ? DataWord.ZERO : word(x.multiply(y).mod(z)), a.mulmod(b, c));
+            assertEquals(word(x.modPow(y, DataWord._2_256)), a.exp(b));
+            assertEquals(word(x.modPow(BigInteger.valueOf(i % 300), DataWord._2_256)), a.exp(DataWord.of(i % 300)));
+            assertEquals(word(x.not()), a.bnot());
+
+            int shift = rnd.nextInt(300);
+            DataWord s = DataWord.of(shift);
+            assertEquals(shift >= 256 ? DataWord.ZERO : word(x.shiftLeft(shift)), a.shiftLeft(s));
+            assertEquals(shift >= 256 ? DataWord.ZERO : word(x.shiftRight(shift)), a.shiftRight(s));
+            assertEquals(word(a.sValue().shiftRight(Math.min(shift, 256))), a.shiftRightSigned(s));
+        }
+    }
+
+    /**
+     * Words of the random bit length with the long runs of zeros and ones,
+     * these make the carries and the division corrections happen
+     */
+    private static DataWord randomWord(Random rnd) {
+        byte[] data = new byte[32];
+        switch (rnd.nextInt(4)) {
+            case 0:
+                rnd.nextBytes(data);
+                break;
+            case 1:
+                for (int i = 0; i < 32; i++) {
+                    data[i] = (byte) (rnd.nextInt(3) == 0 ? rnd.nextInt() : rnd.nextBoolean() ? 0xFF : 0);
+                }
+                break;
+            case 2:
+                for (int i = 32 - rnd.nextInt(33); i < 32; i++) {
+                    data[i] = (byte) rnd.nextInt();
+                }
+                break;
+            default:
+                int bit = rnd.nextInt(256);
+                BigInteger v = BigInteger.ONE.shiftLeft(bit).add(BigInteger.valueOf(rnd.nextInt(3) - 1));
+                return word(v);
+        }
+        return DataWord.of(data);
+    }
+
+    private static DataWord word(BigInteger v) {
+        return DataWord.of(ByteUtil.copyToArray(v.and(DataWord.MAX_VALUE)));
+    }
+
+    @Ignore
+    @Test
+    public void testArithmeticPerformance() {
+        Random rnd = new Random(0);
+        int count = 1024;
+        DataWord[] words = new DataWord[count];
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[32];
+            rnd.nextBytes(data);
+            // the divisors and the exponents of different lengths
+            words[i] = DataWord.of(i % 2 == 0 ? data : Arrays.copyOfRange(data, 0, 1 + i % 32));
+        }
+
+        benchmark("SUB", words, DataWord::sub, (a, b) -> word(a.value().subtract(b.value())));
+        benchmark("MUL", words, DataWord::mul, (a, b) -> word(a.value().multiply(b.value())));
+        benchmark("DIV", words, DataWord::div, (a, b) -> word(a.value().divide(b.value())));
+        benchmark("SDIV", words, DataWord::sDiv, (a, b) -> word(a.sValue().divide(b.sValue())));
+        benchmark("MOD", words, DataWord::mod, (a, b) -> word(a.value().mod(b.value())));
+        benchmark("SMOD", words, DataWord::sMod, (a, b) -> word(a.sValue().remainder(b.sValue())));
+        benchmark("ADDMOD", words, (a, b) -> a.addmod(b, b.shiftRight(DataWord.ONE)),
+                (a, b) -> word(mod(a.value().add(b.value()), b.value().shiftRight(1))));
+        benchmark("MULMOD", words, (a, b) -> a.mulmod(b, b.shiftRight(DataWord.ONE)),
+                (a, b) -> word(mod(a.value().multiply(b.value()), b.value().shiftRight(1))));
+        benchmark("EXP", words, DataWord::exp, (a, b) -> word(a.value().modPow(b.value(), DataWord._2_256)));
+        benchmark("SHL", words, (a, b) -> a.shiftLeft(DataWord.of(b.intValue() & 0xFF)),
+                (a, b) -> word(a.value().shiftLeft(b.intValue() & 0xFF)));
+        benchmark("SHR", words, (a, b) -> a.shiftRight(DataWord.of(b.intValue() & 0xFF)),
+                (a, b) -> word(a.value().shiftRight(b.intValue() & 0xFF)));
+        benchmark("SAR", words, (a, b) -> a.shiftRightSigned(DataWord.of(b.intValue() & 0xFF)),
+                (a, b) -> word(a.sValue().shiftRight(b.intValue() & 0xFF)));
+    }
+
+    private static void benchmark(String op, DataWord[] words, BinaryOperator<DataWord> limbs,
+                                  BinaryOperator<DataWord> bigInt) {
+        int iterations = op.equals("EXP") ? 200_000 : 2_000_000;
+        // warming up the both
+        run(words, limbs, iterations);
+        run(words, bigInt, iterations);
+        long s = System.nanoTime();
+        int limbsHash = run(words, limbs, iterations);
+        long limbsTime = System.nanoTime() - s;
+        s = System.nanoTime();
+        int bigIntHash = run(words, bigInt, iterations);
+        long bigIntTime = System.nanoTime() - s;
+        // the results are used, so the calls can't be dropped, and checked
+        assertEquals(op, bigIntHash, limbsHash);
+        System.out.printf("%-7s limbs: %5d ns/op, BigInteger: %5d ns/op%n", op,
+                limbsTime / iterations, bigIntTime / iterations);
+    }
+
+    /**
+     * @return the hash of the results
+     */
+    private static int run(DataWord[] words, BinaryOperator<DataWord> op, int iterations) {
+        int hash = 0;
+        for (int i = 0; i < iterations; i++) {
+            DataWord b = words[(i * 7 + 1) % words.length];
+            if (b.isZero()) continue;
+            hash = 31 * hash + op.apply(words[i % words.length], b).hashCode();
+        }
+        return hash;
+    }
+
+    // as the EVM does, zero for the zero modulus
+    private static BigInteger mod(BigInteger x, BigInteger m) {
+        return m.signum() == 0 ? BigInteger.ZERO : x.mod(m);
+    }
+
     public static BigInteger pow(BigInteger x, BigInteger y) {
         if (y.compareTo(BigInteger.ZERO) < 0)
             throw new IllegalArgumentException();
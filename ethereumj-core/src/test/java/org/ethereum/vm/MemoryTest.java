@@ -17,7 +17,9 @@
  */
 package org.ethereum.vm;
 
+import org.ethereum.crypto.HashUtil;
 import org.ethereum.vm.program.Memory;
+import org.ethereum.vm.program.Stack;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
@@ -528,6 +530,28 @@ public class MemoryTest {
         assertTrue(zero == 10);
     }
 
+    @Test
+    public void memoryWordAccess() {
 
-
-}
\ No newline at end of file
+        Memory memoryBuffer = new Memory();
+        Stack stack = new Stack();
+        DataWord value = DataWord.of(Hex.decode("0102030405060708091011121314151617181920212223242526272829303132"));
+
+        // the word crosses the 1KB boundary and the array growth
+        stack.push(value);
+        memoryBuffer.writeWord(CHUNK_SIZE * 3 - 5, stack);
+        assertEquals(0, stack.size());
+        assertEquals(CHUNK_SIZE * 4, memoryBuffer.internalSize());
+        assertEquals(CHUNK_SIZE * 3 + WORD_SIZE, memoryBuffer.size());
+        assertEquals(value, memoryBuffer.readWord(CHUNK_SIZE * 3 - 5));
+
+        memoryBuffer.readWord(CHUNK_SIZE * 3 - 4, stack);
+        assertEquals(DataWord.of(Arrays.copyOfRange(value.getData(), 1, 33)), stack.pop());
+
+        assertArrayEquals(HashUtil.sha3(value.getData()), memoryBuffer.hash(CHUNK_SIZE * 3 - 5, WORD_SIZE));
+        assertArrayEquals(HashUtil.sha3(new byte[0]), memoryBuffer.hash(0, 0));
+        assertArrayEquals(HashUtil.sha3(new byte[64]), memoryBuffer.hash(CHUNK_SIZE * 4, 64));
+        assertEquals(CHUNK_SIZE * 4 + 64, memoryBuffer.size());
+        assertEquals(CHUNK_SIZE * 5, memoryBuffer.internalSize());
+    }
+}
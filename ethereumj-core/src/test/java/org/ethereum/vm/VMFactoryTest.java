@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.vm;
+
+import org.ethereum.config.CommonConfig;
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.Repository;
+import org.ethereum.core.Transaction;
+import org.ethereum.datasource.Source;
+import org.ethereum.vm.hook.VMHook;
+import org.ethereum.vm.program.Program;
+import org.ethereum.vm.program.ProgramPrecompile;
+import org.ethereum.vm.program.invoke.ProgramInvokeMockImpl;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.ethereum.crypto.HashUtil.sha3;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VMFactoryTest {
+
+    // sum = 0; for (i = 10; i != 0; i--) sum += i; sstore(0, sum); mstore(0, 2^256 - 1); return(0, 32)
+    private static final byte[] LOOP = Hex.decode("6000600a" + "5b" + "8091019060019003" + "80600457" +
+            "50600055" + "7f" + "ffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff" + "600052" + "60206000f3");
+    // PUSH1 0x01 PUSH1 0x05 JUMP STOP STOP STOP, the destination isn't the JUMPDEST
+    private static final byte[] BAD_JUMP = Hex.decode("6001600556000000");
+    // ADD PUSH1 0x01 ADD, the stack underflow
+    private static final byte[] UNDERFLOW = Hex.decode("01600101");
+
+    private static final CommonConfig NO_PRECOMPILE_SOURCE = new CommonConfig() {
+        @Override
+        public Source<byte[], ProgramPrecompile> precompileSource() {
+            return null;
+        }
+    };
+
+    @Test
+    public void testNestedCalls() {
+        byte[] callee = Hex.decode("77045e71a7a2c50903d88e564cd72fab11e82051");
+        // PUSH1 0x01 PUSH1 0x02 ADD PUSH1 0x00 SSTORE
+        byte[] calleeCode = Hex.decode("6001600201600055");
+        // CALL(0xffff, callee, 0, 0, 0, 0, 0) STOP
+        byte[] code = Hex.decode("60006000600060006000" + "73" + Hex.toHexString(callee) + "61ffff" + "f1" + "00");
+
+        ProgramInvokeMockImpl invoke = new ProgramInvokeMockImpl();
+        Repository repository = invoke.getRepository();
+        repository.createAccount(callee);
+        repository.saveCode(callee, calleeCode);
+
+        AtomicInteger created = new AtomicInteger();
+        CommonConfig commonConfig = new CommonConfig() {
+            @Override
+            public Source<byte[], ProgramPrecompile> precompileSource() {
+                return null;
+            }
+
+            @Override
+            public VMFactory vmFactory() {
+                return (config, hook) -> {
+                    created.incrementAndGet();
+                    return VMFactory.INTERPRETER.create(config, hook);
+                };
+            }
+        };
+
+        Transaction tx = Transaction.createDefault(Hex.toHexString(invoke.getOwnerAddress().getLast20Bytes()),
+                BigInteger.ZERO, BigInteger.ZERO);
+        Program program = new Program(code, invoke, tx).withCommonConfig(commonConfig);
+        new VM().play(program);
+
+        assertNull(program.getResult().getException());
+        assertEquals(1, created.get());
+        assertEquals(DataWord.of(3), repository.getStorageValue(callee, DataWord.ZERO));
+        repository.close();
+    }
+
+    @Test
+    public void testCompiledSameAsInterpreted() {
+        CompilingVMFactory compiling = new CompilingVMFactory(1, 16);
+        for (byte[] code : Arrays.asList(LOOP, BAD_JUMP, UNDERFLOW)) {
+            // with the plenty of gas and with the gas running out in the middle of the blocks
+            for (long gas : new long[] {1000000, 100, 21}) {
+                Program interpreted = run(VMFactory.INTERPRETER, code, gas);
+                Program compiled = run(compiling, code, gas);
+                assertTrue(compiling.isCompiled(sha3(code)));
+
+                String msg = Hex.toHexString(code) + ", gas " + gas;
+                assertEquals(msg, interpreted.getGasLong(), compiled.getGasLong());
+                assertEquals(msg, exceptionClass(interpreted), exceptionClass(compiled));
+                assertArrayEquals(msg, interpreted.getStack().toArray(), compiled.getStack().toArray());
+                assertArrayEquals(msg, interpreted.getResult().getHReturn(), compiled.getResult().getHReturn());
+                assertEquals(msg, storedAtZero(interpreted), storedAtZero(compiled));
+            }
+        }
+
+        Program loop = run(compiling, LOOP, 1000000);
+        assertNull(loop.getResult().getException());
+        assertEquals(DataWord.of(55), storedAtZero(loop));
+        assertNotNull(run(compiling, BAD_JUMP, 1000000).getResult().getException());
+    }
+
+    @Test
+    public void testHotCodeCompiled() {
+        CompilingVMFactory compiling = new CompilingVMFactory(3, 16);
+        run(compiling, LOOP, 1000000);
+        run(compiling, LOOP, 1000000);
+        assertFalse(compiling.isCompiled(sha3(LOOP)));
+        run(compiling, LOOP, 1000000);
+        assertTrue(compiling.isCompiled(sha3(LOOP)));
+
+        // the init code has no hash, it's run once
+        ProgramInvokeMockImpl invoke = new ProgramInvokeMockImpl();
+        Program program = new Program(LOOP, invoke).withCommonConfig(NO_PRECOMPILE_SOURCE);
+        assertNull(compiling.getCompiled(program));
+    }
+
+    @Test
+    public void testTraceFallsBackToInterpreter() {
+        CompilingVMFactory compiling = new CompilingVMFactory(1, 16);
+        assertTrue(compiling.create(SystemProperties.getDefault(), VMHook.EMPTY) instanceof CompiledVM);
+        assertFalse(compiling.create(SystemProperties.getDefault(), new VMHook() {}) instanceof CompiledVM);
+    }
+
+    private static Program run(VMFactory factory, byte[] code, long gas) {
+        ProgramInvokeMockImpl invoke = new ProgramInvokeMockImpl();
+        invoke.setGas(gas);
+        Program program = new Program(sha3(code), code, invoke, null, SystemProperties.getDefault(), VMHook.EMPTY)
+                .withCommonConfig(NO_PRECOMPILE_SOURCE);
+        factory.create(SystemProperties.getDefault(), VMHook.EMPTY).play(program);
+        return program;
+    }
+
+    private static Class<?> exceptionClass(Program program) {
+        return program.getResult().getException() == null ? null : program.getResult().getException().getClass();
+    }
+
+    private static DataWord storedAtZero(Program program) {
+        return program.getStorage().getStorageValue(program.getOwnerAddress().getLast20Bytes(), DataWord.ZERO);
+    }
+}
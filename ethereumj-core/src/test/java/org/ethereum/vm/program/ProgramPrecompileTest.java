@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.vm.program;
+
+import org.ethereum.vm.DataWord;
+import org.ethereum.vm.VM;
+import org.ethereum.vm.program.invoke.ProgramInvokeMockImpl;
+import org.junit.After;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import static org.junit.Assert.*;
+
+public class ProgramPrecompileTest {
+
+    // PUSH1 0x03 JUMPDEST PUSH1 0x01 SWAP1 SUB DUP1 PUSH1 0x02 JUMPI PUSH1 0x05 STOP
+    private static final byte[] LOOP = Hex.decode("60035b60019003806002576005" + "00");
+
+    private final ProgramInvokeMockImpl invoke = new ProgramInvokeMockImpl();
+
+    @After
+    public void tearDown() {
+        invoke.getRepository().close();
+    }
+
+    @Test
+    public void testCompile() {
+        ProgramPrecompile precompile = ProgramPrecompile.compile(LOOP);
+        assertTrue(precompile.hasJumpDest(2));
+        assertFalse(precompile.hasJumpDest(0));
+
+        // the first block is closed by the JUMPDEST and is too short
+        assertNull(precompile.getBlock(0));
+
+        ProgramPrecompile.Block block = precompile.getBlock(2);
+        assertEquals(11, block.getEnd());
+        assertEquals(26, block.getGas());
+        assertEquals(1, block.getStackMin());
+        assertEquals(2, block.getStackMax());
+
+        // STOP isn't a simple op
+        assertNull(precompile.getBlock(11));
+        assertNull(precompile.getBlock(3));
+    }
+
+    @Test
+    public void testTruncatedPush() {
+        // ADD PUSH1 0x01 DUP1 PUSH2 0x01
+        ProgramPrecompile precompile = ProgramPrecompile.compile(Hex.decode("01600180" + "6101"));
+        ProgramPrecompile.Block block = precompile.getBlock(0);
+        assertEquals(4, block.getEnd());
+        assertEquals(2, block.getStackMin());
+    }
+
+    @Test
+    public void testSerialize() {
+        ProgramPrecompile precompile = ProgramPrecompile.deserialize(ProgramPrecompile.compile(LOOP).serialize());
+        assertTrue(precompile.hasJumpDest(2));
+        assertEquals(ProgramPrecompile.compile(LOOP).getBlock(2).toString(), precompile.getBlock(2).toString());
+    }
+
+    @Test
+    public void testBlockExecution() {
+        invoke.setGas(1000);
+        Program program = new Program(LOOP, invoke);
+        new VM().play(program);
+
+        assertNull(program.getResult().getException());
+        assertEquals(3 + 3 * 26 + 3, program.getResult().getGasUsed());
+        assertArrayEquals(new DataWord[] {DataWord.ZERO, DataWord.of(5)}, program.getStack().toArray());
+    }
+
+    @Test
+    public void testOutOfGasInBlock() {
+        // the second iteration runs out of gas at JUMPI
+        invoke.setGas(3 + 26 + 25);
+        Program program = new Program(LOOP, invoke);
+        new VM().play(program);
+
+        assertTrue(program.getResult().getException() instanceof Program.OutOfGasException);
+        assertEquals(invoke.getGasLong(), program.getResult().getGasUsed());
+        // the ops before JUMPI are executed one by one like without the blocks
+        assertArrayEquals(new DataWord[] {DataWord.of(1), DataWord.of(1), DataWord.of(2)}, program.getStack().toArray());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) [2016] [ <ether.camp> ]
+ * This file is part of the ethereumJ library.
+ *
+ * The ethereumJ library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The ethereumJ library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the ethereumJ library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.ethereum.vm.program;
+
+import org.ethereum.vm.DataWord;
+import org.ethereum.vm.VM;
+import org.ethereum.vm.program.invoke.ProgramInvokeMockImpl;
+import org.ethereum.vm.program.listener.ProgramListenerAdaptor;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class StackTest {
+
+    @Test
+    public void testInPlaceOps() {
+        Random rnd = new Random(0);
+        for (int i = 0; i < 2000; i++) {
+            DataWord a = randomWord(rnd), b = randomWord(rnd), c = randomWord(rnd);
+            DataWord shift = DataWord.of(rnd.nextInt(300));
+
+            assertOp(a, b, c, Stack::add, a.add(b));
+            assertOp(a, b, c, Stack::sub, a.sub(b));
+            assertOp(a, b, c, Stack::mul, a.mul(b));
+            assertOp(a, b, c, Stack::div, a.div(b));
+            assertOp(a, b, c, Stack::sDiv, a.sDiv(b));
+            assertOp(a, b, c, Stack::mod, a.mod(b));
+            assertOp(a, b, c, Stack::sMod, a.sMod(b));
+            assertOp(a, b, c, Stack::exp, a.exp(b));
+            assertOp(a, b, c, Stack::and, a.and(b));
+            assertOp(a, b, c, Stack::or, a.or(b));
+            assertOp(a, b, c, Stack::xor, a.xor(b));
+            assertOp(a, b, c, Stack::lt, bool(a.value().compareTo(b.value()) < 0));
+            assertOp(a, b, c, Stack::gt, bool(a.value().compareTo(b.value()) > 0));
+            assertOp(a, b, c, Stack::slt, bool(a.sValue().compareTo(b.sValue()) < 0));
+            assertOp(a, b, c, Stack::sgt, bool(a.sValue().compareTo(b.sValue()) > 0));
+            assertOp(a, a, c, Stack::eq, DataWord.ONE);
+            assertOp(a, b, c, Stack::eq, bool(a.equals(b)));
+            assertOp(shift, b, c, Stack::shiftLeft, b.shiftLeft(shift));
+            assertOp(shift, b, c, Stack::shiftRight, b.shiftRight(shift));
+            assertOp(shift, b, c, Stack::shiftRightSigned, b.shiftRightSigned(shift));
+            assertOp(DataWord.of(i % 40), b, c, Stack::byteAt, i % 40 < 32 ? DataWord.of(b.getData()[i % 40]) : DataWord.ZERO);
+
+            assertUnary(a, Stack::not, a.bnot());
+            assertUnary(a, Stack::isZero, bool(a.isZero()));
+
+            Stack stack = stack(c, b, a);
+            stack.addmod();
+            assertArrayEquals(new DataWord[] {a.addmod(b, c)}, stack.toArray());
+            stack = stack(c, b, a);
+            stack.mulmod();
+            assertArrayEquals(new DataWord[] {a.mulmod(b, c)}, stack.toArray());
+        }
+        assertUnary(DataWord.ZERO, Stack::isZero, DataWord.ONE);
+    }
+
+    @Test
+    public void testManipulation() {
+        Stack stack = new Stack();
+        for (int i = 0; i < 1024; i++) {
+            stack.push(DataWord.of(i));
+        }
+        stack.push(Hex.decode("0102"));
+        assertEquals(1025, stack.size());
+        assertEquals(DataWord.of(0x0102), stack.pop());
+
+        stack.dup(3);
+        assertEquals(DataWord.of(1021), stack.peek());
+        stack.swap(stack.size() - 1, 0);
+        assertEquals(DataWord.of(0), stack.pop());
+        assertEquals(DataWord.of(1021), stack.get(0));
+        stack.drop();
+        assertEquals(1023, stack.size());
+        assertEquals(DataWord.of(1022), stack.peek());
+    }
+
+    @Test
+    public void testListener() {
+        List<String> events = new ArrayList<>();
+        Stack stack = new Stack();
+        stack.setProgramListener(new ProgramListenerAdaptor() {
+            @Override
+            public void onStackPop() {
+                events.add("pop");
+            }
+
+            @Override
+            public void onStackPush(DataWord value) {
+                events.add("push " + value.intValue());
+            }
+        });
+
+        stack.push(DataWord.of(2));
+        stack.push(new byte[] {3});
+        stack.add();
+        stack.dup(1);
+        stack.drop();
+        // the in place op is seen as the pops of its arguments and the push of the result
+        assertEquals("[push 2, push 3, pop, pop, push 5, push 5, pop]", events.toString());
+    }
+
+    @Ignore
+    @Test
+    public void testVMPerformance() {
+        // PUSH3 0x030000 JUMPDEST PUSH1 0x01 SWAP1 SUB DUP1 DUP1 MUL DUP2 ADD PUSH1 0x07 AND POP DUP1 PUSH1 0x04 JUMPI STOP
+        byte[] code = Hex.decode("620300005b600190038080028101600716508060045700");
+        ProgramInvokeMockImpl invoke = new ProgramInvokeMockImpl();
+        invoke.setGas(100_000_000);
+
+        for (int i = 0; i < 20; i++) {
+            Program program = new Program(code, invoke);
+            long s = System.nanoTime();
+            new VM().play(program);
+            long time = System.nanoTime() - s;
+            System.out.printf("%d gas in %d ms, %.1f Mgas/s%n", program.getResult().getGasUsed(), time / 1_000_000,
+                    program.getResult().getGasUsed() * 1000.0 / time);
+        }
+        invoke.getRepository().close();
+    }
+
+    private static void assertOp(DataWord top, DataWord next, DataWord bottom, Consumer<Stack> op, DataWord expected) {
+        Stack stack = stack(bottom, next, top);
+        op.accept(stack);
+        assertArrayEquals(new DataWord[] {bottom, expected}, stack.toArray());
+    }
+
+    private static void assertUnary(DataWord top, Consumer<Stack> op, DataWord expected) {
+        Stack stack = stack(top);
+        op.accept(stack);
+        assertArrayEquals(new DataWord[] {expected}, stack.toArray());
+    }
+
+    private static Stack stack(DataWord... words) {
+        Stack stack = new Stack();
+        for (DataWord word : words) {
+            stack.push(word);
+        }
+        return stack;
+    }
+
+    private static DataWord bool(boolean value) {
+        return value ? DataWord.ONE : DataWord.ZERO;
+    }
+
+    private static DataWord randomWord(Random rnd) {
+        byte[] data = new byte[32];
+        if (rnd.nextBoolean()) {
+            rnd.nextBytes(data);
+        } else {
+            for (int i = 32 - rnd.nextInt(33); i < 32; i++) {
+                data[i] = (byte) (rnd.nextBoolean() ? 0xFF : rnd.nextInt());
+            }
+        }
+        return DataWord.of(data);
+    }
+}